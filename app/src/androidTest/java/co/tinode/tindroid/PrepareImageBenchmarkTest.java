@@ -0,0 +1,95 @@
+package co.tinode.tindroid;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Memory of preparing a large photo for sending: decoding it subsampled to the target size
+ * compared to decoding it in full and scaling it down.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PrepareImageBenchmarkTest {
+    private static final int WIDTH = 4032;
+    private static final int HEIGHT = 3024;
+
+    private Context mContext;
+    private File mPhoto;
+
+    @Before
+    public void setUp() throws IOException {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mPhoto = File.createTempFile("photo-", ".jpg", mContext.getCacheDir());
+
+        Bitmap bmp = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bmp);
+        Paint paint = new Paint();
+        for (int i = 0; i < 64; i++) {
+            paint.setColor(Color.rgb(i * 4, 255 - i * 4, (i * 37) % 256));
+            canvas.drawCircle((i * 97) % WIDTH, (i * 53) % HEIGHT, 200 + i * 10, paint);
+        }
+        try (OutputStream out = new FileOutputStream(mPhoto)) {
+            bmp.compress(Bitmap.CompressFormat.JPEG, 90, out);
+        }
+        bmp.recycle();
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        mPhoto.delete();
+    }
+
+    @Test
+    public void testPrepareImage() throws IOException {
+        Uri uri = Uri.fromFile(mPhoto);
+
+        // Decode everything, then scale down.
+        Bitmap full = BitmapFactory.decodeFile(mPhoto.getPath());
+        long fullBytes = full.getByteCount();
+        Bitmap scaled = UiUtils.scaleBitmap(full, UiUtils.MAX_BITMAP_SIZE, UiUtils.MAX_BITMAP_SIZE);
+        full.recycle();
+        scaled.recycle();
+
+        // Decode subsampled to the target size.
+        AttachmentHandler.UploadDetails details = new AttachmentHandler.UploadDetails();
+        details.imageOrientation = 0;
+        Bitmap bmp = AttachmentHandler.prepareImage(mContext.getContentResolver(), uri, details);
+        long sampledBytes = bmp.getByteCount();
+        assertEquals(UiUtils.MAX_BITMAP_SIZE, bmp.getWidth());
+        assertTrue(bmp.getHeight() < bmp.getWidth());
+        bmp.recycle();
+
+        // Rotation copies the bitmap of the target size.
+        details = new AttachmentHandler.UploadDetails();
+        details.imageOrientation = 90;
+        bmp = AttachmentHandler.prepareImage(mContext.getContentResolver(), uri, details);
+        assertEquals(UiUtils.MAX_BITMAP_SIZE, bmp.getHeight());
+        assertEquals(bmp.getWidth(), details.imageWidth);
+        bmp.recycle();
+
+        // The prepared image is no larger than the target size, which is much smaller than the full photo.
+        assertTrue(sampledBytes <= 4L * UiUtils.MAX_BITMAP_SIZE * UiUtils.MAX_BITMAP_SIZE);
+        assertTrue(sampledBytes * 4 < fullBytes);
+    }
+}
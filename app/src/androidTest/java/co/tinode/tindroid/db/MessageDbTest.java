@@ -0,0 +1,77 @@
+package co.tinode.tindroid.db;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import co.tinode.tinodesdk.model.Drafty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Conversion of messages from the legacy TEXT format to binary format.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MessageDbTest {
+    private static final String UID = "usrMessageDbTest";
+
+    private Context mContext;
+    private DataDb mData;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        DataDb.delete(mContext, UID);
+        mData = DataDb.open(mContext, UID);
+    }
+
+    @After
+    public void tearDown() {
+        mData.close();
+        DataDb.delete(mContext, UID);
+    }
+
+    @Test
+    public void testConvertLegacyFormat() {
+        SQLiteDatabase db = mData.getWritableDatabase();
+        final String unparseable = Drafty.class.getCanonicalName() + ";{\"txt\":";
+        db.execSQL("INSERT INTO topics (_id, name) VALUES (1, 'grpFixture')");
+        db.execSQL("INSERT INTO messages (_id, topic_id, seq, content) VALUES (1, 1, 1, ?)",
+                new Object[]{BaseDb.serialize(new Drafty("converted"))});
+        // Unsent message which cannot be parsed: must not be lost.
+        db.execSQL("INSERT INTO messages (_id, topic_id, seq, content) VALUES (2, 1, 2, ?)",
+                new Object[]{unparseable});
+        db.execSQL("INSERT INTO messages (_id, topic_id, seq, content) VALUES (3, 1, 3, ?)",
+                new Object[]{BaseDb.serialize(new Drafty("after"))});
+
+        long lastId = 0;
+        int batches = 0;
+        while ((lastId = MessageDb.convertLegacyFormat(db, lastId, 2)) > 0) {
+            batches++;
+        }
+        assertEquals(2, batches);
+
+        Cursor c = db.rawQuery("SELECT _id, content FROM messages ORDER BY _id", null);
+        c.moveToNext();
+        assertEquals(Cursor.FIELD_TYPE_BLOB, c.getType(1));
+        Drafty content = BaseDb.deserializeColumn(c, 1);
+        assertNotNull(content);
+        assertEquals("converted", content.toString());
+
+        c.moveToNext();
+        assertEquals(Cursor.FIELD_TYPE_STRING, c.getType(1));
+        assertEquals(unparseable, c.getString(1));
+
+        c.moveToNext();
+        assertEquals(Cursor.FIELD_TYPE_BLOB, c.getType(1));
+        c.close();
+    }
+}
@@ -0,0 +1,66 @@
+package co.tinode.tindroid.db;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import co.tinode.tinodesdk.model.Drafty;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Ranking of full-text search results.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MessageSearchDbTest {
+    private static final String UID = "usrMessageSearchDbTest";
+
+    private Context mContext;
+    private DataDb mData;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        DataDb.delete(mContext, UID);
+        mData = DataDb.open(mContext, UID);
+    }
+
+    @After
+    public void tearDown() {
+        mData.close();
+        DataDb.delete(mContext, UID);
+    }
+
+    private static void insert(SQLiteDatabase db, long id, long ts, String text) {
+        db.execSQL("INSERT INTO messages (_id, topic_id, seq, ts) VALUES (?, 1, ?, ?)",
+                new Object[]{id, id, ts});
+        MessageSearchDb.insert(db, id, new Drafty(text));
+    }
+
+    @Test
+    public void testOldRelevantMessageIsFound() {
+        SQLiteDatabase db = mData.getWritableDatabase();
+        db.execSQL("INSERT INTO topics (_id, name) VALUES (1, 'grpFixture')");
+        // The oldest message is the most relevant one.
+        insert(db, 1, 1000, "apple apple apple apple apple");
+        for (int i = 2; i <= 50; i++) {
+            insert(db, i, 1000L * i, "an apple and " + i + " other things");
+        }
+
+        List<MessageSearchDb.Hit> hits = MessageSearchDb.search(db, "apple", 0, 3);
+        assertEquals(3, hits.size());
+        assertEquals(1, hits.get(0).id);
+        assertEquals("grpFixture", hits.get(0).topic);
+        // Equally relevant messages are sorted by recency.
+        assertEquals(50, hits.get(1).id);
+        assertEquals(49, hits.get(2).id);
+    }
+}
@@ -0,0 +1,210 @@
+package co.tinode.tindroid.db;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import co.tinode.tinodesdk.model.Drafty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Upgrades of databases created by the older versions of the app.
+ * <p>
+ * Fixture databases are created with the schema of the old version, then opened with the current one.
+ * Data of the account is then imported into the account database the same way as when the app starts.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MigrationsTest {
+    private static final String BASE_FIXTURE = "migrations-test-base.db";
+    private static final String UID = "usrMigrationsTest";
+
+    // Schema of version 14, the last one with all accounts in a single database file.
+    private static final String[] V14_SCHEMA = new String[]{
+            "CREATE TABLE accounts (_id INTEGER PRIMARY KEY,uid TEXT,last_active INTEGER,cred_methods TEXT," +
+                    "device_id TEXT)",
+            "CREATE UNIQUE INDEX accounts_uid ON accounts (uid)",
+            "CREATE INDEX accounts_active ON accounts (last_active)",
+            "CREATE TABLE topics (_id INTEGER PRIMARY KEY,account_id REFERENCES accounts(_id),status INT," +
+                    "name TEXT,created INT,updated INT,channel_access INT,read INT,recv INT,seq INT,clear INT," +
+                    "max_del INT,mode TEXT,defacs TEXT,last_used INT,min_local_seq INT,max_local_seq INT," +
+                    "next_unsent_seq INT,tags TEXT,last_seen INT,last_seen_ua TEXT,creds TEXT,pub TEXT," +
+                    "trusted TEXT,priv TEXT)",
+            "CREATE UNIQUE INDEX topic_account_name ON topics (account_id,name)",
+            "CREATE TABLE users (_id INTEGER PRIMARY KEY,account_id REFERENCES accounts(_id),uid TEXT," +
+                    "updated INT,deleted INT,pub TEXT)",
+            "CREATE UNIQUE INDEX user_account_name ON users (account_id,uid)",
+            "CREATE TABLE subscriptions (_id INTEGER PRIMARY KEY,topic_id REFERENCES topics(_id)," +
+                    "user_id REFERENCES users(_id),status INT,mode TEXT,updated INT,deleted INT,read INT," +
+                    "recv INT,clear INT,last_seen INT,user_agent TEXT)",
+            "CREATE INDEX subscription_topic_id ON subscriptions (topic_id)",
+            "CREATE TABLE messages (_id INTEGER PRIMARY KEY,topic_id REFERENCES topics(_id)," +
+                    "user_id REFERENCES users(_id),status INT,sender TEXT,ts INT,seq INT,high INT,del_id INT," +
+                    "head TEXT,content TEXT)",
+            "CREATE UNIQUE INDEX message_topic_id_seq ON messages (topic_id,seq DESC)"
+    };
+
+    // Tables added in version 15: full-text index of messages.
+    private static final String[] V15_SCHEMA = new String[]{
+            "CREATE VIRTUAL TABLE message_fts USING fts4(body,prefix=\"2,3\")",
+            "CREATE TRIGGER message_fts_delete AFTER DELETE ON messages " +
+                    "BEGIN DELETE FROM message_fts WHERE docid=old._id; END"
+    };
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        cleanUp();
+    }
+
+    @After
+    public void cleanUp() {
+        mContext.deleteDatabase(BASE_FIXTURE);
+        mContext.deleteDatabase(DataDb.fileName(UID));
+    }
+
+    @Test
+    public void testAccountsFromV14() {
+        checkAccounts(14);
+    }
+
+    @Test
+    public void testAccountsFromV15() {
+        checkAccounts(15);
+    }
+
+    @Test
+    public void testDataFromV1() {
+        SQLiteDatabase fixture = SQLiteDatabase.openOrCreateDatabase(
+                mContext.getDatabasePath(DataDb.fileName(UID)), null);
+        fixture.execSQL("CREATE TABLE topics (_id INTEGER PRIMARY KEY, name TEXT)");
+        fixture.execSQL("INSERT INTO topics (_id, name) VALUES (7, 'grpFixture')");
+        fixture.setVersion(1);
+        fixture.close();
+
+        DataDb data = DataDb.open(mContext, UID);
+        SQLiteDatabase db = data.getReadableDatabase();
+        try {
+            assertEquals(DataDb.DATABASE_VERSION, db.getVersion());
+            assertTrue(hasTable(db, UploadDb.TABLE_NAME));
+            assertEquals("grpFixture", queryString(db, "SELECT name FROM topics WHERE _id=7"));
+        } finally {
+            data.close();
+        }
+    }
+
+    // Create the database as it was in the given version, upgrade it, import the data of the account into
+    // the account database and check that nothing is lost.
+    private void checkAccounts(int version) {
+        SQLiteDatabase fixture = SQLiteDatabase.openOrCreateDatabase(mContext.getDatabasePath(BASE_FIXTURE), null);
+        for (String sql : V14_SCHEMA) {
+            fixture.execSQL(sql);
+        }
+        if (version >= 15) {
+            for (String sql : V15_SCHEMA) {
+                fixture.execSQL(sql);
+            }
+        }
+        fixture.execSQL("INSERT INTO accounts (_id, uid, last_active, device_id) VALUES (3, '" + UID + "', 1, 'token')");
+        fixture.execSQL("INSERT INTO topics (_id, account_id, status, name, seq, pub) " +
+                "VALUES (5, 3, " + BaseDb.Status.SYNCED.value + ", 'grpFixture', 2, " +
+                "'co.tinode.tindroid.media.VxCard;{\"fn\":\"Fixture\"}')");
+        fixture.execSQL("INSERT INTO users (_id, account_id, uid, updated) VALUES (6, 3, 'usrFixture', 1)");
+        fixture.execSQL("INSERT INTO subscriptions (_id, topic_id, user_id, status, mode, read, recv) " +
+                "VALUES (8, 5, 6, " + BaseDb.Status.SYNCED.value + ", 'JRWPS', 1, 2)");
+        fixture.execSQL("INSERT INTO messages (_id, topic_id, user_id, status, sender, ts, seq, content) " +
+                "VALUES (9, 5, 6, " + BaseDb.Status.SYNCED.value + ", 'usrFixture', 1000, 1, " +
+                "'co.tinode.tinodesdk.model.Drafty;{\"txt\":\"synced\"}')");
+        // Unsent message: cannot be fetched from the server again.
+        fixture.execSQL("INSERT INTO messages (_id, topic_id, user_id, status, sender, ts, seq, content) " +
+                "VALUES (10, 5, 6, " + BaseDb.Status.QUEUED.value + ", 'usrFixture', 2000, " +
+                (TopicDb.UNSENT_ID_START + 1) + ", 'co.tinode.tinodesdk.model.Drafty;{\"txt\":\"unsent\"}')");
+        // Row of another account stays in the shared tables.
+        fixture.execSQL("INSERT INTO accounts (_id, uid, last_active) VALUES (4, 'usrOther', 0)");
+        fixture.execSQL("INSERT INTO topics (_id, account_id, name) VALUES (11, 4, 'grpOther')");
+        fixture.setVersion(version);
+        fixture.close();
+
+        SQLiteOpenHelper helper = new SQLiteOpenHelper(mContext, BASE_FIXTURE, null, BaseDb.DATABASE_VERSION) {
+            @Override
+            public void onCreate(SQLiteDatabase db) {
+                fail("Database created instead of upgraded");
+            }
+
+            // Same as BaseDb.onUpgrade except the database must not be recreated.
+            @Override
+            public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+                assertTrue(Migrations.ACCOUNTS.canMigrate(oldVersion, newVersion));
+                Migrations.ACCOUNTS.migrate(db, oldVersion, newVersion);
+            }
+        };
+
+        DataDb data = DataDb.open(mContext, UID);
+        try {
+            SQLiteDatabase base = helper.getWritableDatabase();
+            assertEquals(BaseDb.DATABASE_VERSION, base.getVersion());
+
+            StoredAccount acc = AccountDb.getActiveAccount(base);
+            assertEquals(3, acc.id);
+            assertEquals(UID, acc.uid);
+            assertEquals("token", AccountDb.getDeviceToken(base));
+            assertTrue(DataDb.hasLegacy(base));
+
+            // Same as BaseDb.openData.
+            data.importLegacy(base.getPath(), acc.id);
+            DataDb.dropLegacyIfEmpty(base);
+
+            SQLiteDatabase db = data.getReadableDatabase();
+            assertEquals("grpFixture", queryString(db, "SELECT name FROM topics WHERE _id=5"));
+            assertEquals("2", queryString(db, "SELECT seq FROM topics WHERE _id=5"));
+            assertEquals("usrFixture", queryString(db, "SELECT uid FROM users WHERE _id=6"));
+            assertEquals("JRWPS", queryString(db, "SELECT mode FROM subscriptions WHERE topic_id=5 AND user_id=6"));
+            assertEquals("2", queryString(db, "SELECT COUNT(*) FROM messages WHERE topic_id=5"));
+            assertEquals(String.valueOf(TopicDb.UNSENT_ID_START + 1),
+                    queryString(db, "SELECT seq FROM messages WHERE _id=10"));
+            Cursor c = db.rawQuery("SELECT content FROM messages WHERE _id=10", null);
+            assertTrue(c.moveToFirst());
+            Drafty content = BaseDb.deserializeColumn(c, 0);
+            c.close();
+            assertNotNull(content);
+            assertEquals("unsent", content.toString());
+
+            // Imported rows are removed from the shared tables, rows of the other account are kept.
+            assertTrue(DataDb.hasLegacy(base));
+            assertNull(queryString(base, "SELECT name FROM topics WHERE account_id=3"));
+            assertEquals("0", queryString(base, "SELECT COUNT(*) FROM messages"));
+            assertEquals("grpOther", queryString(base, "SELECT name FROM topics WHERE account_id=4"));
+        } finally {
+            data.close();
+            helper.close();
+        }
+    }
+
+    private static boolean hasTable(SQLiteDatabase db, String name) {
+        return queryString(db, "SELECT name FROM sqlite_master WHERE type='table' AND name='" + name + "'") != null;
+    }
+
+    private static String queryString(SQLiteDatabase db, String sql) {
+        String result = null;
+        Cursor c = db.rawQuery(sql, null);
+        if (c.moveToFirst()) {
+            result = c.getString(0);
+        }
+        c.close();
+        return result;
+    }
+}
@@ -0,0 +1,92 @@
+package co.tinode.tindroid.db;
+
+import android.database.MatrixCursor;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import co.tinode.tindroid.media.VxCard;
+import co.tinode.tinodesdk.Tinode;
+import co.tinode.tinodesdk.Topic;
+import co.tinode.tinodesdk.model.PrivateType;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Loading topics at startup with JSON fields decoded on the first access.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StoredTopicTest {
+    private static final int COUNT = 5000;
+    // Number of topics visible on the first screen of the chat list.
+    private static final int VISIBLE = 20;
+
+    // Rows of the topics table in the order of TopicDb.COLUMN_IDX_* constants.
+    private static MatrixCursor topicRows() {
+        String[] columns = new String[TopicDb.COLUMN_IDX_PRIVATE + 1];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = "col" + i;
+        }
+        String priv = BaseDb.serialize(new PrivateType());
+        MatrixCursor c = new MatrixCursor(columns, COUNT);
+        for (int i = 0; i < COUNT; i++) {
+            byte[] avatar = new byte[1024];
+            new Random(i).nextBytes(avatar);
+
+            Object[] row = new Object[columns.length];
+            row[TopicDb.COLUMN_IDX_ID] = (long) (i + 1);
+            row[TopicDb.COLUMN_IDX_STATUS] = BaseDb.Status.SYNCED.value;
+            row[TopicDb.COLUMN_IDX_TOPIC] = "grp" + i;
+            row[TopicDb.COLUMN_IDX_UPDATED] = 1000L * i;
+            row[TopicDb.COLUMN_IDX_LASTUSED] = 1000L * i;
+            row[TopicDb.COLUMN_IDX_ACCESSMODE] = "JRWPS,JRWPS,JRWPS";
+            row[TopicDb.COLUMN_IDX_DEFACS] = "JRWP,R";
+            row[TopicDb.COLUMN_IDX_TAGS] = BaseDb.serializeStringArray(new String[]{"tag" + i});
+            row[TopicDb.COLUMN_IDX_PUBLIC] = BaseDb.serialize(new VxCard("Contact " + i, avatar, "image/jpeg"));
+            row[TopicDb.COLUMN_IDX_PRIVATE] = priv;
+            c.addRow(row);
+        }
+        return c;
+    }
+
+    private static List<Topic> load(MatrixCursor c) {
+        List<Topic> topics = new ArrayList<>(COUNT);
+        c.moveToPosition(-1);
+        while (c.moveToNext()) {
+            topics.add(TopicDb.readOne((Tinode) null, c));
+        }
+        return topics;
+    }
+
+    @Test
+    public void testLazyHydration() {
+        MatrixCursor c = topicRows();
+        long before = StoredTopic.getHydrations();
+        List<Topic> topics = load(c);
+        c.close();
+        // Loading does not decode JSON fields.
+        assertEquals(before, StoredTopic.getHydrations());
+
+        // Only the topics which are displayed are decoded.
+        for (int i = 0; i < VISIBLE; i++) {
+            assertNotNull(topics.get(i).getPub());
+        }
+        assertEquals(before + VISIBLE, StoredTopic.getHydrations());
+
+        // Fields are decoded once.
+        assertEquals("Contact 7", ((VxCard) topics.get(7).getPub()).fn);
+        assertEquals("tag7", topics.get(7).getTags()[0]);
+        assertEquals(before + VISIBLE, StoredTopic.getHydrations());
+
+        Topic hidden = topics.get(COUNT - 1);
+        assertEquals("tag" + (COUNT - 1), hidden.getTags()[0]);
+        assertEquals("Contact " + (COUNT - 1), ((VxCard) hidden.getPub()).fn);
+        assertEquals(before + VISIBLE + 1, StoredTopic.getHydrations());
+    }
+}
@@ -24,6 +24,7 @@ import org.jetbrains.annotations.NotNull;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -31,9 +32,12 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -51,12 +55,14 @@ import androidx.work.WorkManager;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 import co.tinode.tindroid.db.BaseDb;
+import co.tinode.tindroid.db.SqlStore;
 import co.tinode.tindroid.media.VxCard;
 import co.tinode.tinodesdk.LargeFileHelper;
 import co.tinode.tinodesdk.PromisedReply;
 import co.tinode.tinodesdk.Storage;
 import co.tinode.tinodesdk.Tinode;
 import co.tinode.tinodesdk.Topic;
+import co.tinode.tinodesdk.TransferManager;
 import co.tinode.tinodesdk.model.Drafty;
 import co.tinode.tinodesdk.model.ServerMessage;
 import co.tinode.tinodesdk.model.TheCard;
@@ -87,7 +93,7 @@ public class AttachmentHandler extends Worker {
     final static String TAG_UPLOAD_WORK = "AttachmentUploader";
 
     private static final String TAG = "AttachmentHandler";
-    private LargeFileHelper mUploader = null;
+    private volatile TransferManager.Transfer<ServerMessage> mUpload = null;
 
     public AttachmentHandler(@NonNull Context context, @NonNull WorkerParameters params) {
         super(context, params);
@@ -194,10 +200,8 @@ public class AttachmentHandler extends Worker {
         }
     }
 
-    @SuppressWarnings("UnusedReturnValue")
-    static long enqueueDownloadAttachment(AppCompatActivity activity, Map<String, Object> data,
+    static void enqueueDownloadAttachment(AppCompatActivity activity, Map<String, Object> data,
                                           String fname, String mimeType) {
-        long downloadId = -1;
         // Create file in a downloads directory by default.
         File path = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
         File file = new File(path, fname);
@@ -224,8 +228,7 @@ public class AttachmentHandler extends Worker {
                 String scheme = url.getProtocol();
                 // Make sure the file is downloaded over http or https protocols.
                 if (scheme.equals("http") || scheme.equals("https")) {
-                    LargeFileHelper lfh = Cache.getTinode().getFileUploader();
-                    downloadId = startDownload(activity, Uri.parse(url.toString()), fname, mimeType, lfh.headers());
+                    startDownload(activity, url.toString(), file, mimeType);
                 } else {
                     Log.w(TAG, "Unsupported transport protocol '" + scheme + "'");
                     Toast.makeText(activity, R.string.failed_to_download, Toast.LENGTH_SHORT).show();
@@ -238,16 +241,7 @@ public class AttachmentHandler extends Worker {
                             Base64.decode((String) val, Base64.DEFAULT) :
                             (byte[]) val);
 
-                    Intent intent = new Intent();
-                    intent.setAction(android.content.Intent.ACTION_VIEW);
-                    intent.setDataAndType(FileProvider.getUriForFile(activity,
-                            "co.tinode.tindroid.provider", file), mimeType);
-                    intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
-                    try {
-                        activity.startActivity(intent);
-                    } catch (ActivityNotFoundException ignored) {
-                        activity.startActivity(new Intent(DownloadManager.ACTION_VIEW_DOWNLOADS));
-                    }
+                    openDownloaded(activity, file, mimeType);
                 } else {
                     Log.w(TAG, "Invalid or missing attachment");
                     Toast.makeText(activity, R.string.failed_to_download, Toast.LENGTH_SHORT).show();
@@ -268,42 +262,51 @@ public class AttachmentHandler extends Worker {
                 }
             }
         }
-        return downloadId;
     }
 
-    private static long startDownload(AppCompatActivity activity, final Uri uri, final String fname, final String mime,
-                                      final Map<String, String> headers) {
-
-        DownloadManager dm = (DownloadManager) activity.getSystemService(Context.DOWNLOAD_SERVICE);
-        if (dm == null) {
-            return -1;
-        }
+    // Download the file in background, then open it. Large files are fetched in parallel segments.
+    // An interrupted download continues from the data already received when the user taps the attachment again.
+    private static void startDownload(final AppCompatActivity activity, final String url, final File dst,
+                                      final String mime) {
+        // The user is waiting for the file.
+        TransferManager.getDefault().submit(Cache.getTinode().getFileUploader(), TransferManager.Priority.HIGH,
+                        (helper, progress) -> helper.downloadToFile(url, dst, progress), null)
+                .getResult().thenApply(new PromisedReply.SuccessListener<Long>() {
+                    @Override
+                    public PromisedReply<Long> onSuccess(Long size) {
+                        activity.runOnUiThread(() -> {
+                            try {
+                                openDownloaded(activity, dst, mime);
+                            } catch (ActivityNotFoundException ex) {
+                                Log.w(TAG, "No application can handle downloaded file");
+                                Toast.makeText(activity, R.string.failed_to_open_file, Toast.LENGTH_SHORT).show();
+                            }
+                        });
+                        return null;
+                    }
+                }, new PromisedReply.FailureListener<Long>() {
+                    @Override
+                    public <E extends Exception> PromisedReply<Long> onFailure(E err) {
+                        Log.w(TAG, "Failed to download attachment", err);
+                        activity.runOnUiThread(() -> Toast.makeText(activity, R.string.failed_to_download,
+                                Toast.LENGTH_SHORT).show());
+                        return null;
+                    }
+                });
+    }
 
-        // Ensure directory exists.
-        Environment
-                .getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS)
-                .mkdirs();
-
-        DownloadManager.Request req = new DownloadManager.Request(uri);
-        // Always add Origin header to satisfy CORS. If server does not need CORS it won't hurt anyway.
-        req.addRequestHeader("Origin", Cache.getTinode().getHttpOrigin());
-        if (headers != null) {
-            for (Map.Entry<String, String> entry : headers.entrySet()) {
-                req.addRequestHeader(entry.getKey(), entry.getValue());
-            }
+    // Show the downloaded file in an app which can handle it, or in the list of downloads.
+    private static void openDownloaded(AppCompatActivity activity, File file, String mimeType) {
+        Intent intent = new Intent();
+        intent.setAction(android.content.Intent.ACTION_VIEW);
+        intent.setDataAndType(FileProvider.getUriForFile(activity,
+                "co.tinode.tindroid.provider", file), mimeType);
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        try {
+            activity.startActivity(intent);
+        } catch (ActivityNotFoundException ignored) {
+            activity.startActivity(new Intent(DownloadManager.ACTION_VIEW_DOWNLOADS));
         }
-
-        return dm.enqueue(
-                req.setAllowedNetworkTypes(DownloadManager.Request.NETWORK_WIFI |
-                        DownloadManager.Request.NETWORK_MOBILE)
-                        .setMimeType(mime)
-                        .setAllowedOverRoaming(false)
-                        .setTitle(fname)
-                        .setDescription(activity.getString(R.string.download_title))
-                        .setNotificationVisibility(DownloadManager.Request.VISIBILITY_VISIBLE_NOTIFY_COMPLETED)
-                        .setVisibleInDownloadsUi(true)
-                        .setDestinationUri(Uri.fromFile(new File(Environment
-                                .getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS), fname))));
     }
 
     // Send image in-band
@@ -351,13 +354,14 @@ public class AttachmentHandler extends Worker {
     @Override
     public void onStopped() {
         super.onStopped();
-        if (mUploader != null) {
-            mUploader.cancel();
+        TransferManager.Transfer<ServerMessage> upload = mUpload;
+        if (upload != null) {
+            upload.cancel();
         }
     }
 
     private ListenableWorker.Result uploadMessageAttachment(final Context context, final Data args) {
-        Storage store = BaseDb.getInstance().getStore();
+        SqlStore store = BaseDb.getInstance().getStore();
 
         // File upload "file" or "image".
         final String operation = args.getString(ARG_OPERATION);
@@ -386,6 +390,9 @@ public class AttachmentHandler extends Worker {
         InputStream is = null;
         ByteArrayOutputStream baos = null;
         Bitmap bmp = null;
+        File tmpFile = null;
+        // Hash of the content to check if the same file has been uploaded already.
+        String contentHash = null;
         try {
             UploadDetails uploadDetails = getFileDetails(context, uri, filePath);
             String fname = uploadDetails.fileName;
@@ -407,14 +414,13 @@ public class AttachmentHandler extends Worker {
             if ("image".equals(operation)) {
                 // Make sure the image is not too large in byte-size and in linear dimensions.
                 bmp = prepareImage(resolver, uri, uploadDetails);
-                is = UiUtils.bitmapToStream(bmp, uploadDetails.mimeType);
-                uploadDetails.fileSize = is.available();
+                // Compressed image is written to a temporary file instead of being kept in memory.
+                tmpFile = File.createTempFile("upload-", null, context.getCacheDir());
+                contentHash = UiUtils.bitmapToFile(bmp, uploadDetails.mimeType, tmpFile);
+                uploadDetails.fileSize = tmpFile.length();
             }
 
             if (uploadDetails.fileSize > maxFileUploadSize) {
-                if (is != null) {
-                    is.close();
-                }
                 // File is too big to be send in-band or out of band.
                 Log.w(TAG, "Unable to process attachment: too big, size=" + uploadDetails.fileSize);
                 return ListenableWorker.Result.failure(
@@ -425,53 +431,100 @@ public class AttachmentHandler extends Worker {
                                         UiUtils.bytesToHumanSize(maxFileUploadSize)))
                                 .build());
             } else {
-                if (is == null) {
-                    is = resolver.openInputStream(uri);
-                }
-                if (is == null) {
-                    throw new IOException("Failed to open file at " + uri);
-                }
+                // Source of data which can be read again if the upload has to restart.
+                final File prepared = tmpFile;
+                final LargeFileHelper.UploadSource source = () -> {
+                    InputStream in = prepared != null ? new FileInputStream(prepared) : resolver.openInputStream(uri);
+                    if (in == null) {
+                        throw new IOException("Failed to open file at " + uri);
+                    }
+                    return in;
+                };
 
                 if (uploadDetails.fileSize > maxInbandAttachmentSize) {
+                    if (contentHash == null && store.hasSimilarUpload(uploadDetails.fileSize, uploadDetails.mimeType)) {
+                        // The file may have been uploaded already: read it to check. Otherwise it's hashed
+                        // while uploading.
+                        contentHash = UiUtils.contentHash(source.open());
+                    }
+                    // The same file sent earlier, e.g. to another chat, is not uploaded again.
+                    String url = contentHash != null ?
+                            store.getUploadRef(contentHash, uploadDetails.fileSize, uploadDetails.mimeType) : null;
+
                     byte[] previewBits = null;
-                    // Update draft with file or image data.
-                    String ref = "mid:uploading-" + msgId;
-                    if ("file".equals(operation)) {
-                        store.msgDraftUpdate(topic, msgId, draftyAttachment(uploadDetails.mimeType,
-                                fname, ref, -1));
+                    // Create a tiny preview bitmap.
+                    if (bmp != null &&
+                            (bmp.getWidth() > UiUtils.IMAGE_PREVIEW_DIM ||
+                                    bmp.getHeight() > UiUtils.IMAGE_PREVIEW_DIM)) {
+                        previewBits = UiUtils.bitmapToBytes(UiUtils.scaleBitmap(bmp,
+                                UiUtils.IMAGE_PREVIEW_DIM, UiUtils.IMAGE_PREVIEW_DIM), "image/jpeg");
+                    }
+
+                    if (url != null) {
+                        Log.d(TAG, "Reusing uploaded file " + url);
+                        success = true;
                     } else {
-                        // Create a tiny preview bitmap.
-                        if (bmp != null &&
-                                (bmp.getWidth() > UiUtils.IMAGE_PREVIEW_DIM ||
-                                        bmp.getHeight() > UiUtils.IMAGE_PREVIEW_DIM)) {
-                            previewBits = UiUtils.bitmapToBytes(UiUtils.scaleBitmap(bmp,
-                                    UiUtils.IMAGE_PREVIEW_DIM, UiUtils.IMAGE_PREVIEW_DIM), "image/jpeg");
+                        // Update draft with file or image data.
+                        String ref = "mid:uploading-" + msgId;
+                        if ("file".equals(operation)) {
+                            store.msgDraftUpdate(topic, msgId, draftyAttachment(uploadDetails.mimeType,
+                                    fname, ref, -1));
+                        } else {
+                            store.msgDraftUpdate(topic, msgId,
+                                    draftyImage(args.getString(ARG_IMAGE_CAPTION),
+                                            uploadDetails.mimeType, previewBits, ref, uploadDetails.imageWidth, uploadDetails.imageHeight,
+                                            fname, -1));
                         }
-                        store.msgDraftUpdate(topic, msgId,
-                                draftyImage(args.getString(ARG_IMAGE_CAPTION),
-                                        uploadDetails.mimeType, previewBits, ref, uploadDetails.imageWidth, uploadDetails.imageHeight,
-                                        fname, -1));
-                    }
 
-                    setProgressAsync(new Data.Builder()
-                            .putAll(result.build())
-                            .putLong(ARG_PROGRESS, 0)
-                            .putLong(ARG_FILE_SIZE, uploadDetails.fileSize).build());
-
-                    // Upload then send message with a link. This is a long-running blocking call.
-                    mUploader = Cache.getTinode().getFileUploader();
-                    ServerMessage msg = mUploader.upload(is, fname, uploadDetails.mimeType, uploadDetails.fileSize,
-                            (progress, size) -> setProgressAsync(new Data.Builder()
-                                    .putAll(result.build())
-                                    .putLong(ARG_PROGRESS, progress)
-                                    .putLong(ARG_FILE_SIZE, size)
-                                    .build()));
-                    if (mUploader.isCanceled()) {
-                        throw new CancellationException();
+                        setProgressAsync(new Data.Builder()
+                                .putAll(result.build())
+                                .putLong(ARG_PROGRESS, 0)
+                                .putLong(ARG_FILE_SIZE, uploadDetails.fileSize).build());
+
+                        // Upload then send message with a link. The upload is queued with other transfers
+                        // and the worker waits for it. Upload is resumed if it was interrupted earlier.
+                        final String key = topicName + "/" + msgId;
+                        final String filename = fname;
+                        final String mimeType = uploadDetails.mimeType;
+                        final long fileSize = uploadDetails.fileSize;
+                        final HashingSource upload = new HashingSource(source);
+                        // Images are shown in the chat while uploading: start them before other files.
+                        mUpload = TransferManager.getDefault().submit(Cache.getTinode().getFileUploader(),
+                                "image".equals(operation) ? TransferManager.Priority.HIGH :
+                                        TransferManager.Priority.NORMAL,
+                                (helper, progress) -> helper.uploadResumable(upload, key, filename, mimeType,
+                                        fileSize, progress),
+                                (progress, size) -> setProgressAsync(new Data.Builder()
+                                        .putAll(result.build())
+                                        .putLong(ARG_PROGRESS, progress)
+                                        .putLong(ARG_FILE_SIZE, size)
+                                        .build()));
+                        if (isStopped()) {
+                            // Stopped before the transfer was created.
+                            mUpload.cancel();
+                        }
+                        ServerMessage msg;
+                        try {
+                            msg = mUpload.getResult().getResult();
+                        } catch (CancellationException | IOException ex) {
+                            throw ex;
+                        } catch (Exception ex) {
+                            throw new IOException("Failed to upload file", ex);
+                        }
+                        success = msg != null && msg.ctrl != null && msg.ctrl.code == 200;
+                        if (success) {
+                            url = msg.ctrl.getStringParam("url", null);
+                            if (contentHash == null) {
+                                contentHash = upload.getHash(fileSize);
+                            }
+                            if (url != null && contentHash != null) {
+                                // Reused references expire counting from this upload.
+                                store.saveUploadRef(contentHash, uploadDetails.fileSize, uploadDetails.mimeType, url);
+                            }
+                        }
                     }
-                    success = msg != null && msg.ctrl != null && msg.ctrl.code == 200;
+
                     if (success) {
-                        String url = msg.ctrl.getStringParam("url", null);
                         result.putString(ARG_REMOTE_URI, url);
                         if ("file".equals(operation)) {
                             content = draftyAttachment(uploadDetails.mimeType, fname, url, uploadDetails.fileSize);
@@ -482,6 +535,7 @@ public class AttachmentHandler extends Worker {
                         }
                     }
                 } else {
+                    is = source.open();
                     baos = new ByteArrayOutputStream();
                     byte[] buffer = new byte[16384];
                     int len;
@@ -536,6 +590,9 @@ public class AttachmentHandler extends Worker {
                 } catch (IOException ignored) {
                 }
             }
+            if (tmpFile != null && !tmpFile.delete()) {
+                Log.w(TAG, "Failed to delete temporary file " + tmpFile);
+            }
         }
 
         if (success) {
@@ -592,8 +649,10 @@ public class AttachmentHandler extends Worker {
                 pub.photo.data = UiUtils.bitmapToBytes(UiUtils.scaleSquareBitmap(bmp, UiUtils.AVATAR_THUMBNAIL_DIM), mimeType);
                 // Upload then return result with a link. This is a long-running blocking call.
                 LargeFileHelper uploader = Cache.getTinode().getFileUploader();
-                result = uploader.uploadFuture(is, System.currentTimeMillis() + ".png", mimeType, fileSize, null)
-                        .thenApply(new PromisedReply.SuccessListener<ServerMessage>() {
+                // The user is waiting for the avatar to change.
+                result = uploader.uploadFuture(is, System.currentTimeMillis() + ".png", mimeType, fileSize,
+                        TransferManager.Priority.HIGH, null)
+                        .getResult().thenApply(new PromisedReply.SuccessListener<ServerMessage>() {
                             @Override
                             public PromisedReply<ServerMessage> onSuccess(ServerMessage msg) {
                                 if (msg != null && msg.ctrl != null && msg.ctrl.code == 200) {
@@ -615,32 +674,63 @@ public class AttachmentHandler extends Worker {
         return result;
     }
 
-    // Make sure the image is not too large in byte-size and in linear dimensions, has correct orientation.
-    private static Bitmap prepareImage(ContentResolver r, Uri src, UploadDetails uploadDetails) throws IOException {
+    // Make sure the image is not too large in linear dimensions and has correct orientation.
+    // The image is sampled down while decoding so the full-size bitmap is never allocated. Rotation
+    // needs a second bitmap of the target size: the decoded one is recycled as soon as it is copied.
+    static Bitmap prepareImage(ContentResolver r, Uri src, UploadDetails uploadDetails) throws IOException {
+        // Read image dimensions without decoding the image.
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
         InputStream is = r.openInputStream(src);
         if (is == null) {
             throw new IOException("Decoding bitmap: source not available");
         }
-        Bitmap bmp = BitmapFactory.decodeStream(is, null, null);
+        BitmapFactory.decodeStream(is, null, options);
         is.close();
 
-        if (bmp == null) {
+        final int srcWidth = options.outWidth;
+        final int srcHeight = options.outHeight;
+        if (srcWidth <= 0 || srcHeight <= 0) {
             throw new IOException("Failed to decode bitmap");
         }
 
-        // Make sure the image dimensions are not too large.
-        if (bmp.getWidth() > UiUtils.MAX_BITMAP_SIZE || bmp.getHeight() > UiUtils.MAX_BITMAP_SIZE) {
-            bmp = UiUtils.scaleBitmap(bmp, UiUtils.MAX_BITMAP_SIZE, UiUtils.MAX_BITMAP_SIZE);
+        // Sample the image down by a power of two while it remains larger than the target,
+        // then scale it to the exact target size by the decoder itself.
+        final int longSide = Math.max(srcWidth, srcHeight);
+        int sample = 1;
+        while (longSide / (sample * 2) >= UiUtils.MAX_BITMAP_SIZE) {
+            sample *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sample;
+        if (longSide / sample > UiUtils.MAX_BITMAP_SIZE) {
+            options.inScaled = true;
+            options.inDensity = longSide / sample;
+            options.inTargetDensity = UiUtils.MAX_BITMAP_SIZE;
+        }
 
-            byte[] bits = UiUtils.bitmapToBytes(bmp, uploadDetails.mimeType);
-            uploadDetails.fileSize = bits.length;
+        is = r.openInputStream(src);
+        if (is == null) {
+            throw new IOException("Decoding bitmap: source not available");
+        }
+        Bitmap bmp;
+        try {
+            bmp = BitmapFactory.decodeStream(is, null, options);
+        } catch (OutOfMemoryError ex) {
+            throw new IOException("Out of memory while decoding bitmap");
+        } finally {
+            is.close();
+        }
+        if (bmp == null) {
+            throw new IOException("Failed to decode bitmap");
         }
+        bmp.setDensity(Bitmap.DENSITY_NONE);
 
         // Also ensure the image has correct orientation.
         int orientation = ExifInterface.ORIENTATION_UNDEFINED;
         try {
-            // Opening original image, not a scaled copy.
             if (uploadDetails.imageOrientation == -1) {
+                // Orientation is stored in the original image.
                 is = r.openInputStream(src);
                 if (is != null) {
                     ExifInterface exif = new ExifInterface(is);
@@ -686,6 +776,51 @@ public class AttachmentHandler extends Worker {
         return bmp;
     }
 
+    // Upload source which hashes the data as the upload reads it, so the file is not read again only to hash it.
+    // Resumed uploads read the data sent earlier too, to verify it, so the whole file is hashed either way.
+    private static class HashingSource implements LargeFileHelper.UploadSource {
+        private final LargeFileHelper.UploadSource mSource;
+        // Digest and byte count of the last opened stream.
+        private volatile MessageDigest mDigest = null;
+        private final AtomicLong mCount = new AtomicLong();
+
+        HashingSource(LargeFileHelper.UploadSource source) {
+            mSource = source;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            final MessageDigest md = UiUtils.newContentDigest();
+            mDigest = md;
+            mCount.set(0);
+            return new DigestInputStream(mSource.open(), md) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) {
+                        mCount.incrementAndGet();
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int count = super.read(b, off, len);
+                    if (count > 0) {
+                        mCount.addAndGet(count);
+                    }
+                    return count;
+                }
+            };
+        }
+
+        // Hash of the content or null if the last opened stream was not read from start to end.
+        String getHash(long size) {
+            MessageDigest md = mDigest;
+            return md != null && mCount.get() == size ? UiUtils.toHex(md.digest()) : null;
+        }
+    }
+
     static class UploadDetails {
         String mimeType;
         int imageOrientation;
@@ -1,12 +1,17 @@
 package co.tinode.tindroid;
 
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 
 import com.google.firebase.messaging.FirebaseMessaging;
 
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import co.tinode.tindroid.db.BaseDb;
+import co.tinode.tindroid.db.ChatListSnapshot;
 import co.tinode.tindroid.media.VxCard;
 import co.tinode.tinodesdk.FndTopic;
 import co.tinode.tinodesdk.MeTopic;
@@ -21,12 +26,16 @@ import co.tinode.tinodesdk.model.ServerMessage;
 public class Cache {
     private static final String API_KEY = "AQEAAAABAAD_rAp4DJh05a1HAwFT3A6K";
 
-    private static Tinode sTinode = null;
+    // Creates Tinode in background, see initAsync().
+    private static final ExecutorService sInitializer = Executors.newSingleThreadExecutor();
 
-    public static Tinode getTinode() {
+    private static volatile Tinode sTinode = null;
+
+    // Synchronized: Tinode may be created concurrently by the UI and by the background login.
+    public static synchronized Tinode getTinode() {
         if (sTinode == null) {
-            sTinode = new Tinode("Tindroid/" + TindroidApp.getAppVersion(), API_KEY,
-                    BaseDb.getInstance().getStore(), null);
+            BaseDb db = BaseDb.getInstance();
+            sTinode = new Tinode("Tindroid/" + TindroidApp.getAppVersion(), API_KEY, db.getStore(), null);
             sTinode.setOsString(Build.VERSION.RELEASE);
 
             // Default types for parsing Public, Private fields of messages
@@ -37,8 +46,25 @@ public class Cache {
             // Set device language
             sTinode.setLanguage(Locale.getDefault().toString());
 
+            // Keep sessions of resumable uploads across restarts of the app.
+            sTinode.setUploadSessionStore(new UploadSessionStore(TindroidApp.getAppContext()));
+
+            // The database is not closed until pending storage calls are completed.
+            db.getStore().setAsyncStore(sTinode.getAsyncStore());
+
             // Keep in app to prevent garbage collection.
             TindroidApp.retainTinodeCache(sTinode);
+
+            // Topics are not loaded while the data of the account is imported. Load them when it's done.
+            db.whenDataReady().thenFinally(new PromisedReply.FinalListener() {
+                @Override
+                public void onFinally() {
+                    Tinode tinode = sTinode;
+                    if (tinode != null) {
+                        tinode.loadTopics();
+                    }
+                }
+            });
         }
 
         FirebaseMessaging fbId = FirebaseMessaging.getInstance();
@@ -53,11 +79,39 @@ public class Cache {
         return sTinode;
     }
 
+    /**
+     * Create Tinode in background if it's not created yet, then call onReady on the UI thread.
+     * Tinode loads topics from the database when created, so the UI can be drawn in the meantime.
+     * If Tinode already exists, onReady is called immediately.
+     */
+    static void initAsync(final Runnable onReady) {
+        if (sTinode != null) {
+            onReady.run();
+            return;
+        }
+        final Handler handler = new Handler(Looper.getMainLooper());
+        sInitializer.execute(() -> {
+            try {
+                // Wait if the data of the account is being imported, so the topics are loaded.
+                BaseDb.getInstance().whenDataReady().getResult();
+            } catch (Exception ignored) {
+            }
+            getTinode();
+            handler.post(onReady);
+        });
+    }
+
     // Invalidate existing cache.
     static void invalidate() {
-        if (sTinode != null) {
-            sTinode.logout();
+        // Chats of the previous user must not be shown.
+        ChatListSnapshot.getInstance(TindroidApp.getAppContext()).clear();
+        Tinode tinode;
+        synchronized (Cache.class) {
+            tinode = sTinode;
             sTinode = null;
+        }
+        if (tinode != null) {
+            tinode.logout();
             FirebaseMessaging.getInstance().deleteToken();
         }
     }
@@ -17,6 +17,7 @@ import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentActivity;
 import androidx.fragment.app.FragmentManager;
 import androidx.fragment.app.FragmentTransaction;
+import androidx.lifecycle.Lifecycle;
 import co.tinode.tindroid.account.ContactsManager;
 import co.tinode.tindroid.account.Utils;
 import co.tinode.tindroid.media.VxCard;
@@ -74,8 +75,19 @@ public class ChatsActivity extends AppCompatActivity
                     .commit();
         }
 
-        mMeTopic = Cache.getTinode().getOrCreateMeTopic();
         mMeTopicListener = new MeListener();
+
+        // On a cold start Tinode loads topics from the database when it's created. It's created in background
+        // while the chat list is drawn from the snapshot.
+        Cache.initAsync(() -> {
+            if (isDestroyed()) {
+                return;
+            }
+            mMeTopic = Cache.getTinode().getOrCreateMeTopic();
+            if (getLifecycle().getCurrentState().isAtLeast(Lifecycle.State.RESUMED)) {
+                attach();
+            }
+        });
     }
 
     /**
@@ -85,6 +97,12 @@ public class ChatsActivity extends AppCompatActivity
     public void onResume() {
         super.onResume();
 
+        if (mMeTopic != null) {
+            attach();
+        }
+    }
+
+    private void attach() {
         final Tinode tinode = Cache.getTinode();
         mTinodeListener = new ContactsEventListener(tinode.isConnected());
         tinode.addListener(mTinodeListener);
@@ -118,7 +136,10 @@ public class ChatsActivity extends AppCompatActivity
     public void onPause() {
         super.onPause();
 
-        Cache.getTinode().removeListener(mTinodeListener);
+        if (mTinodeListener != null) {
+            Cache.getTinode().removeListener(mTinodeListener);
+            mTinodeListener = null;
+        }
     }
 
     @Override
@@ -11,10 +11,15 @@ import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -23,12 +28,16 @@ import androidx.core.content.res.ResourcesCompat;
 import androidx.recyclerview.selection.ItemDetailsLookup;
 import androidx.recyclerview.selection.ItemKeyProvider;
 import androidx.recyclerview.selection.SelectionTracker;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
+import co.tinode.tindroid.db.ChatListSnapshot;
 import co.tinode.tindroid.db.StoredTopic;
 import co.tinode.tindroid.format.PreviewFormatter;
 import co.tinode.tindroid.media.VxCard;
 import co.tinode.tinodesdk.ComTopic;
+import co.tinode.tinodesdk.PromisedReply;
 import co.tinode.tinodesdk.Storage;
+import co.tinode.tinodesdk.Tinode;
 import co.tinode.tinodesdk.model.Drafty;
 
 /**
@@ -37,13 +46,30 @@ import co.tinode.tinodesdk.model.Drafty;
 public class ChatsAdapter extends RecyclerView.Adapter<ChatsAdapter.ViewHolder> {
     private static final int MAX_MESSAGE_PREVIEW_LENGTH = 60;
 
+    // Bits of the change payload: only these parts of the row have changed.
+    private static final int CHANGED_ONLINE = 1;
+    private static final int CHANGED_UNREAD = 1 << 1;
+    private static final int CHANGED_STATUS = 1 << 2;
+    // Anything else: the row is fully rebound.
+    private static final int CHANGED_OTHER = 1 << 3;
+
+    // Loads topics and compares them with the list on screen in background.
+    private static final ExecutorService sLoader = Executors.newSingleThreadExecutor();
+
     private static int sColorOffline;
     private static int sColorOnline;
     private final ClickListener mClickListener;
-    private List<ComTopic<VxCard>> mTopics;
+    // Rows on screen. Accessed on the UI thread.
+    private List<Row> mRows;
     private HashMap<String, Integer> mTopicIndex;
+    // The last loaded rows, the base for the next diff. Accessed on the loader thread only.
+    private List<Row> mLoadedRows;
     private SelectionTracker<String> mSelectionTracker;
     private final Filter mTopicFilter;
+    // Chat list saved on the previous run. Shown until the topics are loaded.
+    private List<ChatListSnapshot.Entry> mSnapshot;
+    // Destination for saving the chat list, null if this list should not be saved.
+    private ChatListSnapshot mSnapshotStore;
 
     ChatsAdapter(Context context, ClickListener clickListener, Filter filter) {
         super();
@@ -59,23 +85,100 @@ public class ChatsAdapter extends RecyclerView.Adapter<ChatsAdapter.ViewHolder>
                 R.color.online, context.getTheme());
     }
 
+    /**
+     * Draw the chat list saved on the previous run until the topics are loaded, then keep the
+     * saved copy up to date. The snapshot is read in background and posted to the UI thread.
+     *
+     * @param activity activity which shows the list.
+     * @param store    snapshot to read and update.
+     */
+    void setSnapshot(final Activity activity, ChatListSnapshot store) {
+        mSnapshotStore = store;
+        if (mRows != null) {
+            return;
+        }
+        store.load().thenApply(new PromisedReply.SuccessListener<List<ChatListSnapshot.Entry>>() {
+            @Override
+            public PromisedReply<List<ChatListSnapshot.Entry>> onSuccess(List<ChatListSnapshot.Entry> entries) {
+                activity.runOnUiThread(() -> {
+                    // Topics may have been loaded already.
+                    if (mRows == null && !entries.isEmpty()) {
+                        mSnapshot = entries;
+                        notifyDataSetChanged();
+                    }
+                });
+                return null;
+            }
+        });
+    }
+
     void resetContent(Activity activity) {
         if (activity == null || activity.isFinishing() || activity.isDestroyed()) {
             return;
         }
 
+        // Load topics and find changed rows without blocking the UI.
+        sLoader.execute(() -> loadContent(activity));
+    }
+
+    // Called on the loader thread. Results are applied on the UI thread in the order of loading,
+    // so the rows on screen are always the previously loaded ones when the diff is dispatched.
+    private void loadContent(Activity activity) {
+        // Read before the topics: if the user logs out in the meantime, the save is discarded.
+        final int generation = mSnapshotStore != null ? mSnapshotStore.getGeneration() : 0;
         final Collection<ComTopic<VxCard>> newTopics = Cache.getTinode().getFilteredTopics(t ->
                 t.getTopicType().match(ComTopic.TopicType.USER) && mTopicFilter.filter((ComTopic) t));
 
+        final Tinode tinode = Cache.getTinode();
+        final List<Row> newRows = new ArrayList<>(newTopics.size());
         final HashMap<String, Integer> newTopicIndex = new HashMap<>(newTopics.size());
-        for (ComTopic t : newTopics) {
-            newTopicIndex.put(t.getName(), newTopicIndex.size());
+        for (ComTopic<VxCard> t : newTopics) {
+            newTopicIndex.put(t.getName(), newRows.size());
+            newRows.add(new Row(t, tinode.getLastMessage(t.getName())));
         }
 
-        mTopics = new ArrayList<>(newTopics);
-        mTopicIndex = newTopicIndex;
+        if (mSnapshotStore != null) {
+            mSnapshotStore.save(snapshotOf(newTopics), generation);
+        }
 
-        activity.runOnUiThread(this::notifyDataSetChanged);
+        // The 'empty' placeholder is not a row: changes to or from the empty list are not diffed.
+        final List<Row> oldRows = mLoadedRows;
+        final DiffUtil.DiffResult diff = oldRows == null || oldRows.isEmpty() || newRows.isEmpty() ? null :
+                DiffUtil.calculateDiff(new RowDiff(oldRows, newRows));
+        mLoadedRows = newRows;
+
+        activity.runOnUiThread(() -> {
+            boolean fromSnapshot = mRows == null;
+            mRows = newRows;
+            mTopicIndex = newTopicIndex;
+            mSnapshot = null;
+            if (diff == null || fromSnapshot) {
+                notifyDataSetChanged();
+            } else {
+                diff.dispatchUpdatesTo(this);
+            }
+        });
+    }
+
+    // Convert the top of the chat list to snapshot entries.
+    private static List<ChatListSnapshot.Entry> snapshotOf(Collection<ComTopic<VxCard>> topics) {
+        final Tinode tinode = Cache.getTinode();
+        List<ChatListSnapshot.Entry> entries = new ArrayList<>(ChatListSnapshot.MAX_ENTRIES);
+        for (ComTopic<VxCard> topic : topics) {
+            if (entries.size() >= ChatListSnapshot.MAX_ENTRIES) {
+                break;
+            }
+            VxCard pub = topic.getPub();
+            URL avatar = pub != null ? tinode.toAbsoluteURL(pub.getPhotoRef()) : null;
+            Storage.Message msg = tinode.getLastMessage(topic.getName());
+            Drafty content = msg != null ? msg.getContent() : null;
+            Date touched = topic.getTouched();
+            entries.add(new ChatListSnapshot.Entry(StoredTopic.getId(topic), topic.getName(),
+                    pub != null ? pub.fn : null, avatar != null ? avatar.toString() : null,
+                    content != null ? content.preview(MAX_MESSAGE_PREVIEW_LENGTH) : null,
+                    topic.getUnreadCount(), touched != null ? touched.getTime() : 0));
+        }
+        return entries;
     }
 
     @NonNull
@@ -89,36 +192,83 @@ public class ChatsAdapter extends RecyclerView.Adapter<ChatsAdapter.ViewHolder>
     @Override
     public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
         if (holder.viewType == R.layout.contact) {
-            if (mTopics.size() <= position) {
+            if (mRows == null) {
+                holder.bind(position, mSnapshot.get(position));
+                return;
+            }
+            if (mRows.size() <= position) {
                 // Looks like there is a race condition here.
                 return;
             }
-            ComTopic<VxCard> topic = mTopics.get(position);
+            ComTopic<VxCard> topic = mRows.get(position).topic;
             Storage.Message msg = Cache.getTinode().getLastMessage(topic.getName());
             holder.bind(position, topic, msg, mSelectionTracker != null &&
                     mSelectionTracker.isSelected(topic.getName()));
         }
     }
 
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position, @NonNull List<Object> payloads) {
+        if (payloads.isEmpty() || holder.viewType != R.layout.contact || mRows == null ||
+                mRows.size() <= position) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+
+        // Update only the changed parts of the row, e.g. on presence change.
+        int changed = 0;
+        for (Object payload : payloads) {
+            if (!(payload instanceof Integer)) {
+                // Not ours, e.g. SelectionTracker's marker of changed selection: rebind everything.
+                onBindViewHolder(holder, position);
+                return;
+            }
+            changed |= (Integer) payload;
+        }
+        ComTopic<VxCard> topic = mRows.get(position).topic;
+        holder.details.pos = position;
+        if ((changed & CHANGED_ONLINE) != 0) {
+            holder.bindOnline(topic);
+        }
+        if ((changed & CHANGED_UNREAD) != 0) {
+            holder.bindUnread(topic.getUnreadCount());
+        }
+        if ((changed & CHANGED_STATUS) != 0) {
+            holder.bindStatus(topic, Cache.getTinode().getLastMessage(topic.getName()));
+        }
+    }
+
     @Override
     public long getItemId(int position) {
         if (getActualItemCount() == 0) {
             return -2;
         }
-        return StoredTopic.getId(mTopics.get(position));
+        if (mRows == null) {
+            return mSnapshot.get(position).id;
+        }
+        return mRows.get(position).id;
     }
 
     private String getItemKey(int position) {
-        return mTopics.get(position).getName();
+        if (mRows == null) {
+            return mSnapshot.get(position).topic;
+        }
+        return mRows.get(position).name;
     }
 
     private int getItemPosition(String key) {
+        if (mTopicIndex == null) {
+            return -1;
+        }
         Integer pos = mTopicIndex.get(key);
         return pos == null ? -1 : pos;
     }
 
     private int getActualItemCount() {
-        return mTopics == null ? 0 : mTopics.size();
+        if (mRows == null) {
+            return mSnapshot == null ? 0 : mSnapshot.size();
+        }
+        return mRows.size();
     }
 
     @Override
@@ -149,6 +299,133 @@ public class ChatsAdapter extends RecyclerView.Adapter<ChatsAdapter.ViewHolder>
         boolean filter(ComTopic topic);
     }
 
+    // Copy of the fields shown in the row, taken when the topics are loaded. Topics are modified in place,
+    // so the copy is needed to tell which rows have changed since the previous load.
+    private static class Row {
+        final ComTopic<VxCard> topic;
+        final long id;
+        final String name;
+        final String title;
+        final String photoRef;
+        // Compared by identity: avatar bits are replaced, not modified.
+        final Object photo;
+        final String comment;
+        final long msgId;
+        final int msgSeq;
+        final int msgStatus;
+        final Drafty msgContent;
+        final int readCount;
+        final int recvCount;
+        final int unread;
+        final boolean online;
+        final boolean channel;
+        final boolean verified;
+        final boolean staff;
+        final boolean danger;
+        final boolean muted;
+        final boolean archived;
+        final boolean joiner;
+
+        Row(ComTopic<VxCard> topic, Storage.Message msg) {
+            this.topic = topic;
+            id = StoredTopic.getId(topic);
+            name = topic.getName();
+            VxCard pub = topic.getPub();
+            title = pub != null ? pub.fn : null;
+            photoRef = pub != null ? pub.getPhotoRef() : null;
+            photo = pub != null ? pub.photo : null;
+            comment = topic.getComment();
+            if (msg != null) {
+                msgId = msg.getDbId();
+                msgSeq = msg.getSeqId();
+                msgStatus = msg.getStatus();
+                msgContent = msg.getContent();
+                readCount = topic.msgReadCount(msgSeq);
+                recvCount = topic.msgRecvCount(msgSeq);
+            } else {
+                msgId = 0;
+                msgSeq = 0;
+                msgStatus = 0;
+                msgContent = null;
+                readCount = 0;
+                recvCount = 0;
+            }
+            unread = topic.getUnreadCount();
+            online = topic.getOnline();
+            channel = topic.isChannel();
+            verified = topic.isTrustedVerified();
+            staff = topic.isTrustedStaff();
+            danger = topic.isTrustedDanger();
+            muted = topic.isMuted();
+            archived = topic.isArchived();
+            joiner = topic.isJoiner();
+        }
+
+        // Get CHANGED_* bits of the parts of the row which differ between this and that.
+        int changes(Row that) {
+            int changed = 0;
+            if (online != that.online) {
+                changed |= CHANGED_ONLINE;
+            }
+            if (unread != that.unread) {
+                changed |= CHANGED_UNREAD;
+            }
+            if (msgId == that.msgId && msgContent == that.msgContent) {
+                if (msgStatus != that.msgStatus || readCount != that.readCount || recvCount != that.recvCount) {
+                    changed |= CHANGED_STATUS;
+                }
+            } else {
+                changed |= CHANGED_OTHER;
+            }
+            if (msgSeq != that.msgSeq || photo != that.photo || channel != that.channel ||
+                    verified != that.verified || staff != that.staff || danger != that.danger ||
+                    muted != that.muted || archived != that.archived || joiner != that.joiner ||
+                    !Objects.equals(title, that.title) || !Objects.equals(photoRef, that.photoRef) ||
+                    !Objects.equals(comment, that.comment)) {
+                changed |= CHANGED_OTHER;
+            }
+            return changed;
+        }
+    }
+
+    private static class RowDiff extends DiffUtil.Callback {
+        private final List<Row> mOld;
+        private final List<Row> mNew;
+
+        RowDiff(List<Row> oldRows, List<Row> newRows) {
+            mOld = oldRows;
+            mNew = newRows;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOld.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNew.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldPos, int newPos) {
+            return mOld.get(oldPos).name.equals(mNew.get(newPos).name);
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldPos, int newPos) {
+            return mOld.get(oldPos).changes(mNew.get(newPos)) == 0;
+        }
+
+        @Nullable
+        @Override
+        public Object getChangePayload(int oldPos, int newPos) {
+            int changed = mOld.get(oldPos).changes(mNew.get(newPos));
+            // Full rebind if anything but online, unread and message status has changed.
+            return (changed & CHANGED_OTHER) == 0 ? changed : null;
+        }
+    }
+
     static class ContactDetailsLookup extends ItemDetailsLookup<String> {
         final RecyclerView mRecyclerView;
 
@@ -253,6 +530,49 @@ public class ChatsAdapter extends RecyclerView.Adapter<ChatsAdapter.ViewHolder>
             return details;
         }
 
+        // Bind chat saved in the snapshot. Only the saved fields are shown until the topics are loaded.
+        void bind(int position, final ChatListSnapshot.Entry entry) {
+            final String topicName = entry.topic;
+
+            details.pos = position;
+            details.id = topicName;
+
+            if (entry.title != null) {
+                name.setText(entry.title);
+                name.setTypeface(null, Typeface.NORMAL);
+            } else {
+                name.setText(R.string.placeholder_contact_title);
+                name.setTypeface(null, Typeface.ITALIC);
+            }
+            messageStatus.setVisibility(View.GONE);
+            if (entry.preview != null) {
+                priv.setText(entry.preview.format(new PreviewFormatter(priv.getContext(), priv.getTextSize())));
+            } else {
+                priv.setText(null);
+            }
+
+            if (entry.unread > 0) {
+                unreadCount.setText(entry.unread > 9 ? "9+" : String.valueOf(entry.unread));
+                unreadCount.setVisibility(View.VISIBLE);
+            } else {
+                unreadCount.setVisibility(View.GONE);
+            }
+
+            UiUtils.setAvatar(avatarView, entry.title, topicName, entry.avatar);
+
+            online.setVisibility(View.INVISIBLE);
+            channel.setVisibility(View.GONE);
+            verified.setVisibility(View.GONE);
+            staff.setVisibility(View.GONE);
+            danger.setVisibility(View.GONE);
+            muted.setVisibility(View.GONE);
+            archived.setVisibility(View.GONE);
+            blocked.setVisibility(View.GONE);
+
+            itemView.setOnClickListener(view -> clickListener.onClick(topicName));
+            itemView.setActivated(false);
+        }
+
         void bind(int position, final ComTopic<VxCard> topic, Storage.Message msg, boolean selected) {
             final Context context = itemView.getContext();
             final String topicName = topic.getName();
@@ -269,39 +589,19 @@ public class ChatsAdapter extends RecyclerView.Adapter<ChatsAdapter.ViewHolder>
                 name.setTypeface(null, Typeface.ITALIC);
             }
             Drafty content = msg != null ? msg.getContent() : null;
+            bindStatus(topic, msg);
             if (content != null) {
-                if (msg.isMine()) {
-                    messageStatus.setVisibility(View.VISIBLE);
-                    UiUtils.setMessageStatusIcon(messageStatus, msg.getStatus(),
-                            topic.msgReadCount(msg.getSeqId()), topic.msgRecvCount(msg.getSeqId()));
-                } else {
-                    messageStatus.setVisibility(View.GONE);
-                }
                 priv.setText(content.preview(MAX_MESSAGE_PREVIEW_LENGTH)
                         .format(new PreviewFormatter(priv.getContext(), priv.getTextSize())));
             } else {
-                messageStatus.setVisibility(View.GONE);
                 priv.setText(topic.getComment());
             }
 
-            int unread = topic.getUnreadCount();
-            if (unread > 0) {
-                unreadCount.setText(unread > 9 ? "9+" : String.valueOf(unread));
-                unreadCount.setVisibility(View.VISIBLE);
-            } else {
-                unreadCount.setVisibility(View.GONE);
-            }
+            bindUnread(topic.getUnreadCount());
 
             UiUtils.setAvatar(avatarView, pub, topicName);
 
-            if (topic.isChannel()) {
-                online.setVisibility(View.INVISIBLE);
-                channel.setVisibility(View.VISIBLE);
-            } else {
-                online.setVisibility(View.VISIBLE);
-                online.setColorFilter(topic.getOnline() ? sColorOnline : sColorOffline);
-                channel.setVisibility(View.GONE);
-            }
+            bindOnline(topic);
             verified.setVisibility(topic.isTrustedVerified() ? View.VISIBLE : View.GONE);
             staff.setVisibility(topic.isTrustedStaff() ? View.VISIBLE : View.GONE);
             danger.setVisibility(topic.isTrustedDanger() ? View.VISIBLE : View.GONE);
@@ -330,5 +630,36 @@ public class ChatsAdapter extends RecyclerView.Adapter<ChatsAdapter.ViewHolder>
             // Field lengths may have changed.
             itemView.invalidate();
         }
+
+        void bindOnline(ComTopic<VxCard> topic) {
+            if (topic.isChannel()) {
+                online.setVisibility(View.INVISIBLE);
+                channel.setVisibility(View.VISIBLE);
+            } else {
+                online.setVisibility(View.VISIBLE);
+                online.setColorFilter(topic.getOnline() ? sColorOnline : sColorOffline);
+                channel.setVisibility(View.GONE);
+            }
+        }
+
+        void bindUnread(int unread) {
+            if (unread > 0) {
+                unreadCount.setText(unread > 9 ? "9+" : String.valueOf(unread));
+                unreadCount.setVisibility(View.VISIBLE);
+            } else {
+                unreadCount.setVisibility(View.GONE);
+            }
+        }
+
+        // Delivery status of the last message if it was sent by the current user.
+        void bindStatus(ComTopic<VxCard> topic, Storage.Message msg) {
+            if (msg != null && msg.getContent() != null && msg.isMine()) {
+                messageStatus.setVisibility(View.VISIBLE);
+                UiUtils.setMessageStatusIcon(messageStatus, msg.getStatus(),
+                        topic.msgReadCount(msg.getSeqId()), topic.msgRecvCount(msg.getSeqId()));
+            } else {
+                messageStatus.setVisibility(View.GONE);
+            }
+        }
     }
 }
@@ -25,6 +25,7 @@ import androidx.recyclerview.selection.SelectionTracker;
 import androidx.recyclerview.selection.StorageStrategy;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
+import co.tinode.tindroid.db.ChatListSnapshot;
 import co.tinode.tindroid.media.VxCard;
 import co.tinode.tindroid.widgets.CircleProgressView;
 import co.tinode.tindroid.widgets.HorizontalListDivider;
@@ -106,6 +107,10 @@ public class ChatsFragment extends Fragment implements ActionMode.Callback, UiUt
             activity.startActivity(intent);
         }, t -> (t.isArchived() == mIsArchive) && (t.isJoiner() != mIsBanned));
         rv.setAdapter(mAdapter);
+        if (!mIsArchive && !mIsBanned) {
+            // The main chat list is saved to be shown immediately on the next start.
+            mAdapter.setSnapshot(activity, ChatListSnapshot.getInstance(activity));
+        }
 
         // Progress indicator.
         mProgressView = view.findViewById(R.id.progressCircle);
@@ -646,8 +646,9 @@ public class MessageActivity extends AppCompatActivity
         if (mTopic != null) {
             Map<String,Object> head = seq > 0 ? Tinode.headersForReply(seq) : null;
             PromisedReply<ServerMessage> done = mTopic.publish(content, head);
+            // The message list is updated from the store's change feed: failed messages are removed,
+            // the pending message is shown, then marked as delivered or failed.
             BaseDb.getInstance().getStore().msgPruneFailed(mTopic);
-            runMessagesLoader(); // Refreshes the messages: hides removed, shows pending.
             done
                     .thenApply(new PromisedReply.SuccessListener<ServerMessage>() {
                         @Override
@@ -658,14 +659,7 @@ public class MessageActivity extends AppCompatActivity
                             return null;
                         }
                     })
-                    .thenCatch(new UiUtils.ToastFailureListener(this))
-                    .thenFinally(new PromisedReply.FinalListener() {
-                        @Override
-                        public void onFinally() {
-                            // Updates message list with "delivered" or "failed" icon.
-                            runMessagesLoader();
-                        }
-                    });
+                    .thenCatch(new UiUtils.ToastFailureListener(this));
             return true;
         }
         return false;
@@ -841,7 +835,6 @@ public class MessageActivity extends AppCompatActivity
             // Cancel typing animation.
             mTypingAnimationTimer =
                     UiUtils.toolbarTypingIndicator(MessageActivity.this, mTypingAnimationTimer, -1);
-            runMessagesLoader();
         }
 
         @Override
@@ -871,13 +864,7 @@ public class MessageActivity extends AppCompatActivity
             switch (info.what) {
                 case "read":
                 case "recv":
-                    runOnUiThread(() -> {
-                        MessagesFragment fragment = (MessagesFragment) getSupportFragmentManager().
-                                findFragmentByTag(FRAGMENT_MESSAGES);
-                        if (fragment != null && fragment.isVisible()) {
-                            fragment.notifyDataSetChanged(false);
-                        }
-                    });
+                    // Delivery markers are updated in place from the change feed once the receipt is saved.
                     break;
                 case "kp":
                     runOnUiThread(() -> {
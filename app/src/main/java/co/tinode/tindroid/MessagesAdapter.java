@@ -8,7 +8,6 @@ import android.content.ClipboardManager;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.ColorStateList;
-import android.database.Cursor;
 import android.graphics.Color;
 import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
@@ -54,18 +53,18 @@ import androidx.appcompat.view.ActionMode;
 import androidx.appcompat.widget.AppCompatImageButton;
 import androidx.appcompat.widget.AppCompatImageView;
 import androidx.core.app.ActivityCompat;
-import androidx.loader.app.LoaderManager;
-import androidx.loader.content.Loader;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import androidx.swiperefreshlayout.widget.SwipeRefreshLayout;
 import androidx.work.WorkInfo;
 import androidx.work.WorkManager;
 import co.tinode.tindroid.db.BaseDb;
-import co.tinode.tindroid.db.MessageDb;
+import co.tinode.tindroid.db.ChangeFeed;
+import co.tinode.tindroid.db.MessageWindow;
 import co.tinode.tindroid.db.StoredMessage;
 import co.tinode.tindroid.format.CopyFormatter;
 import co.tinode.tindroid.format.FullFormatter;
+import co.tinode.tindroid.format.InlineImages;
 import co.tinode.tindroid.format.QuoteFormatter;
 import co.tinode.tindroid.format.ThumbnailTransformer;
 import co.tinode.tindroid.media.VxCard;
@@ -85,13 +84,8 @@ public class MessagesAdapter extends RecyclerView.Adapter<MessagesAdapter.ViewHo
     private static final String TAG = "MessagesAdapter";
 
     private static final int MESSAGES_TO_LOAD = 20;
-
-    private static final int MESSAGES_QUERY_ID = 200;
-
-    private static final String HARD_RESET = "hard_reset";
-    private static final int REFRESH_NONE = 0;
-    private static final int REFRESH_SOFT = 1;
-    private static final int REFRESH_HARD = 2;
+    // Maximum number of pages to keep in memory.
+    private static final int MAX_PAGES = 10;
 
     private static final int VIEWTYPE_FULL_LEFT = 0;
     private static final int VIEWTYPE_SIMPLE_LEFT = 1;
@@ -113,13 +107,17 @@ public class MessagesAdapter extends RecyclerView.Adapter<MessagesAdapter.ViewHo
     private ActionMode mSelectionMode;
     private final ActionMode.Callback mSelectionModeCallback;
     private final SwipeRefreshLayout mRefresher;
-    private final MessageLoaderCallbacks mMessageLoaderCallback;
+    private final MessageWindow mMessages;
+    // Updates changed messages in place instead of re-reading the window.
+    private final ChangeFeed.Listener mChangeListener;
     private final SpanClicker mSpanFormatterClicker;
     private RecyclerView mRecyclerView;
-    private Cursor mCursor;
     private String mTopicName = null;
     private SparseBooleanArray mSelectedItems = null;
-    private int mPagesToLoad;
+    // Max width of text in message bubbles of the current topic, learned when the bubbles are bound.
+    // Used to decode inline images in background; zero until known.
+    private volatile int mViewportMine = 0;
+    private volatile int mViewportOther = 0;
 
     MessagesAdapter(MessageActivity context, SwipeRefreshLayout refresher) {
         super();
@@ -128,9 +126,12 @@ public class MessagesAdapter extends RecyclerView.Adapter<MessagesAdapter.ViewHo
         setHasStableIds(true);
 
         mRefresher = refresher;
-        mPagesToLoad = 1;
 
-        mMessageLoaderCallback = new MessageLoaderCallbacks();
+        mMessages = new MessageWindow(MESSAGES_TO_LOAD, MAX_PAGES, new WindowListener());
+        final float density = context.getResources().getDisplayMetrics().density;
+        mMessages.setPreparer(msg ->
+                InlineImages.prepare(msg.content, msg.isMine() ? mViewportMine : mViewportOther, density));
+        mChangeListener = mMessages::applyChanges;
 
         mSelectionModeCallback = new ActionMode.Callback() {
             @Override
@@ -222,6 +223,14 @@ public class MessagesAdapter extends RecyclerView.Adapter<MessagesAdapter.ViewHo
         super.onAttachedToRecyclerView(recyclerView);
 
         mRecyclerView = recyclerView;
+        BaseDb.getInstance().getStore().getChangeFeed().subscribe(mChangeListener);
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onDetachedFromRecyclerView(recyclerView);
+
+        BaseDb.getInstance().getStore().getChangeFeed().unsubscribe(mChangeListener);
     }
 
     private int[] getSelectedArray() {
@@ -312,13 +321,11 @@ public class MessagesAdapter extends RecyclerView.Adapter<MessagesAdapter.ViewHo
                         .thenApply(new PromisedReply.SuccessListener<ServerMessage>() {
                             @Override
                             public PromisedReply<ServerMessage> onSuccess(ServerMessage result) {
-                                runLoader(false);
                                 mActivity.runOnUiThread(() -> updateSelectionMode());
                                 return null;
                             }
                         }, new UiUtils.ToastFailureListener(mActivity));
             } else if (discarded > 0) {
-                runLoader(false);
                 updateSelectionMode();
             }
         }
@@ -502,6 +509,12 @@ public class MessagesAdapter extends RecyclerView.Adapter<MessagesAdapter.ViewHo
         boolean uploadingAttachment = hasAttachment && m.isPending();
         boolean uploadFailed = hasAttachment && (m.status == BaseDb.Status.FAILED);
 
+        if (m.isMine()) {
+            mViewportMine = holder.mText.getMaxWidth();
+        } else {
+            mViewportOther = holder.mText.getMaxWidth();
+        }
+
         mSpanFormatterClicker.setPosition(position);
         // Disable clicker while message is processed.
         FullFormatter formatter = new FullFormatter(holder.mText, uploadingAttachment ? null : mSpanFormatterClicker);
@@ -631,7 +644,7 @@ public class MessagesAdapter extends RecyclerView.Adapter<MessagesAdapter.ViewHo
                 } catch (NumberFormatException ignored) {}
                 if (replySeq != -1) {
                     // A reply message was clicked. Scroll original into view and animate.
-                    final int pos = findInCursor(mCursor, replySeq);
+                    final int pos = findMessageBySeq(replySeq);
                     if (pos >= 0) {
                         StoredMessage mm = getMessage(pos);
                         if (mm != null) {
@@ -685,46 +698,24 @@ public class MessagesAdapter extends RecyclerView.Adapter<MessagesAdapter.ViewHo
 
     // Must match position-to-item of getItemId.
     private StoredMessage getMessage(int position) {
-        if (mCursor != null && !mCursor.isClosed()) {
-            return getMessage(mCursor, position, -1);
-        }
-        return null;
-    }
-
-    private static StoredMessage getMessage(Cursor cur, int position, int previewLength) {
-        if (cur.moveToPosition(position)) {
-            return StoredMessage.readMessage(cur, previewLength);
-        }
-        return null;
+        return mMessages.getMessage(position);
     }
 
     @Override
     // Must match position-to-item of getMessage.
     public long getItemId(int position) {
-        if (mCursor != null && !mCursor.isClosed() && mCursor.moveToPosition(position)) {
-            return MessageDb.getLocalId(mCursor);
-        }
-        return View.NO_ID;
+        StoredMessage m = mMessages.getMessage(position);
+        return m != null ? m.id : View.NO_ID;
     }
 
     int findItemPositionById(long itemId, int first, int last) {
-        if (mCursor == null || mCursor.isClosed()) {
-            return -1;
-        }
-
-        for (int i = first; i <= last; i++) {
-            if (mCursor.moveToPosition(i)) {
-                if (MessageDb.getLocalId(mCursor) == itemId) {
-                    return i;
-                }
-            }
-        }
-        return -1;
+        int pos = mMessages.indexOf(itemId);
+        return pos >= first && pos <= last ? pos : -1;
     }
 
     @Override
     public int getItemCount() {
-        return mCursor != null ? mCursor.getCount() : 0;
+        return mMessages.size();
     }
 
     private void toggleSelectionAt(int pos) {
@@ -752,56 +743,27 @@ public class MessagesAdapter extends RecyclerView.Adapter<MessagesAdapter.ViewHo
 
     void resetContent(@Nullable final String topicName) {
         if (topicName == null) {
-            boolean hard = mTopicName != null;
-            mTopicName = null;
-            swapCursor(null, hard ? REFRESH_HARD : REFRESH_NONE);
+            if (mTopicName != null) {
+                mTopicName = null;
+                runLoader(true);
+            }
         } else {
             boolean hard = !topicName.equals(mTopicName);
+            if (hard) {
+                // Bubbles of another topic may have different size.
+                mViewportMine = 0;
+                mViewportOther = 0;
+            }
             mTopicName = topicName;
             runLoader(hard);
         }
     }
 
-    @SuppressLint("NotifyDataSetChanged")
-    private void swapCursor(final Cursor cursor, final int refresh) {
-        if (mCursor != null && mCursor == cursor) {
-            return;
-        }
-
-        // Clear selection
+    private void clearSelection() {
         if (mSelectionMode != null) {
             mSelectionMode.finish();
             mSelectionMode = null;
         }
-
-        Cursor oldCursor = mCursor;
-        mCursor = cursor;
-        if (oldCursor != null) {
-            oldCursor.close();
-        }
-
-        if (refresh != REFRESH_NONE) {
-            mActivity.runOnUiThread(() -> {
-                int position = -1;
-                if (cursor != null) {
-                    LinearLayoutManager lm = (LinearLayoutManager) mRecyclerView.getLayoutManager();
-                    if (lm != null) {
-                        position = lm.findFirstVisibleItemPosition();
-                    }
-                }
-                mRefresher.setRefreshing(false);
-                if (refresh == REFRESH_HARD) {
-                    mRecyclerView.setAdapter(MessagesAdapter.this);
-                } else {
-                    notifyDataSetChanged();
-                }
-                if (cursor != null) {
-                    if (position == 0) {
-                        mRecyclerView.scrollToPosition(0);
-                    }
-                }
-            });
-        }
     }
 
     /**
@@ -823,26 +785,30 @@ public class MessagesAdapter extends RecyclerView.Adapter<MessagesAdapter.ViewHo
     // Run loader on UI thread
     private void runLoader(final boolean hard) {
         mActivity.runOnUiThread(() -> {
-            final LoaderManager lm = LoaderManager.getInstance(mActivity);
-            final Loader<Cursor> loader = lm.getLoader(MESSAGES_QUERY_ID);
-            Bundle args = new Bundle();
-            args.putBoolean(HARD_RESET, hard);
-            if (loader != null && !loader.isReset()) {
-                lm.restartLoader(MESSAGES_QUERY_ID, args, mMessageLoaderCallback);
+            if (hard) {
+                mMessages.reset(mTopicName);
             } else {
-                lm.initLoader(MESSAGES_QUERY_ID, args, mMessageLoaderCallback);
+                mMessages.refresh();
             }
         });
     }
 
+    /**
+     * Load a page of older messages from the database.
+     *
+     * @return true if the page is being loaded, false if there are no more messages in the database.
+     */
     boolean loadNextPage() {
-        if (getItemCount() == mPagesToLoad * MESSAGES_TO_LOAD) {
-            mPagesToLoad++;
-            runLoader(false);
-            return true;
-        }
+        return mMessages.loadOlder();
+    }
 
-        return false;
+    /**
+     * Load a page of newer messages if the newer messages were dropped from the window.
+     *
+     * @return true if the page is being loaded, false if the latest messages are already loaded.
+     */
+    boolean loadPreviousPage() {
+        return mMessages.loadNewer();
     }
 
     private void cancelUpload(long msgId) {
@@ -850,8 +816,6 @@ public class MessagesAdapter extends RecyclerView.Adapter<MessagesAdapter.ViewHo
         final Topic topic = Cache.getTinode().getTopic(mTopicName);
         if (store != null && topic != null) {
             store.msgFailed(topic, msgId);
-            // Invalidate cached data.
-            runLoader(false);
         }
 
         final String uniqueID = Long.toString(msgId);
@@ -872,27 +836,8 @@ public class MessagesAdapter extends RecyclerView.Adapter<MessagesAdapter.ViewHo
         }
     }
 
-    private static int findInCursor(Cursor cur, int seq) {
-        int low = 0;
-        int high = cur.getCount() - 1;
-
-        while (low <= high) {
-            int mid = (low + high) >>> 1;
-            StoredMessage m = getMessage(cur, mid, 0); // previewLength == 0 means no content is needed.
-            if (m == null) {
-                return -mid;
-            }
-
-            // Messages are sorted in descending order by seq.
-            int cmp = - m.seq + seq;
-            if (cmp < 0)
-                low = mid + 1;
-            else if (cmp > 0)
-                high = mid - 1;
-            else
-                return mid; // key found
-        }
-        return -(low + 1);  // key not found
+    private int findMessageBySeq(int seq) {
+        return mMessages.indexOfSeq(seq);
     }
 
     static class ViewHolder extends RecyclerView.ViewHolder {
@@ -953,35 +898,49 @@ public class MessagesAdapter extends RecyclerView.Adapter<MessagesAdapter.ViewHo
         }
     }
 
-    private class MessageLoaderCallbacks implements LoaderManager.LoaderCallbacks<Cursor> {
-        private boolean mHardReset;
-
-        @NonNull
+    private class WindowListener implements MessageWindow.Listener {
+        @SuppressLint("NotifyDataSetChanged")
         @Override
-        public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-            if (id == MESSAGES_QUERY_ID) {
-                if (args != null) {
-                    mHardReset = args.getBoolean(HARD_RESET, false);
-                }
-                return new MessageDb.Loader(mActivity, mTopicName, mPagesToLoad, MESSAGES_TO_LOAD);
-            }
+        public void onWindowReset(boolean hard) {
+            clearSelection();
 
-            throw new IllegalArgumentException("Unknown loader id " + id);
+            int position = -1;
+            LinearLayoutManager lm = (LinearLayoutManager) mRecyclerView.getLayoutManager();
+            if (lm != null) {
+                position = lm.findFirstVisibleItemPosition();
+            }
+            mRefresher.setRefreshing(false);
+            if (hard) {
+                mRecyclerView.setAdapter(MessagesAdapter.this);
+            } else {
+                notifyDataSetChanged();
+            }
+            if (position == 0) {
+                mRecyclerView.scrollToPosition(0);
+            }
         }
 
         @Override
-        public void onLoadFinished(@NonNull Loader<Cursor> loader,
-                                   Cursor cursor) {
-            if (loader.getId() == MESSAGES_QUERY_ID) {
-                swapCursor(cursor, mHardReset ? REFRESH_HARD : REFRESH_SOFT);
+        public void onItemRangeInserted(int start, int count) {
+            if (start == 0) {
+                // Selection is stored by position.
+                clearSelection();
             }
+            mRefresher.setRefreshing(false);
+            notifyItemRangeInserted(start, count);
+        }
+
+        @Override
+        public void onItemRangeChanged(int start, int count) {
+            notifyItemRangeChanged(start, count);
         }
 
         @Override
-        public void onLoaderReset(@NonNull Loader<Cursor> loader) {
-            if (loader.getId() == MESSAGES_QUERY_ID) {
-                swapCursor(null, mHardReset ? REFRESH_HARD : REFRESH_SOFT);
+        public void onItemRangeRemoved(int start, int count) {
+            if (start == 0) {
+                clearSelection();
             }
+            notifyItemRangeRemoved(start, count);
         }
     }
 
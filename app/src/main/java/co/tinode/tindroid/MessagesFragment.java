@@ -212,6 +212,9 @@ public class MessagesFragment extends Fragment {
                 int pos = mMessageViewLayoutManager.findLastVisibleItemPosition();
                 if (itemCount - pos < 4) {
                     ((MessagesAdapter) adapter).loadNextPage();
+                } else if (mMessageViewLayoutManager.findFirstVisibleItemPosition() < 4) {
+                    // Newer messages may have been dropped from the window.
+                    ((MessagesAdapter) adapter).loadPreviousPage();
                 }
             }
         });
@@ -311,8 +314,7 @@ public class MessagesFragment extends Fragment {
                                     break;
                                 }
                                 if (progress == 0) {
-                                    // New message. Update.
-                                    runMessagesLoader(mTopicName);
+                                    // New message. It's added to the list from the change feed.
                                     break;
                                 }
                                 long msgId = data.getLong(AttachmentHandler.ARG_MSG_ID, -1L);
@@ -351,7 +353,6 @@ public class MessagesFragment extends Fragment {
                                 if (topicName.equals(mTopicName)) {
                                     long msgId = failure.getLong(AttachmentHandler.ARG_MSG_ID, -1L);
                                     if (BaseDb.getInstance().getStore().getMessageById(msgId) != null) {
-                                        runMessagesLoader(mTopicName);
                                         String error = failure.getString(AttachmentHandler.ARG_ERROR);
                                         Toast.makeText(activity, error, Toast.LENGTH_SHORT).show();
                                     }
@@ -546,13 +547,8 @@ public class MessagesFragment extends Fragment {
 
         int id = item.getItemId();
         if (id == R.id.action_clear) {
-            mTopic.delMessages(false).thenApply(new PromisedReply.SuccessListener<ServerMessage>() {
-                @Override
-                public PromisedReply<ServerMessage> onSuccess(ServerMessage result) {
-                    runMessagesLoader(mTopicName);
-                    return null;
-                }
-            }, mFailureListener);
+            // Deleted messages are removed from the list by the change feed.
+            mTopic.delMessages(false).thenCatch(mFailureListener);
             return true;
         } else if (id == R.id.action_unmute || id == R.id.action_mute) {
             mTopic.updateMuted(!mTopic.isMuted());
@@ -5,6 +5,7 @@ import android.os.Bundle;
 
 import androidx.appcompat.app.AppCompatActivity;
 import co.tinode.tindroid.db.BaseDb;
+import co.tinode.tinodesdk.PromisedReply;
 
 /**
  * Splash screen on startup
@@ -16,6 +17,16 @@ public class SplashActivity extends AppCompatActivity {
 
         // No need to check for live connection here.
 
+        // Data of the account may still be imported from an older version of the app.
+        BaseDb.getInstance().whenDataReady().thenFinally(new PromisedReply.FinalListener() {
+            @Override
+            public void onFinally() {
+                runOnUiThread(SplashActivity.this::launch);
+            }
+        });
+    }
+
+    private void launch() {
         // Send user to appropriate screen:
         // 1. If we have an account and no credential validation is needed, send to ChatsActivity.
         // 2. If we don't have an account or credential validation is required send to LoginActivity.
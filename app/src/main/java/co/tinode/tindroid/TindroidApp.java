@@ -50,6 +50,9 @@ import androidx.work.WorkManager;
 import co.tinode.tindroid.account.ContactsObserver;
 import co.tinode.tindroid.account.Utils;
 import co.tinode.tindroid.db.BaseDb;
+import co.tinode.tindroid.db.ChatListSnapshot;
+import co.tinode.tindroid.format.InlineImages;
+import co.tinode.tindroid.media.BitmapCache;
 import co.tinode.tinodesdk.ServerResponseException;
 import co.tinode.tinodesdk.Tinode;
 import okhttp3.OkHttpClient;
@@ -152,6 +155,10 @@ public class TindroidApp extends Application implements LifecycleObserver {
     @Override
     public void onCreate() {
         super.onCreate();
+
+        // Start reading the chat list saved on the previous run before anything opens the database.
+        ChatListSnapshot.getInstance(this).load();
+
         try {
             PackageInfo pi = getPackageManager().getPackageInfo(getPackageName(), 0);
             sAppVersion = pi.versionName;
@@ -267,6 +274,16 @@ public class TindroidApp extends Application implements LifecycleObserver {
         if (sTinodeCache != null) {
             sTinodeCache.disconnect(false);
         }
+        // Trim cached message history while the app is not in use.
+        BaseDb.getInstance().getStore().pruneMessages(sTinodeCache);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // Decoded bitmaps can be restored from the cached data.
+        InlineImages.trimMemory(level);
+        BitmapCache.trimMemory(level);
     }
 
     private void createNotificationChannel() {
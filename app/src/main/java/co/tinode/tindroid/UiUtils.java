@@ -44,10 +44,19 @@ import android.widget.Toast;
 
 import com.squareup.picasso.Picasso;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
@@ -615,6 +624,8 @@ public class UiUtils {
         return bmp;
     }
 
+    // Rotate or flip the bitmap according to EXIF orientation. The source bitmap is recycled if a rotated
+    // copy is returned.
     @NonNull
     static Bitmap rotateBitmap(@NonNull Bitmap bmp, int orientation) {
         Matrix matrix = new Matrix();
@@ -684,10 +695,20 @@ public class UiUtils {
         }
 
         Drawable local = UiUtils.avatarDrawable(avatarView.getContext(), avatar, fullName, address);
+        loadAvatar(avatarView, local, ref != null ? ref.toString() : null);
+    }
+
+    // Show avatar of a contact by name and absolute URL of the avatar. Does not use Tinode.
+    static void setAvatar(ImageView avatarView, String fullName, String address, String ref) {
+        Drawable local = UiUtils.avatarDrawable(avatarView.getContext(), null, fullName, address);
+        loadAvatar(avatarView, local, ref);
+    }
+
+    private static void loadAvatar(ImageView avatarView, Drawable local, String ref) {
         if (ref != null) {
             Picasso
                     .get()
-                    .load(ref.toString())
+                    .load(ref)
                     .resize(UiUtils.MAX_AVATAR_SIZE, UiUtils.MAX_AVATAR_SIZE)
                     .placeholder(local)
                     .error(R.drawable.ic_broken_image_round)
@@ -721,14 +742,8 @@ public class UiUtils {
 
     @NonNull
     public static byte[] bitmapToBytes(@NonNull Bitmap bmp, String mimeType) {
-        Bitmap.CompressFormat fmt;
-        if ("image/jpeg".equals(mimeType)) {
-            fmt = Bitmap.CompressFormat.JPEG;
-        } else {
-            fmt = Bitmap.CompressFormat.PNG;
-        }
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        bmp.compress(fmt, 70, bos);
+        bmp.compress(compressFormat(mimeType), 70, bos);
         byte[] bits = bos.toByteArray();
         try {
             bos.close();
@@ -738,6 +753,67 @@ public class UiUtils {
         return bits;
     }
 
+    /**
+     * Compress bitmap directly to file without keeping a copy of compressed bits in memory.
+     *
+     * @param bmp      bitmap to compress.
+     * @param mimeType mime type of the output: JPEG if "image/jpeg", PNG otherwise.
+     * @param dst      file to write to.
+     * @return hash of the compressed image, see {@link #contentHash(InputStream)}.
+     * @throws IOException if the file cannot be written.
+     */
+    static String bitmapToFile(@NonNull Bitmap bmp, String mimeType, @NonNull File dst) throws IOException {
+        MessageDigest md = newContentDigest();
+        // The hash is computed as the image is written, the file is not read back.
+        try (OutputStream out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(dst)), md)) {
+            if (!bmp.compress(compressFormat(mimeType), 70, out)) {
+                throw new IOException("Failed to compress bitmap");
+            }
+        }
+        return toHex(md.digest());
+    }
+
+    /**
+     * Compute hash of the content, e.g. to check if the file has been uploaded already.
+     * The stream is read to the end and closed.
+     *
+     * @param in stream with the content.
+     * @return SHA-256 of the content as a hex string.
+     * @throws IOException if the stream cannot be read.
+     */
+    static String contentHash(@NonNull InputStream in) throws IOException {
+        MessageDigest md = newContentDigest();
+        try (InputStream dis = new DigestInputStream(in, md)) {
+            byte[] buffer = new byte[16384];
+            //noinspection StatementWithEmptyBody
+            while (dis.read(buffer) > 0) {
+            }
+        }
+        return toHex(md.digest());
+    }
+
+    // Digest used by contentHash.
+    static MessageDigest newContentDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // SHA-256 is always available.
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    private static Bitmap.CompressFormat compressFormat(String mimeType) {
+        return "image/jpeg".equals(mimeType) ? Bitmap.CompressFormat.JPEG : Bitmap.CompressFormat.PNG;
+    }
+
     /**
      * Convert drawable to bitmap.
      *
@@ -0,0 +1,72 @@
+package co.tinode.tindroid;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import java.util.Map;
+
+import co.tinode.tinodesdk.LargeFileHelper;
+import co.tinode.tinodesdk.Tinode;
+
+/**
+ * Sessions of resumable uploads saved to shared preferences, so an upload interrupted by the
+ * death of the process continues from the last chunk received by the server.
+ */
+class UploadSessionStore implements LargeFileHelper.SessionStore {
+    private static final String TAG = "UploadSessionStore";
+
+    private static final String PREFS_NAME = "upload-sessions";
+
+    private final SharedPreferences mPrefs;
+
+    UploadSessionStore(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        prune();
+    }
+
+    @Override
+    public LargeFileHelper.UploadSession load(String key) {
+        String json = mPrefs.getString(key, null);
+        if (json == null) {
+            return null;
+        }
+        LargeFileHelper.UploadSession session = Tinode.jsonDeserialize(json,
+                LargeFileHelper.UploadSession.class.getName());
+        if (session == null) {
+            remove(key);
+        }
+        return session;
+    }
+
+    @Override
+    public void save(String key, LargeFileHelper.UploadSession session) {
+        try {
+            mPrefs.edit().putString(key, Tinode.jsonSerialize(session)).apply();
+        } catch (JsonProcessingException ex) {
+            Log.w(TAG, "Failed to save upload session", ex);
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        mPrefs.edit().remove(key).apply();
+    }
+
+    // Remove sessions of uploads which were abandoned, e.g. the message was deleted.
+    private void prune() {
+        final long expired = System.currentTimeMillis() - LargeFileHelper.SESSION_MAX_AGE;
+        SharedPreferences.Editor editor = mPrefs.edit();
+        for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+            LargeFileHelper.UploadSession session = entry.getValue() instanceof String ?
+                    Tinode.jsonDeserialize((String) entry.getValue(), LargeFileHelper.UploadSession.class.getName()) :
+                    null;
+            if (session == null || session.created < expired) {
+                editor.remove(entry.getKey());
+            }
+        }
+        editor.apply();
+    }
+}
@@ -110,8 +110,6 @@ public class AccountDb implements BaseColumns {
 
     // Delete given account.
     static void delete(SQLiteDatabase db, StoredAccount acc) {
-        TopicDb.deleteAll(db, acc.id);
-        UserDb.deleteAll(db, acc.id);
         db.delete(TABLE_NAME, _ID + "=" + acc.id, null);
     }
 
@@ -2,8 +2,12 @@ package co.tinode.tindroid.db;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.BaseColumns;
 import android.util.Log;
 import android.util.SparseArray;
@@ -11,27 +15,36 @@ import android.util.SparseArray;
 import com.fasterxml.jackson.core.JsonProcessingException;
 
 import co.tinode.tindroid.TindroidApp;
+import co.tinode.tinodesdk.PromisedReply;
+import co.tinode.tinodesdk.StorageCodec;
 import co.tinode.tinodesdk.Tinode;
 import co.tinode.tinodesdk.model.Acs;
 import co.tinode.tinodesdk.model.Defacs;
 
 /**
  * SQLite backend. Persistent store for messages and chats.
+ * <p>
+ * This database keeps the list of accounts. Data of each account is kept in a separate {@link DataDb}.
  */
 public class BaseDb extends SQLiteOpenHelper {
     private static final String TAG = "BaseDb";
 
     /**
-     * Schema version. Increment on schema changes.
+     * Schema version. Increment on schema changes and add an upgrade step to {@link Migrations}.
      */
-    private static final int DATABASE_VERSION = 14;
+    static final int DATABASE_VERSION = 16;
 
     /**
      * Filename for SQLite file.
      */
     private static final String DATABASE_NAME = "base.db";
     private static BaseDb sInstance = null;
+    private final Context mContext;
     private StoredAccount mAcc = null;
+    // Database of the active account or an in-memory database if there is no active account.
+    private volatile DataDb mData = null;
+    // Resolved when the data of the active account is available, i.e. imported from the legacy tables.
+    private volatile PromisedReply<Void> mDataReady = null;
     private SqlStore mStore = null;
 
     /**
@@ -39,6 +52,7 @@ public class BaseDb extends SQLiteOpenHelper {
      */
     private BaseDb(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = context;
     }
 
     /**
@@ -51,10 +65,101 @@ public class BaseDb extends SQLiteOpenHelper {
             sInstance = new BaseDb(TindroidApp.getAppContext());
             sInstance.mAcc = AccountDb.getActiveAccount(sInstance.getReadableDatabase());
             sInstance.mStore = new SqlStore(sInstance);
+            sInstance.openData(sInstance.mAcc);
         }
         return sInstance;
     }
 
+    // Open database of the given account or an in-memory database if the account is null.
+    private synchronized void openData(final StoredAccount acc) {
+        if (acc == null || !DataDb.hasLegacy(getWritableDatabase())) {
+            mDataReady = new PromisedReply<>((Void) null);
+            useData(acc == null ? DataDb.scratch(mContext) : DataDb.open(mContext, acc.uid), acc);
+            return;
+        }
+
+        // The database was created by an older version which kept all accounts in the same tables.
+        // Copying may take long: serve the in-memory database until it's done.
+        final PromisedReply<Void> ready = new PromisedReply<>();
+        mDataReady = ready;
+        useData(DataDb.scratch(mContext), null);
+        mStore.runMaintenance(() -> {
+            DataDb data = DataDb.open(mContext, acc.uid);
+            SQLiteDatabase db = getWritableDatabase();
+            data.importLegacy(db.getPath(), acc.id);
+            DataDb.dropLegacyIfEmpty(db);
+            synchronized (BaseDb.this) {
+                if (mDataReady == ready) {
+                    mStore.clearIds();
+                    useData(data, acc);
+                } else {
+                    // Another account was activated in the meantime.
+                    data.close();
+                }
+            }
+            try {
+                ready.resolve(null);
+            } catch (Exception ignored) {
+            }
+        });
+    }
+
+    // Switch to the given database. The previous one is closed when the queries started earlier are completed.
+    private void useData(DataDb data, StoredAccount acc) {
+        final DataDb old = mData;
+        mData = data;
+        // Database IDs of messages in the other database may be the same.
+        MessageCache.clear();
+        if (old != null) {
+            // The UI thread is the last one which may be in the middle of a query.
+            mStore.afterPendingTasks(() -> new Handler(Looper.getMainLooper()).post(old::close));
+        }
+
+        if (acc != null) {
+            mStore.upgradeStorageFormat();
+            mStore.backfillSearchIndex();
+        }
+    }
+
+    /**
+     * Get a promise resolved when the data of the active account is available. The data is not available
+     * while it's imported from the shared tables of an older version of the app: an empty in-memory
+     * database is used for reading until then.
+     */
+    public PromisedReply<Void> whenDataReady() {
+        return mDataReady;
+    }
+
+    /**
+     * Check if the data of the active account is available, i.e. not being imported.
+     */
+    boolean isDataReady() {
+        return mDataReady.isDone();
+    }
+
+    /**
+     * Get database with the data of the active account for reading.
+     */
+    SQLiteDatabase getReadableDataDb() {
+        return mData.getReadableDatabase();
+    }
+
+    /**
+     * Get database with the data of the active account for writing. Waits while the data is imported,
+     * so the writes are not made to the in-memory database and lost.
+     */
+    SQLiteDatabase getWritableDataDb() {
+        PromisedReply<Void> ready = mDataReady;
+        // The import itself runs on the maintenance thread: tasks queued there before it must not wait.
+        if (!ready.isDone() && !mStore.isMaintenanceThread()) {
+            try {
+                ready.getResult();
+            } catch (Exception ignored) {
+            }
+        }
+        return mData.getWritableDatabase();
+    }
+
     /**
      * Serializes object as "canonical_class_name;json_representation of content".
      *
@@ -84,15 +189,20 @@ public class BaseDb extends SQLiteOpenHelper {
     static <T> T deserialize(String input) {
         if (input != null) {
             try {
-                String[] parts = input.split(";", 2);
-                if (parts[0].endsWith("[]")) {
+                int split = input.indexOf(';');
+                if (split < 0) {
+                    Log.w(TAG, "Invalid serialized object");
+                    return null;
+                }
+                String className = input.substring(0, split);
+                String json = input.substring(split + 1);
+                if (className.endsWith("[]")) {
                     // Deserializing an array.
-                    parts[0] = parts[0].substring(0, parts[0].length() - 2);
                     //noinspection unchecked
-                    return (T) Tinode.jsonDeserializeArray(parts[1], parts[0]);
+                    return (T) Tinode.jsonDeserializeArray(json, className.substring(0, className.length() - 2));
                 }
                 // Deserializing a single object.
-                return Tinode.jsonDeserialize(parts[1], parts[0]);
+                return Tinode.jsonDeserialize(json, className);
             } catch (ClassCastException ex) {
                 Log.w(TAG, "Failed to de-serialize", ex);
             }
@@ -100,6 +210,46 @@ public class BaseDb extends SQLiteOpenHelper {
         return null;
     }
 
+    /**
+     * Serializes Drafty or message headers into compact binary format.
+     *
+     * @param obj object to serialize
+     * @return binary representation of the object.
+     */
+    static byte[] serializeBinary(Object obj) {
+        try {
+            return StorageCodec.encode(obj);
+        } catch (IllegalArgumentException ex) {
+            Log.w(TAG, "Failed to serialize", ex);
+        }
+        return null;
+    }
+
+    /**
+     * Parses object stored either in binary format as BLOB or
+     * as "canonical_class_name;json content" TEXT.
+     *
+     * @param c      cursor to read from
+     * @param column index of the column with the object
+     * @param <T>    type of the parsed object
+     * @return parsed object or null
+     */
+    static <T> T deserializeColumn(Cursor c, int column) {
+        switch (c.getType(column)) {
+            case Cursor.FIELD_TYPE_BLOB:
+                try {
+                    return StorageCodec.decode(c.getBlob(column));
+                } catch (IllegalArgumentException | ClassCastException ex) {
+                    Log.w(TAG, "Failed to de-serialize", ex);
+                }
+                return null;
+            case Cursor.FIELD_TYPE_STRING:
+                return deserialize(c.getString(column));
+            default:
+                return null;
+        }
+    }
+
     static String serializeMode(Acs acs) {
         String result = "";
         if (acs != null) {
@@ -194,12 +344,17 @@ public class BaseDb extends SQLiteOpenHelper {
     }
 
     void setUid(String uid, String[] credMethods) {
+        String oldUid = getUid();
         if (uid == null) {
             mAcc = null;
             AccountDb.deactivateAll(sInstance.getWritableDatabase());
         } else {
             mAcc = AccountDb.addOrActivateAccount(sInstance.getWritableDatabase(), uid, credMethods);
         }
+
+        if (uid == null ? oldUid != null : !uid.equals(oldUid)) {
+            openData(mAcc);
+        }
     }
 
     void deleteUid(String uid) {
@@ -208,13 +363,18 @@ public class BaseDb extends SQLiteOpenHelper {
         if (mAcc != null && mAcc.uid.equals(uid)) {
             acc = mAcc;
             mAcc = null;
+            openData(null);
         } else {
             acc = AccountDb.getByUid(db, uid);
         }
 
         if (acc != null) {
+            if (DataDb.hasLegacy(db)) {
+                DataDb.deleteLegacy(db, acc.id);
+            }
             AccountDb.delete(db, acc);
         }
+        DataDb.delete(mContext, uid);
     }
 
     public boolean isReady() {
@@ -238,52 +398,106 @@ public class BaseDb extends SQLiteOpenHelper {
         return mStore;
     }
 
-    long getAccountId() {
-        return mAcc != null ? mAcc.id : -1;
-    }
-
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(AccountDb.CREATE_TABLE);
         db.execSQL(AccountDb.CREATE_INDEX_1);
         db.execSQL(AccountDb.CREATE_INDEX_2);
-        db.execSQL(TopicDb.CREATE_TABLE);
-        db.execSQL(TopicDb.CREATE_INDEX);
-        db.execSQL(UserDb.CREATE_TABLE);
-        db.execSQL(UserDb.CREATE_INDEX);
-        db.execSQL(SubscriberDb.CREATE_TABLE);
-        db.execSQL(SubscriberDb.CREATE_INDEX);
-        db.execSQL(MessageDb.CREATE_TABLE);
-        db.execSQL(MessageDb.CREATE_INDEX);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (Migrations.ACCOUNTS.canMigrate(oldVersion, newVersion)) {
+            Migrations.ACCOUNTS.migrate(db, oldVersion, newVersion);
+            return;
+        }
+
+        Log.i(TAG, "No upgrade path from version " + oldVersion + " to " + newVersion + ", recreating database");
+        recreate(db);
+    }
+
+    @Override
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        recreate(db);
+    }
+
+    private void recreate(SQLiteDatabase db) {
         // This is just a cache. Drop then re-fetch everything from the server.
-        db.execSQL(MessageDb.DROP_INDEX);
-        db.execSQL(MessageDb.DROP_TABLE);
-        db.execSQL(SubscriberDb.DROP_INDEX);
-        db.execSQL(SubscriberDb.DROP_TABLE);
-        db.execSQL(UserDb.DROP_INDEX);
-        db.execSQL(UserDb.DROP_TABLE);
-        db.execSQL(TopicDb.DROP_INDEX);
-        db.execSQL(TopicDb.DROP_TABLE);
+        // Tables shared by all accounts in older versions.
+        DataDb.dropTables(db);
+        // Databases of the accounts which are about to be forgotten.
+        DataDb.deleteAll(mContext);
         db.execSQL(AccountDb.DROP_INDEX_2);
         db.execSQL(AccountDb.DROP_INDEX_1);
         db.execSQL(AccountDb.DROP_TABLE);
         onCreate(db);
     }
 
-    @Override
-    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        onUpgrade(db, oldVersion, newVersion);
-    }
-
     @Override
     public void onConfigure(SQLiteDatabase db) {
         db.setForeignKeyConstraintsEnabled(true);
     }
 
+    /**
+     * Bind string or NULL if the string is null.
+     */
+    static void bindString(SQLiteStatement stmt, int index, String value) {
+        if (value != null) {
+            stmt.bindString(index, value);
+        } else {
+            stmt.bindNull(index);
+        }
+    }
+
+    /**
+     * Read numeric value of a PRAGMA, like page_count or freelist_count.
+     */
+    static long getPragma(SQLiteDatabase db, String name) {
+        long value = 0;
+        Cursor c = db.rawQuery("PRAGMA " + name, null);
+        if (c != null) {
+            if (c.moveToFirst()) {
+                value = c.getLong(0);
+            }
+            c.close();
+        }
+        return value;
+    }
+
+    /**
+     * Return unused pages to the file system.
+     *
+     * @param db    database to vacuum.
+     * @param pages maximum number of pages to release at once.
+     * @return number of bytes released.
+     */
+    static long vacuum(SQLiteDatabase db, int pages) {
+        final long pageSize = getPragma(db, "page_size");
+        final long before = getPragma(db, "page_count");
+        if (getPragma(db, "auto_vacuum") != 2) {
+            // Database was created before incremental vacuum was enabled. Full VACUUM is needed
+            // once to apply the new auto_vacuum mode. It must run outside of transaction.
+            db.execSQL("VACUUM");
+        } else {
+            long free = getPragma(db, "freelist_count");
+            while (free > 0) {
+                Cursor c = db.rawQuery("PRAGMA incremental_vacuum(" + pages + ")", null);
+                if (c != null) {
+                    // The statement is executed when the cursor is stepped.
+                    c.moveToFirst();
+                    c.close();
+                }
+                long left = getPragma(db, "freelist_count");
+                if (left >= free) {
+                    // No progress.
+                    break;
+                }
+                free = left;
+            }
+        }
+        return (before - getPragma(db, "page_count")) * pageSize;
+    }
+
     public enum Status {
         // Status undefined/not set.
         UNDEFINED(0),
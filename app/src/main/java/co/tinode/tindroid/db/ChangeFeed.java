@@ -0,0 +1,132 @@
+package co.tinode.tindroid.db;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Stream of changes of cached messages published by {@link SqlStore}.
+ * <p>
+ * Views subscribe to the feed and update only the affected items instead of re-reading everything.
+ * Changes are published by the thread which modified the database, collected and delivered to
+ * listeners in batches on the main thread.
+ */
+public class ChangeFeed {
+    /**
+     * What happened to the message(s).
+     */
+    public enum Kind {
+        // A new message was added.
+        INSERTED,
+        // Delivery status or seq of the message has changed.
+        STATUS,
+        // Content of the message has changed, e.g. a draft was edited.
+        CONTENT,
+        // Message(s) were deleted or marked as deleted.
+        DELETED,
+        // Read or received notifications of the topic have changed.
+        READ_RECV
+    }
+
+    /**
+     * One change. Either a single message identified by its database ID or a range of seq IDs.
+     */
+    public static class Change {
+        public final Kind kind;
+        // Database ID of the topic.
+        public final long topicId;
+        // Database ID of the message or 0 if the change applies to a range of messages.
+        public final long msgId;
+        // Range of seq IDs [fromSeq, toSeq) if msgId is 0. Zero fromSeq means 'from the beginning',
+        // zero toSeq means 'to the end'.
+        public final int fromSeq;
+        public final int toSeq;
+
+        Change(Kind kind, long topicId, long msgId, int fromSeq, int toSeq) {
+            this.kind = kind;
+            this.topicId = topicId;
+            this.msgId = msgId;
+            this.fromSeq = fromSeq;
+            this.toSeq = toSeq;
+        }
+
+        public boolean isRange() {
+            return msgId <= 0;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return kind + " topic=" + topicId + (isRange() ? " seq=[" + fromSeq + "," + toSeq + ")" : " id=" + msgId);
+        }
+    }
+
+    /**
+     * Receiver of changes. Called on the main thread.
+     */
+    public interface Listener {
+        /**
+         * @param changes changes in the order they were made.
+         */
+        void onChanges(List<Change> changes);
+    }
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+    // Changes not yet delivered to listeners; null when no delivery is scheduled.
+    private List<Change> mPending = null;
+
+    public void subscribe(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void unsubscribe(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    void message(Kind kind, long topicId, long msgId) {
+        if (topicId > 0 && msgId > 0) {
+            publish(new Change(kind, topicId, msgId, 0, 0));
+        }
+    }
+
+    void range(Kind kind, long topicId, int fromSeq, int toSeq) {
+        if (topicId > 0) {
+            publish(new Change(kind, topicId, 0, fromSeq, toSeq));
+        }
+    }
+
+    private void publish(Change change) {
+        if (mListeners.isEmpty()) {
+            return;
+        }
+
+        synchronized (this) {
+            if (mPending == null) {
+                mPending = new ArrayList<>();
+                // Changes made before the main thread gets to it are delivered together.
+                mMainHandler.post(this::deliver);
+            }
+            mPending.add(change);
+        }
+    }
+
+    private void deliver() {
+        List<Change> changes;
+        synchronized (this) {
+            changes = mPending;
+            mPending = null;
+        }
+        if (changes == null) {
+            return;
+        }
+        for (Listener l : mListeners) {
+            l.onChanges(changes);
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package co.tinode.tindroid.db;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import co.tinode.tinodesdk.PromisedReply;
+import co.tinode.tinodesdk.StorageCodec;
+import co.tinode.tinodesdk.model.Drafty;
+
+/**
+ * Copy of the top of the chat list saved to a file, so the list can be drawn at startup before
+ * topics are loaded from the database.
+ * <p>
+ * The file is read and written on a background thread. Reading starts when the app process starts,
+ * see {@link #load()}, before the database is opened.
+ * <p>
+ * Layout: [magic:4][version:4][count:4] followed by count entries. Strings are stored as length
+ * and UTF-8 bytes, length -1 means null. Message preview is encoded with {@link StorageCodec}.
+ */
+public class ChatListSnapshot {
+    private static final String TAG = "ChatListSnapshot";
+
+    private static final String FILE_NAME = "chatlist.snapshot";
+    // "TCLS"
+    private static final int MAGIC = 0x54434C53;
+    // Increment when the layout changes. Snapshots of other versions are ignored.
+    private static final int VERSION = 1;
+    // Maximum number of chats to save: enough to fill the first screen with some margin.
+    public static final int MAX_ENTRIES = 50;
+
+    private static ChatListSnapshot sInstance = null;
+
+    // Writes of all snapshots are serialized.
+    private static final ExecutorService sWriter = Executors.newSingleThreadExecutor();
+
+    private final File mFile;
+    // The latest state waiting to be written, null if there is nothing to write.
+    private final AtomicReference<Pending> mPending = new AtomicReference<>();
+    // Incremented when the snapshot is cleared. Saves started before that are discarded.
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    // Content of the snapshot: read from the file or the last saved. Guarded by this.
+    private PromisedReply<List<Entry>> mLoaded = null;
+
+    private ChatListSnapshot(Context context) {
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    public static synchronized ChatListSnapshot getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ChatListSnapshot(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Get saved chat list. The file is read in background on the first call.
+     *
+     * @return promise resolved with saved entries or an empty list if the snapshot is missing, corrupted
+     * or of a different version. The promise is resolved on a background thread.
+     */
+    public synchronized PromisedReply<List<Entry>> load() {
+        if (mLoaded == null) {
+            final PromisedReply<List<Entry>> result = new PromisedReply<>();
+            sWriter.execute(() -> {
+                try {
+                    result.resolve(read());
+                } catch (Exception ex) {
+                    Log.w(TAG, "Snapshot listener failed", ex);
+                }
+            });
+            mLoaded = result;
+        }
+        return mLoaded;
+    }
+
+    /**
+     * Get the current generation of the snapshot. Pass it to {@link #save(List, int)} to discard the save
+     * if the snapshot is cleared in the meantime.
+     */
+    public int getGeneration() {
+        return mGeneration.get();
+    }
+
+    // Read the file. Called on the writer thread.
+    private List<Entry> read() {
+        if (!mFile.exists()) {
+            return Collections.emptyList();
+        }
+
+        try (FileInputStream in = new FileInputStream(mFile); FileChannel channel = in.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return Collections.emptyList();
+            }
+            int count = buffer.getInt();
+            if (count < 0 || count > MAX_ENTRIES) {
+                return Collections.emptyList();
+            }
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                long id = buffer.getLong();
+                String topic = readString(buffer);
+                String title = readString(buffer);
+                String avatar = readString(buffer);
+                byte[] bits = readBytes(buffer);
+                Drafty preview = bits != null ? StorageCodec.decode(bits) : null;
+                int unread = buffer.getInt();
+                long touched = buffer.getLong();
+                entries.add(new Entry(id, topic, title, avatar, preview, unread, touched));
+            }
+            return entries;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException | ClassCastException ex) {
+            Log.w(TAG, "Failed to read snapshot", ex);
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Save chat list in background. If several saves are requested before the write starts, only
+     * the latest one is written.
+     *
+     * @param entries    chats to save, in display order.
+     * @param generation value of {@link #getGeneration()} when the chats were read.
+     */
+    public void save(List<Entry> entries, int generation) {
+        synchronized (this) {
+            if (generation != mGeneration.get()) {
+                // The chats belong to the previous user.
+                return;
+            }
+            mLoaded = new PromisedReply<>(entries);
+        }
+        if (mPending.getAndSet(new Pending(entries, generation)) == null) {
+            sWriter.execute(this::flush);
+        }
+    }
+
+    /**
+     * Delete saved chat list, e.g. on logout. Pending saves are discarded.
+     */
+    public void clear() {
+        synchronized (this) {
+            mGeneration.incrementAndGet();
+            mLoaded = new PromisedReply<>(Collections.<Entry>emptyList());
+        }
+        mPending.set(null);
+        // Runs after any write which has already started.
+        sWriter.execute(() -> {
+            if (mFile.exists() && !mFile.delete()) {
+                Log.w(TAG, "Failed to delete snapshot");
+            }
+        });
+    }
+
+    private void flush() {
+        Pending pending = mPending.getAndSet(null);
+        if (pending == null || pending.generation != mGeneration.get()) {
+            return;
+        }
+
+        List<Entry> entries = pending.entries;
+        int count = Math.min(entries.size(), MAX_ENTRIES);
+        File temp = new File(mFile.getPath() + ".tmp");
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                Entry e = entries.get(i);
+                out.writeLong(e.id);
+                writeString(out, e.topic);
+                writeString(out, e.title);
+                writeString(out, e.avatar);
+                writeBytes(out, e.preview != null ? StorageCodec.encode(e.preview) : null);
+                out.writeInt(e.unread);
+                out.writeLong(e.touched);
+            }
+            out.flush();
+
+            // Write to a temporary file first, then replace the snapshot so a reader never sees a partial file.
+            try (FileOutputStream file = new FileOutputStream(temp)) {
+                bytes.writeTo(file);
+                file.getFD().sync();
+            }
+            if (!temp.renameTo(mFile)) {
+                Log.w(TAG, "Failed to replace snapshot");
+            }
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to write snapshot", ex);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bits = readBytes(buffer);
+        return bits != null ? new String(bits, StandardCharsets.UTF_8) : null;
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        int len = buffer.getInt();
+        if (len < 0) {
+            return null;
+        }
+        if (len > buffer.remaining()) {
+            // Corrupted file.
+            throw new BufferUnderflowException();
+        }
+        byte[] bits = new byte[len];
+        buffer.get(bits);
+        return bits;
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        writeBytes(out, str != null ? str.getBytes(StandardCharsets.UTF_8) : null);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bits) throws IOException {
+        if (bits == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bits.length);
+            out.write(bits);
+        }
+    }
+
+    private static class Pending {
+        final List<Entry> entries;
+        final int generation;
+
+        Pending(List<Entry> entries, int generation) {
+            this.entries = entries;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * One chat in the list.
+     */
+    public static class Entry {
+        // Database ID of the topic.
+        public final long id;
+        public final String topic;
+        public final String title;
+        // Absolute URL of the avatar or null.
+        public final String avatar;
+        // Preview of the last message.
+        public final Drafty preview;
+        public final int unread;
+        public final long touched;
+
+        public Entry(long id, String topic, String title, String avatar, Drafty preview, int unread, long touched) {
+            this.id = id;
+            this.topic = topic;
+            this.title = title;
+            this.avatar = avatar;
+            this.preview = preview;
+            this.unread = unread;
+            this.touched = touched;
+        }
+    }
+}
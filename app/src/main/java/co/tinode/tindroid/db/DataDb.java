@@ -0,0 +1,243 @@
+package co.tinode.tindroid.db;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+/**
+ * Database with the data of one account: topics, users, subscriptions, messages and uploaded files.
+ * <p>
+ * Each account has its own file. Switching accounts is opening another file, deleting an account is
+ * deleting its file, and queries and indexes do not need to filter by account.
+ * The list of accounts is kept in {@link BaseDb}.
+ */
+class DataDb extends SQLiteOpenHelper {
+    private static final String TAG = "DataDb";
+
+    /**
+     * Schema version. Increment on schema changes and add an upgrade step to {@link Migrations#DATA}.
+     */
+    static final int DATABASE_VERSION = 2;
+
+    private static final String FILE_PREFIX = "data-";
+    private static final String FILE_SUFFIX = ".db";
+
+    // Schema name of the attached database with the legacy tables.
+    private static final String LEGACY = "legacy";
+
+    private DataDb(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+    }
+
+    /**
+     * Get database of the account with the given UID. The file is created if it does not exist.
+     */
+    static DataDb open(Context context, String uid) {
+        return new DataDb(context, fileName(uid));
+    }
+
+    /**
+     * Get an in-memory database. Used when no account is active, so queries return nothing.
+     */
+    static DataDb scratch(Context context) {
+        return new DataDb(context, null);
+    }
+
+    /**
+     * Delete database file of the account with the given UID.
+     */
+    static void delete(Context context, String uid) {
+        context.deleteDatabase(fileName(uid));
+    }
+
+    /**
+     * Delete database files of all accounts.
+     */
+    static void deleteAll(Context context) {
+        for (String name : context.databaseList()) {
+            if (name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX)) {
+                context.deleteDatabase(name);
+            }
+        }
+    }
+
+    static String fileName(String uid) {
+        return FILE_PREFIX + uid + FILE_SUFFIX;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL(TopicDb.CREATE_TABLE);
+        db.execSQL(TopicDb.CREATE_INDEX);
+        db.execSQL(UserDb.CREATE_TABLE);
+        db.execSQL(UserDb.CREATE_INDEX);
+        db.execSQL(SubscriberDb.CREATE_TABLE);
+        db.execSQL(SubscriberDb.CREATE_INDEX);
+        db.execSQL(MessageDb.CREATE_TABLE);
+        db.execSQL(MessageDb.CREATE_INDEX);
+        MessageSearchDb.createTable(db);
+        db.execSQL(UploadDb.CREATE_TABLE);
+        db.execSQL(UploadDb.CREATE_INDEX);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (Migrations.DATA.canMigrate(oldVersion, newVersion)) {
+            Migrations.DATA.migrate(db, oldVersion, newVersion);
+            return;
+        }
+
+        Log.i(TAG, "No upgrade path from version " + oldVersion + " to " + newVersion + ", recreating database");
+        recreate(db);
+    }
+
+    @Override
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        recreate(db);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        db.setForeignKeyConstraintsEnabled(true);
+        // Readers do not block each other or the writer, e.g. topics and previews are loaded in parallel.
+        db.enableWriteAheadLogging();
+        // Takes effect when the database is created. Existing databases are converted by vacuum().
+        db.execSQL("PRAGMA auto_vacuum=INCREMENTAL");
+    }
+
+    private void recreate(SQLiteDatabase db) {
+        // This is just a cache. Drop then re-fetch everything from the server.
+        dropTables(db);
+        onCreate(db);
+    }
+
+    static void dropTables(SQLiteDatabase db) {
+        db.execSQL(UploadDb.DROP_INDEX);
+        db.execSQL(UploadDb.DROP_TABLE);
+        MessageSearchDb.dropTable(db);
+        db.execSQL(MessageDb.DROP_INDEX);
+        db.execSQL(MessageDb.DROP_TABLE);
+        db.execSQL(SubscriberDb.DROP_INDEX);
+        db.execSQL(SubscriberDb.DROP_TABLE);
+        db.execSQL(UserDb.DROP_INDEX);
+        db.execSQL(UserDb.DROP_TABLE);
+        db.execSQL(TopicDb.DROP_INDEX);
+        db.execSQL(TopicDb.DROP_TABLE);
+    }
+
+    /**
+     * Check if the database has tables shared by all accounts, as created by the older versions of the app.
+     *
+     * @param base database with the list of accounts.
+     */
+    static boolean hasLegacy(SQLiteDatabase base) {
+        boolean found = false;
+        Cursor c = base.rawQuery("SELECT name FROM sqlite_master WHERE type='table' AND name=?",
+                new String[]{TopicDb.TABLE_NAME});
+        if (c != null) {
+            found = c.moveToFirst();
+            c.close();
+        }
+        return found;
+    }
+
+    /**
+     * Copy rows of the given account from the legacy shared tables to this database, then delete them from
+     * the shared tables. Row IDs are preserved, so the references between the tables remain valid.
+     * Messages are added to the search index later by {@link SqlStore#backfillSearchIndex()}.
+     *
+     * @param legacy path to the database with the legacy tables.
+     * @param accId  ID of the account in the legacy tables.
+     */
+    void importLegacy(String legacy, long accId) {
+        final long start = System.currentTimeMillis();
+        // Opening the database creates the schema.
+        final String path = getWritableDatabase().getPath();
+
+        // Use a separate connection: ATTACH disables write-ahead logging of the connection.
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READWRITE);
+        try {
+            db.execSQL("ATTACH DATABASE ? AS " + LEGACY, new Object[]{legacy});
+            final String topicIds = " IN (SELECT " + TopicDb._ID +
+                    " FROM " + LEGACY + "." + TopicDb.TABLE_NAME +
+                    " WHERE " + TopicDb.COLUMN_NAME_ACCOUNT_ID + "=" + accId + ")";
+            db.beginTransaction();
+            try {
+                copyLegacy(db, TopicDb.TABLE_NAME, TopicDb.COLUMN_NAME_ACCOUNT_ID + "=" + accId);
+                copyLegacy(db, UserDb.TABLE_NAME, UserDb.COLUMN_NAME_ACCOUNT_ID + "=" + accId);
+                copyLegacy(db, SubscriberDb.TABLE_NAME, SubscriberDb.COLUMN_NAME_TOPIC_ID + topicIds);
+                copyLegacy(db, MessageDb.TABLE_NAME, MessageDb.COLUMN_NAME_TOPIC_ID + topicIds);
+
+                db.execSQL("DELETE FROM " + LEGACY + "." + MessageDb.TABLE_NAME +
+                        " WHERE " + MessageDb.COLUMN_NAME_TOPIC_ID + topicIds);
+                db.execSQL("DELETE FROM " + LEGACY + "." + SubscriberDb.TABLE_NAME +
+                        " WHERE " + SubscriberDb.COLUMN_NAME_TOPIC_ID + topicIds);
+                db.execSQL("DELETE FROM " + LEGACY + "." + TopicDb.TABLE_NAME +
+                        " WHERE " + TopicDb.COLUMN_NAME_ACCOUNT_ID + "=" + accId);
+                db.execSQL("DELETE FROM " + LEGACY + "." + UserDb.TABLE_NAME +
+                        " WHERE " + UserDb.COLUMN_NAME_ACCOUNT_ID + "=" + accId);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            db.execSQL("DETACH DATABASE " + LEGACY);
+            Log.i(TAG, "Imported account " + accId + " in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (SQLException ex) {
+            // The data will be fetched from the server again.
+            Log.w(TAG, "Failed to import account " + accId, ex);
+        } finally {
+            db.close();
+        }
+    }
+
+    // Copy rows from the legacy table to the table with the same name. Columns missing in the new
+    // table, like account_id, are skipped. Rows which are already copied are ignored.
+    private static void copyLegacy(SQLiteDatabase db, String table, String where) {
+        StringBuilder columns = new StringBuilder();
+        Cursor c = db.rawQuery("PRAGMA main.table_info(" + table + ")", null);
+        if (c != null) {
+            while (c.moveToNext()) {
+                if (columns.length() > 0) {
+                    columns.append(',');
+                }
+                // Column 1 is the name of the column.
+                columns.append(c.getString(1));
+            }
+            c.close();
+        }
+        db.execSQL("INSERT OR IGNORE INTO main." + table + " (" + columns + ")" +
+                " SELECT " + columns + " FROM " + LEGACY + "." + table + " WHERE " + where);
+    }
+
+    /**
+     * Delete rows of the given account from the legacy shared tables.
+     *
+     * @param base  database with the legacy tables.
+     * @param accId ID of the account to delete.
+     */
+    static void deleteLegacy(SQLiteDatabase base, long accId) {
+        TopicDb.deleteAllLegacy(base, accId);
+        UserDb.deleteAllLegacy(base, accId);
+    }
+
+    /**
+     * Drop the legacy shared tables if all accounts are imported.
+     *
+     * @param base database with the legacy tables.
+     */
+    static void dropLegacyIfEmpty(SQLiteDatabase base) {
+        long topics = base.compileStatement("SELECT COUNT(*) FROM " + TopicDb.TABLE_NAME).simpleQueryForLong();
+        long users = base.compileStatement("SELECT COUNT(*) FROM " + UserDb.TABLE_NAME).simpleQueryForLong();
+        if (topics > 0 || users > 0) {
+            return;
+        }
+
+        dropTables(base);
+        // Give the space back to the file system. Must run outside of transaction.
+        base.execSQL("VACUUM");
+        Log.i(TAG, "Dropped legacy tables");
+    }
+}
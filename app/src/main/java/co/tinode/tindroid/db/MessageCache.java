@@ -0,0 +1,92 @@
+package co.tinode.tindroid.db;
+
+import android.database.Cursor;
+import android.util.LruCache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of decoded messages keyed by database ID.
+ * <p>
+ * Decoding head and content is the most expensive part of reading a message. When the same messages
+ * are read again, e.g. the message list is refreshed after a new message arrives, decoded copies are
+ * reused. A cached copy is used only if the status, seq, timestamp and deletion fields in the database
+ * still match it. Changes of content are reported with {@link #invalidate(long)}.
+ * <p>
+ * Cached messages are shared: callers must not modify them.
+ */
+public class MessageCache {
+    // Maximum number of messages to keep: a few windows of MessagesAdapter.
+    private static final int MAX_SIZE = 512;
+
+    private static final LruCache<Long, StoredMessage> sCache = new LruCache<>(MAX_SIZE);
+    private static final AtomicLong sHits = new AtomicLong();
+    private static final AtomicLong sMisses = new AtomicLong();
+
+    /**
+     * Read full message at the current cursor position, decoding it only if it's not cached.
+     *
+     * @param c cursor with columns in the order of MessageDb.COLUMN_IDX_* constants.
+     * @return decoded message.
+     */
+    static StoredMessage readMessage(Cursor c) {
+        final long id = c.getLong(MessageDb.COLUMN_IDX_ID);
+        StoredMessage cached = sCache.get(id);
+        if (cached != null && isCurrent(cached, c)) {
+            sHits.incrementAndGet();
+            return cached;
+        }
+
+        sMisses.incrementAndGet();
+        StoredMessage msg = StoredMessage.readMessage(c, -1);
+        sCache.put(id, msg);
+        return msg;
+    }
+
+    // Check if the cached message matches the row at the cursor position without decoding the row.
+    private static boolean isCurrent(StoredMessage msg, Cursor c) {
+        return msg.topicId == c.getLong(MessageDb.COLUMN_IDX_TOPIC_ID) &&
+                msg.status.value == c.getInt(MessageDb.COLUMN_IDX_STATUS) &&
+                msg.seq == c.getInt(MessageDb.COLUMN_IDX_SEQ) &&
+                msg.ts.getTime() == c.getLong(MessageDb.COLUMN_IDX_TS) &&
+                msg.high == (c.isNull(MessageDb.COLUMN_IDX_HIGH) ? 0 : c.getInt(MessageDb.COLUMN_IDX_HIGH)) &&
+                msg.delId == (c.isNull(MessageDb.COLUMN_IDX_DEL_ID) ? 0 : c.getInt(MessageDb.COLUMN_IDX_DEL_ID));
+    }
+
+    /**
+     * Remove message from cache, e.g. when its content was changed.
+     */
+    static void invalidate(long id) {
+        sCache.remove(id);
+    }
+
+    /**
+     * Remove all messages, e.g. when the account is changed.
+     */
+    static void clear() {
+        sCache.evictAll();
+    }
+
+    /**
+     * Number of messages found in cache since the app start.
+     */
+    public static long getHits() {
+        return sHits.get();
+    }
+
+    /**
+     * Number of messages which had to be decoded since the app start.
+     */
+    public static long getMisses() {
+        return sMisses.get();
+    }
+
+    /**
+     * Share of reads served from cache, between 0 and 1.
+     */
+    public static float getHitRate() {
+        long hits = sHits.get();
+        long total = hits + sMisses.get();
+        return total > 0 ? (float) hits / total : 0f;
+    }
+}
@@ -1,7 +1,6 @@
 package co.tinode.tindroid.db;
 
 import android.content.ContentValues;
-import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteConstraintException;
@@ -11,10 +10,14 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
-import androidx.loader.content.CursorLoader;
 import co.tinode.tinodesdk.Topic;
+import co.tinode.tinodesdk.model.Drafty;
 import co.tinode.tinodesdk.model.MsgRange;
 
 /**
@@ -32,6 +35,10 @@ import co.tinode.tinodesdk.model.MsgRange;
  */
 public class MessageDb implements BaseColumns {
     static final int MESSAGE_PREVIEW_LENGTH = 80;
+    // Number of messages to convert from legacy format in one transaction.
+    static final int CONVERT_BATCH_SIZE = 100;
+    // Number of messages to delete in one transaction when pruning old messages.
+    static final int PRUNE_BATCH_SIZE = 500;
     /**
      * The name of the main table.
      */
@@ -73,13 +80,13 @@ public class MessageDb implements BaseColumns {
     /**
      * Message timestamp
      */
-    private static final String COLUMN_NAME_TS = "ts";
+    static final String COLUMN_NAME_TS = "ts";
     /**
      * Server-issued sequence ID, integer, indexed. If the message represents
      * a deleted range, then <tt>seq</tt> is the lowest bound of the range;
      * the bound is closed (inclusive).
      */
-    private static final String COLUMN_NAME_SEQ = "seq";
+    static final String COLUMN_NAME_SEQ = "seq";
     /**
      * If message represents a deleted range, this is the upper bound of the range, NULL otherwise.
      * The bound is open (exclusive).
@@ -90,13 +97,13 @@ public class MessageDb implements BaseColumns {
      */
     private static final String COLUMN_NAME_DEL_ID = "del_id";
     /**
-     * Serialized header.
+     * Serialized header: BLOB in binary format or legacy "class_name;json" TEXT.
      */
     private static final String COLUMN_NAME_HEAD = "head";
     /**
-     * Serialized message content
+     * Serialized message content: BLOB in binary format or legacy "class_name;json" TEXT.
      */
-    private static final String COLUMN_NAME_CONTENT = "content";
+    static final String COLUMN_NAME_CONTENT = "content";
     /**
      * SQL statement to create Messages table
      */
@@ -177,10 +184,11 @@ public class MessageDb implements BaseColumns {
             values.put(COLUMN_NAME_SENDER, msg.from);
             values.put(COLUMN_NAME_TS, msg.ts != null ? msg.ts.getTime() : null);
             values.put(COLUMN_NAME_SEQ, msg.seq);
-            values.put(COLUMN_NAME_HEAD, BaseDb.serialize(msg.head));
-            values.put(COLUMN_NAME_CONTENT, BaseDb.serialize(msg.content));
+            values.put(COLUMN_NAME_HEAD, BaseDb.serializeBinary(msg.head));
+            values.put(COLUMN_NAME_CONTENT, BaseDb.serializeBinary(msg.content));
 
             msg.id = db.insertOrThrow(TABLE_NAME, null, values);
+            MessageSearchDb.insert(db, msg.id, msg.content);
             db.setTransactionSuccessful();
         } catch (SQLiteConstraintException ex) {
             // Duplicate topics_id - seq value? Try finding the original.
@@ -203,13 +211,33 @@ public class MessageDb implements BaseColumns {
             values.put(COLUMN_NAME_STATUS, status.value);
         }
         if (content != null) {
-            values.put(COLUMN_NAME_CONTENT, BaseDb.serialize(content));
+            values.put(COLUMN_NAME_CONTENT, BaseDb.serializeBinary(content));
         }
 
-        if (values.size() > 0) {
-            return db.update(TABLE_NAME, values, _ID + "=" + msgId, null) > 0;
+        if (values.size() == 0) {
+            return false;
         }
-        return false;
+
+        boolean success = false;
+        db.beginTransaction();
+        try {
+            if (db.update(TABLE_NAME, values, _ID + "=" + msgId, null) > 0) {
+                if (content instanceof Drafty) {
+                    MessageSearchDb.update(db, msgId, (Drafty) content);
+                }
+                db.setTransactionSuccessful();
+                success = true;
+            }
+        } catch (SQLException ex) {
+            Log.w(TAG, "Update failed", ex);
+        } finally {
+            db.endTransaction();
+        }
+        // After the commit: readers must not cache the old content again.
+        if (success && content != null) {
+            MessageCache.invalidate(msgId);
+        }
+        return success;
     }
 
     static boolean delivered(SQLiteDatabase db, long msgId, Date timestamp, int seq) {
@@ -223,21 +251,256 @@ public class MessageDb implements BaseColumns {
 
 
     /**
-     * Query latest messages
+     * Convert a batch of messages from legacy TEXT format of head and content to binary format.
+     * Values which cannot be converted are left in TEXT format: they are still readable by
+     * {@link BaseDb#deserializeColumn(Cursor, int)}, and unsent messages cannot be fetched again.
      *
-     * @param db        database to select from;
-     * @param topicId   Tinode topic ID (topics._id) to select from
-     * @param pageCount number of pages to return
-     * @param pageSize  number of messages per page
-     * @return cursor with the messages.
+     * @param db      database to use.
+     * @param afterId convert messages with _id greater than this one.
+     * @param limit   maximum number of messages to convert.
+     * @return _id of the last message in the batch; 0 means there is nothing left to convert.
      */
-    public static Cursor query(SQLiteDatabase db, long topicId, int pageCount, int pageSize) {
-        final String sql = "SELECT * FROM " + TABLE_NAME +
+    static long convertLegacyFormat(SQLiteDatabase db, long afterId, int limit) {
+        final String sql = "SELECT " + _ID + "," + COLUMN_NAME_HEAD + "," + COLUMN_NAME_CONTENT +
+                " FROM " + TABLE_NAME +
+                " WHERE " + _ID + ">" + afterId +
+                " AND (typeof(" + COLUMN_NAME_HEAD + ")='text' OR typeof(" + COLUMN_NAME_CONTENT + ")='text')" +
+                " ORDER BY " + _ID +
+                " LIMIT " + limit;
+
+        long lastId = 0;
+        db.beginTransaction();
+        try {
+            Cursor c = db.rawQuery(sql, null);
+            if (c != null) {
+                while (c.moveToNext()) {
+                    lastId = c.getLong(0);
+                    ContentValues values = new ContentValues();
+                    convertColumn(c, 1, COLUMN_NAME_HEAD, values);
+                    convertColumn(c, 2, COLUMN_NAME_CONTENT, values);
+                    if (values.size() > 0) {
+                        db.update(TABLE_NAME, values, _ID + "=" + lastId, null);
+                    } else {
+                        Log.w(TAG, "Message " + lastId + " is kept in legacy format");
+                    }
+                }
+                c.close();
+            }
+            db.setTransactionSuccessful();
+        } catch (SQLException ex) {
+            Log.w(TAG, "Failed to convert messages", ex);
+            lastId = 0;
+        } finally {
+            db.endTransaction();
+        }
+        return lastId;
+    }
+
+    // Add binary value of the TEXT column to values. The column is skipped if it cannot be converted.
+    private static void convertColumn(Cursor c, int column, String name, ContentValues values) {
+        if (c.getType(column) != Cursor.FIELD_TYPE_STRING) {
+            return;
+        }
+        Object obj = BaseDb.deserializeColumn(c, column);
+        if (obj == null) {
+            return;
+        }
+        byte[] bin = BaseDb.serializeBinary(obj);
+        if (bin != null) {
+            values.put(name, bin);
+        }
+    }
+
+    // Only messages synchronized with the server are pruned: the rest cannot be fetched again.
+    private static final String PRUNABLE = COLUMN_NAME_STATUS + " IN (" + BaseDb.Status.SYNCED.value + "," +
+            BaseDb.Status.DELETED_SYNCED.value + ")";
+
+    /**
+     * Find topics with more than the given number of synced messages and the seq of the oldest message to keep.
+     *
+     * @param db       database to select from.
+     * @param maxCount maximum number of messages to keep in each topic.
+     * @return map of topic ID (topics._id) to the lowest seq to keep.
+     */
+    static Map<Long, Integer> getCutoffsByCount(SQLiteDatabase db, int maxCount) {
+        Map<Long, Integer> cutoffs = new HashMap<>();
+        final String sql = "SELECT " + COLUMN_NAME_TOPIC_ID + " FROM " + TABLE_NAME +
+                " WHERE " + COLUMN_NAME_STATUS + "=" + BaseDb.Status.SYNCED.value +
+                " GROUP BY " + COLUMN_NAME_TOPIC_ID +
+                " HAVING COUNT(*)>" + maxCount;
+        Cursor c = db.rawQuery(sql, null);
+        if (c != null) {
+            while (c.moveToNext()) {
+                long topicId = c.getLong(0);
+                Cursor seq = db.rawQuery("SELECT " + COLUMN_NAME_SEQ + " FROM " + TABLE_NAME +
+                        " WHERE " + COLUMN_NAME_TOPIC_ID + "=" + topicId +
+                        " AND " + COLUMN_NAME_STATUS + "=" + BaseDb.Status.SYNCED.value +
+                        " ORDER BY " + COLUMN_NAME_SEQ + " DESC" +
+                        " LIMIT 1 OFFSET " + (maxCount - 1), null);
+                if (seq != null) {
+                    if (seq.moveToFirst()) {
+                        cutoffs.put(topicId, seq.getInt(0));
+                    }
+                    seq.close();
+                }
+            }
+            c.close();
+        }
+        return cutoffs;
+    }
+
+    /**
+     * Find the seq of the oldest message to keep in each topic so that messages older than the given
+     * timestamp are pruned. The latest message of each topic is always kept.
+     *
+     * @param db    database to select from.
+     * @param minTs timestamp of the oldest message to keep, milliseconds.
+     * @return map of topic ID (topics._id) to the lowest seq to keep.
+     */
+    static Map<Long, Integer> getCutoffsByAge(SQLiteDatabase db, long minTs) {
+        Map<Long, Integer> cutoffs = new HashMap<>();
+        final String sql = "SELECT " + COLUMN_NAME_TOPIC_ID + "," +
+                " IFNULL(MIN(CASE WHEN " + COLUMN_NAME_TS + ">=" + minTs + " THEN " + COLUMN_NAME_SEQ + " END)," +
+                " MAX(" + COLUMN_NAME_SEQ + "))" +
+                " FROM " + TABLE_NAME +
+                " WHERE " + COLUMN_NAME_STATUS + "=" + BaseDb.Status.SYNCED.value +
+                " GROUP BY " + COLUMN_NAME_TOPIC_ID +
+                " HAVING MIN(" + COLUMN_NAME_TS + ")<" + minTs;
+        Cursor c = db.rawQuery(sql, null);
+        if (c != null) {
+            while (c.moveToNext()) {
+                cutoffs.put(c.getLong(0), c.getInt(1));
+            }
+            c.close();
+        }
+        return cutoffs;
+    }
+
+    /**
+     * Find the seq of the oldest message to keep in each topic so that the given number of the oldest
+     * messages across all topics are pruned. The latest message of each topic is always kept.
+     *
+     * @param db    database to select from.
+     * @param count number of messages to prune.
+     * @return map of topic ID (topics._id) to the lowest seq to keep.
+     */
+    static Map<Long, Integer> getCutoffsOldest(SQLiteDatabase db, int count) {
+        Map<Long, Integer> cutoffs = new HashMap<>();
+        final String sql = "SELECT o." + COLUMN_NAME_TOPIC_ID + "," +
+                " MIN(MAX(o." + COLUMN_NAME_SEQ + ")+1," +
+                " (SELECT MAX(" + COLUMN_NAME_SEQ + ") FROM " + TABLE_NAME + " AS m" +
+                " WHERE m." + COLUMN_NAME_TOPIC_ID + "=o." + COLUMN_NAME_TOPIC_ID +
+                " AND m." + COLUMN_NAME_STATUS + "=" + BaseDb.Status.SYNCED.value + "))" +
+                " FROM (SELECT " + COLUMN_NAME_TOPIC_ID + "," + COLUMN_NAME_SEQ + " FROM " + TABLE_NAME +
+                " WHERE " + COLUMN_NAME_STATUS + "=" + BaseDb.Status.SYNCED.value +
+                " ORDER BY " + COLUMN_NAME_TS + " LIMIT " + count + ") AS o" +
+                " GROUP BY o." + COLUMN_NAME_TOPIC_ID;
+        Cursor c = db.rawQuery(sql, null);
+        if (c != null) {
+            while (c.moveToNext()) {
+                cutoffs.put(c.getLong(0), c.getInt(1));
+            }
+            c.close();
+        }
+        return cutoffs;
+    }
+
+    /**
+     * Delete a batch of synced messages and synced deletion markers with seq lower than the cutoff.
+     * Unsent messages and deletions not yet synced with the server are kept.
+     *
+     * @param db      database to use.
+     * @param topicId Tinode topic ID (topics._id) to delete messages from.
+     * @param cutoff  seq of the oldest message to keep.
+     * @param limit   maximum number of messages to delete.
+     * @param deleted   receives database IDs of the deleted messages.
+     * @return number of deleted messages.
+     */
+    static int prune(SQLiteDatabase db, long topicId, int cutoff, int limit, Collection<Long> deleted) {
+        Cursor c = db.rawQuery("SELECT " + _ID + " FROM " + TABLE_NAME +
+                " WHERE " + COLUMN_NAME_TOPIC_ID + "=" + topicId +
+                " AND " + COLUMN_NAME_SEQ + "<" + cutoff +
+                " AND " + PRUNABLE +
+                " ORDER BY " + COLUMN_NAME_SEQ +
+                " LIMIT " + limit, null);
+        if (c == null) {
+            return 0;
+        }
+        List<String> ids = new ArrayList<>();
+        while (c.moveToNext()) {
+            ids.add(c.getString(0));
+            deleted.add(c.getLong(0));
+        }
+        c.close();
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        return db.delete(TABLE_NAME, _ID + " IN (" + TextUtils.join(",", ids) + ")", null);
+    }
+
+    /**
+     * Columns read by {@link StoredMessage#readMessage}, in the order of COLUMN_IDX_* constants.
+     */
+    private static final String MESSAGE_COLUMNS = _ID + "," + COLUMN_NAME_TOPIC_ID + "," +
+            COLUMN_NAME_USER_ID + "," + COLUMN_NAME_STATUS + "," + COLUMN_NAME_SENDER + "," +
+            COLUMN_NAME_TS + "," + COLUMN_NAME_SEQ + "," + COLUMN_NAME_HIGH + "," +
+            COLUMN_NAME_DEL_ID + "," + COLUMN_NAME_HEAD + "," + COLUMN_NAME_CONTENT;
+
+    /**
+     * Query a page of messages older than the given seq, newest first.
+     *
+     * @param db      database to select from;
+     * @param topicId Tinode topic ID (topics._id) to select from
+     * @param before  exclusive upper bound of seq; use Integer.MAX_VALUE to get the latest messages
+     * @param limit   maximum number of messages to return
+     * @return cursor with the messages sorted by seq in descending order.
+     */
+    static Cursor queryBefore(SQLiteDatabase db, long topicId, int before, int limit) {
+        final String sql = "SELECT " + MESSAGE_COLUMNS + " FROM " + TABLE_NAME +
                 " WHERE "
                 + COLUMN_NAME_TOPIC_ID + "=" + topicId +
+                " AND " + COLUMN_NAME_SEQ + "<" + before +
                 " ORDER BY "
                 + COLUMN_NAME_SEQ + " DESC" +
-                " LIMIT " + (pageCount * pageSize);
+                " LIMIT " + limit;
+
+        return db.rawQuery(sql, null);
+    }
+
+    /**
+     * Query a page of messages newer than the given seq, oldest first.
+     *
+     * @param db      database to select from;
+     * @param topicId Tinode topic ID (topics._id) to select from
+     * @param after   exclusive lower bound of seq
+     * @param limit   maximum number of messages to return
+     * @return cursor with the messages sorted by seq in ascending order.
+     */
+    static Cursor queryAfter(SQLiteDatabase db, long topicId, int after, int limit) {
+        final String sql = "SELECT " + MESSAGE_COLUMNS + " FROM " + TABLE_NAME +
+                " WHERE "
+                + COLUMN_NAME_TOPIC_ID + "=" + topicId +
+                " AND " + COLUMN_NAME_SEQ + ">" + after +
+                " ORDER BY "
+                + COLUMN_NAME_SEQ +
+                " LIMIT " + limit;
+
+        return db.rawQuery(sql, null);
+    }
+
+    /**
+     * Query messages of a topic by database IDs.
+     *
+     * @param db      database to select from;
+     * @param topicId Tinode topic ID (topics._id) to select from
+     * @param ids     _id of the messages to retrieve.
+     * @return cursor with the messages in no particular order.
+     */
+    static Cursor queryByIds(SQLiteDatabase db, long topicId, Collection<Long> ids) {
+        final String sql = "SELECT " + MESSAGE_COLUMNS + " FROM " + TABLE_NAME +
+                " WHERE "
+                + COLUMN_NAME_TOPIC_ID + "=" + topicId +
+                " AND " + _ID + " IN (" + TextUtils.join(",", ids) + ")";
 
         return db.rawQuery(sql, null);
     }
@@ -631,6 +894,26 @@ public class MessageDb implements BaseColumns {
         return cursor.getLong(0);
     }
 
+    /**
+     * Get the highest seq of messages in the topic which is not less than the given value.
+     *
+     * @param topicId Tinode topic ID (topics._id).
+     * @param min     lowest seq value to consider.
+     * @return the highest seq or 0 if there are no such messages.
+     */
+    static int getMaxSeq(SQLiteDatabase db, long topicId, int min) {
+        int seq = 0;
+        Cursor c = db.rawQuery("SELECT MAX(" + COLUMN_NAME_SEQ + ") FROM " + TABLE_NAME +
+                " WHERE " + COLUMN_NAME_TOPIC_ID + "=" + topicId + " AND " + COLUMN_NAME_SEQ + ">=" + min, null);
+        if (c != null) {
+            if (c.moveToFirst()) {
+                seq = c.getInt(0);
+            }
+            c.close();
+        }
+        return seq;
+    }
+
     private static long getId(SQLiteDatabase db, long topicId, int seq) {
         long id = -1;
         Cursor c = db.query(
@@ -646,31 +929,4 @@ public class MessageDb implements BaseColumns {
         }
         return id;
     }
-
-    /**
-     * Message Loader for loading messages in background.
-     */
-    public static class Loader extends CursorLoader {
-        private final long topicId;
-        private final int pageCount;
-        private final int pageSize;
-        final SQLiteDatabase mDb;
-
-        public Loader(Context context, String topic, int pageCount, int pageSize) {
-            super(context);
-
-            mDb = BaseDb.getInstance().getReadableDatabase();
-            this.topicId = TopicDb.getId(mDb, topic);
-            this.pageCount = pageCount;
-            this.pageSize = pageSize;
-            if (topicId < 0) {
-                Log.w(TAG, "Topic not found '" + topic + "'");
-            }
-        }
-
-        @Override
-        public Cursor loadInBackground() {
-            return query(mDb, topicId, pageCount, pageSize);
-        }
-    }
 }
@@ -0,0 +1,402 @@
+package co.tinode.tindroid.db;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Typeface;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.TextUtils;
+import android.text.style.StyleSpan;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import co.tinode.tinodesdk.model.Drafty;
+
+/**
+ * Full-text index over plain text of cached messages.
+ * <p>
+ * The index is an FTS4 virtual table where docid is the _id of the indexed row in the messages table.
+ * Rows are added in the same transaction as the message itself and removed by a trigger when the
+ * message is deleted.
+ */
+public class MessageSearchDb {
+    private static final String TAG = "MessageSearchDb";
+
+    /**
+     * The name of the FTS table.
+     */
+    static final String TABLE_NAME = "message_fts";
+    /**
+     * Plain text of the message.
+     */
+    private static final String COLUMN_NAME_BODY = "body";
+    /**
+     * SQL statement to create the FTS table. Prefix indexes speed up search-as-you-type queries.
+     */
+    private static final String CREATE_TABLE =
+            "CREATE VIRTUAL TABLE " + TABLE_NAME + " USING fts4(" +
+                    COLUMN_NAME_BODY + "," +
+                    "prefix=\"2,3\"";
+    /**
+     * SQL statement to drop the FTS table.
+     */
+    static final String DROP_TABLE =
+            "DROP TABLE IF EXISTS " + TABLE_NAME;
+    /**
+     * The name of the trigger which keeps the index in sync when messages are deleted.
+     */
+    private static final String TRIGGER_NAME = "message_fts_delete";
+    /**
+     * Remove indexed text when the message is deleted.
+     */
+    static final String CREATE_TRIGGER =
+            "CREATE TRIGGER " + TRIGGER_NAME +
+                    " AFTER DELETE ON " + MessageDb.TABLE_NAME +
+                    " BEGIN DELETE FROM " + TABLE_NAME + " WHERE docid=old." + MessageDb._ID + "; END";
+    /**
+     * Drop the trigger too.
+     */
+    static final String DROP_TRIGGER =
+            "DROP TRIGGER IF EXISTS " + TRIGGER_NAME;
+
+    /**
+     * Markers which wrap matched terms in snippets.
+     */
+    private static final String SNIPPET_START = "\u0002";
+    private static final String SNIPPET_END = "\u0003";
+    private static final String SNIPPET_ELLIPSIS = "…";
+    // Approximate number of tokens in a snippet.
+    private static final int SNIPPET_TOKENS = 12;
+
+    // Number of messages to index in one backfill transaction.
+    static final int BACKFILL_BATCH_SIZE = 200;
+
+    private static final int COLUMN_IDX_ID = 0;
+    private static final int COLUMN_IDX_TOPIC = 1;
+    private static final int COLUMN_IDX_SEQ = 2;
+    private static final int COLUMN_IDX_TS = 3;
+    private static final int COLUMN_IDX_SNIPPET = 4;
+
+    /**
+     * Create FTS table using unicode-aware tokenizer if available, the default tokenizer otherwise.
+     *
+     * @param db database to create table in.
+     */
+    static void createTable(SQLiteDatabase db) {
+        try {
+            db.execSQL(CREATE_TABLE + ",tokenize=unicode61)");
+        } catch (SQLException ex) {
+            Log.i(TAG, "unicode61 tokenizer is not available, using default", ex);
+            db.execSQL(CREATE_TABLE + ")");
+        }
+        db.execSQL(CREATE_TRIGGER);
+    }
+
+    /**
+     * Drop FTS table and the trigger.
+     *
+     * @param db database to drop table from.
+     */
+    static void dropTable(SQLiteDatabase db) {
+        db.execSQL(DROP_TRIGGER);
+        db.execSQL(DROP_TABLE);
+    }
+
+    /**
+     * Extract text to index from message content.
+     */
+    private static String plainText(Drafty content) {
+        if (content == null) {
+            return null;
+        }
+        String text = content.toString();
+        return TextUtils.isEmpty(text) ? null : text;
+    }
+
+    /**
+     * Add message content to the index. Must be called within the transaction which inserts the message.
+     *
+     * @param db      database to use.
+     * @param msgId   _id of the message.
+     * @param content message content.
+     */
+    static void insert(SQLiteDatabase db, long msgId, Drafty content) {
+        if (content == null) {
+            return;
+        }
+        // Insert a blank row if there is no text: otherwise the message will be picked up by backfill.
+        String text = plainText(content);
+        ContentValues values = new ContentValues();
+        values.put("docid", msgId);
+        values.put(COLUMN_NAME_BODY, text != null ? text : "");
+        db.insertOrThrow(TABLE_NAME, null, values);
+    }
+
+    /**
+     * Replace indexed content of the message.
+     *
+     * @param db      database to use.
+     * @param msgId   _id of the message.
+     * @param content new message content.
+     */
+    static void update(SQLiteDatabase db, long msgId, Drafty content) {
+        delete(db, msgId);
+        insert(db, msgId, content);
+    }
+
+    /**
+     * Remove message from the index.
+     *
+     * @param db    database to use.
+     * @param msgId _id of the message.
+     */
+    static void delete(SQLiteDatabase db, long msgId) {
+        db.delete(TABLE_NAME, "docid=" + msgId, null);
+    }
+
+    /**
+     * Index a batch of messages which are not indexed yet.
+     *
+     * @param db    database to use.
+     * @param limit maximum number of messages to index.
+     * @return number of messages checked; 0 means there is nothing left to index.
+     */
+    static int backfill(SQLiteDatabase db, int limit) {
+        final String sql = "SELECT m." + MessageDb._ID + ",m." + MessageDb.COLUMN_NAME_CONTENT +
+                " FROM " + MessageDb.TABLE_NAME + " AS m" +
+                " WHERE m." + MessageDb.COLUMN_NAME_CONTENT + " IS NOT NULL" +
+                " AND NOT EXISTS (SELECT docid FROM " + TABLE_NAME + " WHERE docid=m." + MessageDb._ID + ")" +
+                " LIMIT " + limit;
+
+        int count = 0;
+        db.beginTransaction();
+        try {
+            Cursor c = db.rawQuery(sql, null);
+            if (c != null) {
+                while (c.moveToNext()) {
+                    Drafty content = BaseDb.deserializeColumn(c, 1);
+                    // Content which failed to parse still gets a row, otherwise it will be re-checked forever.
+                    insert(db, c.getLong(0), content != null ? content : new Drafty());
+                    count++;
+                }
+                c.close();
+            }
+            db.setTransactionSuccessful();
+        } catch (SQLException ex) {
+            Log.w(TAG, "Failed to backfill search index", ex);
+            count = 0;
+        } finally {
+            db.endTransaction();
+        }
+        return count;
+    }
+
+    /**
+     * Convert user input into FTS MATCH expression: every word is treated as a prefix, all words must match.
+     *
+     * @param query user input.
+     * @return MATCH expression or null if the query has no searchable words.
+     */
+    static String matchExpression(String query) {
+        if (query == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String word : query.trim().split("\\s+")) {
+            // Quotes and asterisks are FTS syntax. Remove them.
+            word = word.replace("\"", "").replace("*", "");
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append('"').append(word).append("*\"");
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    /**
+     * Search all messages in the given database. There is no filter by account: each account has its
+     * own database file, see {@link DataDb}.
+     *
+     * @param db      account database to use.
+     * @param query   user input.
+     * @param topicId topics._id to limit search to one topic or a value <= 0 to search all topics.
+     * @param limit   maximum number of results to return.
+     * @return list of matching messages sorted by relevance, then by recency.
+     */
+    static List<Hit> search(SQLiteDatabase db, String query, long topicId, int limit) {
+        List<Hit> hits = new ArrayList<>();
+        String match = matchExpression(query);
+        if (match == null || limit <= 0) {
+            return hits;
+        }
+
+        final String from = " FROM " + TABLE_NAME + " AS f" +
+                " JOIN " + MessageDb.TABLE_NAME + " AS m ON m." + MessageDb._ID + "=f.docid";
+        final String where = " WHERE " + TABLE_NAME + " MATCH ?" +
+                (topicId > 0 ? " AND m." + MessageDb.COLUMN_NAME_TOPIC_ID + "=" + topicId : "");
+
+        // Rank all matches using only matchinfo, which is cheap, and keep the best ones.
+        // The queue head is the worst of the kept hits.
+        final Comparator<Hit> byRelevance = (h1, h2) -> {
+            int result = Double.compare(h1.rank, h2.rank);
+            return result != 0 ? result : Long.compare(h1.tsMs, h2.tsMs);
+        };
+        PriorityQueue<Hit> best = new PriorityQueue<>(limit + 1, byRelevance);
+        try {
+            Cursor c = db.rawQuery("SELECT m." + MessageDb._ID + ",m." + MessageDb.COLUMN_NAME_TS +
+                    ",matchinfo(" + TABLE_NAME + ",'pcx')" + from + where, new String[]{match});
+            if (c != null) {
+                while (c.moveToNext()) {
+                    Hit hit = new Hit();
+                    hit.id = c.getLong(0);
+                    hit.tsMs = c.isNull(1) ? 0 : c.getLong(1);
+                    hit.rank = rank(c.getBlob(2));
+                    best.add(hit);
+                    if (best.size() > limit) {
+                        best.poll();
+                    }
+                }
+                c.close();
+            }
+        } catch (SQLException ex) {
+            Log.w(TAG, "Search failed", ex);
+            return hits;
+        }
+        if (best.isEmpty()) {
+            return hits;
+        }
+
+        // Fetch topics and snippets of the best hits only.
+        Map<Long, Hit> byId = new HashMap<>();
+        for (Hit hit : best) {
+            byId.put(hit.id, hit);
+        }
+        final String sql = "SELECT m." + MessageDb._ID + ",t." + TopicDb.COLUMN_NAME_TOPIC +
+                ",m." + MessageDb.COLUMN_NAME_SEQ + ",m." + MessageDb.COLUMN_NAME_TS +
+                ",snippet(" + TABLE_NAME + ",'" + SNIPPET_START + "','" + SNIPPET_END + "','" +
+                SNIPPET_ELLIPSIS + "',-1," + SNIPPET_TOKENS + ")" +
+                from +
+                " JOIN " + TopicDb.TABLE_NAME + " AS t ON t." + TopicDb._ID +
+                "=m." + MessageDb.COLUMN_NAME_TOPIC_ID +
+                where + " AND m." + MessageDb._ID + " IN (" + TextUtils.join(",", byId.keySet()) + ")";
+        try {
+            Cursor c = db.rawQuery(sql, new String[]{match});
+            if (c != null) {
+                while (c.moveToNext()) {
+                    Hit hit = byId.get(c.getLong(COLUMN_IDX_ID));
+                    if (hit == null) {
+                        continue;
+                    }
+                    hit.topic = c.getString(COLUMN_IDX_TOPIC);
+                    hit.seq = c.getInt(COLUMN_IDX_SEQ);
+                    hit.ts = c.isNull(COLUMN_IDX_TS) ? null : new Date(c.getLong(COLUMN_IDX_TS));
+                    hit.snippet = c.getString(COLUMN_IDX_SNIPPET);
+                    hits.add(hit);
+                }
+                c.close();
+            }
+        } catch (SQLException ex) {
+            Log.w(TAG, "Search failed", ex);
+        }
+
+        // Most relevant first, then the most recent.
+        Collections.sort(hits, Collections.reverseOrder(byRelevance));
+        return hits;
+    }
+
+    /**
+     * Compute relevance of the row from FTS4 matchinfo 'pcx' blob: sum over all phrases and columns
+     * of the ratio of phrase hits in this row to phrase hits in all rows.
+     */
+    private static double rank(byte[] matchinfo) {
+        if (matchinfo == null || matchinfo.length < 8) {
+            return 0;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder());
+        int phrases = buf.getInt(0);
+        int columns = buf.getInt(4);
+        double score = 0;
+        for (int i = 0; i < phrases * columns; i++) {
+            int offset = 8 + i * 12;
+            if (offset + 8 > matchinfo.length) {
+                break;
+            }
+            int hitsThisRow = buf.getInt(offset);
+            int hitsAllRows = buf.getInt(offset + 4);
+            if (hitsAllRows > 0) {
+                score += (double) hitsThisRow / hitsAllRows;
+            }
+        }
+        return score;
+    }
+
+    /**
+     * Single search result.
+     */
+    public static class Hit {
+        // _id of the message.
+        public long id;
+        // Name of the topic which contains the message.
+        public String topic;
+        // Server-issued seq ID of the message.
+        public int seq;
+        public Date ts;
+        public double rank;
+        // Timestamp in milliseconds for ranking.
+        long tsMs;
+        // Fragment of message text with matched terms wrapped into markers.
+        String snippet;
+
+        /**
+         * Get snippet as plain text.
+         */
+        public String getSnippet() {
+            return snippet != null ? snippet.replace(SNIPPET_START, "").replace(SNIPPET_END, "") : null;
+        }
+
+        /**
+         * Get snippet with matched terms in bold.
+         */
+        public Spanned getHighlightedSnippet() {
+            SpannableStringBuilder ssb = new SpannableStringBuilder();
+            if (snippet == null) {
+                return ssb;
+            }
+            int pos = 0;
+            while (pos < snippet.length()) {
+                int start = snippet.indexOf(SNIPPET_START, pos);
+                if (start < 0) {
+                    ssb.append(snippet.substring(pos));
+                    break;
+                }
+                int end = snippet.indexOf(SNIPPET_END, start);
+                if (end < 0) {
+                    ssb.append(snippet.substring(pos).replace(SNIPPET_START, ""));
+                    break;
+                }
+                ssb.append(snippet, pos, start);
+                int spanStart = ssb.length();
+                ssb.append(snippet, start + SNIPPET_START.length(), end);
+                ssb.setSpan(new StyleSpan(Typeface.BOLD), spanStart, ssb.length(),
+                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                pos = end + SNIPPET_END.length();
+            }
+            return ssb;
+        }
+    }
+}
@@ -0,0 +1,556 @@
+package co.tinode.tindroid.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A sliding window over messages of one topic, newest message first.
+ * <p>
+ * Pages are fetched with seq-anchored keyset queries: older pages are appended at the end, newer pages
+ * are inserted at the start. When the window grows beyond the limit, the pages farthest from the
+ * direction of scrolling are dropped. Queries run in background, the window is modified and the
+ * listener is called on the main thread.
+ */
+public class MessageWindow {
+    private static final String TAG = "MessageWindow";
+
+    // Upper bound of seq when the window is anchored at the latest message.
+    private static final int LATEST = Integer.MAX_VALUE;
+
+    // Queries for all windows are serialized.
+    private static final ExecutorService sLoader = Executors.newSingleThreadExecutor();
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Listener mListener;
+    private volatile Preparer mPreparer = null;
+    private final int mPageSize;
+    private final int mMaxSize;
+
+    // Messages sorted by seq in descending order.
+    private final ArrayList<StoredMessage> mItems = new ArrayList<>();
+    // Index of mItems, rebuilt on first use after the window is changed: seq values by position,
+    // and IDs in ascending order with their positions.
+    private int[] mSeqs = null;
+    private long[] mIds = null;
+    private int[] mIdPositions = null;
+    private String mTopicName = null;
+    private long mTopicId = -1;
+    // Exclusive upper bound of seq of messages in the window.
+    private int mUpperBound = LATEST;
+    // Requested number of messages in the window.
+    private int mTargetSize;
+    // Incremented on every reset to discard results of queries issued for a previous topic.
+    private int mGeneration = 0;
+    private boolean mLoadingOlder = false;
+    private boolean mLoadingNewer = false;
+
+    /**
+     * Call the runnable on the loader thread after the queries submitted so far.
+     */
+    static void afterPending(Runnable task) {
+        sLoader.execute(task);
+    }
+
+    /**
+     * Create window.
+     *
+     * @param pageSize number of messages to load at once.
+     * @param maxPages maximum number of pages to keep in the window.
+     * @param listener receiver of notifications about changes in the window.
+     */
+    public MessageWindow(int pageSize, int maxPages, Listener listener) {
+        mPageSize = pageSize;
+        mMaxSize = pageSize * maxPages;
+        mTargetSize = pageSize;
+        mListener = listener;
+    }
+
+    /**
+     * Set the stage which prepares loaded messages for display in background.
+     */
+    public void setPreparer(Preparer preparer) {
+        mPreparer = preparer;
+    }
+
+    public int size() {
+        return mItems.size();
+    }
+
+    public StoredMessage getMessage(int position) {
+        return position >= 0 && position < mItems.size() ? mItems.get(position) : null;
+    }
+
+    public String getTopicName() {
+        return mTopicName;
+    }
+
+    /**
+     * Check if the window contains the latest message of the topic.
+     */
+    public boolean isAtLatest() {
+        return mUpperBound == LATEST;
+    }
+
+    /**
+     * Load the latest page of messages of the given topic, or empty the window if topic is null.
+     *
+     * @param topicName name of the topic to show.
+     */
+    public void reset(final String topicName) {
+        mGeneration++;
+        mTopicName = topicName;
+        mTopicId = -1;
+        mUpperBound = LATEST;
+        mTargetSize = mPageSize;
+        mLoadingOlder = false;
+        mLoadingNewer = false;
+
+        if (topicName == null) {
+            mItems.clear();
+            invalidateIndex();
+            mListener.onWindowReset(true);
+            return;
+        }
+
+        final int generation = mGeneration;
+        final int limit = mTargetSize;
+        sLoader.execute(() -> {
+            SQLiteDatabase db = BaseDb.getInstance().getReadableDataDb();
+            long topicId = TopicDb.getId(db, topicName);
+            if (topicId < 0) {
+                Log.w(TAG, "Topic not found '" + topicName + "'");
+            }
+            List<StoredMessage> page = read(MessageDb.queryBefore(db, topicId, LATEST, limit));
+            mMainHandler.post(() -> {
+                if (generation != mGeneration) {
+                    return;
+                }
+                mTopicId = topicId;
+                mItems.clear();
+                mItems.addAll(page);
+                invalidateIndex();
+                mListener.onWindowReset(true);
+            });
+        });
+    }
+
+    /**
+     * Re-read messages currently in the window, e.g. after messages were added, deleted or changed.
+     * If the window is at the latest message, new messages are included.
+     */
+    public void refresh() {
+        if (mTopicId < 0) {
+            // Topic not found or reset is pending.
+            if (mTopicName != null) {
+                reset(mTopicName);
+            }
+            return;
+        }
+
+        final int generation = mGeneration;
+        final long topicId = mTopicId;
+        final int upper = mUpperBound;
+        // The window could have shrunk when messages were deleted.
+        final int limit = Math.max(mTargetSize, mPageSize);
+        sLoader.execute(() -> {
+            SQLiteDatabase db = BaseDb.getInstance().getReadableDataDb();
+            List<StoredMessage> page = read(MessageDb.queryBefore(db, topicId, upper, limit));
+            mMainHandler.post(() -> {
+                if (generation != mGeneration) {
+                    return;
+                }
+                if (upper != mUpperBound) {
+                    // Window has moved while the query was running. Try again.
+                    refresh();
+                    return;
+                }
+                mItems.clear();
+                mItems.addAll(page);
+                invalidateIndex();
+                mListener.onWindowReset(false);
+            });
+        });
+    }
+
+    /**
+     * Append a page of older messages.
+     *
+     * @return true if the page is being loaded, false if there are no more older messages in the database.
+     */
+    public boolean loadOlder() {
+        if (mTopicId < 0 || mItems.size() < mTargetSize) {
+            // The last query returned fewer messages than requested: no more messages in the DB.
+            return false;
+        }
+        if (mLoadingOlder) {
+            return true;
+        }
+
+        mLoadingOlder = true;
+        mTargetSize += mPageSize;
+        final int generation = mGeneration;
+        final long topicId = mTopicId;
+        final int before = mItems.isEmpty() ? mUpperBound : mItems.get(mItems.size() - 1).seq;
+        final int limit = mPageSize;
+        sLoader.execute(() -> {
+            SQLiteDatabase db = BaseDb.getInstance().getReadableDataDb();
+            List<StoredMessage> page = read(MessageDb.queryBefore(db, topicId, before, limit));
+            mMainHandler.post(() -> {
+                if (generation != mGeneration) {
+                    return;
+                }
+                mLoadingOlder = false;
+                int oldest = mItems.isEmpty() ? mUpperBound : mItems.get(mItems.size() - 1).seq;
+                if (oldest != before) {
+                    // Window changed while the query was running. Re-read it.
+                    refresh();
+                    return;
+                }
+
+                int start = mItems.size();
+                mItems.addAll(page);
+                invalidateIndex();
+                mListener.onItemRangeInserted(start, page.size());
+
+                // Drop the newest messages if the window is too big.
+                int extra = mItems.size() - mMaxSize;
+                if (extra > 0) {
+                    mItems.subList(0, extra).clear();
+                    invalidateIndex();
+                    mUpperBound = mItems.get(0).seq + 1;
+                    mTargetSize -= extra;
+                    mListener.onItemRangeRemoved(0, extra);
+                }
+            });
+        });
+        return true;
+    }
+
+    /**
+     * Insert a page of newer messages if the window is not at the latest message.
+     *
+     * @return true if the page is being loaded, false if the window already contains the latest message.
+     */
+    public boolean loadNewer() {
+        if (mTopicId < 0 || isAtLatest()) {
+            return false;
+        }
+        if (mLoadingNewer) {
+            return true;
+        }
+
+        mLoadingNewer = true;
+        final int generation = mGeneration;
+        final long topicId = mTopicId;
+        final int after = mUpperBound - 1;
+        final int limit = mPageSize;
+        sLoader.execute(() -> {
+            SQLiteDatabase db = BaseDb.getInstance().getReadableDataDb();
+            List<StoredMessage> page = read(MessageDb.queryAfter(db, topicId, after, limit));
+            // Query returns messages in ascending order.
+            Collections.reverse(page);
+            mMainHandler.post(() -> {
+                if (generation != mGeneration) {
+                    return;
+                }
+                mLoadingNewer = false;
+                if (mUpperBound - 1 != after) {
+                    refresh();
+                    return;
+                }
+
+                if (page.size() < limit) {
+                    mUpperBound = LATEST;
+                } else {
+                    mUpperBound = page.get(0).seq + 1;
+                }
+                mItems.addAll(0, page);
+                invalidateIndex();
+                mTargetSize += page.size();
+                mListener.onItemRangeInserted(0, page.size());
+
+                // Drop the oldest messages if the window is too big.
+                int extra = mItems.size() - mMaxSize;
+                if (extra > 0) {
+                    int start = mItems.size() - extra;
+                    mItems.subList(start, mItems.size()).clear();
+                    invalidateIndex();
+                    mTargetSize -= extra;
+                    mListener.onItemRangeRemoved(start, extra);
+                }
+            });
+        });
+        return true;
+    }
+
+    /**
+     * Apply changes published by {@link ChangeFeed}: only the affected messages are re-read and
+     * updated in place. Changes of ranges of messages are rare, the whole window is re-read then.
+     * Must be called on the main thread.
+     *
+     * @param changes changes of messages of all topics.
+     */
+    public void applyChanges(List<ChangeFeed.Change> changes) {
+        if (mTopicId < 0) {
+            return;
+        }
+
+        boolean reload = false;
+        boolean readRecv = false;
+        Set<Long> reread = new HashSet<>();
+        List<Long> removed = new ArrayList<>();
+        for (ChangeFeed.Change change : changes) {
+            if (change.topicId != mTopicId) {
+                continue;
+            }
+            if (change.kind == ChangeFeed.Kind.READ_RECV) {
+                readRecv = true;
+            } else if (change.isRange()) {
+                reload = true;
+            } else if (change.kind == ChangeFeed.Kind.DELETED) {
+                removed.add(change.msgId);
+                reread.remove(change.msgId);
+            } else {
+                reread.add(change.msgId);
+            }
+        }
+
+        if (reload) {
+            refresh();
+            return;
+        }
+
+        for (long id : removed) {
+            int pos = indexOf(id);
+            if (pos >= 0) {
+                mItems.remove(pos);
+                invalidateIndex();
+                mTargetSize--;
+                mListener.onItemRangeRemoved(pos, 1);
+            }
+        }
+
+        if (readRecv) {
+            // Delivery marks of own messages are drawn from the subscriptions; no need to re-read them.
+            notifyMineChanged();
+        }
+
+        if (!reread.isEmpty()) {
+            reread(reread);
+        }
+    }
+
+    // Re-read the given messages and move them to the right place in the window.
+    private void reread(final Collection<Long> ids) {
+        final int generation = mGeneration;
+        final long topicId = mTopicId;
+        sLoader.execute(() -> {
+            SQLiteDatabase db = BaseDb.getInstance().getReadableDataDb();
+            List<StoredMessage> found = read(MessageDb.queryByIds(db, topicId, ids));
+            mMainHandler.post(() -> {
+                if (generation != mGeneration) {
+                    return;
+                }
+                Set<Long> missing = new HashSet<>(ids);
+                for (StoredMessage msg : found) {
+                    missing.remove(msg.id);
+                    place(msg);
+                }
+                // Deleted while the query was running.
+                for (long id : missing) {
+                    int pos = indexOf(id);
+                    if (pos >= 0) {
+                        mItems.remove(pos);
+                        invalidateIndex();
+                        mTargetSize--;
+                        mListener.onItemRangeRemoved(pos, 1);
+                    }
+                }
+            });
+        });
+    }
+
+    // Replace the message in the window or insert it if it belongs to the range of the window.
+    private void place(StoredMessage msg) {
+        int old = indexOf(msg.id);
+        if (old >= 0 && mSeqs[old] == msg.seq) {
+            // Most common case: status or content has changed. The index remains valid.
+            mItems.set(old, msg);
+            mListener.onItemRangeChanged(old, 1);
+            return;
+        }
+        if (old >= 0) {
+            mItems.remove(old);
+            invalidateIndex();
+        }
+
+        int pos = indexOfSeq(msg.seq);
+        if (pos < 0) {
+            pos = -pos - 1;
+        }
+        boolean inWindow = msg.seq < mUpperBound &&
+                // The message is older than the window, unless all older messages are already loaded.
+                (pos < mItems.size() || mItems.size() < mTargetSize);
+
+        if (old >= 0 && old == pos && inWindow) {
+            mItems.add(pos, msg);
+            invalidateIndex();
+            mListener.onItemRangeChanged(pos, 1);
+            return;
+        }
+
+        if (old >= 0) {
+            mListener.onItemRangeRemoved(old, 1);
+        }
+        if (old >= 0 && !inWindow) {
+            // Moved out of the window.
+            mTargetSize--;
+        } else if (old < 0 && inWindow) {
+            mTargetSize++;
+        }
+        if (inWindow) {
+            mItems.add(pos, msg);
+            invalidateIndex();
+            mListener.onItemRangeInserted(pos, 1);
+        }
+    }
+
+    private void notifyMineChanged() {
+        int start = -1;
+        for (int i = 0; i <= mItems.size(); i++) {
+            boolean mine = i < mItems.size() && mItems.get(i).isMine();
+            if (mine && start < 0) {
+                start = i;
+            } else if (!mine && start >= 0) {
+                mListener.onItemRangeChanged(start, i - start);
+                start = -1;
+            }
+        }
+    }
+
+    /**
+     * Find position of the message with the given database ID.
+     *
+     * @return position of the message or -1 if the message is not in the window.
+     */
+    public int indexOf(long id) {
+        buildIndex();
+        int i = Arrays.binarySearch(mIds, id);
+        return i >= 0 ? mIdPositions[i] : -1;
+    }
+
+    /**
+     * Find position of the message with the given seq ID.
+     *
+     * @return position of the message if found, otherwise (-(insertion point) - 1), where the insertion
+     * point is the position where the message with this seq would be in the window.
+     */
+    public int indexOfSeq(int seq) {
+        buildIndex();
+        // Seq values are in descending order.
+        int low = 0;
+        int high = mSeqs.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midSeq = mSeqs[mid];
+            if (midSeq > seq) {
+                low = mid + 1;
+            } else if (midSeq < seq) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private void invalidateIndex() {
+        mSeqs = null;
+        mIds = null;
+        mIdPositions = null;
+    }
+
+    private void buildIndex() {
+        if (mSeqs != null) {
+            return;
+        }
+
+        final int size = mItems.size();
+        int[] seqs = new int[size];
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            seqs[i] = mItems.get(i).seq;
+            order[i] = i;
+        }
+        // Sort positions by ID: IDs are not in any particular order in the window.
+        Arrays.sort(order, (a, b) -> Long.compare(mItems.get(a).id, mItems.get(b).id));
+        long[] ids = new long[size];
+        int[] positions = new int[size];
+        for (int i = 0; i < size; i++) {
+            positions[i] = order[i];
+            ids[i] = mItems.get(positions[i]).id;
+        }
+        mSeqs = seqs;
+        mIds = ids;
+        mIdPositions = positions;
+    }
+
+    // Read and close cursor. Messages already in the window are usually taken from cache without decoding.
+    // Called on the loader thread.
+    private List<StoredMessage> read(Cursor c) {
+        List<StoredMessage> list = new ArrayList<>();
+        if (c != null) {
+            while (c.moveToNext()) {
+                list.add(MessageCache.readMessage(c));
+            }
+            c.close();
+        }
+
+        Preparer preparer = mPreparer;
+        if (preparer != null) {
+            for (StoredMessage msg : list) {
+                preparer.prepare(msg);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Receiver of notifications about changes in the window. Called on the main thread.
+     */
+    public interface Listener {
+        /**
+         * The content of the window was replaced.
+         *
+         * @param hard true if the window now shows a different topic or the latest messages of the topic.
+         */
+        void onWindowReset(boolean hard);
+
+        void onItemRangeInserted(int start, int count);
+
+        void onItemRangeChanged(int start, int count);
+
+        void onItemRangeRemoved(int start, int count);
+    }
+
+    /**
+     * Stage of loading which runs on the loader thread before the page is added to the window, e.g. to
+     * decode images. Messages are shared and must not be modified.
+     */
+    public interface Preparer {
+        void prepare(StoredMessage msg);
+    }
+}
@@ -0,0 +1,96 @@
+package co.tinode.tindroid.db;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * Step-wise upgrades of the database schema which keep the cached data.
+ * <p>
+ * Each step upgrades the database by exactly one version. Steps are executed inside the upgrade
+ * transaction, so they should only change the schema. Expensive changes of data, like re-encoding
+ * or indexing all messages, must be done in background after the database is opened, in small
+ * batches: see {@link SqlStore#upgradeStorageFormat()} and {@link SqlStore#backfillSearchIndex()}.
+ * <p>
+ * When the schema changes: increment the version of the database, change CREATE statements for the new
+ * databases and add a step from the previous version to {@link #ACCOUNTS} or {@link #DATA}.
+ */
+class Migrations {
+    private static final String TAG = "Migrations";
+
+    /**
+     * Upgrades of the list of accounts, {@link BaseDb}.
+     */
+    static final Migrations ACCOUNTS = new Migrations("accounts")
+            // Full-text index of messages: created in account databases now.
+            .add(14, db -> {})
+            // Topics, users, subscriptions and messages moved to account databases. The shared
+            // tables are kept until their rows are copied by DataDb.importLegacy().
+            .add(15, db -> {});
+
+    /**
+     * Upgrades of the account databases, {@link DataDb}.
+     */
+    static final Migrations DATA = new Migrations("data")
+            // References to uploaded files by content hash.
+            .add(1, db -> {
+                db.execSQL(UploadDb.CREATE_TABLE);
+                db.execSQL(UploadDb.CREATE_INDEX);
+            });
+
+    private final String mName;
+    // Steps keyed by the version they upgrade from.
+    private final SparseArray<Step> mSteps = new SparseArray<>();
+
+    private Migrations(String name) {
+        mName = name;
+    }
+
+    private Migrations add(int from, Step step) {
+        mSteps.put(from, step);
+        return this;
+    }
+
+    /**
+     * Check if the database can be upgraded in place.
+     *
+     * @param from current version of the database.
+     * @param to   required version.
+     * @return true if there is a step for every version between from and to.
+     */
+    boolean canMigrate(int from, int to) {
+        if (from >= to) {
+            return false;
+        }
+        for (int v = from; v < to; v++) {
+            if (mSteps.get(v) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Upgrade database from one version to another one step at a time.
+     * Call {@link #canMigrate(int, int)} first.
+     *
+     * @param db   database to upgrade.
+     * @param from current version of the database.
+     * @param to   required version.
+     */
+    void migrate(SQLiteDatabase db, int from, int to) {
+        final long start = System.currentTimeMillis();
+        for (int v = from; v < to; v++) {
+            mSteps.get(v).migrate(db);
+        }
+        Log.i(TAG, "Upgraded " + mName + " database from version " + from + " to " + to + " in " +
+                (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Upgrade the database by one version.
+     */
+    interface Step {
+        void migrate(SQLiteDatabase db);
+    }
+}
@@ -0,0 +1,23 @@
+package co.tinode.tindroid.db;
+
+/**
+ * Limits on how much message history is cached locally. Pruned messages are fetched from
+ * the server again when the user scrolls back to them. A limit of zero means no limit.
+ */
+public class RetentionPolicy {
+    // Default: keep up to 5000 messages per topic and no more than 256MB in total.
+    public static final RetentionPolicy DEFAULT = new RetentionPolicy(5000, 0, 256L * 1024 * 1024);
+
+    // Maximum number of messages to keep in each topic.
+    public final int maxMessages;
+    // Maximum age of a message in milliseconds.
+    public final long maxAge;
+    // Maximum size of the database file in bytes.
+    public final long maxBytes;
+
+    public RetentionPolicy(int maxMessages, long maxAge, long maxBytes) {
+        this.maxMessages = maxMessages;
+        this.maxAge = maxAge;
+        this.maxBytes = maxBytes;
+    }
+}
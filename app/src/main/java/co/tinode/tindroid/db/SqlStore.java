@@ -4,13 +4,22 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
+import android.util.LruCache;
 
 import java.io.Closeable;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import co.tinode.tinodesdk.AsyncStorage;
+import co.tinode.tinodesdk.LocalData;
+import co.tinode.tinodesdk.PromisedReply;
 import co.tinode.tinodesdk.Storage;
 import co.tinode.tinodesdk.Tinode;
 import co.tinode.tinodesdk.Topic;
@@ -26,15 +35,43 @@ import co.tinode.tinodesdk.model.Subscription;
 public class SqlStore implements Storage {
 
     private static final String TAG = "SqlStore";
+    // Number of pages to release in one incremental vacuum step.
+    private static final int VACUUM_PAGES = 256;
+    // Maximum number of cached topic name -> row ID and uid -> row ID mappings.
+    private static final int MAX_CACHED_IDS = 1024;
 
     private final BaseDb mDbh;
+    // Thread of mMaintenance.
+    private volatile Thread mMaintenanceThread = null;
+    // Background executor for database maintenance, such as indexing messages.
+    private final ExecutorService mMaintenance = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "db-maintenance");
+        mMaintenanceThread = thread;
+        return thread;
+    });
     private long mMyId = -1;
     private long mTimeAdjustment = 0;
+    private volatile RetentionPolicy mRetention = RetentionPolicy.DEFAULT;
+    private final RetentionStats mRetentionStats = new RetentionStats();
+    // Row IDs of recently used topics and users, so messages can be saved without looking them up.
+    // Row IDs never change while the record exists: entries are removed only when records are deleted.
+    private final LruCache<String, Long> mTopicIds = new LruCache<>(MAX_CACHED_IDS);
+    private final LruCache<String, Long> mUserIds = new LruCache<>(MAX_CACHED_IDS);
+    private final ChangeFeed mChanges = new ChangeFeed();
+    // Asynchronous facade of this store used by Tinode.
+    private volatile AsyncStorage mAsyncStore = null;
 
     SqlStore(BaseDb dbh) {
         mDbh = dbh;
     }
 
+    /**
+     * Get the stream of changes of cached messages.
+     */
+    public ChangeFeed getChangeFeed() {
+        return mChanges;
+    }
+
     @Override
     public String getMyUid() {
         return mDbh.getUid();
@@ -42,16 +79,19 @@ public class SqlStore implements Storage {
 
     @Override
     public void setMyUid(String uid) {
+        clearIds();
         mDbh.setUid(uid, null);
     }
 
     @Override
     public void setMyUid(String uid, String[] credMethods) {
+        clearIds();
         mDbh.setUid(uid, credMethods);
     }
 
     @Override
     public void deleteAccount(String uid) {
+        clearIds();
         mDbh.deleteUid(uid);
     }
 
@@ -70,17 +110,115 @@ public class SqlStore implements Storage {
         mTimeAdjustment = adj;
     }
 
+    /**
+     * The store is not ready while the data of the account is imported from the tables of an older version.
+     */
     public boolean isReady() {
-        return mDbh.isReady();
+        return mDbh.isReady() && mDbh.isDataReady();
     }
 
     public void logout() {
+        clearIds();
         mDbh.setUid(null, null);
     }
 
+    /**
+     * Set the asynchronous facade of this store, so its pending calls are completed before the database is closed.
+     */
+    public void setAsyncStore(AsyncStorage store) {
+        mAsyncStore = store;
+    }
+
+    /**
+     * Execute the task on the maintenance thread after the maintenance tasks submitted earlier.
+     */
+    void runMaintenance(Runnable task) {
+        mMaintenance.execute(task);
+    }
+
+    /**
+     * Check if the calling thread is the maintenance thread.
+     */
+    boolean isMaintenanceThread() {
+        return Thread.currentThread() == mMaintenanceThread;
+    }
+
+    /**
+     * Call the runnable after the database tasks submitted so far are completed: maintenance, queries of
+     * message windows and calls from Tinode.
+     */
+    void afterPendingTasks(final Runnable done) {
+        mMaintenance.execute(() -> MessageWindow.afterPending(() -> {
+            AsyncStorage store = mAsyncStore;
+            if (store == null) {
+                done.run();
+                return;
+            }
+            store.drain().thenFinally(new PromisedReply.FinalListener() {
+                @Override
+                public void onFinally() {
+                    done.run();
+                }
+            });
+        }));
+    }
+
+    // Forget cached row IDs: they belong to the current account.
+    void clearIds() {
+        mTopicIds.evictAll();
+        mUserIds.evictAll();
+        mMyId = -1;
+    }
+
+    /**
+     * Get row ID of the topic, from cache if possible.
+     *
+     * @return row ID or -1 if the topic is not found.
+     */
+    private long getTopicId(SQLiteDatabase db, Topic topic) {
+        StoredTopic st = (StoredTopic) topic.getLocal();
+        if (st != null && st.id > 0) {
+            return st.id;
+        }
+        final String name = topic.getName();
+        Long id = mTopicIds.get(name);
+        if (id == null) {
+            id = TopicDb.getId(db, name);
+            if (id > 0) {
+                mTopicIds.put(name, id);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Get row ID of the user, from cache if possible.
+     *
+     * @return row ID or -1 if the user is not found.
+     */
+    private long getUserId(SQLiteDatabase db, String uid) {
+        if (uid == null) {
+            return -1;
+        }
+        Long id = mUserIds.get(uid);
+        if (id == null) {
+            id = UserDb.getId(db, uid);
+            if (id > 0) {
+                mUserIds.put(uid, id);
+            }
+        }
+        return id;
+    }
+
+    private void cacheUserId(String uid, long id) {
+        if (uid != null && id > 0) {
+            mUserIds.put(uid, id);
+        }
+    }
+
     @Override
     public Topic[] topicGetAll(final Tinode tinode) {
-        Cursor c = TopicDb.query(mDbh.getReadableDatabase());
+        Cursor c = TopicDb.query(mDbh.getReadableDataDb());
         if (c != null && c.moveToFirst()) {
             Topic[] list = new Topic[c.getCount()];
             int i = 0;
@@ -94,18 +232,22 @@ public class SqlStore implements Storage {
 
     @Override
     public Topic topicGet(final Tinode tinode, final String name) {
-        return TopicDb.readOne(mDbh.getReadableDatabase(), tinode, name);
+        return TopicDb.readOne(mDbh.getReadableDataDb(), tinode, name);
     }
 
     @Override
     public long topicAdd(Topic topic) {
         StoredTopic st = (StoredTopic) topic.getLocal();
-        return (st == null) ? TopicDb.insert(mDbh.getWritableDatabase(), topic) : st.id;
+        long id = (st == null) ? TopicDb.insert(mDbh.getWritableDataDb(), topic) : st.id;
+        if (id > 0) {
+            mTopicIds.put(topic.getName(), id);
+        }
+        return id;
     }
 
     @Override
     public boolean topicUpdate(Topic topic) {
-        return TopicDb.update(mDbh.getWritableDatabase(), topic);
+        return TopicDb.update(mDbh.getWritableDataDb(), topic);
     }
 
     @Override
@@ -113,7 +255,7 @@ public class SqlStore implements Storage {
         StoredTopic st = (StoredTopic) topic.getLocal();
         boolean success = false;
         if (st != null) {
-            SQLiteDatabase db = mDbh.getWritableDatabase();
+            SQLiteDatabase db = mDbh.getWritableDataDb();
 
             try {
                 db.beginTransaction();
@@ -126,6 +268,7 @@ public class SqlStore implements Storage {
                 success = true;
 
                 topic.setLocal(null);
+                mTopicIds.remove(topic.getName());
             } catch (SQLException ignored) {
             }
 
@@ -135,6 +278,41 @@ public class SqlStore implements Storage {
         return success;
     }
 
+    @Override
+    public int topicUpsertBatch(Collection<Topic> topics) {
+        final SQLiteDatabase db = mDbh.getWritableDataDb();
+        // Topics linked to records in this transaction. Unlinked if the transaction fails.
+        List<Topic> linked = new ArrayList<>();
+        int count = 0;
+        boolean success = false;
+        try {
+            db.beginTransaction();
+            for (Topic topic : topics) {
+                boolean isLinked = topic.getLocal() != null;
+                if (TopicDb.upsert(db, topic)) {
+                    count++;
+                }
+                if (!isLinked && topic.getLocal() != null) {
+                    linked.add(topic);
+                }
+            }
+            db.setTransactionSuccessful();
+            success = true;
+        } catch (SQLException ex) {
+            Log.w(TAG, "Failed to save batch of topics", ex);
+        } finally {
+            db.endTransaction();
+            if (!success) {
+                count = 0;
+                for (Topic topic : linked) {
+                    topic.setLocal(null);
+                }
+            }
+        }
+
+        return count;
+    }
+
     @Override
     public MsgRange getCachedMessagesRange(Topic topic) {
         StoredTopic st = (StoredTopic) topic.getLocal();
@@ -148,7 +326,7 @@ public class SqlStore implements Storage {
     public MsgRange getNextMissingRange(Topic topic) {
         StoredTopic st = (StoredTopic) topic.getLocal();
         if (st != null && st.id > 0) {
-            return MessageDb.getNextMissingRange(mDbh.getReadableDatabase(), st.id);
+            return MessageDb.getNextMissingRange(mDbh.getReadableDataDb(), st.id);
         }
         return null;
     }
@@ -158,7 +336,7 @@ public class SqlStore implements Storage {
         boolean result = false;
         StoredTopic st = (StoredTopic) topic.getLocal();
         if (st != null && st.id > 0) {
-            result = TopicDb.updateRead(mDbh.getWritableDatabase(), st.id, read);
+            result = TopicDb.updateRead(mDbh.getWritableDataDb(), st.id, read);
         }
         return result;
     }
@@ -168,19 +346,30 @@ public class SqlStore implements Storage {
         boolean result = false;
         StoredTopic st = (StoredTopic) topic.getLocal();
         if (st != null && st.id > 0) {
-            result = TopicDb.updateRecv(mDbh.getWritableDatabase(), st.id, recv);
+            result = TopicDb.updateRecv(mDbh.getWritableDataDb(), st.id, recv);
         }
         return result;
     }
 
     @Override
     public long subAdd(Topic topic, Subscription sub) {
-        return SubscriberDb.insert(mDbh.getWritableDatabase(), StoredTopic.getId(topic), BaseDb.Status.SYNCED, sub);
+        long id = SubscriberDb.insert(mDbh.getWritableDataDb(), StoredTopic.getId(topic), BaseDb.Status.SYNCED, sub);
+        cacheSubUser(sub);
+        return id;
     }
 
     @Override
     public long subNew(Topic topic, Subscription sub) {
-        return SubscriberDb.insert(mDbh.getWritableDatabase(), StoredTopic.getId(topic), BaseDb.Status.QUEUED, sub);
+        long id = SubscriberDb.insert(mDbh.getWritableDataDb(), StoredTopic.getId(topic), BaseDb.Status.QUEUED, sub);
+        cacheSubUser(sub);
+        return id;
+    }
+
+    private void cacheSubUser(Subscription sub) {
+        StoredSubscription ss = (StoredSubscription) sub.getLocal();
+        if (ss != null) {
+            cacheUserId(sub.user, ss.userId);
+        }
     }
 
     @Override
@@ -188,7 +377,7 @@ public class SqlStore implements Storage {
         boolean result = false;
         StoredSubscription ss = (StoredSubscription) sub.getLocal();
         if (ss != null && ss.id > 0) {
-            result = SubscriberDb.update(mDbh.getWritableDatabase(), sub);
+            result = SubscriberDb.update(mDbh.getWritableDataDb(), sub);
         }
         return result;
     }
@@ -198,14 +387,52 @@ public class SqlStore implements Storage {
         boolean result = false;
         StoredSubscription ss = (StoredSubscription) sub.getLocal();
         if (ss != null && ss.id > 0) {
-            result = SubscriberDb.delete(mDbh.getWritableDatabase(), ss.id);
+            result = SubscriberDb.delete(mDbh.getWritableDataDb(), ss.id);
         }
         return result;
     }
 
+    @Override
+    public int subUpsertBatch(Topic topic, Collection<Subscription> subs) {
+        final long topicId = StoredTopic.getId(topic);
+        if (topicId <= 0) {
+            return 0;
+        }
+
+        // Local records before the batch: restored if the transaction is rolled back.
+        final List<LocalData.Payload> locals = new ArrayList<>(subs.size());
+        for (Subscription sub : subs) {
+            locals.add(sub.getLocal());
+        }
+
+        final SQLiteDatabase db = mDbh.getWritableDataDb();
+        int count = 0;
+        boolean success = false;
+        try {
+            db.beginTransaction();
+            count = SubscriberDb.upsertBatch(db, topicId, subs);
+            db.setTransactionSuccessful();
+            success = true;
+        } catch (SQLException ex) {
+            Log.w(TAG, "Failed to save batch of subscriptions", ex);
+        } finally {
+            db.endTransaction();
+            if (!success) {
+                count = 0;
+                // Records inserted by the batch no longer exist, deleted ones exist again.
+                int i = 0;
+                for (Subscription sub : subs) {
+                    sub.setLocal(locals.get(i++));
+                }
+            }
+        }
+
+        return count;
+    }
+
     @Override
     public Collection<Subscription> getSubscriptions(Topic topic) {
-        Cursor c = SubscriberDb.query(mDbh.getReadableDatabase(), StoredTopic.getId(topic));
+        Cursor c = SubscriberDb.query(mDbh.getReadableDataDb(), StoredTopic.getId(topic));
         if (c == null) {
             return null;
         }
@@ -216,30 +443,58 @@ public class SqlStore implements Storage {
 
     @Override
     public User userGet(String uid) {
-        return UserDb.readOne(mDbh.getReadableDatabase(), uid);
+        return UserDb.readOne(mDbh.getReadableDataDb(), uid);
     }
 
     @Override
     public long userAdd(User user) {
-        return UserDb.insert(mDbh.getWritableDatabase(), user);
+        long id = UserDb.insert(mDbh.getWritableDataDb(), user);
+        cacheUserId(user.uid, id);
+        return id;
     }
 
     @Override
     public boolean userUpdate(User user) {
-        return UserDb.update(mDbh.getWritableDatabase(), user);
+        return UserDb.update(mDbh.getWritableDataDb(), user);
+    }
+
+    @Override
+    public int userUpsertBatch(Collection<User> users) {
+        final SQLiteDatabase db = mDbh.getWritableDataDb();
+        int count = 0;
+        try {
+            db.beginTransaction();
+            count = UserDb.upsertBatch(db, users);
+            db.setTransactionSuccessful();
+        } catch (SQLException ex) {
+            Log.w(TAG, "Failed to save batch of users", ex);
+            count = 0;
+        } finally {
+            db.endTransaction();
+        }
+
+        if (count > 0) {
+            for (User user : users) {
+                StoredUser su = (StoredUser) user.getLocal();
+                if (su != null) {
+                    cacheUserId(user.uid, su.id);
+                }
+            }
+        }
+
+        return count;
     }
 
     @Override
     public Storage.Message msgReceived(Topic topic, Subscription sub, MsgServerData m) {
-        final SQLiteDatabase db = mDbh.getWritableDatabase();
+        final SQLiteDatabase db = mDbh.getWritableDataDb();
         long topicId, userId;
         StoredSubscription ss = sub != null ? (StoredSubscription) sub.getLocal() : null;
         if (ss == null) {
             Log.i(TAG, "Message from an unknown subscriber " + m.from);
 
-            StoredTopic st = (StoredTopic) topic.getLocal();
-            topicId = st.id;
-            userId = UserDb.getId(db, m.from);
+            topicId = getTopicId(db, topic);
+            userId = getUserId(db, m.from);
             if (userId < 0) {
                 // Create a placeholder user to satisfy the foreign key constraint.
                 if (sub != null) {
@@ -247,6 +502,7 @@ public class SqlStore implements Storage {
                 } else {
                     userId = UserDb.insert(db, m.from, m.ts, null);
                 }
+                cacheUserId(m.from, userId);
             }
         } else {
             topicId = ss.topicId;
@@ -262,6 +518,7 @@ public class SqlStore implements Storage {
         msg.topicId = topicId;
         msg.userId = userId;
         msg.status = BaseDb.Status.SYNCED;
+        boolean saved = false;
         try {
             db.beginTransaction();
 
@@ -269,6 +526,7 @@ public class SqlStore implements Storage {
 
             if (msg.id > 0 && TopicDb.msgReceived(db, topic, msg.ts, msg.seq)) {
                 db.setTransactionSuccessful();
+                saved = true;
             }
 
         } catch (SQLException ex) {
@@ -277,12 +535,15 @@ public class SqlStore implements Storage {
             db.endTransaction();
         }
 
+        if (saved) {
+            mChanges.message(ChangeFeed.Kind.INSERTED, topicId, msg.id);
+        }
         return msg;
     }
 
     private Storage.Message insertMessage(Topic topic, Drafty data, Map<String, Object> head, BaseDb.Status initialStatus) {
         StoredMessage msg = new StoredMessage();
-        SQLiteDatabase db = mDbh.getWritableDatabase();
+        SQLiteDatabase db = mDbh.getWritableDataDb();
 
         if (topic == null) {
             Log.w(TAG, "Failed to insert message: topic is null");
@@ -299,15 +560,19 @@ public class SqlStore implements Storage {
         msg.content = data;
         msg.head = head;
 
-        msg.topicId = StoredTopic.getId(topic);
+        msg.topicId = getTopicId(db, topic);
         if (mMyId < 0) {
-            mMyId = UserDb.getId(db, msg.from);
+            mMyId = getUserId(db, msg.from);
         }
         msg.userId = mMyId;
 
         MessageDb.insert(db, topic, msg);
 
-        return msg.id > 0 ? msg : null;
+        if (msg.id <= 0) {
+            return null;
+        }
+        mChanges.message(ChangeFeed.Kind.INSERTED, msg.topicId, msg.id);
+        return msg;
     }
 
     @Override
@@ -322,29 +587,40 @@ public class SqlStore implements Storage {
 
     @Override
     public boolean msgDraftUpdate(Topic topic, long messageDbId, Drafty data) {
-        return MessageDb.updateStatusAndContent(mDbh.getWritableDatabase(), messageDbId, BaseDb.Status.UNDEFINED, data);
+        return updateStatusAndContent(topic, messageDbId, BaseDb.Status.UNDEFINED, data);
     }
 
     @Override
     public boolean msgReady(Topic topic, long messageDbId, Drafty data) {
-        return MessageDb.updateStatusAndContent(mDbh.getWritableDatabase(), messageDbId, BaseDb.Status.QUEUED, data);
+        return updateStatusAndContent(topic, messageDbId, BaseDb.Status.QUEUED, data);
     }
 
     @Override
     public boolean msgSyncing(Topic topic, long messageDbId, boolean sync) {
-        return MessageDb.updateStatusAndContent(mDbh.getWritableDatabase(), messageDbId,
-                sync ? BaseDb.Status.SENDING : BaseDb.Status.QUEUED, null);
+        return updateStatusAndContent(topic, messageDbId, sync ? BaseDb.Status.SENDING : BaseDb.Status.QUEUED, null);
     }
 
     @Override
     public boolean msgDiscard(Topic topic, long messageDbId) {
-        return MessageDb.delete(mDbh.getWritableDatabase(), messageDbId);
+        boolean result = MessageDb.delete(mDbh.getWritableDataDb(), messageDbId);
+        if (result) {
+            mChanges.message(ChangeFeed.Kind.DELETED, StoredTopic.getId(topic), messageDbId);
+        }
+        return result;
     }
 
     @Override
     public boolean msgFailed(Topic topic, long messageDbId) {
-        return MessageDb.updateStatusAndContent(mDbh.getWritableDatabase(), messageDbId,
-                BaseDb.Status.FAILED, null);
+        return updateStatusAndContent(topic, messageDbId, BaseDb.Status.FAILED, null);
+    }
+
+    private boolean updateStatusAndContent(Topic topic, long messageDbId, BaseDb.Status status, Drafty data) {
+        boolean result = MessageDb.updateStatusAndContent(mDbh.getWritableDataDb(), messageDbId, status, data);
+        if (result) {
+            mChanges.message(data != null ? ChangeFeed.Kind.CONTENT : ChangeFeed.Kind.STATUS,
+                    StoredTopic.getId(topic), messageDbId);
+        }
+        return result;
     }
 
     @Override
@@ -353,17 +629,22 @@ public class SqlStore implements Storage {
         if (st == null) {
             return false;
         }
-        return MessageDb.deleteFailed(mDbh.getWritableDatabase(), st.id);
+        boolean result = MessageDb.deleteFailed(mDbh.getWritableDataDb(), st.id);
+        if (result) {
+            // Failed messages are unsent: their seq values are at the end.
+            mChanges.range(ChangeFeed.Kind.DELETED, st.id, TopicDb.UNSENT_ID_START, 0);
+        }
+        return result;
     }
 
     @Override
     public boolean msgDelivered(Topic topic, long messageDbId, Date timestamp, int seq) {
-        SQLiteDatabase db = mDbh.getWritableDatabase();
+        SQLiteDatabase db = mDbh.getWritableDataDb();
         boolean result = false;
         try {
             db.beginTransaction();
 
-            if (MessageDb.delivered(mDbh.getWritableDatabase(), messageDbId, timestamp, seq) &&
+            if (MessageDb.delivered(mDbh.getWritableDataDb(), messageDbId, timestamp, seq) &&
                     TopicDb.msgReceived(db, topic, timestamp, seq)) {
                 db.setTransactionSuccessful();
                 result = true;
@@ -373,6 +654,9 @@ public class SqlStore implements Storage {
         } finally {
             db.endTransaction();
         }
+        if (result) {
+            mChanges.message(ChangeFeed.Kind.STATUS, StoredTopic.getId(topic), messageDbId);
+        }
         return result;
     }
 
@@ -382,7 +666,11 @@ public class SqlStore implements Storage {
         if (st == null) {
             return false;
         }
-        return MessageDb.markDeleted(mDbh.getWritableDatabase(), st.id, fromId, toId, markAsHard);
+        boolean result = MessageDb.markDeleted(mDbh.getWritableDataDb(), st.id, fromId, toId, markAsHard);
+        if (result) {
+            mChanges.range(ChangeFeed.Kind.DELETED, st.id, fromId, toId);
+        }
+        return result;
     }
 
     @Override
@@ -391,12 +679,22 @@ public class SqlStore implements Storage {
         if (st == null) {
             return false;
         }
-        return MessageDb.markDeleted(mDbh.getWritableDatabase(), st.id, ranges, markAsHard);
+        boolean result = MessageDb.markDeleted(mDbh.getWritableDataDb(), st.id, ranges, markAsHard);
+        if (result) {
+            publishDeleted(st.id, ranges);
+        }
+        return result;
+    }
+
+    private void publishDeleted(long topicId, MsgRange[] ranges) {
+        for (MsgRange r : ranges) {
+            mChanges.range(ChangeFeed.Kind.DELETED, topicId, r.getLower(), r.getUpper());
+        }
     }
 
     @Override
     public boolean msgDelete(Topic topic, int delId, int fromId, int toId) {
-        SQLiteDatabase db = mDbh.getWritableDatabase();
+        SQLiteDatabase db = mDbh.getWritableDataDb();
         StoredTopic st = (StoredTopic) topic.getLocal();
         if (st == null) {
             return false;
@@ -418,13 +716,16 @@ public class SqlStore implements Storage {
         } finally {
             db.endTransaction();
         }
+        if (result) {
+            mChanges.range(ChangeFeed.Kind.DELETED, st.id, fromId, toId);
+        }
 
         return result;
     }
 
     @Override
     public boolean msgDelete(Topic topic, int delId, MsgRange[] ranges) {
-        SQLiteDatabase db = mDbh.getWritableDatabase();
+        SQLiteDatabase db = mDbh.getWritableDataDb();
         StoredTopic st = (StoredTopic) topic.getLocal();
         if (st == null) {
             return false;
@@ -445,6 +746,9 @@ public class SqlStore implements Storage {
         } finally {
             db.endTransaction();
         }
+        if (result) {
+            publishDeleted(st.id, ranges);
+        }
         return result;
     }
 
@@ -453,7 +757,10 @@ public class SqlStore implements Storage {
         boolean result = false;
         StoredSubscription ss = (StoredSubscription) sub.getLocal();
         if (ss != null && ss.id > 0) {
-            result = SubscriberDb.updateRecv(mDbh.getWritableDatabase(), ss.id, recv);
+            result = SubscriberDb.updateRecv(mDbh.getWritableDataDb(), ss.id, recv);
+        }
+        if (result) {
+            mChanges.range(ChangeFeed.Kind.READ_RECV, ss.topicId, 0, recv + 1);
         }
         return result;
     }
@@ -463,14 +770,49 @@ public class SqlStore implements Storage {
         boolean result = false;
         StoredSubscription ss = (StoredSubscription) sub.getLocal();
         if (ss != null && ss.id > 0) {
-            result = SubscriberDb.updateRead(mDbh.getWritableDatabase(), ss.id, read);
+            result = SubscriberDb.updateRead(mDbh.getWritableDataDb(), ss.id, read);
+        }
+        if (result) {
+            mChanges.range(ChangeFeed.Kind.READ_RECV, ss.topicId, 0, read + 1);
         }
         return result;
     }
 
+    @Override
+    public int subReadRecvBatch(Collection<Subscription> subs) {
+        final SQLiteDatabase db = mDbh.getWritableDataDb();
+        int count = 0;
+        try {
+            db.beginTransaction();
+            count = SubscriberDb.updateReadRecvBatch(db, subs);
+            db.setTransactionSuccessful();
+        } catch (SQLException ex) {
+            Log.w(TAG, "Failed to save read/recv notifications", ex);
+            count = 0;
+        } finally {
+            db.endTransaction();
+        }
+
+        if (count > 0) {
+            // One change per topic.
+            Map<Long, Integer> upper = new HashMap<>();
+            for (Subscription sub : subs) {
+                StoredSubscription ss = (StoredSubscription) sub.getLocal();
+                if (ss != null) {
+                    Integer seq = upper.get(ss.topicId);
+                    upper.put(ss.topicId, Math.max(seq != null ? seq : 0, Math.max(sub.read, sub.recv) + 1));
+                }
+            }
+            for (Map.Entry<Long, Integer> e : upper.entrySet()) {
+                mChanges.range(ChangeFeed.Kind.READ_RECV, e.getKey(), 0, e.getValue());
+            }
+        }
+        return count;
+    }
+
     private <T extends Storage.Message> T messageById(long dbMessageId, int previewLength) {
         T msg = null;
-        Cursor c = MessageDb.getMessageById(mDbh.getReadableDatabase(), dbMessageId);
+        Cursor c = MessageDb.getMessageById(mDbh.getReadableDataDb(), dbMessageId);
         if (c != null && c.moveToFirst()) {
             //noinspection unchecked
             msg = (T) StoredMessage.readMessage(c, previewLength);
@@ -495,7 +837,7 @@ public class SqlStore implements Storage {
         MessageList list = null;
         StoredTopic st = (StoredTopic) topic.getLocal();
         if (st != null && st.id > 0) {
-            Cursor c = MessageDb.queryUnsent(mDbh.getReadableDatabase(), st.id);
+            Cursor c = MessageDb.queryUnsent(mDbh.getReadableDataDb(), st.id);
             if (c != null) {
                 list = new MessageList(c, -1);
             }
@@ -507,7 +849,7 @@ public class SqlStore implements Storage {
     @Override
     public <R extends Iterator<Message> & Closeable> R getLatestMessagePreviews() {
         MessageList list = null;
-        Cursor c = MessageDb.getLatestMessages(mDbh.getReadableDatabase());
+        Cursor c = MessageDb.getLatestMessages(mDbh.getReadableDataDb());
         if (c != null) {
             list = new MessageList(c, MessageDb.MESSAGE_PREVIEW_LENGTH);
         }
@@ -519,7 +861,7 @@ public class SqlStore implements Storage {
         StoredTopic st = (StoredTopic) topic.getLocal();
         MsgRange[] range = null;
         if (st != null && st.id > 0) {
-            Cursor c = MessageDb.queryDeleted(mDbh.getReadableDatabase(), st.id, hard);
+            Cursor c = MessageDb.queryDeleted(mDbh.getReadableDataDb(), st.id, hard);
             if (c != null) {
                 if (c.moveToFirst()) {
                     range = new MsgRange[c.getCount()];
@@ -534,6 +876,257 @@ public class SqlStore implements Storage {
         return range;
     }
 
+    /**
+     * Search cached messages of the current account by text.
+     *
+     * @param query search string; every word is matched as a prefix.
+     * @param topic topic to search in or null to search all topics.
+     * @param limit maximum number of hits to return.
+     * @return list of hits sorted by relevance.
+     */
+    public List<MessageSearchDb.Hit> msgSearch(String query, Topic topic, int limit) {
+        long topicId = -1;
+        if (topic != null) {
+            topicId = StoredTopic.getId(topic);
+            if (topicId <= 0) {
+                return new ArrayList<>();
+            }
+        }
+        return MessageSearchDb.search(mDbh.getReadableDataDb(), query, topicId, limit);
+    }
+
+    /**
+     * Find reference to a file with the given content, uploaded earlier by the current account.
+     *
+     * @param hash     hash of the content.
+     * @param size     size of the content in bytes.
+     * @param mimeType mime type of the content.
+     * @return reference to the file on the server or null if the file has to be uploaded.
+     */
+    public String getUploadRef(String hash, long size, String mimeType) {
+        return UploadDb.find(mDbh.getReadableDataDb(), hash, size, mimeType);
+    }
+
+    /**
+     * Check if a file of the same size and type was uploaded recently and may have the same content.
+     *
+     * @param size     size of the content in bytes.
+     * @param mimeType mime type of the content.
+     * @return true if the content hash should be checked with {@link #getUploadRef}.
+     */
+    public boolean hasSimilarUpload(long size, String mimeType) {
+        return UploadDb.hasSimilar(mDbh.getReadableDataDb(), size, mimeType);
+    }
+
+    /**
+     * Remember reference to the uploaded file so the same content is not uploaded again.
+     *
+     * @param hash     hash of the content.
+     * @param size     size of the content in bytes.
+     * @param mimeType mime type of the content.
+     * @param ref      reference to the file on the server.
+     */
+    public void saveUploadRef(String hash, long size, String mimeType, String ref) {
+        UploadDb.save(mDbh.getWritableDataDb(), hash, size, mimeType, ref);
+    }
+
+    /**
+     * Convert messages stored in legacy text format to binary format in background.
+     */
+    void upgradeStorageFormat() {
+        mMaintenance.execute(() -> {
+            long lastId = 0;
+            int batches = 0;
+            while ((lastId = MessageDb.convertLegacyFormat(mDbh.getWritableDataDb(), lastId,
+                    MessageDb.CONVERT_BATCH_SIZE)) > 0) {
+                batches++;
+            }
+            if (batches > 0) {
+                Log.i(TAG, "Converted messages to binary format in " + batches + " batches");
+            }
+        });
+    }
+
+    /**
+     * Add messages which are missing from the full-text index in background, in small batches
+     * so that other writers are not blocked for long.
+     */
+    void backfillSearchIndex() {
+        mMaintenance.execute(() -> {
+            int total = 0;
+            int count;
+            do {
+                count = MessageSearchDb.backfill(mDbh.getWritableDataDb(), MessageSearchDb.BACKFILL_BATCH_SIZE);
+                total += count;
+            } while (count > 0);
+            if (total > 0) {
+                Log.i(TAG, "Indexed " + total + " messages for search");
+            }
+        });
+    }
+
+    /**
+     * Set limits on locally cached message history. Applied on the next call to {@link #pruneMessages}.
+     */
+    public void setRetentionPolicy(RetentionPolicy policy) {
+        mRetention = policy != null ? policy : RetentionPolicy.DEFAULT;
+    }
+
+    public RetentionPolicy getRetentionPolicy() {
+        return mRetention;
+    }
+
+    /**
+     * Get a snapshot of cumulative statistics of pruning since the app start.
+     */
+    public RetentionStats getRetentionStats() {
+        synchronized (mRetentionStats) {
+            return new RetentionStats(mRetentionStats);
+        }
+    }
+
+    /**
+     * Delete old cached messages according to the retention policy and return unused space to the
+     * file system. Runs in background. Pruned ranges become missing ranges and are fetched from
+     * the server again when needed.
+     *
+     * @param tinode Tinode instance with topics to update with the new cached range; could be null.
+     */
+    public void pruneMessages(final Tinode tinode) {
+        final RetentionPolicy policy = mRetention;
+        mMaintenance.execute(() -> {
+            SQLiteDatabase db = mDbh.getWritableDataDb();
+            // Lowest seq kept in each pruned topic.
+            Map<Long, Integer> pruned = new HashMap<>();
+            int count = 0;
+            try {
+                if (policy.maxMessages > 0) {
+                    count += pruneTopics(db, MessageDb.getCutoffsByCount(db, policy.maxMessages), pruned);
+                }
+                if (policy.maxAge > 0) {
+                    long minTs = new Date().getTime() + mTimeAdjustment - policy.maxAge;
+                    count += pruneTopics(db, MessageDb.getCutoffsByAge(db, minTs), pruned);
+                }
+                if (policy.maxBytes > 0) {
+                    final long pageSize = BaseDb.getPragma(db, "page_size");
+                    while ((BaseDb.getPragma(db, "page_count") - BaseDb.getPragma(db, "freelist_count")) *
+                            pageSize > policy.maxBytes) {
+                        int batch = pruneTopics(db,
+                                MessageDb.getCutoffsOldest(db, MessageDb.PRUNE_BATCH_SIZE), pruned);
+                        if (batch == 0) {
+                            // Only the latest messages are left.
+                            break;
+                        }
+                        count += batch;
+                    }
+                }
+            } catch (SQLException ex) {
+                Log.w(TAG, "Failed to prune messages", ex);
+            }
+
+            long reclaimed = 0;
+            try {
+                reclaimed = BaseDb.vacuum(db, VACUUM_PAGES);
+            } catch (SQLException ex) {
+                Log.w(TAG, "Failed to vacuum", ex);
+            }
+
+            if (tinode != null && !pruned.isEmpty()) {
+                // The cached range is changed by the storage writer when messages are saved or deleted:
+                // update it there too.
+                final AsyncStorage store = mAsyncStore;
+                if (store != null) {
+                    store.write(s -> {
+                        applyPruned(tinode, pruned);
+                        return null;
+                    });
+                } else {
+                    applyPruned(tinode, pruned);
+                }
+            }
+
+            synchronized (mRetentionStats) {
+                mRetentionStats.runs++;
+                mRetentionStats.messagesPruned += count;
+                mRetentionStats.bytesReclaimed += reclaimed;
+                mRetentionStats.lastRun = new Date();
+            }
+            Log.i(TAG, "Pruned " + count + " messages in " + pruned.size() + " topics, reclaimed " +
+                    reclaimed + " bytes");
+        });
+    }
+
+    // Raise the lowest cached seq of loaded topics to the pruning cutoff.
+    private static void applyPruned(Tinode tinode, Map<Long, Integer> pruned) {
+        for (Topic topic : tinode.getTopics()) {
+            StoredTopic st = (StoredTopic) topic.getLocal();
+            Integer cutoff = st != null ? pruned.get(st.id) : null;
+            if (cutoff != null && st.minLocalSeq < cutoff) {
+                st.minLocalSeq = cutoff;
+            }
+        }
+    }
+
+    // Delete messages older than cutoff in each topic in small transactions so other writers are not blocked.
+    private int pruneTopics(SQLiteDatabase db, Map<Long, Integer> cutoffs, Map<Long, Integer> pruned) {
+        int total = 0;
+        for (Map.Entry<Long, Integer> entry : cutoffs.entrySet()) {
+            final long topicId = entry.getKey();
+            final int cutoff = entry.getValue();
+            int count;
+            do {
+                List<Long> deleted = new ArrayList<>();
+                db.beginTransaction();
+                try {
+                    // Mark the range as not cached before deleting messages from it.
+                    TopicDb.updateMinLocalSeq(db, topicId, cutoff);
+                    count = MessageDb.prune(db, topicId, cutoff, MessageDb.PRUNE_BATCH_SIZE, deleted);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                // After the commit, so readers do not cache the deleted messages again.
+                for (long id : deleted) {
+                    MessageCache.invalidate(id);
+                }
+                total += count;
+            } while (count == MessageDb.PRUNE_BATCH_SIZE);
+
+            // Open message windows drop the pruned messages.
+            mChanges.range(ChangeFeed.Kind.DELETED, topicId, 0, cutoff);
+
+            Integer prev = pruned.get(topicId);
+            if (prev == null || prev < cutoff) {
+                pruned.put(topicId, cutoff);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Cumulative statistics of pruning of old messages.
+     */
+    public static class RetentionStats {
+        // Number of completed pruning runs.
+        public int runs;
+        // Number of deleted messages and deletion markers.
+        public long messagesPruned;
+        // Number of bytes returned to the file system.
+        public long bytesReclaimed;
+        // Time of the last completed run.
+        public Date lastRun;
+
+        RetentionStats() {
+        }
+
+        RetentionStats(RetentionStats that) {
+            runs = that.runs;
+            messagesPruned = that.messagesPruned;
+            bytesReclaimed = that.bytesReclaimed;
+            lastRun = that.lastRun;
+        }
+    }
+
     private static class MessageList implements Iterator<Message>, Closeable {
         private final Cursor mCursor;
         private final int mPreviewLength;
@@ -45,9 +45,9 @@ public class StoredMessage extends MsgServerData implements Storage.Message {
         msg.seq = c.getInt(MessageDb.COLUMN_IDX_SEQ);
         msg.high = c.isNull(MessageDb.COLUMN_IDX_HIGH) ? 0 : c.getInt(MessageDb.COLUMN_IDX_HIGH);
         msg.delId = c.isNull(MessageDb.COLUMN_IDX_DEL_ID) ? 0 : c.getInt(MessageDb.COLUMN_IDX_DEL_ID);
-        msg.head = BaseDb.deserialize(c.getString(MessageDb.COLUMN_IDX_HEAD));
+        msg.head = BaseDb.deserializeColumn(c, MessageDb.COLUMN_IDX_HEAD);
         if (previewLength != 0) {
-            msg.content = BaseDb.deserialize(c.getString(MessageDb.COLUMN_IDX_CONTENT));
+            msg.content = BaseDb.deserializeColumn(c, MessageDb.COLUMN_IDX_CONTENT);
             if (previewLength > 0 && msg.content != null) {
                 msg.content = msg.content.preview(previewLength);
             }
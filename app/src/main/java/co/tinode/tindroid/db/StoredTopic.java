@@ -3,6 +3,8 @@ package co.tinode.tindroid.db;
 import android.database.Cursor;
 
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import co.tinode.tinodesdk.ComTopic;
 import co.tinode.tinodesdk.LocalData;
@@ -13,6 +15,9 @@ import co.tinode.tinodesdk.Topic;
  * Representation of a topic stored in a database;
  */
 public class StoredTopic implements LocalData.Payload {
+    // Number of topics with deferred fields decoded since the app start.
+    private static final AtomicLong sHydrations = new AtomicLong();
+
     public long id;
     public Date lastUsed;
     // Seq value of the earliest cached message.
@@ -20,7 +25,12 @@ public class StoredTopic implements LocalData.Payload {
     // Seq value of the latest cached message.
     public int maxLocalSeq;
     public BaseDb.Status status;
-    public int nextUnsentId;
+    // The last seq value given to an unsent message.
+    public final AtomicInteger lastUnsentSeq = new AtomicInteger();
+    // Seq values up to this one are reserved in the database. Updated while holding the lock on this.
+    volatile int reservedUnsentSeq;
+    // The allocator was checked against unsent messages in the database.
+    volatile boolean unsentSeqRecovered;
 
     public StoredTopic() {
     }
@@ -34,7 +44,7 @@ public class StoredTopic implements LocalData.Payload {
         st.lastUsed = new Date(c.getLong(TopicDb.COLUMN_IDX_LASTUSED));
         st.minLocalSeq = c.getInt(TopicDb.COLUMN_IDX_MIN_LOCAL_SEQ);
         st.maxLocalSeq = c.getInt(TopicDb.COLUMN_IDX_MAX_LOCAL_SEQ);
-        st.nextUnsentId = c.getInt(TopicDb.COLUMN_IDX_NEXT_UNSENT_SEQ);
+        st.lastUnsentSeq.set(c.getInt(TopicDb.COLUMN_IDX_NEXT_UNSENT_SEQ));
 
         topic.setUpdated(new Date(c.getLong(TopicDb.COLUMN_IDX_UPDATED)));
         topic.setTouched(st.lastUsed);
@@ -48,8 +58,6 @@ public class StoredTopic implements LocalData.Payload {
         topic.setClear(c.getInt(TopicDb.COLUMN_IDX_CLEAR));
         topic.setMaxDel(c.getInt(TopicDb.COLUMN_IDX_MAX_DEL));
 
-        topic.setTags(BaseDb.deserializeStringArray(c.getString(TopicDb.COLUMN_IDX_TAGS)));
-
         try {
             topic.setLastSeen(new Date(c.getLong(TopicDb.COLUMN_IDX_LAST_SEEN)),
                     c.getString(TopicDb.COLUMN_IDX_LAST_SEEN_UA));
@@ -60,16 +68,49 @@ public class StoredTopic implements LocalData.Payload {
         if (topic instanceof MeTopic) {
             ((MeTopic) topic).setCreds(BaseDb.deserialize(c.getString(TopicDb.COLUMN_IDX_CREDS)));
         }
-        topic.setPub(BaseDb.deserialize(c.getString(TopicDb.COLUMN_IDX_PUBLIC)));
-        topic.setTrusted(BaseDb.deserialize(c.getString(TopicDb.COLUMN_IDX_TRUSTED)));
-        topic.setPriv(BaseDb.deserialize(c.getString(TopicDb.COLUMN_IDX_PRIVATE)));
-
         topic.setAccessMode(BaseDb.deserializeMode(c.getString(TopicDb.COLUMN_IDX_ACCESSMODE)));
-        topic.setDefacs(BaseDb.deserializeDefacs(c.getString(TopicDb.COLUMN_IDX_DEFACS)));
+
+        // JSON fields are decoded when first accessed.
+        topic.setHydrator(new Deferred(c));
 
         topic.setLocal(st);
     }
 
+    // Serialized fields of the topic which are decoded on the first access.
+    private static class Deferred implements Topic.Hydrator {
+        private final String tags;
+        private final String pub;
+        private final String trusted;
+        private final String priv;
+        private final String defacs;
+
+        Deferred(Cursor c) {
+            tags = c.getString(TopicDb.COLUMN_IDX_TAGS);
+            pub = c.getString(TopicDb.COLUMN_IDX_PUBLIC);
+            trusted = c.getString(TopicDb.COLUMN_IDX_TRUSTED);
+            priv = c.getString(TopicDb.COLUMN_IDX_PRIVATE);
+            defacs = c.getString(TopicDb.COLUMN_IDX_DEFACS);
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public void hydrate(Topic topic) {
+            sHydrations.incrementAndGet();
+            topic.setTags(BaseDb.deserializeStringArray(tags));
+            topic.setPub(BaseDb.deserialize(pub));
+            topic.setTrusted(BaseDb.deserialize(trusted));
+            topic.setPriv(BaseDb.deserialize(priv));
+            topic.setDefacs(BaseDb.deserializeDefacs(defacs));
+        }
+    }
+
+    /**
+     * Number of topics loaded from the database which had their JSON fields decoded since the app start.
+     */
+    public static long getHydrations() {
+        return sHydrations.get();
+    }
+
     public static long getId(Topic topic) {
         StoredTopic st = (StoredTopic) topic.getLocal();
         return st != null ? st.id : -1;
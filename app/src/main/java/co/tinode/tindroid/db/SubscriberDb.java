@@ -4,12 +4,17 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.BaseColumns;
 import android.util.Log;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 
 import co.tinode.tinodesdk.model.LastSeen;
 import co.tinode.tinodesdk.model.Subscription;
@@ -229,8 +234,7 @@ public class SubscriberDb implements BaseColumns {
 
             updated = db.update(TABLE_NAME, values, _ID + "=" + ss.id, null);
 
-            //Log.d(TAG, "Update row, accid=" + BaseDb.getInstance().getAccountId() +
-            //        " name=" + sub.user + " returned " + updated);
+            //Log.d(TAG, "Update row, name=" + sub.user + " returned " + updated);
 
             db.setTransactionSuccessful();
 
@@ -245,6 +249,128 @@ public class SubscriberDb implements BaseColumns {
         return updated > 0;
     }
 
+    /**
+     * Save a page of subscriptions received from the server: delete, update or insert each one.
+     * Counters are merged with the stored values and never decrease. Must be called in a transaction.
+     *
+     * @return number of saved subscriptions.
+     */
+    static int upsertBatch(SQLiteDatabase db, long topicId, Collection<Subscription> subs) {
+        // Stored subscriptions of the topic: user _id -> subscription _id.
+        Map<Long, Long> existing = new HashMap<>();
+        Cursor c = db.rawQuery("SELECT " + COLUMN_NAME_USER_ID + "," + _ID + " FROM " + TABLE_NAME +
+                " WHERE " + COLUMN_NAME_TOPIC_ID + "=" + topicId, null);
+        if (c != null) {
+            while (c.moveToNext()) {
+                existing.put(c.getLong(0), c.getLong(1));
+            }
+            c.close();
+        }
+        List<String> uids = new ArrayList<>(subs.size());
+        for (Subscription sub : subs) {
+            uids.add(sub.user);
+        }
+        Map<String, Long> userIds = UserDb.getIds(db, uids);
+
+        SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_NAME + " SET " +
+                COLUMN_NAME_STATUS + "=" + BaseDb.Status.SYNCED.value + "," +
+                COLUMN_NAME_MODE + "=?," +
+                COLUMN_NAME_UPDATED + "=COALESCE(?," + COLUMN_NAME_UPDATED + ")," +
+                COLUMN_NAME_READ + "=MAX(" + COLUMN_NAME_READ + ",?)," +
+                COLUMN_NAME_RECV + "=MAX(" + COLUMN_NAME_RECV + ",?)," +
+                COLUMN_NAME_CLEAR + "=MAX(" + COLUMN_NAME_CLEAR + ",?)," +
+                COLUMN_NAME_LAST_SEEN + "=COALESCE(?," + COLUMN_NAME_LAST_SEEN + ")," +
+                COLUMN_NAME_USER_AGENT + "=COALESCE(?," + COLUMN_NAME_USER_AGENT + ")" +
+                " WHERE " + _ID + "=?");
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + TABLE_NAME + " (" +
+                COLUMN_NAME_STATUS + "," +
+                COLUMN_NAME_MODE + "," +
+                COLUMN_NAME_UPDATED + "," +
+                COLUMN_NAME_READ + "," +
+                COLUMN_NAME_RECV + "," +
+                COLUMN_NAME_CLEAR + "," +
+                COLUMN_NAME_LAST_SEEN + "," +
+                COLUMN_NAME_USER_AGENT + "," +
+                COLUMN_NAME_TOPIC_ID + "," +
+                COLUMN_NAME_USER_ID + ") VALUES (" + BaseDb.Status.SYNCED.value + ",?,?,?,?,?,?,?,?,?)");
+
+        int count = 0;
+        for (Subscription sub : subs) {
+            if (sub.user == null) {
+                continue;
+            }
+
+            Long userId = userIds.get(sub.user);
+            Long subId = userId != null ? existing.get(userId) : null;
+            if (sub.deleted != null) {
+                if (subId != null && delete(db, subId)) {
+                    existing.remove(userId);
+                    sub.setLocal(null);
+                    count++;
+                }
+                continue;
+            }
+
+            if (userId == null) {
+                userId = UserDb.insert(db, sub);
+                if (userId <= 0) {
+                    Log.w(TAG, "Failed to insert user " + sub.user);
+                    continue;
+                }
+                userIds.put(sub.user, userId);
+            } else {
+                UserDb.update(db, userId, sub.updated, sub.pub);
+            }
+
+            SQLiteStatement stmt = subId != null ? update : insert;
+            stmt.clearBindings();
+            BaseDb.bindString(stmt, 1, BaseDb.serializeMode(sub.acs));
+            if (sub.updated != null) {
+                stmt.bindLong(2, sub.updated.getTime());
+            } else if (subId == null) {
+                stmt.bindLong(2, new Date().getTime());
+            } else {
+                stmt.bindNull(2);
+            }
+            stmt.bindLong(3, sub.read);
+            stmt.bindLong(4, sub.recv);
+            stmt.bindLong(5, sub.clear);
+            if (sub.seen != null && sub.seen.when != null) {
+                stmt.bindLong(6, sub.seen.when.getTime());
+            } else {
+                stmt.bindNull(6);
+            }
+            BaseDb.bindString(stmt, 7, sub.seen != null ? sub.seen.ua : null);
+
+            if (subId != null) {
+                stmt.bindLong(8, subId);
+                if (stmt.executeUpdateDelete() <= 0) {
+                    continue;
+                }
+            } else {
+                stmt.bindLong(8, topicId);
+                stmt.bindLong(9, userId);
+                subId = stmt.executeInsert();
+                if (subId <= 0) {
+                    continue;
+                }
+                existing.put(userId, subId);
+            }
+
+            StoredSubscription ss = new StoredSubscription();
+            ss.id = subId;
+            ss.topicId = topicId;
+            ss.userId = userId;
+            ss.status = BaseDb.Status.SYNCED;
+            sub.setLocal(ss);
+            count++;
+        }
+
+        update.close();
+        insert.close();
+        return count;
+    }
+
     /**
      * Delete one subscription record
      */
@@ -355,4 +481,33 @@ public class SubscriberDb implements BaseColumns {
     static boolean updateRecv(SQLiteDatabase db, long topicId, int recv) {
         return BaseDb.updateCounter(db, TABLE_NAME, COLUMN_NAME_RECV, topicId, recv);
     }
+
+    /**
+     * Save read and recv values of subscriptions, keeping the stored values if they are greater.
+     * Must be called inside a transaction.
+     *
+     * @param subs subscriptions to save; subscriptions without a stored record are skipped.
+     * @return number of updated records.
+     */
+    static int updateReadRecvBatch(SQLiteDatabase db, Collection<Subscription> subs) {
+        SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_NAME + " SET " +
+                COLUMN_NAME_READ + "=MAX(" + COLUMN_NAME_READ + ",?)," +
+                COLUMN_NAME_RECV + "=MAX(" + COLUMN_NAME_RECV + ",?)" +
+                " WHERE " + _ID + "=? AND (" + COLUMN_NAME_READ + "<? OR " + COLUMN_NAME_RECV + "<?)");
+        int count = 0;
+        for (Subscription sub : subs) {
+            StoredSubscription ss = (StoredSubscription) sub.getLocal();
+            if (ss == null || ss.id <= 0) {
+                continue;
+            }
+            update.bindLong(1, sub.read);
+            update.bindLong(2, sub.recv);
+            update.bindLong(3, ss.id);
+            update.bindLong(4, sub.read);
+            update.bindLong(5, sub.recv);
+            count += update.executeUpdateDelete();
+        }
+        update.close();
+        return count;
+    }
 }
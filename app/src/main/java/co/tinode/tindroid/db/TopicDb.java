@@ -24,13 +24,13 @@ public class TopicDb implements BaseColumns {
      */
     public static final String TABLE_NAME = "topics";
     /**
-     * The name of index: topic by account id and topic name.
+     * The name of index: topic by topic name.
      */
-    public static final String INDEX_NAME = "topic_account_name";
+    public static final String INDEX_NAME = "topic_name";
     /**
-     * Account ID, references accounts._ID
+     * Account ID in the legacy table shared by all accounts, see {@link DataDb#importLegacy}.
      */
-    public static final String COLUMN_NAME_ACCOUNT_ID = "account_id";
+    static final String COLUMN_NAME_ACCOUNT_ID = "account_id";
     /**
      * Topic sync status: queued, synced, deleted
      */
@@ -124,38 +124,35 @@ public class TopicDb implements BaseColumns {
      */
     public static final String COLUMN_NAME_PRIVATE = "priv";
     static final int COLUMN_IDX_ID = 0;
-    // static final int COLUMN_IDX_ACCOUNT_ID = 1;
-    static final int COLUMN_IDX_STATUS = 2;
-    static final int COLUMN_IDX_TOPIC = 3;
-    // static final int COLUMN_IDX_CREATED = 4;
-    static final int COLUMN_IDX_UPDATED = 5;
-    static final int COLUMN_IDX_CHANNEL_ACCESS = 6;
-    static final int COLUMN_IDX_READ = 7;
-    static final int COLUMN_IDX_RECV = 8;
-    static final int COLUMN_IDX_SEQ = 9;
-    static final int COLUMN_IDX_CLEAR = 10;
-    static final int COLUMN_IDX_MAX_DEL = 11;
-    static final int COLUMN_IDX_ACCESSMODE = 12;
-    static final int COLUMN_IDX_DEFACS = 13;
-    static final int COLUMN_IDX_LASTUSED = 14;
-    static final int COLUMN_IDX_MIN_LOCAL_SEQ = 15;
-    static final int COLUMN_IDX_MAX_LOCAL_SEQ = 16;
-    static final int COLUMN_IDX_NEXT_UNSENT_SEQ = 17;
-    static final int COLUMN_IDX_TAGS = 18;
-    static final int COLUMN_IDX_LAST_SEEN = 19;
-    static final int COLUMN_IDX_LAST_SEEN_UA = 20;
-    static final int COLUMN_IDX_CREDS = 21;
-    static final int COLUMN_IDX_PUBLIC = 22;
-    static final int COLUMN_IDX_TRUSTED = 23;
-    static final int COLUMN_IDX_PRIVATE = 24;
+    static final int COLUMN_IDX_STATUS = 1;
+    static final int COLUMN_IDX_TOPIC = 2;
+    // static final int COLUMN_IDX_CREATED = 3;
+    static final int COLUMN_IDX_UPDATED = 4;
+    static final int COLUMN_IDX_CHANNEL_ACCESS = 5;
+    static final int COLUMN_IDX_READ = 6;
+    static final int COLUMN_IDX_RECV = 7;
+    static final int COLUMN_IDX_SEQ = 8;
+    static final int COLUMN_IDX_CLEAR = 9;
+    static final int COLUMN_IDX_MAX_DEL = 10;
+    static final int COLUMN_IDX_ACCESSMODE = 11;
+    static final int COLUMN_IDX_DEFACS = 12;
+    static final int COLUMN_IDX_LASTUSED = 13;
+    static final int COLUMN_IDX_MIN_LOCAL_SEQ = 14;
+    static final int COLUMN_IDX_MAX_LOCAL_SEQ = 15;
+    static final int COLUMN_IDX_NEXT_UNSENT_SEQ = 16;
+    static final int COLUMN_IDX_TAGS = 17;
+    static final int COLUMN_IDX_LAST_SEEN = 18;
+    static final int COLUMN_IDX_LAST_SEEN_UA = 19;
+    static final int COLUMN_IDX_CREDS = 20;
+    static final int COLUMN_IDX_PUBLIC = 21;
+    static final int COLUMN_IDX_TRUSTED = 22;
+    static final int COLUMN_IDX_PRIVATE = 23;
     /**
      * SQL statement to create Messages table
      */
     static final String CREATE_TABLE =
             "CREATE TABLE " + TABLE_NAME + " (" +
                     _ID + " INTEGER PRIMARY KEY," +
-                    COLUMN_NAME_ACCOUNT_ID
-                    + " REFERENCES " + AccountDb.TABLE_NAME + "(" + AccountDb._ID + ")," +
                     COLUMN_NAME_STATUS + " INT," +
                     COLUMN_NAME_TOPIC + " TEXT," +
                     COLUMN_NAME_CREATED + " INT," +
@@ -180,12 +177,12 @@ public class TopicDb implements BaseColumns {
                     COLUMN_NAME_TRUSTED + " TEXT," +
                     COLUMN_NAME_PRIVATE + " TEXT)";
     /**
-     * Add index on account_id-topic name, in descending order
+     * Add index on topic name
      */
     static final String CREATE_INDEX =
             "CREATE UNIQUE INDEX " + INDEX_NAME +
                     " ON " + TABLE_NAME + " (" +
-                    COLUMN_NAME_ACCOUNT_ID + "," + COLUMN_NAME_TOPIC + ")";
+                    COLUMN_NAME_TOPIC + ")";
     /**
      * SQL statement to drop the table.
      */
@@ -197,7 +194,9 @@ public class TopicDb implements BaseColumns {
     static final String DROP_INDEX =
             "DROP INDEX IF EXISTS " + INDEX_NAME;
     private static final String TAG = "TopicsDb";
-    private static final int UNSENT_ID_START = 2_000_000_000;
+    static final int UNSENT_ID_START = 2_000_000_000;
+    // Number of unsent seq values reserved in the database at once.
+    private static final int UNSENT_SEQ_BLOCK = 64;
 
     /**
      * Save topic description to DB
@@ -211,7 +210,6 @@ public class TopicDb implements BaseColumns {
         // 1414213562373L is Oct 25, 2014 05:06:02.373 UTC, incidentally equal to the first few digits of sqrt(2)
         Date lastUsed = topic.getTouched() != null ? topic.getTouched() : new Date(1414213562373L);
         ContentValues values = new ContentValues();
-        values.put(COLUMN_NAME_ACCOUNT_ID, BaseDb.getInstance().getAccountId());
         values.put(COLUMN_NAME_STATUS, status.value);
         values.put(COLUMN_NAME_TOPIC, topic.getName());
 
@@ -254,7 +252,7 @@ public class TopicDb implements BaseColumns {
             StoredTopic st = new StoredTopic();
             st.id = id;
             st.lastUsed = lastUsed;
-            st.nextUnsentId = UNSENT_ID_START;
+            st.lastUnsentSeq.set(UNSENT_ID_START);
             st.status = status;
             topic.setLocal(st);
         }
@@ -324,6 +322,49 @@ public class TopicDb implements BaseColumns {
         return updated > 0;
     }
 
+    /**
+     * Insert topic or update it if it's already stored, possibly under a record not yet linked
+     * to the topic. Used when saving topics in batches.
+     *
+     * @return true if the topic was saved.
+     */
+    static boolean upsert(SQLiteDatabase db, Topic topic) {
+        if (topic.getLocal() == null) {
+            long id = getId(db, topic.getName());
+            if (id <= 0) {
+                return insert(db, topic) > 0;
+            }
+            if (!readLocal(db, id, topic)) {
+                return false;
+            }
+        }
+        return update(db, topic);
+    }
+
+    // Link topic to the stored record: read local fields of the record with the given _id.
+    private static boolean readLocal(SQLiteDatabase db, long id, Topic topic) {
+        Cursor c = db.rawQuery("SELECT " + COLUMN_NAME_STATUS + "," + COLUMN_NAME_LASTUSED + "," +
+                COLUMN_NAME_MIN_LOCAL_SEQ + "," + COLUMN_NAME_MAX_LOCAL_SEQ + "," + COLUMN_NAME_NEXT_UNSENT_SEQ +
+                " FROM " + TABLE_NAME + " WHERE " + _ID + "=" + id, null);
+        if (c == null) {
+            return false;
+        }
+        boolean found = false;
+        if (c.moveToFirst()) {
+            StoredTopic st = new StoredTopic();
+            st.id = id;
+            st.status = BaseDb.Status.fromInt(c.getInt(0));
+            st.lastUsed = new Date(c.getLong(1));
+            st.minLocalSeq = c.getInt(2);
+            st.maxLocalSeq = c.getInt(3);
+            st.lastUnsentSeq.set(c.getInt(4));
+            topic.setLocal(st);
+            found = true;
+        }
+        c.close();
+        return found;
+    }
+
     /**
      * A message was received and stored. Update topic record with the message info
      *
@@ -445,8 +486,6 @@ public class TopicDb implements BaseColumns {
      */
     public static Cursor query(SQLiteDatabase db) {
         String sql = "SELECT * FROM " + TABLE_NAME +
-                " WHERE " +
-                COLUMN_NAME_ACCOUNT_ID + "=" + BaseDb.getInstance().getAccountId() +
                 " ORDER BY " + COLUMN_NAME_LASTUSED + " DESC";
 
         return db.rawQuery(sql, null);
@@ -477,7 +516,6 @@ public class TopicDb implements BaseColumns {
         Topic topic = null;
         String sql = "SELECT * FROM " + TABLE_NAME +
                 " WHERE " +
-                COLUMN_NAME_ACCOUNT_ID + "=" + BaseDb.getInstance().getAccountId() + " AND " +
                 COLUMN_NAME_TOPIC + "='" + name + "'";
         Cursor c = db.rawQuery(sql, null);
         if (c != null) {
@@ -501,10 +539,10 @@ public class TopicDb implements BaseColumns {
     }
 
     /**
-     * Delete all topics of the given account ID.
+     * Delete all topics of the given account ID from the legacy shared tables.
      * Also deletes subscriptions and messages.
      */
-    static void deleteAll(SQLiteDatabase db, long accId) {
+    static void deleteAllLegacy(SQLiteDatabase db, long accId) {
         // Delete messages.
         String sql = "DELETE FROM " + MessageDb.TABLE_NAME +
                 " WHERE " + MessageDb.COLUMN_NAME_TOPIC_ID + " IN (" +
@@ -531,7 +569,6 @@ public class TopicDb implements BaseColumns {
         try {
             return db.compileStatement("SELECT " + _ID + " FROM " + TABLE_NAME +
                     " WHERE " +
-                    COLUMN_NAME_ACCOUNT_ID + "=" + BaseDb.getInstance().getAccountId() + " AND " +
                     COLUMN_NAME_TOPIC + "='" + topic + "'").simpleQueryForLong();
         } catch (SQLException ignored) {
             // topic not found
@@ -539,17 +576,60 @@ public class TopicDb implements BaseColumns {
         }
     }
 
-    public static synchronized int getNextUnsentSeq(SQLiteDatabase db, Topic topic) {
+    /**
+     * Allocate a temporary seq value for an unsent message.
+     * <p>
+     * Values are allocated in memory. The database stores the upper bound of a block of reserved values,
+     * and is updated only when a block is used up. After a restart allocation continues past the stored
+     * bound and past unsent messages already in the database, so the values are never reused.
+     *
+     * @return unique seq value, greater than {@link #UNSENT_ID_START}.
+     */
+    public static int getNextUnsentSeq(SQLiteDatabase db, Topic topic) {
         StoredTopic st = (StoredTopic) topic.getLocal();
-        if (st != null) {
-            st.nextUnsentId++;
+        if (st == null) {
+            throw new IllegalArgumentException("Stored topic undefined " + topic.getName());
+        }
+
+        if (!st.unsentSeqRecovered) {
+            recoverUnsentSeq(db, st);
+        }
+
+        int seq = st.lastUnsentSeq.incrementAndGet();
+        if (seq > st.reservedUnsentSeq) {
+            reserveUnsentSeq(db, st, seq);
+        }
+        return seq;
+    }
+
+    // Start allocating after the last reserved value and after all unsent messages found in the database.
+    // The stored bound may be behind if the reservation was rolled back together with the message insert.
+    private static void recoverUnsentSeq(SQLiteDatabase db, StoredTopic st) {
+        synchronized (st) {
+            if (st.unsentSeqRecovered) {
+                return;
+            }
+            int last = Math.max(Math.max(st.lastUnsentSeq.get(), UNSENT_ID_START),
+                    MessageDb.getMaxSeq(db, st.id, UNSENT_ID_START));
+            st.lastUnsentSeq.set(last);
+            st.reservedUnsentSeq = last;
+            st.unsentSeqRecovered = true;
+        }
+    }
+
+    // Make sure seq is below the bound stored in the database: store a new bound one block ahead.
+    private static void reserveUnsentSeq(SQLiteDatabase db, StoredTopic st, int seq) {
+        synchronized (st) {
+            if (seq <= st.reservedUnsentSeq) {
+                // Reserved by a concurrent call.
+                return;
+            }
+            int bound = seq + UNSENT_SEQ_BLOCK;
             ContentValues values = new ContentValues();
-            values.put(COLUMN_NAME_NEXT_UNSENT_SEQ, st.nextUnsentId);
+            values.put(COLUMN_NAME_NEXT_UNSENT_SEQ, bound);
             db.update(TABLE_NAME, values, _ID + "=" + st.id, null);
-            return st.nextUnsentId;
+            st.reservedUnsentSeq = bound;
         }
-
-        throw new IllegalArgumentException("Stored topic undefined " + topic.getName());
     }
 
     @SuppressWarnings("WeakerAccess")
@@ -569,4 +649,12 @@ public class TopicDb implements BaseColumns {
     public static boolean updateClear(SQLiteDatabase db, long topicId, int clear) {
         return BaseDb.updateCounter(db, TABLE_NAME, COLUMN_NAME_CLEAR, topicId, clear);
     }
+
+    /**
+     * Raise the seq of the earliest cached message after older messages were pruned, so the pruned
+     * range is treated as missing and fetched from the server again when needed.
+     */
+    static boolean updateMinLocalSeq(SQLiteDatabase db, long topicId, int seq) {
+        return BaseDb.updateCounter(db, TABLE_NAME, COLUMN_NAME_MIN_LOCAL_SEQ, topicId, seq);
+    }
 }
@@ -0,0 +1,165 @@
+package co.tinode.tindroid.db;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.BaseColumns;
+import android.util.Log;
+
+/**
+ * Files uploaded out of band by the current account, by content hash.
+ * <p>
+ * When the same file is attached again, e.g. shared to several chats, the reference to the copy already
+ * on the server is reused instead of uploading the file again. The server may delete uploaded files which
+ * are no longer referenced by any message, so the references are forgotten {@link #MAX_AGE} after the upload.
+ * Reusing a reference does not extend its lifetime.
+ */
+public class UploadDb implements BaseColumns {
+    private static final String TAG = "UploadDb";
+
+    /**
+     * The name of the table.
+     */
+    static final String TABLE_NAME = "uploads";
+    /**
+     * The name of index: upload by content hash.
+     */
+    private static final String INDEX_NAME = "upload_hash";
+    /**
+     * Hash of the uploaded content, hex string.
+     */
+    private static final String COLUMN_NAME_HASH = "hash";
+    /**
+     * Size of the content in bytes.
+     */
+    private static final String COLUMN_NAME_SIZE = "size";
+    /**
+     * Mime type of the content.
+     */
+    private static final String COLUMN_NAME_MIME = "mime";
+    /**
+     * Server reference of the uploaded file.
+     */
+    private static final String COLUMN_NAME_REF = "ref";
+    /**
+     * When the file was uploaded, milliseconds.
+     */
+    private static final String COLUMN_NAME_UPLOADED = "uploaded";
+
+    /**
+     * SQL statement to create the table.
+     */
+    static final String CREATE_TABLE =
+            "CREATE TABLE " + TABLE_NAME + " (" +
+                    _ID + " INTEGER PRIMARY KEY," +
+                    COLUMN_NAME_HASH + " TEXT NOT NULL," +
+                    COLUMN_NAME_SIZE + " INT," +
+                    COLUMN_NAME_MIME + " TEXT," +
+                    COLUMN_NAME_REF + " TEXT NOT NULL," +
+                    COLUMN_NAME_UPLOADED + " INT)";
+    /**
+     * Add unique index on content hash.
+     */
+    static final String CREATE_INDEX =
+            "CREATE UNIQUE INDEX " + INDEX_NAME +
+                    " ON " + TABLE_NAME + " (" +
+                    COLUMN_NAME_HASH + ")";
+    /**
+     * SQL statement to drop the table.
+     */
+    static final String DROP_TABLE =
+            "DROP TABLE IF EXISTS " + TABLE_NAME;
+    /**
+     * Drop the index too.
+     */
+    static final String DROP_INDEX =
+            "DROP INDEX IF EXISTS " + INDEX_NAME;
+
+    /**
+     * Time after the upload when the reference to the uploaded file is forgotten: 3 days.
+     */
+    public static final long MAX_AGE = 3 * 24 * 3600 * 1000L;
+
+    // Condition on size, mime type and age of the upload.
+    private static String whereNotExpired(long size, String mimeType) {
+        return COLUMN_NAME_SIZE + "=" + size +
+                " AND " + COLUMN_NAME_MIME + (mimeType != null ? "=?" : " IS NULL") +
+                " AND " + COLUMN_NAME_UPLOADED + ">" + (System.currentTimeMillis() - MAX_AGE);
+    }
+
+    /**
+     * Find reference to an uploaded file with the given content.
+     *
+     * @param db       database to use.
+     * @param hash     hash of the content.
+     * @param size     size of the content in bytes.
+     * @param mimeType mime type of the content.
+     * @return reference to the file on the server or null if the content is not known or the reference
+     * has expired.
+     */
+    static String find(SQLiteDatabase db, String hash, long size, String mimeType) {
+        String ref = null;
+        Cursor c = db.query(TABLE_NAME, new String[]{COLUMN_NAME_REF},
+                COLUMN_NAME_HASH + "=? AND " + whereNotExpired(size, mimeType),
+                mimeType != null ? new String[]{hash, mimeType} : new String[]{hash}, null, null, null);
+        if (c != null) {
+            if (c.moveToFirst()) {
+                ref = c.getString(0);
+            }
+            c.close();
+        }
+        return ref;
+    }
+
+    /**
+     * Check if a file of the given size and type was uploaded recently, i.e. if the content hash is worth
+     * computing before the upload.
+     *
+     * @param db       database to use.
+     * @param size     size of the content in bytes.
+     * @param mimeType mime type of the content.
+     * @return true if there is an upload which has not expired yet with the same size and mime type.
+     */
+    static boolean hasSimilar(SQLiteDatabase db, long size, String mimeType) {
+        boolean found = false;
+        Cursor c = db.query(TABLE_NAME, new String[]{_ID}, whereNotExpired(size, mimeType),
+                mimeType != null ? new String[]{mimeType} : null, null, null, null, "1");
+        if (c != null) {
+            found = c.moveToFirst();
+            c.close();
+        }
+        return found;
+    }
+
+    /**
+     * Save reference to a newly uploaded file, replacing the old reference to the same content.
+     * Expired references are deleted.
+     *
+     * @param db       database to use.
+     * @param hash     hash of the content.
+     * @param size     size of the content in bytes.
+     * @param mimeType mime type of the content.
+     * @param ref      reference to the file on the server.
+     */
+    static void save(SQLiteDatabase db, String hash, long size, String mimeType, String ref) {
+        final long now = System.currentTimeMillis();
+        db.beginTransaction();
+        try {
+            db.delete(TABLE_NAME, COLUMN_NAME_UPLOADED + "<=" + (now - MAX_AGE), null);
+
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_NAME_HASH, hash);
+            values.put(COLUMN_NAME_SIZE, size);
+            values.put(COLUMN_NAME_MIME, mimeType);
+            values.put(COLUMN_NAME_REF, ref);
+            values.put(COLUMN_NAME_UPLOADED, now);
+            db.insertWithOnConflict(TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            db.setTransactionSuccessful();
+        } catch (SQLException ex) {
+            Log.w(TAG, "Failed to save upload", ex);
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
@@ -5,7 +5,12 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.provider.BaseColumns;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import co.tinode.tinodesdk.User;
 import co.tinode.tinodesdk.model.Subscription;
@@ -20,11 +25,11 @@ public class UserDb implements BaseColumns {
      */
     static final String TABLE_NAME = "users";
     /**
-     * The name of index: topic by account id and topic name.
+     * The name of index: user by UID.
      */
-    static final String INDEX_NAME = "user_account_name";
+    static final String INDEX_NAME = "user_uid";
     /**
-     * Account ID, references accounts._ID
+     * Account ID in the legacy table shared by all accounts, see {@link DataDb#importLegacy}.
      */
     static final String COLUMN_NAME_ACCOUNT_ID = "account_id";
     /**
@@ -46,30 +51,29 @@ public class UserDb implements BaseColumns {
     // Pseudo-UID for messages with null From.
     static final String UID_NULL = "none";
     static final int COLUMN_IDX_ID = 0;
-    static final int COLUMN_IDX_ACCOUNT_ID = 1;
-    static final int COLUMN_IDX_UID = 2;
-    static final int COLUMN_IDX_UPDATED = 3;
-    static final int COLUMN_IDX_DELETED = 4;
-    static final int COLUMN_IDX_PUBLIC = 5;
+    static final int COLUMN_IDX_UID = 1;
+    static final int COLUMN_IDX_UPDATED = 2;
+    static final int COLUMN_IDX_DELETED = 3;
+    static final int COLUMN_IDX_PUBLIC = 4;
+    // Maximum number of UIDs in one query: SQLite limits the number of host parameters to 999.
+    private static final int MAX_QUERY_ARGS = 500;
     /**
      * SQL statement to create Messages table
      */
     static final String CREATE_TABLE =
             "CREATE TABLE " + TABLE_NAME + " (" +
                     _ID + " INTEGER PRIMARY KEY," +
-                    COLUMN_NAME_ACCOUNT_ID
-                    + " REFERENCES " + AccountDb.TABLE_NAME + "(" + AccountDb._ID + ")," +
                     COLUMN_NAME_UID + " TEXT," +
                     COLUMN_NAME_UPDATED + " INT," +
                     COLUMN_NAME_DELETED + " INT," +
                     COLUMN_NAME_PUBLIC + " TEXT)";
     /**
-     * Add index on account_id-topic name, in descending order
+     * Add index on UID
      */
     static final String CREATE_INDEX =
             "CREATE UNIQUE INDEX " + INDEX_NAME +
                     " ON " + TABLE_NAME + " (" +
-                    COLUMN_NAME_ACCOUNT_ID + "," + COLUMN_NAME_UID + ")";
+                    COLUMN_NAME_UID + ")";
     /**
      * SQL statement to drop the table.
      */
@@ -97,7 +101,6 @@ public class UserDb implements BaseColumns {
      */
     static long insert(SQLiteDatabase db, String uid, Date updated, Object pub) {
         ContentValues values = new ContentValues();
-        values.put(COLUMN_NAME_ACCOUNT_ID, BaseDb.getInstance().getAccountId());
         values.put(COLUMN_NAME_UID, uid != null ? uid : UID_NULL);
         if (updated != null) {
             values.put(COLUMN_NAME_UPDATED, updated.getTime());
@@ -162,9 +165,83 @@ public class UserDb implements BaseColumns {
     }
 
     /**
-     * Delete all users for the given account ID.
+     * Save users: update the stored ones, insert the rest. Must be called in a transaction.
+     *
+     * @return number of saved users.
+     */
+    static int upsertBatch(SQLiteDatabase db, Collection<User> users) {
+        List<String> uids = new ArrayList<>(users.size());
+        for (User user : users) {
+            uids.add(user.uid);
+        }
+        Map<String, Long> ids = getIds(db, uids);
+        int count = 0;
+        for (User user : users) {
+            StoredUser su = (StoredUser) user.getLocal();
+            Long id = su != null && su.id > 0 ? Long.valueOf(su.id) : ids.get(user.uid);
+            if (id == null) {
+                id = insert(db, user);
+                if (id > 0) {
+                    ids.put(user.uid, id);
+                    count++;
+                }
+            } else if (update(db, id, user.updated, user.pub)) {
+                if (su == null) {
+                    su = new StoredUser();
+                    su.id = id;
+                    user.setLocal(su);
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get _id of the users with the given UIDs.
+     *
+     * @param uids UIDs to look up.
+     * @return map of UID -> _id of the users found in the database.
+     */
+    static Map<String, Long> getIds(SQLiteDatabase db, Collection<String> uids) {
+        Map<String, Long> ids = new HashMap<>();
+        List<String> batch = new ArrayList<>(Math.min(uids.size(), MAX_QUERY_ARGS));
+        for (String uid : uids) {
+            if (uid == null || ids.containsKey(uid)) {
+                continue;
+            }
+            batch.add(uid);
+            if (batch.size() == MAX_QUERY_ARGS) {
+                queryIds(db, batch, ids);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            queryIds(db, batch, ids);
+        }
+        return ids;
+    }
+
+    // Look up _id of one batch of UIDs.
+    private static void queryIds(SQLiteDatabase db, List<String> uids, Map<String, Long> ids) {
+        StringBuilder args = new StringBuilder();
+        for (int i = 0; i < uids.size(); i++) {
+            args.append(i == 0 ? "?" : ",?");
+        }
+        Cursor c = db.rawQuery("SELECT " + COLUMN_NAME_UID + "," + _ID + " FROM " + TABLE_NAME +
+                " WHERE " + COLUMN_NAME_UID + " IN (" + args + ")", uids.toArray(new String[0]));
+        if (c != null) {
+            while (c.moveToNext()) {
+                ids.put(c.getString(0), c.getLong(1));
+            }
+            c.close();
+        }
+    }
+
+    /**
+     * Delete all users for the given account ID from the legacy shared table.
      */
-    static void deleteAll(SQLiteDatabase db, long accId) {
+    static void deleteAllLegacy(SQLiteDatabase db, long accId) {
         db.delete(TABLE_NAME, COLUMN_NAME_ACCOUNT_ID + "=" + accId, null);
     }
 
@@ -181,8 +258,6 @@ public class UserDb implements BaseColumns {
                 "SELECT " + _ID +
                         " FROM " + TABLE_NAME +
                         " WHERE " +
-                        COLUMN_NAME_ACCOUNT_ID + "=" + BaseDb.getInstance().getAccountId() +
-                        " AND " +
                         COLUMN_NAME_UID + "='" + (uid != null ? uid : UID_NULL) + "'";
         // Log.d(TAG, sql);
         Cursor c = db.rawQuery(sql, null);
@@ -202,8 +277,6 @@ public class UserDb implements BaseColumns {
         String sql =
                 "SELECT * FROM " + TABLE_NAME +
                         " WHERE " +
-                        COLUMN_NAME_ACCOUNT_ID + "=" + BaseDb.getInstance().getAccountId() +
-                        " AND " +
                         COLUMN_NAME_UID + "='" + (uid != null ? uid : UID_NULL) + "'";
 
         Cursor c = db.rawQuery(sql, null);
@@ -4,7 +4,6 @@ import android.content.Context;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.graphics.Rect;
 import android.graphics.Typeface;
@@ -24,7 +23,6 @@ import android.text.style.StyleSpan;
 import android.text.style.SubscriptSpan;
 import android.text.style.TypefaceSpan;
 import android.text.style.URLSpan;
-import android.util.Base64;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.util.TypedValue;
@@ -234,54 +232,15 @@ public class FullFormatter extends AbstractDraftyFormatter<SpannableStringBuilde
         CharacterStyle span = null;
         Bitmap bmpPreview = null;
 
-        // Inline image.
+        // Inline image: usually already decoded in background.
         Object val = data.get("val");
         if (val != null) {
-            try {
-                // True if inline image is only a preview: try to use out of band image (default).
-                boolean isPreviewOnly = true;
-                // If the message is not yet sent, the bits could be raw byte[] as opposed to
-                // base64-encoded.
-                byte[] bits = (val instanceof String) ?
-                        Base64.decode((String) val, Base64.DEFAULT) : (byte[]) val;
-                bmpPreview = BitmapFactory.decodeByteArray(bits, 0, bits.length);
-                if (bmpPreview != null) {
-                    // Check if the inline bitmap is big enough to be used as primary image.
-                    int previewWidth = bmpPreview.getWidth();
-                    int previewHeight = bmpPreview.getHeight();
-                    if (scale == 0) {
-                        // If dimensions are not specified in the attachment metadata, try to use bitmap dimensions.
-                        scale = scaleBitmap(previewWidth, previewHeight, mViewport, metrics.density);
-                        if (scale != 0) {
-                            // Because sender-provided dimensions are unknown or invalid we have to use
-                            // this inline image as the primary one (out of band image is ignored).
-                            isPreviewOnly = false;
-                            scaledWidth = (int) (previewWidth * scale * metrics.density);
-                            scaledHeight = (int) (previewHeight * scale * metrics.density);
-                        }
-                    }
-
-                    Bitmap oldBmp = bmpPreview;
-                    if (scale == 0) {
-                        // Can't scale the image. There must be something wrong with it.
-                        bmpPreview = null;
-                    } else {
-                        bmpPreview = Bitmap.createScaledBitmap(bmpPreview, scaledWidth, scaledHeight, true);
-                        // Check if the image is big enough to use as the primary one (ignoring possible full-size
-                        // out-of-band image). If it's not already suitable for preview don't bother.
-                        isPreviewOnly = isPreviewOnly && previewWidth * metrics.density < scaledWidth * 0.35f;
-
-                    }
-                    oldBmp.recycle();
-                } else {
-                    Log.w(TAG, "Failed to decode preview bitmap");
-                }
-
-                if (bmpPreview != null && !isPreviewOnly) {
-                    span = new ImageSpan(ctx, bmpPreview);
-                }
-            } catch (Exception ex) {
-                Log.w(TAG, "Broken image preview", ex);
+            InlineImages.Preview preview = InlineImages.get(val, width, height, mViewport, metrics.density);
+            bmpPreview = preview.bitmap;
+            scaledWidth = preview.width;
+            scaledHeight = preview.height;
+            if (bmpPreview != null && !preview.previewOnly) {
+                span = new ImageSpan(ctx, bmpPreview);
             }
         }
 
@@ -0,0 +1,239 @@
+package co.tinode.tindroid.format;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.util.Base64;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import co.tinode.tindroid.media.BitmapCache;
+import co.tinode.tinodesdk.model.Drafty;
+
+/**
+ * Inline images of messages decoded and scaled to the size of the message bubble.
+ * <p>
+ * Decoding and scaling of inline images is the most expensive part of formatting a message. Images
+ * are decoded in background when a page of messages is loaded, see {@link #prepare(Drafty, int, float)},
+ * and {@link FullFormatter} only wraps the ready bitmap into a span when the message is shown.
+ * <p>
+ * Images are keyed by a hash of the inline data and by the viewport width, so the same image is found
+ * again after the message is decoded anew and the cache does not hold on to the source data. Bitmaps
+ * themselves are shared with other users of {@link BitmapCache}.
+ */
+public class InlineImages {
+    private static final String TAG = "InlineImages";
+
+    // Share of the app memory used for decoded images.
+    private static final int MEMORY_FRACTION = 16;
+    // Approximate size of the key and the preview objects in bytes.
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private static final LruCache<Key, Preview> sCache =
+            new LruCache<Key, Preview>((int) (Runtime.getRuntime().maxMemory() / MEMORY_FRACTION)) {
+                @Override
+                protected int sizeOf(Key key, Preview value) {
+                    // Failures are cached too so broken images are not decoded over and over.
+                    return ENTRY_OVERHEAD + (value.bitmap != null ? value.bitmap.getByteCount() : 0);
+                }
+            };
+
+    /**
+     * Get inline image scaled to fit the viewport, decoding it if necessary.
+     *
+     * @param val      inline image bits: base64-encoded string or raw byte[] of unsent messages.
+     * @param width    width of the image specified by the sender.
+     * @param height   height of the image specified by the sender.
+     * @param viewport maximum width of the container in pixels.
+     * @param density  display density.
+     * @return decoded image; the bitmap is null if the image cannot be decoded.
+     */
+    static Preview get(Object val, int width, int height, int viewport, float density) {
+        Key key = new Key(val, viewport);
+        Preview preview = sCache.get(key);
+        if (preview == null) {
+            preview = decode(val, width, height, viewport, density);
+            sCache.put(key, preview);
+        }
+        return preview;
+    }
+
+    /**
+     * Decode inline images of the message which are not cached yet. Should be called in background.
+     * Images in quotes are skipped: they are shown as small thumbnails.
+     *
+     * @param content  content of the message.
+     * @param viewport maximum width of the message bubble in pixels.
+     * @param density  display density.
+     */
+    public static void prepare(Drafty content, int viewport, float density) {
+        if (content == null || content.fmt == null || content.ent == null || viewport <= 0) {
+            return;
+        }
+
+        List<Drafty.Style> quotes = new ArrayList<>();
+        for (Drafty.Style st : content.fmt) {
+            if ("QQ".equals(st.tp)) {
+                quotes.add(st);
+            }
+        }
+
+        for (Drafty.Style st : content.fmt) {
+            if (st.tp != null || st.key == null || st.key < 0 || st.key >= content.ent.length) {
+                continue;
+            }
+            Drafty.Entity ent = content.ent[st.key];
+            if (ent == null || !"IM".equals(ent.tp) || ent.data == null || isQuoted(st, quotes)) {
+                continue;
+            }
+            Object val = ent.data.get("val");
+            if (val != null) {
+                get(val, intValue(ent.data, "width"), intValue(ent.data, "height"), viewport, density);
+            }
+        }
+    }
+
+    /**
+     * Release memory as requested by the system, see {@link BitmapCache#trimMemory(int)}.
+     */
+    public static void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE ||
+                level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            sCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND ||
+                level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            sCache.trimToSize(sCache.size() / 2);
+        }
+    }
+
+    private static boolean isQuoted(Drafty.Style st, List<Drafty.Style> quotes) {
+        for (Drafty.Style qq : quotes) {
+            if (st.at >= qq.at && st.at + st.len <= qq.at + qq.len) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int intValue(Map<String, Object> data, String name) {
+        Object tmp = data.get(name);
+        return tmp instanceof Number ? ((Number) tmp).intValue() : 0;
+    }
+
+    private static Preview decode(Object val, int width, int height, int viewport, float density) {
+        // Bitmap dimensions specified by the sender converted to viewport size in display pixels.
+        float scale = FullFormatter.scaleBitmap(width, height, viewport, density);
+        int scaledWidth = 0, scaledHeight = 0;
+        if (scale > 0) {
+            scaledWidth = (int) (width * scale * density);
+            scaledHeight = (int) (height * scale * density);
+        }
+
+        // True if inline image is only a preview: try to use out of band image (default).
+        boolean isPreviewOnly = true;
+        Bitmap bmpPreview = null;
+        try {
+            // If the message is not yet sent, the bits could be raw byte[] as opposed to
+            // base64-encoded.
+            byte[] bits = (val instanceof String) ?
+                    Base64.decode((String) val, Base64.DEFAULT) : (byte[]) val;
+            int[] dim = BitmapCache.getDimensions(bits);
+            if (dim != null) {
+                // Check if the inline bitmap is big enough to be used as primary image.
+                int previewWidth = dim[0];
+                int previewHeight = dim[1];
+                if (scale == 0) {
+                    // If dimensions are not specified in the attachment metadata, try to use bitmap dimensions.
+                    scale = FullFormatter.scaleBitmap(previewWidth, previewHeight, viewport, density);
+                    if (scale != 0) {
+                        // Because sender-provided dimensions are unknown or invalid we have to use
+                        // this inline image as the primary one (out of band image is ignored).
+                        isPreviewOnly = false;
+                        scaledWidth = (int) (previewWidth * scale * density);
+                        scaledHeight = (int) (previewHeight * scale * density);
+                    }
+                }
+
+                // If scale is 0, the image can't be scaled. There must be something wrong with it.
+                if (scale != 0) {
+                    bmpPreview = BitmapCache.getScaled(bits, scaledWidth, scaledHeight);
+                    // Check if the image is big enough to use as the primary one (ignoring possible full-size
+                    // out-of-band image). If it's not already suitable for preview don't bother.
+                    isPreviewOnly = isPreviewOnly && previewWidth * density < scaledWidth * 0.35f;
+                }
+            } else {
+                Log.w(TAG, "Failed to decode preview bitmap");
+            }
+        } catch (Exception ex) {
+            Log.w(TAG, "Broken image preview", ex);
+        }
+
+        return new Preview(bmpPreview, scaledWidth, scaledHeight, isPreviewOnly);
+    }
+
+    /**
+     * Decoded inline image. Bitmaps are shared between spans and must not be modified or recycled.
+     */
+    static class Preview {
+        // Scaled bitmap or null if the image cannot be decoded.
+        final Bitmap bitmap;
+        // Dimensions of the image in the viewport.
+        final int width;
+        final int height;
+        // True if the bitmap is too small and should be replaced with the out of band image.
+        final boolean previewOnly;
+
+        Preview(Bitmap bitmap, int width, int height, boolean previewOnly) {
+            this.bitmap = bitmap;
+            this.width = width;
+            this.height = height;
+            this.previewOnly = previewOnly;
+        }
+    }
+
+    // Inline data is identified by its length and a 64-bit FNV-1a hash. Hashing is much cheaper than
+    // decoding, and the key does not keep a reference to the data.
+    private static class Key {
+        final long hash;
+        final int length;
+        final int viewport;
+
+        Key(Object val, int viewport) {
+            long h = 0xcbf29ce484222325L;
+            int length = 0;
+            if (val instanceof String) {
+                String str = (String) val;
+                length = str.length();
+                for (int i = 0; i < length; i++) {
+                    h = (h ^ str.charAt(i)) * 0x100000001b3L;
+                }
+            } else if (val instanceof byte[]) {
+                byte[] bits = (byte[]) val;
+                length = bits.length;
+                for (byte b : bits) {
+                    h = (h ^ (b & 0xff)) * 0x100000001b3L;
+                }
+            }
+            this.hash = h;
+            this.length = length;
+            this.viewport = viewport;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) o;
+            return hash == that.hash && length == that.length && viewport == that.viewport;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (hash ^ (hash >>> 32)) * 31 + viewport;
+        }
+    }
+}
@@ -4,7 +4,6 @@ import android.content.Context;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.RectF;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
@@ -24,6 +23,7 @@ import androidx.appcompat.content.res.AppCompatResources;
 import co.tinode.tindroid.Cache;
 import co.tinode.tindroid.R;
 import co.tinode.tindroid.UiUtils;
+import co.tinode.tindroid.media.BitmapCache;
 
 // Display quoted content.
 public class QuoteFormatter extends PreviewFormatter {
@@ -99,9 +99,9 @@ public class QuoteFormatter extends PreviewFormatter {
                 // base64-encoded.
                 byte[] bits = (val instanceof String) ?
                         Base64.decode((String) val, Base64.DEFAULT) : (byte[]) val;
-                Bitmap bmp = BitmapFactory.decodeByteArray(bits, 0, bits.length);
+                Bitmap bmp = BitmapCache.getSquare(bits, size);
                 if (bmp != null) {
-                    thumbnail = new BitmapDrawable(res, UiUtils.scaleSquareBitmap(bmp, size));
+                    thumbnail = new BitmapDrawable(res, bmp);
                     thumbnail.setBounds(0, 0, size, size);
                     span = new StyledImageSpan(thumbnail,
                             new RectF(IMAGE_PADDING * metrics.density,
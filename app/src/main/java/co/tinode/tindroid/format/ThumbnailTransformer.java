@@ -1,7 +1,6 @@
 package co.tinode.tindroid.format;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.drawable.Drawable;
 import android.util.Base64;
 
@@ -13,6 +12,7 @@ import java.util.List;
 
 import co.tinode.tindroid.Cache;
 import co.tinode.tindroid.UiUtils;
+import co.tinode.tindroid.media.BitmapCache;
 import co.tinode.tinodesdk.PromisedReply;
 import co.tinode.tinodesdk.model.Drafty;
 
@@ -42,9 +42,10 @@ public class ThumbnailTransformer implements Drafty.Transformer {
         if ((val = node.getData("val")) != null) {
             // Inline image.
             try {
-                byte[] bits = Base64.decode((String) val, Base64.DEFAULT);
-                Bitmap bmp = BitmapFactory.decodeByteArray(bits, 0, bits.length);
-                bmp = UiUtils.scaleSquareBitmap(bmp, UiUtils.REPLY_THUMBNAIL_DIM);
+                // Messages stored in binary format keep the bits as raw byte[] as opposed to base64-encoded.
+                byte[] bits = (val instanceof String) ?
+                        Base64.decode((String) val, Base64.DEFAULT) : (byte[]) val;
+                Bitmap bmp = BitmapCache.getSquare(bits, UiUtils.REPLY_THUMBNAIL_DIM);
                 bits = UiUtils.bitmapToBytes(bmp, "image/jpeg");
                 node.putData("val", Base64.encodeToString(bits, Base64.NO_WRAP));
                 node.putData("size", bits.length);
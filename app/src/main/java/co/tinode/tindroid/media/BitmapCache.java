@@ -0,0 +1,211 @@
+package co.tinode.tindroid.media;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Base64;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.Nullable;
+import co.tinode.tindroid.UiUtils;
+
+/**
+ * App-wide cache of bitmaps decoded from in-band image data: avatars, inline images and reply thumbnails.
+ * <p>
+ * Bitmaps are keyed by the hash of the encoded bits and the target size, so the same avatar is decoded
+ * once no matter how many topics, rows and notifications show it. Images are sampled down while decoding
+ * so the full-size bitmap is never allocated for a small target.
+ * <p>
+ * Bitmaps are shared: callers must not modify or recycle them.
+ */
+public class BitmapCache {
+    private static final String TAG = "BitmapCache";
+
+    // Share of the app memory used for cached bitmaps.
+    private static final int MEMORY_FRACTION = 8;
+
+    private static final LruCache<String, Bitmap> sCache =
+            new LruCache<String, Bitmap>((int) (Runtime.getRuntime().maxMemory() / MEMORY_FRACTION)) {
+                @Override
+                protected int sizeOf(String key, Bitmap value) {
+                    return value.getByteCount();
+                }
+            };
+    private static final AtomicLong sHits = new AtomicLong();
+    private static final AtomicLong sMisses = new AtomicLong();
+
+    /**
+     * Get square bitmap no larger than the given size, cropped from the middle of the image,
+     * like {@link UiUtils#scaleSquareBitmap(Bitmap, int)}.
+     *
+     * @param bits encoded image.
+     * @param size maximum linear size of the bitmap in pixels.
+     * @return decoded bitmap or null if the image cannot be decoded.
+     */
+    @Nullable
+    public static Bitmap getSquare(byte[] bits, int size) {
+        if (bits == null || bits.length == 0) {
+            return null;
+        }
+
+        String key = key(bits, "sq", size, size);
+        Bitmap bmp = sCache.get(key);
+        if (bmp != null) {
+            sHits.incrementAndGet();
+            return bmp;
+        }
+
+        sMisses.incrementAndGet();
+        Bitmap decoded = decodeSampled(bits, size, size, true);
+        if (decoded == null) {
+            return null;
+        }
+        bmp = UiUtils.scaleSquareBitmap(decoded, size);
+        // The same object is returned if no scaling or cropping is required.
+        if (bmp != decoded) {
+            decoded.recycle();
+        }
+        sCache.put(key, bmp);
+        return bmp;
+    }
+
+    /**
+     * Get bitmap scaled to the exact given dimensions.
+     *
+     * @param bits   encoded image.
+     * @param width  width of the bitmap in pixels.
+     * @param height height of the bitmap in pixels.
+     * @return decoded bitmap or null if the image cannot be decoded.
+     */
+    @Nullable
+    public static Bitmap getScaled(byte[] bits, int width, int height) {
+        if (bits == null || bits.length == 0 || width <= 0 || height <= 0) {
+            return null;
+        }
+
+        String key = key(bits, "sc", width, height);
+        Bitmap bmp = sCache.get(key);
+        if (bmp != null) {
+            sHits.incrementAndGet();
+            return bmp;
+        }
+
+        sMisses.incrementAndGet();
+        Bitmap decoded = decodeSampled(bits, width, height, false);
+        if (decoded == null) {
+            return null;
+        }
+        bmp = Bitmap.createScaledBitmap(decoded, width, height, true);
+        // The same object is returned if no scaling is required.
+        if (bmp != decoded) {
+            decoded.recycle();
+        }
+        sCache.put(key, bmp);
+        return bmp;
+    }
+
+    /**
+     * Read dimensions of the encoded image without decoding it.
+     *
+     * @param bits encoded image.
+     * @return array with width and height or null if the image cannot be decoded.
+     */
+    @Nullable
+    public static int[] getDimensions(byte[] bits) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bits, 0, bits.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        return new int[]{options.outWidth, options.outHeight};
+    }
+
+    /**
+     * Release memory as requested by the system, see {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public static void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE ||
+                level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            sCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND ||
+                level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            sCache.trimToSize(sCache.size() / 2);
+        }
+    }
+
+    /**
+     * Number of bitmaps found in cache since the app start.
+     */
+    public static long getHits() {
+        return sHits.get();
+    }
+
+    /**
+     * Number of bitmaps which had to be decoded since the app start.
+     */
+    public static long getMisses() {
+        return sMisses.get();
+    }
+
+    /**
+     * Share of requests served from cache, between 0 and 1.
+     */
+    public static float getHitRate() {
+        long hits = sHits.get();
+        long total = hits + sMisses.get();
+        return total > 0 ? (float) hits / total : 0f;
+    }
+
+    // Decode the image sampled down by a power of two while it remains larger than the target.
+    // If crop is true, only the smaller dimension has to cover the target.
+    private static Bitmap decodeSampled(byte[] bits, int width, int height, boolean crop) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bits, 0, bits.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            Log.w(TAG, "Failed to decode bitmap");
+            return null;
+        }
+
+        int sample = 1;
+        if (crop) {
+            int smaller = Math.min(options.outWidth, options.outHeight);
+            while (smaller / (sample * 2) >= width) {
+                sample *= 2;
+            }
+        } else {
+            while (options.outWidth / (sample * 2) >= width && options.outHeight / (sample * 2) >= height) {
+                sample *= 2;
+            }
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sample;
+        try {
+            return BitmapFactory.decodeByteArray(bits, 0, bits.length, options);
+        } catch (OutOfMemoryError ex) {
+            Log.w(TAG, "Out of memory while decoding bitmap");
+            return null;
+        }
+    }
+
+    // Hash of the image bits and the target size.
+    private static String key(byte[] bits, String kind, int width, int height) {
+        String hash;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            hash = Base64.encodeToString(md.digest(bits), Base64.NO_WRAP);
+        } catch (NoSuchAlgorithmException ignored) {
+            // SHA-256 is always available.
+            hash = bits.length + "/" + Arrays.hashCode(bits);
+        }
+        return hash + ":" + kind + ":" + width + "x" + height;
+    }
+}
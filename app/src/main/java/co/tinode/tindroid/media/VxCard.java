@@ -1,7 +1,6 @@
 package co.tinode.tindroid.media;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
@@ -78,16 +77,8 @@ public class VxCard extends TheCard {
 
     public void constructBitmap() {
         if (photo != null && photo.data != null) {
-            Bitmap bmp = BitmapFactory.decodeByteArray(photo.data, 0, photo.data.length);
-            if (bmp != null) {
-                mImage = UiUtils.scaleSquareBitmap(bmp, UiUtils.MAX_AVATAR_SIZE);
-                // createScaledBitmap may return the same object if scaling is not required.
-                if (bmp != mImage) {
-                    bmp.recycle();
-                }
-            } else {
-                mImage = null;
-            }
+            // The same avatar is shown by many topics and notifications: decode it once.
+            mImage = BitmapCache.getSquare(photo.data, UiUtils.MAX_AVATAR_SIZE);
         }
     }
 
@@ -0,0 +1,280 @@
+package co.tinode.tinodesdk;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import co.tinode.tinodesdk.model.MsgRange;
+import co.tinode.tinodesdk.model.MsgServerData;
+import co.tinode.tinodesdk.model.Subscription;
+
+/**
+ * Asynchronous facade for {@link Storage}. Calls are executed in background and their results
+ * are delivered through {@link PromisedReply}, so network and UI threads never wait for the disk.
+ * <p>
+ * All writes are executed one at a time on a single thread in the order they were submitted.
+ * Reads are executed concurrently on a small pool and do not wait for pending writes: a read which
+ * must observe earlier writes should be submitted with {@link #write(Call)} instead. Listener callbacks
+ * which must follow earlier writes are chained to {@link #flush()}.
+ * <p>
+ * Handlers attached to the returned promises are called on the storage thread. They must not block.
+ * <p>
+ * Read and recv notifications from other users are not written one by one: changed subscriptions are
+ * collected and saved in one batch every {@link #RECEIPT_FLUSH_DELAY} ms or on {@link #flushReceipts()}.
+ * Subscriptions in memory always have the latest values.
+ */
+public class AsyncStorage {
+    private static final String TAG = "AsyncStorage";
+
+    // Number of threads to execute reads.
+    private static final int READER_THREADS = 2;
+    // Delay in milliseconds before saving read and recv notifications received from other users.
+    public static final long RECEIPT_FLUSH_DELAY = 2_000;
+
+    private final Storage mStore;
+    private final ExecutorService mWriter;
+    private final ExecutorService mReaders;
+    // Schedules delayed flushes of receipts. The flush itself is executed by the writer.
+    private final ScheduledExecutorService mTimer;
+
+    // Subscriptions with read or recv changed since the last flush. Guarded by mPendingReceipts.
+    private final Set<Subscription> mPendingReceipts = Collections.newSetFromMap(new IdentityHashMap<>());
+    // A flush is scheduled.
+    private boolean mReceiptFlushScheduled = false;
+
+    public AsyncStorage(Storage store) {
+        mStore = store;
+        mWriter = Executors.newSingleThreadExecutor(new NamedThreadFactory("storage-writer"));
+        mReaders = Executors.newFixedThreadPool(READER_THREADS, new NamedThreadFactory("storage-reader"));
+        mTimer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("storage-timer"));
+    }
+
+    /**
+     * Get the underlying synchronous storage.
+     */
+    public Storage getStore() {
+        return mStore;
+    }
+
+    /**
+     * Queue a call which modifies the storage. Calls are executed sequentially in the order of submission.
+     *
+     * @param call operation to execute.
+     * @param <T>  type of the result.
+     * @return promise resolved with the result of the call or rejected with the exception thrown by it.
+     */
+    public <T> PromisedReply<T> write(Call<T> call) {
+        return submit(mWriter, call);
+    }
+
+    /**
+     * Execute a read-only call in background.
+     *
+     * @param call operation to execute.
+     * @param <T>  type of the result.
+     * @return promise resolved with the result of the call or rejected with the exception thrown by it.
+     */
+    public <T> PromisedReply<T> read(Call<T> call) {
+        return submit(mReaders, call);
+    }
+
+    /**
+     * Get a promise which is resolved when all writes submitted so far are completed.
+     */
+    public PromisedReply<Void> flush() {
+        return write(store -> null);
+    }
+
+    /**
+     * Get a promise which is resolved when all reads and writes submitted so far are completed,
+     * e.g. before the underlying database is closed.
+     */
+    public PromisedReply<Void> drain() {
+        // Each reader thread takes one barrier, so all barriers are taken only after the earlier reads are done.
+        final CountDownLatch readers = new CountDownLatch(READER_THREADS);
+        for (int i = 0; i < READER_THREADS; i++) {
+            mReaders.execute(() -> {
+                readers.countDown();
+                try {
+                    readers.await();
+                } catch (InterruptedException ignored) {
+                }
+            });
+        }
+        return write(store -> {
+            readers.await();
+            return null;
+        });
+    }
+
+    // Asynchronous versions of the Storage calls used on the hot paths.
+
+    public PromisedReply<Boolean> topicUpdate(final Topic topic) {
+        return write(store -> store.topicUpdate(topic));
+    }
+
+    public PromisedReply<Integer> topicUpsertBatch(final Collection<Topic> topics) {
+        return write(store -> store.topicUpsertBatch(topics));
+    }
+
+    public PromisedReply<Integer> subUpsertBatch(final Topic topic, final Collection<Subscription> subs) {
+        return write(store -> store.subUpsertBatch(topic, subs));
+    }
+
+    public PromisedReply<Long> subAdd(final Topic topic, final Subscription sub) {
+        return write(store -> store.subAdd(topic, sub));
+    }
+
+    public PromisedReply<Long> subNew(final Topic topic, final Subscription sub) {
+        return write(store -> store.subNew(topic, sub));
+    }
+
+    public PromisedReply<Boolean> subUpdate(final Topic topic, final Subscription sub) {
+        return write(store -> store.subUpdate(topic, sub));
+    }
+
+    public PromisedReply<Boolean> subDelete(final Topic topic, final Subscription sub) {
+        return write(store -> store.subDelete(topic, sub));
+    }
+
+    public PromisedReply<User> userGet(final String uid) {
+        return read(store -> store.userGet(uid));
+    }
+
+    public PromisedReply<Long> userAdd(final User user) {
+        return write(store -> store.userAdd(user));
+    }
+
+    public PromisedReply<Boolean> userUpdate(final User user) {
+        return write(store -> store.userUpdate(user));
+    }
+
+    public PromisedReply<Integer> userUpsertBatch(final Collection<User> users) {
+        return write(store -> store.userUpsertBatch(users));
+    }
+
+    public PromisedReply<Storage.Message> msgReceived(final Topic topic, final Subscription sub,
+                                                     final MsgServerData msg) {
+        return write(store -> store.msgReceived(topic, sub, msg));
+    }
+
+    public PromisedReply<Boolean> msgDelete(final Topic topic, final int delId, final int fromId, final int toId) {
+        return write(store -> store.msgDelete(topic, delId, fromId, toId));
+    }
+
+    public PromisedReply<Boolean> msgDelete(final Topic topic, final int delId, final MsgRange[] ranges) {
+        return write(store -> store.msgDelete(topic, delId, ranges));
+    }
+
+    public PromisedReply<Boolean> msgRecvByRemote(final Subscription sub, final int recv) {
+        return write(store -> store.msgRecvByRemote(sub, recv));
+    }
+
+    public PromisedReply<Boolean> msgReadByRemote(final Subscription sub, final int read) {
+        return write(store -> store.msgReadByRemote(sub, read));
+    }
+
+    /**
+     * Queue saving of read and recv values of a remote subscription. The values are read from the
+     * subscription at the time of the flush, so repeated notifications cost nothing until then.
+     *
+     * @param sub subscription with updated read or recv.
+     */
+    public void readRecvByRemote(final Subscription sub) {
+        synchronized (mPendingReceipts) {
+            mPendingReceipts.add(sub);
+            if (mReceiptFlushScheduled) {
+                return;
+            }
+            mReceiptFlushScheduled = true;
+        }
+        mTimer.schedule(this::flushReceipts, RECEIPT_FLUSH_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Save all pending read and recv notifications now.
+     *
+     * @return promise resolved with the number of updated subscriptions.
+     */
+    public PromisedReply<Integer> flushReceipts() {
+        final Collection<Subscription> subs;
+        synchronized (mPendingReceipts) {
+            mReceiptFlushScheduled = false;
+            if (mPendingReceipts.isEmpty()) {
+                return new PromisedReply<>(0);
+            }
+            subs = new ArrayList<>(mPendingReceipts);
+            mPendingReceipts.clear();
+        }
+        return write(store -> store.subReadRecvBatch(subs));
+    }
+
+    public PromisedReply<Boolean> setRead(final Topic topic, final int read) {
+        return write(store -> store.setRead(topic, read));
+    }
+
+    public PromisedReply<Boolean> setRecv(final Topic topic, final int recv) {
+        return write(store -> store.setRecv(topic, recv));
+    }
+
+    private <T> PromisedReply<T> submit(ExecutorService executor, final Call<T> call) {
+        final PromisedReply<T> result = new PromisedReply<>();
+        executor.execute(() -> {
+            T value;
+            try {
+                value = call.call(mStore);
+            } catch (Exception ex) {
+                Log.w(TAG, "Storage call failed", ex);
+                try {
+                    result.reject(ex);
+                } catch (Exception ignored) {
+                }
+                return;
+            }
+
+            try {
+                result.resolve(value);
+            } catch (Exception ex) {
+                Log.w(TAG, "Storage result handler failed", ex);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Operation on storage.
+     *
+     * @param <T> type of the result.
+     */
+    public interface Call<T> {
+        T call(Storage store) throws Exception;
+    }
+
+    // Creates daemon threads so the pending storage operations do not prevent the process from exiting.
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, mName + "-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -37,6 +37,7 @@ public class ComTopic<DP extends TheCard> extends Topic<DP,PrivateType,DP,Privat
      */
     public PromisedReply<ServerMessage> subscribe() {
         if (isNew()) {
+            hydrate();
             MetaSetDesc<DP, PrivateType> desc = new MetaSetDesc<>(mDesc.pub, mDesc.priv);
             if (mDesc.pub != null && mDesc.pub.isPhotoRef()) {
                 desc.attachments = mDesc.pub.getPhotoRefs();
@@ -12,14 +12,31 @@ import org.jetbrains.annotations.Nullable;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import co.tinode.tinodesdk.model.MsgServerCtrl;
 import co.tinode.tinodesdk.model.ServerMessage;
@@ -30,27 +47,61 @@ public class LargeFileHelper {
     private static final String BOUNDARY = "*****" + System.currentTimeMillis() + "*****";
     private static final String LINE_END = "\r\n";
 
+    // Size of one chunk of a resumable upload.
+    static final int CHUNK_SIZE = 1 << 19;
+    // Number of attempts to send one chunk before giving up. The session remains valid and the upload
+    // can be resumed later.
+    private static final int MAX_CHUNK_ATTEMPTS = 3;
+    // Sessions older than this are not resumed, milliseconds.
+    public static final long SESSION_MAX_AGE = 24 * 3600 * 1000L;
+    // 'Resume Incomplete': the chunk was accepted, more data is expected.
+    private static final int HTTP_RESUME_INCOMPLETE = 308;
+    // Chunk checksum did not match the data received by the server.
+    private static final int HTTP_CHECKSUM_MISMATCH = 422;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    // Downloads are split into segments no smaller than this.
+    static final int MIN_SEGMENT_SIZE = 1 << 20;
+    // Maximum number of segments downloaded in parallel.
+    static final int MAX_SEGMENTS = 4;
+    // Number of attempts to download one segment before giving up. The download can be resumed later.
+    private static final int MAX_SEGMENT_ATTEMPTS = 3;
+    // How often the state of a download is saved, bytes per segment.
+    private static final int STATE_SAVE_INTERVAL = 1 << 18;
+    // Maximum size of unread response to skip in order to reuse the connection.
+    private static final int MAX_DRAIN_SIZE = 1 << 16;
+
     private final URL mUrlUpload;
     private final String mHost;
     private final String mApiKey;
     private final String mAuthToken;
     private final String mUserAgent;
+    // Storage of resumable upload sessions; resumable uploads are disabled if null.
+    private final SessionStore mSessions;
 
-    private boolean mCanceled = false;
+    private volatile boolean mCanceled = false;
+    // Number of bytes of file data sent or received.
+    private final AtomicLong mBytesTransferred = new AtomicLong();
 
     public LargeFileHelper(URL urlUpload, String apikey, String authToken, String userAgent) {
+        this(urlUpload, apikey, authToken, userAgent, null);
+    }
+
+    public LargeFileHelper(URL urlUpload, String apikey, String authToken, String userAgent,
+                           @Nullable SessionStore sessions) {
         mUrlUpload = urlUpload;
         mHost = mUrlUpload.getHost();
         mApiKey = apikey;
         mAuthToken = authToken;
         mUserAgent = userAgent;
+        mSessions = sessions;
     }
 
     // Upload file out of band. This should not be called on the UI thread.
     public ServerMessage upload(@NotNull InputStream in, @NotNull String filename, @NotNull String mimetype, long size,
                                 @Nullable FileHelperProgress progress) throws IOException, CancellationException {
-        mCanceled = false;
         HttpURLConnection conn = null;
+        boolean responded = false;
         ServerMessage msg;
         try {
             conn = (HttpURLConnection) mUrlUpload.openConnection();
@@ -80,44 +131,129 @@ public class LargeFileHelper {
             out.flush();
             out.close();
 
-            if (conn.getResponseCode() != 200) {
-                throw new IOException("Failed to upload: " + conn.getResponseMessage() +
-                        " (" + conn.getResponseCode() + ")");
+            int code = conn.getResponseCode();
+            responded = true;
+            if (code != 200) {
+                throw new IOException("Failed to upload: " + conn.getResponseMessage() + " (" + code + ")");
             }
 
             InputStream resp = new BufferedInputStream(conn.getInputStream());
             msg = readServerResponse(resp);
             resp.close();
         } finally {
-            if (conn != null) {
-                conn.disconnect();
-            }
+            release(conn, responded);
         }
         return msg;
     }
 
-    // Uploads the file using Runnable, returns PromisedReply. Safe to call on UI thread.
-    public PromisedReply<ServerMessage> uploadFuture(final InputStream in,
-                                                     final String filename,
-                                                     final String mimetype,
-                                                     final long size,
-                                                     final FileHelperProgress progress) {
-        final PromisedReply<ServerMessage> result = new PromisedReply<>();
-        new Thread(() -> {
-            try {
-                ServerMessage msg = upload(in, filename, mimetype, size, progress);
-                if (mCanceled) {
-                    throw new CancellationException("Cancelled");
-                }
-                result.resolve(msg);
-            } catch (Exception ex) {
+    /**
+     * Upload file out of band in chunks so an interrupted upload can be continued from the last chunk
+     * received by the server instead of from the beginning. Falls back to the one-shot {@link #upload}
+     * if the helper has no {@link SessionStore} or the file fits into one chunk. {@link Tinode#getFileUploader()}
+     * gives the helper a session store only if the server has advertised {@link Tinode#RESUMABLE_UPLOADS},
+     * so servers without the protocol never receive the session request.
+     * <p>
+     * The server is asked to start a session by a POST with an empty body and the 'X-Tinode-Upload: resumable'
+     * header; it responds with 201 and the URL of the session in 'Location'. Each chunk is sent by a PUT to
+     * the session URL with 'Content-Range' and the SHA-256 of the chunk in 'X-Tinode-Checksum'. The server
+     * responds with 308 and the 'Range' received so far or, after the last chunk, with 200 and the usual
+     * {ctrl} message. A PUT without data and 'Content-Range: bytes &#42;/size' queries the session state.
+     * <p>
+     * Session state is saved to the {@link SessionStore} after every chunk, so the upload survives restarts
+     * of the process. The session is kept if the upload fails or is canceled, e.g. because the worker was
+     * stopped when the network was lost. This should not be called on the UI thread.
+     *
+     * @param src      source of data which can be opened again if the upload has to restart from the beginning.
+     * @param key      identifier of the upload which remains the same when the upload is restarted.
+     * @param filename name of the file.
+     * @param mimetype mime type of the file.
+     * @param size     size of the file in bytes.
+     * @param progress optional progress listener.
+     * @return server response.
+     */
+    public ServerMessage uploadResumable(@NotNull UploadSource src, @NotNull String key, @NotNull String filename,
+                                         @NotNull String mimetype, long size, @Nullable FileHelperProgress progress)
+            throws IOException, CancellationException {
+
+        UploadSession session = null;
+        if (mSessions != null && size > CHUNK_SIZE) {
+            session = mSessions.load(key);
+            if (session != null && (session.size != size || !mimetype.equals(session.mimetype) ||
+                    session.chunkSize <= 0 || session.created + SESSION_MAX_AGE < System.currentTimeMillis())) {
+                mSessions.remove(key);
+                session = null;
+            }
+
+            if (session != null) {
+                // Find out how much the server has actually received.
                 try {
-                    result.reject(ex);
-                } catch (Exception ignored) {
+                    ServerMessage msg = sendChunk(session, null, 0, null, null);
+                    if (msg != null) {
+                        // The upload has been completed already.
+                        mSessions.remove(key);
+                        return msg;
+                    }
+                } catch (SessionExpiredException ex) {
+                    mSessions.remove(key);
+                    session = null;
                 }
             }
-        }).start();
-        return result;
+
+            if (session == null) {
+                session = startSession(filename, mimetype, size);
+            }
+        }
+
+        if (session == null) {
+            // Resumable uploads are not available.
+            try (InputStream in = src.open()) {
+                return upload(in, filename, mimetype, size, progress);
+            }
+        }
+
+        InputStream in = src.open();
+        try {
+            if (session.offset > 0 && !skipSent(in, session)) {
+                // The data has changed since the session was started. Start over.
+                in.close();
+                session = startSession(filename, mimetype, size);
+                if (session == null) {
+                    throw new IOException("Failed to restart upload");
+                }
+                in = src.open();
+            }
+            mSessions.save(key, session);
+
+            ServerMessage msg = sendChunks(in, session, key, progress);
+            mSessions.remove(key);
+            return msg;
+        } catch (SessionExpiredException ex) {
+            mSessions.remove(key);
+            throw new IOException("Upload session expired", ex);
+        } finally {
+            in.close();
+        }
+    }
+
+    // Uploads the file using the shared TransferManager. Returns handle of the transfer for waiting for
+    // the result, cancelling or changing priority. Safe to call on UI thread.
+    public TransferManager.Transfer<ServerMessage> uploadFuture(final InputStream in,
+                                                                final String filename,
+                                                                final String mimetype,
+                                                                final long size,
+                                                                final FileHelperProgress progress) {
+        return uploadFuture(in, filename, mimetype, size, TransferManager.Priority.NORMAL, progress);
+    }
+
+    // Same as above, with the given priority, e.g. HIGH if the user is waiting for the upload.
+    public TransferManager.Transfer<ServerMessage> uploadFuture(final InputStream in,
+                                                                final String filename,
+                                                                final String mimetype,
+                                                                final long size,
+                                                                final TransferManager.Priority priority,
+                                                                final FileHelperProgress progress) {
+        return TransferManager.getDefault().submit(this, priority,
+                (helper, p) -> helper.upload(in, filename, mimetype, size, p), progress);
     }
 
     // Download file from the given URL if the URL's host is the default host. Should not be called on the UI thread.
@@ -131,45 +267,374 @@ public class LargeFileHelper {
             return size;
         }
         HttpURLConnection urlConnection = null;
+        boolean responded = false;
         try {
-            urlConnection = (HttpURLConnection) url.openConnection();
-            if (url.getHost().equals(mHost)) {
-                // Send authentication only if the host is known.
-                urlConnection.setRequestProperty("X-Tinode-APIKey", mApiKey);
-                urlConnection.setRequestProperty("X-Tinode-Auth", "Token " + mAuthToken);
-            }
+            urlConnection = openDownload(url);
             InputStream in = new BufferedInputStream(urlConnection.getInputStream());
+            responded = true;
             return copyStream(in, out, urlConnection.getContentLength(), progress);
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
+            release(urlConnection, responded);
+        }
+    }
+
+    /**
+     * Download file from the given URL to a local file. If the server supports HTTP Range requests, large files
+     * are fetched in parallel segments written directly into place. Data is first written to
+     * '&lt;dst&gt;.part' with download state in '&lt;dst&gt;.part.state'; if the download is interrupted, the
+     * next call with the same URL and destination continues from the data already received. The file is
+     * moved to dst once its size is verified. Should not be called on the UI thread.
+     *
+     * @param downloadFrom URL to download from. Authentication is sent only if the URL's host is the default host.
+     * @param dst          destination file.
+     * @param progress     optional progress listener, called from download threads.
+     * @return size of the downloaded file.
+     */
+    public long downloadToFile(@NotNull String downloadFrom, @NotNull File dst, @Nullable FileHelperProgress progress)
+            throws IOException, CancellationException {
+        URL url = new URL(downloadFrom);
+        String scheme = url.getProtocol();
+        if (!scheme.equals("http") && !scheme.equals("https")) {
+            // As a security measure refuse to download using non-http(s) protocols.
+            return 0;
+        }
+
+        File part = new File(dst.getPath() + ".part");
+        File stateFile = new File(dst.getPath() + ".part.state");
+
+        // Find out if the server supports ranges and the size of the file.
+        DownloadState state;
+        HttpURLConnection conn = null;
+        boolean responded = false;
+        try {
+            conn = openDownload(url);
+            conn.setRequestProperty("Range", "bytes=0-0");
+            int code = conn.getResponseCode();
+            responded = true;
+            long size = code == HttpURLConnection.HTTP_PARTIAL ? parseContentRange(conn, 0) : -1;
+            if (code == HttpURLConnection.HTTP_OK) {
+                // Ranges are not supported: the response is the whole file.
+                deleteFiles(part, stateFile);
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(part))) {
+                    copyStream(new BufferedInputStream(conn.getInputStream()), out,
+                            conn.getContentLength(), progress);
+                }
+                return finishDownload(part, dst, stateFile, conn.getContentLength());
+            }
+            if (code == HTTP_RANGE_NOT_SATISFIABLE) {
+                // The file is empty.
+                deleteFiles(part, stateFile);
+                new FileOutputStream(part).close();
+                return finishDownload(part, dst, stateFile, 0);
+            }
+            if (code == HttpURLConnection.HTTP_PARTIAL && size < 0) {
+                // Size is unknown, the file cannot be split.
+                deleteFiles(part, stateFile);
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(part))) {
+                    download(downloadFrom, out, progress);
+                }
+                return finishDownload(part, dst, stateFile, -1);
+            }
+            if (size < 0) {
+                throw new IOException("Failed to download: " + conn.getResponseMessage() + " (" + code + ")");
+            }
+
+            String validator = conn.getHeaderField("ETag");
+            if (validator == null) {
+                validator = conn.getHeaderField("Last-Modified");
+            }
+            state = loadState(stateFile);
+            if (state == null || !part.exists() || validator == null || !validator.equals(state.validator) ||
+                    !downloadFrom.equals(state.url) || size != state.size) {
+                state = new DownloadState(downloadFrom, validator, size);
+                deleteFiles(part, stateFile);
             }
+        } finally {
+            release(conn, responded);
         }
+
+        final AtomicLong received = new AtomicLong(state.received());
+        final AtomicBoolean abort = new AtomicBoolean(false);
+        ExecutorService pool = null;
+        try (RandomAccessFile raf = new RandomAccessFile(part, "rw")) {
+            raf.setLength(state.size);
+            final FileChannel channel = raf.getChannel();
+            final DownloadState ds = state;
+
+            List<Future<Void>> results = new ArrayList<>();
+            pool = Executors.newFixedThreadPool(state.segments.size());
+            for (final Segment seg : state.segments) {
+                results.add(pool.submit(() -> {
+                    fetchSegment(url, ds, seg, channel, stateFile, received, abort, progress);
+                    return null;
+                }));
+            }
+
+            // Wait for all segments, even after a failure, so the state is consistent when saved.
+            Exception failure = null;
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException ex) {
+                    abort.set(true);
+                    if (failure == null || failure instanceof CancellationException) {
+                        failure = ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+                    }
+                } catch (InterruptedException ex) {
+                    abort.set(true);
+                    Thread.currentThread().interrupt();
+                    failure = new IOException("Download interrupted", ex);
+                }
+            }
+
+            if (failure instanceof StaleDownloadException) {
+                deleteFiles(part, stateFile);
+            } else {
+                saveState(ds, stateFile);
+            }
+            if (mCanceled || failure instanceof CancellationException) {
+                throw new CancellationException("Cancelled");
+            }
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            }
+            if (failure != null) {
+                throw new IOException("Download failed", failure);
+            }
+
+            if (ds.received() != ds.size) {
+                throw new IOException("Download incomplete: " + ds.received() + " of " + ds.size);
+            }
+            channel.force(false);
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+
+        return finishDownload(part, dst, stateFile, state.size);
     }
 
-    // Downloads the file using Runnable, returns PromisedReply. Safe to call on UI thread.
-    public PromisedReply<Long> downloadFuture(final String downloadFrom,
-                                                 final OutputStream out,
-                                                 final FileHelperProgress progress) {
-        final PromisedReply<Long> result = new PromisedReply<>();
-        new Thread(() -> {
+    // Fetch the rest of one segment, retrying after failures.
+    private void fetchSegment(URL url, DownloadState state, Segment seg, FileChannel channel, File stateFile,
+                              AtomicLong received, AtomicBoolean abort, @Nullable FileHelperProgress progress)
+            throws IOException, CancellationException {
+        for (int attempt = 1; ; attempt++) {
             try {
-                Long size = download(downloadFrom, out, progress);
-                if (mCanceled) {
+                fetchRange(url, state, seg, channel, stateFile, received, abort, progress);
+                return;
+            } catch (StaleDownloadException ex) {
+                throw ex;
+            } catch (IOException ex) {
+                if (mCanceled || abort.get() || attempt >= MAX_SEGMENT_ATTEMPTS) {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    // Fetch data of the segment from its current position and write it into place.
+    private void fetchRange(URL url, DownloadState state, Segment seg, FileChannel channel, File stateFile,
+                            AtomicLong received, AtomicBoolean abort, @Nullable FileHelperProgress progress)
+            throws IOException, CancellationException {
+        long pos;
+        synchronized (state) {
+            pos = seg.pos;
+        }
+        if (pos >= seg.end) {
+            return;
+        }
+
+        HttpURLConnection conn = null;
+        boolean responded = false;
+        try {
+            conn = openDownload(url);
+            conn.setRequestProperty("Range", "bytes=" + pos + "-" + (seg.end - 1));
+            if (state.validator != null) {
+                // Send the whole file instead of the range if the file has changed.
+                conn.setRequestProperty("If-Range", state.validator);
+            }
+            int code = conn.getResponseCode();
+            responded = true;
+            if (code == HttpURLConnection.HTTP_OK) {
+                throw new StaleDownloadException();
+            }
+            if (code != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("Failed to download range: " + conn.getResponseMessage() + " (" + code + ")");
+            }
+            if (parseContentRange(conn, pos) != state.size) {
+                throw new StaleDownloadException();
+            }
+
+            InputStream in = new BufferedInputStream(conn.getInputStream());
+            byte[] buffer = new byte[BUFFER_SIZE];
+            ByteBuffer bb = ByteBuffer.wrap(buffer);
+            long saved = pos;
+            int len;
+            while (pos < seg.end && (len = in.read(buffer, 0, (int) Math.min(buffer.length, seg.end - pos))) != -1) {
+                if (mCanceled || abort.get()) {
                     throw new CancellationException("Cancelled");
                 }
-                result.resolve(size);
-            } catch (Exception ex) {
-                try {
-                    result.reject(ex);
-                } catch (Exception ignored) {
+
+                bb.clear();
+                bb.limit(len);
+                while (bb.hasRemaining()) {
+                    pos += channel.write(bb, pos);
+                }
+                synchronized (state) {
+                    seg.pos = pos;
+                }
+
+                countBytes(progress, len);
+                long total = received.addAndGet(len);
+                if (progress != null) {
+                    progress.onProgress(total, state.size);
+                }
+                if (pos - saved >= STATE_SAVE_INTERVAL) {
+                    saveState(state, stateFile);
+                    saved = pos;
+                }
+            }
+            in.close();
+
+            if (pos < seg.end) {
+                throw new IOException("Range truncated at " + pos + ", expected " + seg.end);
+            }
+        } finally {
+            release(conn, responded);
+        }
+    }
+
+    // Finish with the connection. If the response has been received, read the rest of it so the
+    // connection is kept alive and reused by the next request to the same server. Otherwise, or
+    // if too much data remains, close the connection.
+    private static void release(HttpURLConnection conn, boolean responded) {
+        if (conn == null) {
+            return;
+        }
+        if (responded) {
+            try {
+                InputStream in = conn.getResponseCode() >= 400 ? conn.getErrorStream() : conn.getInputStream();
+                if (in == null) {
+                    return;
                 }
+                byte[] buffer = new byte[1024];
+                int total = 0, len = 0;
+                while (total < MAX_DRAIN_SIZE && (len = in.read(buffer)) != -1) {
+                    total += len;
+                }
+                if (len == -1) {
+                    in.close();
+                    return;
+                }
+            } catch (IOException ignored) {
+            }
+        }
+        conn.disconnect();
+    }
+
+    private HttpURLConnection openDownload(URL url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setUseCaches(false);
+        if (url.getHost().equals(mHost)) {
+            // Send authentication only if the host is known.
+            conn.setRequestProperty("X-Tinode-APIKey", mApiKey);
+            conn.setRequestProperty("X-Tinode-Auth", "Token " + mAuthToken);
+        }
+        return conn;
+    }
+
+    // Parse 'Content-Range: bytes start-end/size' and return the size of the file, or -1 if
+    // the size is unknown.
+    private static long parseContentRange(HttpURLConnection conn, long expectedStart) throws IOException {
+        String range = conn.getHeaderField("Content-Range");
+        if (range == null || !range.startsWith("bytes ")) {
+            throw new IOException("Invalid Content-Range '" + range + "'");
+        }
+        int dash = range.indexOf('-');
+        int slash = range.indexOf('/');
+        if (dash < 0 || slash < dash) {
+            throw new IOException("Invalid Content-Range '" + range + "'");
+        }
+        try {
+            if (Long.parseLong(range.substring(6, dash).trim()) != expectedStart) {
+                throw new IOException("Unexpected Content-Range '" + range + "'");
             }
-        }).start();
-        return result;
+            String size = range.substring(slash + 1).trim();
+            return size.equals("*") ? -1 : Long.parseLong(size);
+        } catch (NumberFormatException ex) {
+            throw new IOException("Invalid Content-Range '" + range + "'");
+        }
+    }
+
+    // Verify size of the downloaded data and move it to the destination.
+    private static long finishDownload(File part, File dst, File stateFile, long size) throws IOException {
+        if (size >= 0 && part.length() != size) {
+            deleteFiles(part, stateFile);
+            throw new IOException("Downloaded size " + part.length() + " does not match expected " + size);
+        }
+        if ((dst.exists() && !dst.delete()) || !part.renameTo(dst)) {
+            throw new IOException("Failed to move download to " + dst);
+        }
+        //noinspection ResultOfMethodCallIgnored
+        stateFile.delete();
+        return dst.length();
+    }
+
+    private static void deleteFiles(File... files) {
+        for (File f : files) {
+            //noinspection ResultOfMethodCallIgnored
+            f.delete();
+        }
     }
 
-    // Try to cancel an ongoing upload or download.
+    private static DownloadState loadState(File stateFile) {
+        if (!stateFile.exists()) {
+            return null;
+        }
+        try (InputStream in = new FileInputStream(stateFile)) {
+            return Tinode.getJsonMapper().readValue(in, DownloadState.class);
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    // Write state to a temporary file first so a crash does not leave a broken state.
+    private static void saveState(DownloadState state, File stateFile) throws IOException {
+        byte[] json;
+        synchronized (state) {
+            json = Tinode.jsonSerialize(state).getBytes(StandardCharsets.UTF_8);
+        }
+        synchronized (DownloadState.class) {
+            File tmp = new File(stateFile.getPath() + ".tmp");
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                out.write(json);
+            }
+            if (!tmp.renameTo(stateFile)) {
+                throw new IOException("Failed to save download state");
+            }
+        }
+    }
+
+    // Downloads the file using the shared TransferManager. Returns handle of the transfer for waiting for
+    // the result, cancelling or changing priority. Safe to call on UI thread.
+    public TransferManager.Transfer<Long> downloadFuture(final String downloadFrom,
+                                                         final OutputStream out,
+                                                         final FileHelperProgress progress) {
+        return downloadFuture(downloadFrom, out, TransferManager.Priority.NORMAL, progress);
+    }
+
+    // Same as above, with the given priority, e.g. HIGH if the image is visible on screen.
+    public TransferManager.Transfer<Long> downloadFuture(final String downloadFrom,
+                                                         final OutputStream out,
+                                                         final TransferManager.Priority priority,
+                                                         final FileHelperProgress progress) {
+        return TransferManager.getDefault().submit(this, priority,
+                (helper, p) -> helper.download(downloadFrom, out, p), progress);
+    }
+
+    // Cancel all uploads and downloads of this helper, running and future: the helper cannot be used after that.
+    // Use TransferManager.Transfer.cancel() to cancel one transfer.
     public void cancel() {
         mCanceled = true;
     }
@@ -178,6 +643,255 @@ public class LargeFileHelper {
         return mCanceled;
     }
 
+    /**
+     * Get the number of bytes of file data sent or received by this helper, including data
+     * transferred more than once because of retries.
+     */
+    public long getBytesTransferred() {
+        return mBytesTransferred.get();
+    }
+
+    // Count bytes sent or received by this helper and by the transfer the progress listener belongs to.
+    private void countBytes(@Nullable FileHelperProgress progress, int len) {
+        mBytesTransferred.addAndGet(len);
+        if (progress instanceof TransferManager.ThrottledProgress) {
+            ((TransferManager.ThrottledProgress) progress).addBytes(len);
+        }
+    }
+
+    // Ask the server to start a resumable upload. Returns null if the server does not support it.
+    private UploadSession startSession(String filename, String mimetype, long size) throws IOException {
+        HttpURLConnection conn = null;
+        boolean responded = false;
+        try {
+            conn = (HttpURLConnection) mUrlUpload.openConnection();
+            conn.setRequestMethod("POST");
+            conn.setDoOutput(true);
+            conn.setUseCaches(false);
+            conn.setInstanceFollowRedirects(false);
+            setHeaders(conn);
+            conn.setRequestProperty("X-Tinode-Upload", "resumable");
+            conn.setRequestProperty("X-Upload-Content-Type", mimetype);
+            conn.setRequestProperty("X-Upload-Content-Length", Long.toString(size));
+            conn.setRequestProperty("X-Upload-Filename", filename);
+            conn.setFixedLengthStreamingMode(0);
+            conn.getOutputStream().close();
+
+            int code = conn.getResponseCode();
+            responded = true;
+            String location = conn.getHeaderField("Location");
+            if (code != HttpURLConnection.HTTP_CREATED || location == null) {
+                return null;
+            }
+
+            UploadSession session = new UploadSession();
+            session.url = new URL(mUrlUpload, location).toString();
+            session.mimetype = mimetype;
+            session.size = size;
+            session.chunkSize = CHUNK_SIZE;
+            session.created = System.currentTimeMillis();
+            return session;
+        } finally {
+            release(conn, responded);
+        }
+    }
+
+    // Read the data already received by the server and check that it has not changed.
+    private boolean skipSent(InputStream in, UploadSession session) throws IOException {
+        if (session.offset % session.chunkSize != 0 ||
+                session.offset / session.chunkSize > session.checksums.size()) {
+            return false;
+        }
+        byte[] buffer = new byte[session.chunkSize];
+        int chunks = (int) (session.offset / session.chunkSize);
+        for (int i = 0; i < chunks; i++) {
+            int len = readFully(in, buffer, session.chunkSize);
+            if (len != session.chunkSize || !checksum(buffer, len).equals(session.checksums.get(i))) {
+                return false;
+            }
+        }
+        // Drop checksums of chunks sent but not received.
+        while (session.checksums.size() > chunks) {
+            session.checksums.remove(session.checksums.size() - 1);
+        }
+        return true;
+    }
+
+    // Send the rest of the data starting at session.offset.
+    private ServerMessage sendChunks(InputStream in, UploadSession session, String key,
+                                     @Nullable FileHelperProgress progress)
+            throws IOException, CancellationException {
+        byte[] buffer = new byte[session.chunkSize];
+        ServerMessage msg = null;
+        while (session.offset < session.size) {
+            if (mCanceled) {
+                throw new CancellationException("Cancelled");
+            }
+
+            final long start = session.offset;
+            final int len = readFully(in, buffer, (int) Math.min(session.chunkSize, session.size - start));
+            if (len <= 0) {
+                throw new IOException("Unexpected end of data at " + start);
+            }
+            final String sum = checksum(buffer, len);
+
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    msg = sendChunk(session, buffer, len, sum, progress);
+                    if (msg != null || session.offset == start + len) {
+                        break;
+                    }
+                    throw new IOException("Chunk at " + start + " was not accepted");
+                } catch (SessionExpiredException ex) {
+                    throw ex;
+                } catch (IOException ex) {
+                    if (mCanceled) {
+                        throw new CancellationException("Cancelled");
+                    }
+                    if (attempt >= MAX_CHUNK_ATTEMPTS) {
+                        throw ex;
+                    }
+                    // The connection may have dropped after the chunk was received. Check before resending.
+                    try {
+                        msg = sendChunk(session, null, 0, null, null);
+                    } catch (SessionExpiredException ex2) {
+                        throw ex2;
+                    } catch (IOException ignored) {
+                        continue;
+                    }
+                    if (msg != null || session.offset == start + len) {
+                        break;
+                    }
+                    if (session.offset != start) {
+                        throw new IOException("Unexpected upload offset " + session.offset + ", expected " + start);
+                    }
+                }
+            }
+
+            session.offset = start + len;
+            session.checksums.add(sum);
+            mSessions.save(key, session);
+
+            if (progress != null) {
+                progress.onProgress(session.offset, session.size);
+            }
+        }
+
+        if (msg == null) {
+            throw new IOException("Upload is incomplete");
+        }
+        return msg;
+    }
+
+    // Send one chunk of data or, if data is null, query the state of the session. Returns the server
+    // response when the upload is complete, null otherwise. Updates session.offset with the number of
+    // bytes received by the server.
+    private ServerMessage sendChunk(UploadSession session, byte[] data, int len, String checksum,
+                                    @Nullable FileHelperProgress progress) throws IOException {
+        HttpURLConnection conn = null;
+        boolean responded = false;
+        try {
+            conn = (HttpURLConnection) new URL(session.url).openConnection();
+            conn.setRequestMethod("PUT");
+            conn.setDoOutput(true);
+            conn.setUseCaches(false);
+            conn.setInstanceFollowRedirects(false);
+            setHeaders(conn);
+            if (data != null) {
+                conn.setRequestProperty("Content-Range", "bytes " + session.offset + "-" +
+                        (session.offset + len - 1) + "/" + session.size);
+                conn.setRequestProperty("X-Tinode-Checksum", "sha-256=" + checksum);
+            } else {
+                conn.setRequestProperty("Content-Range", "bytes */" + session.size);
+                len = 0;
+            }
+            conn.setFixedLengthStreamingMode(len);
+
+            OutputStream out = conn.getOutputStream();
+            if (len > 0) {
+                out.write(data, 0, len);
+            }
+            out.close();
+            countBytes(progress, len);
+
+            int code = conn.getResponseCode();
+            responded = true;
+            switch (code) {
+                case HTTP_RESUME_INCOMPLETE:
+                    session.offset = parseRange(conn.getHeaderField("Range"));
+                    return null;
+                case HttpURLConnection.HTTP_OK:
+                case HttpURLConnection.HTTP_CREATED:
+                    session.offset = session.size;
+                    InputStream resp = new BufferedInputStream(conn.getInputStream());
+                    ServerMessage msg = readServerResponse(resp);
+                    resp.close();
+                    return msg;
+                case HttpURLConnection.HTTP_NOT_FOUND:
+                case HttpURLConnection.HTTP_GONE:
+                    throw new SessionExpiredException();
+                case HTTP_CHECKSUM_MISMATCH:
+                    throw new IOException("Chunk checksum mismatch at " + session.offset);
+                default:
+                    throw new IOException("Failed to upload chunk: " + conn.getResponseMessage() +
+                            " (" + code + ")");
+            }
+        } finally {
+            release(conn, responded);
+        }
+    }
+
+    private void setHeaders(HttpURLConnection conn) {
+        conn.setRequestProperty("User-Agent", mUserAgent);
+        conn.setRequestProperty("X-Tinode-APIKey", mApiKey);
+        conn.setRequestProperty("X-Tinode-Auth", "Token " + mAuthToken);
+    }
+
+    // Parse 'Range: bytes=0-N' into the number of bytes received, N+1.
+    private static long parseRange(String range) throws IOException {
+        if (range == null) {
+            return 0;
+        }
+        int dash = range.lastIndexOf('-');
+        if (!range.startsWith("bytes=0-") || dash < 0) {
+            throw new IOException("Invalid range '" + range + "'");
+        }
+        try {
+            return Long.parseLong(range.substring(dash + 1).trim()) + 1;
+        } catch (NumberFormatException ex) {
+            throw new IOException("Invalid range '" + range + "'");
+        }
+    }
+
+    // Read up to len bytes, stopping only at the end of the stream.
+    private static int readFully(InputStream in, byte[] buffer, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int count = in.read(buffer, total, len - total);
+            if (count < 0) {
+                break;
+            }
+            total += count;
+        }
+        return total;
+    }
+
+    // SHA-256 of the data as a hex string.
+    static String checksum(byte[] data, int len) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(data, 0, len);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest()) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            // SHA-256 is always available.
+            throw new IllegalStateException(ex);
+        }
+    }
+
     private int copyStream(@NotNull InputStream in, @NotNull OutputStream out, long size, @Nullable FileHelperProgress p)
             throws IOException, CancellationException {
         byte[] buffer = new byte[BUFFER_SIZE];
@@ -189,6 +903,7 @@ public class LargeFileHelper {
 
             sent += len;
             out.write(buffer, 0, len);
+            countBytes(p, len);
 
             if (mCanceled) {
                 throw new CancellationException("Cancelled");
@@ -227,6 +942,147 @@ public class LargeFileHelper {
         void onProgress(long sent, long size);
     }
 
+    /**
+     * Source of upload data which can be read more than once.
+     */
+    public interface UploadSource {
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * Persistent storage of resumable upload sessions.
+     */
+    public interface SessionStore {
+        @Nullable
+        UploadSession load(String key);
+
+        void save(String key, UploadSession session);
+
+        void remove(String key);
+    }
+
+    /**
+     * Session store which keeps sessions in memory: uploads can be resumed only while the process is alive.
+     */
+    public static class MemorySessionStore implements SessionStore {
+        private final Map<String, UploadSession> mSessions = new HashMap<>();
+
+        @Override
+        public synchronized UploadSession load(String key) {
+            UploadSession session = mSessions.get(key);
+            return session != null ? session.copy() : null;
+        }
+
+        @Override
+        public synchronized void save(String key, UploadSession session) {
+            mSessions.put(key, session.copy());
+        }
+
+        @Override
+        public synchronized void remove(String key) {
+            mSessions.remove(key);
+        }
+    }
+
+    /**
+     * State of a resumable upload.
+     */
+    public static class UploadSession {
+        // Absolute URL of the session.
+        public String url;
+        public String mimetype;
+        public long size;
+        public int chunkSize;
+        // Time when the session was started, milliseconds.
+        public long created;
+        // Number of bytes received by the server.
+        public long offset;
+        // Checksums of chunks received by the server, used to check that the data has not changed
+        // when the upload is resumed.
+        public List<String> checksums = new ArrayList<>();
+
+        public UploadSession() {
+        }
+
+        UploadSession copy() {
+            UploadSession that = new UploadSession();
+            that.url = url;
+            that.mimetype = mimetype;
+            that.size = size;
+            that.chunkSize = chunkSize;
+            that.created = created;
+            that.offset = offset;
+            that.checksums = new ArrayList<>(checksums);
+            return that;
+        }
+    }
+
+    /**
+     * State of a download to file: segments of the file and how much of each has been received.
+     */
+    public static class DownloadState {
+        public String url;
+        // ETag or Last-Modified of the file.
+        public String validator;
+        public long size;
+        public List<Segment> segments = new ArrayList<>();
+
+        public DownloadState() {
+        }
+
+        DownloadState(String url, String validator, long size) {
+            this.url = url;
+            this.validator = validator;
+            this.size = size;
+            int count = (int) Math.max(1, Math.min(MAX_SEGMENTS, size / MIN_SEGMENT_SIZE));
+            long length = (size + count - 1) / count;
+            for (long start = 0; start < size; start += length) {
+                segments.add(new Segment(start, Math.min(start + length, size)));
+            }
+        }
+
+        // Number of bytes received in all segments.
+        synchronized long received() {
+            long total = 0;
+            for (Segment seg : segments) {
+                total += seg.pos - seg.start;
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Segment [start, end) of a downloaded file; data is received up to pos.
+     */
+    public static class Segment {
+        public long start;
+        public long end;
+        public long pos;
+
+        public Segment() {
+        }
+
+        Segment(long start, long end) {
+            this.start = start;
+            this.end = end;
+            this.pos = start;
+        }
+    }
+
+    // The file has changed since the download was started.
+    private static class StaleDownloadException extends IOException {
+        StaleDownloadException() {
+            super("File has changed during download");
+        }
+    }
+
+    // The server no longer knows the upload session.
+    private static class SessionExpiredException extends IOException {
+        SessionExpiredException() {
+            super("Upload session not found");
+        }
+    }
+
     public Map<String,String> headers() {
         Map<String,String> headers = new HashMap<>();
         headers.put("X-Tinode-APIKey", mApiKey);
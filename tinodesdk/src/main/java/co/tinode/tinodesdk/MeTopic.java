@@ -8,6 +8,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 
 import co.tinode.tinodesdk.model.Acs;
@@ -129,8 +130,8 @@ public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
                     if (idx >= 0) {
                         mCreds.remove(idx);
 
-                        if (mStore != null) {
-                            mStore.topicUpdate(MeTopic.this);
+                        if (mAsyncStore != null) {
+                            mAsyncStore.topicUpdate(MeTopic.this);
                         }
 
                         // Notify listeners
@@ -194,8 +195,8 @@ public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
             changed = mDesc.acs.merge(acs);
         }
 
-        if (changed && mStore != null) {
-            mStore.topicUpdate(this);
+        if (changed && mAsyncStore != null) {
+            mAsyncStore.topicUpdate(this);
         }
     }
 
@@ -233,7 +234,7 @@ public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
                 changed = me.merge(meta.desc);
             }
             if (changed) {
-                mStore.userUpdate(me);
+                mAsyncStore.userUpdate(me);
             }
         }
 
@@ -242,9 +243,19 @@ public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
 
     @Override
     protected void routeMetaSub(MsgServerMeta<DP,PrivateType,DP,PrivateType> meta) {
-
+        List<Topic> topics = new ArrayList<>(meta.sub.length);
+        List<User> users = new ArrayList<>();
         for (Subscription<DP,PrivateType> sub : meta.sub) {
-            processOneSub(sub);
+            processOneSub(sub, topics, users);
+        }
+
+        // Save the whole page at once. Topics are saved synchronously, like individual new topics,
+        // so they are stored by the time the app sees them.
+        if (mStore != null && !topics.isEmpty()) {
+            mStore.topicUpsertBatch(topics);
+        }
+        if (mAsyncStore != null && !users.isEmpty()) {
+            mAsyncStore.userUpsertBatch(users);
         }
 
         if (mListener != null) {
@@ -252,8 +263,10 @@ public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
         }
     }
 
+    // Apply one subscription to topics and users in memory. Topics and users which need to be
+    // saved are added to the lists.
     @SuppressWarnings("unchecked")
-    private void processOneSub(Subscription<DP,PrivateType> sub) {
+    private void processOneSub(Subscription<DP,PrivateType> sub, List<Topic> topics, List<User> users) {
         // Handle topic.
         Topic topic = mTinode.getTopic(sub.topic);
         if (topic != null) {
@@ -264,33 +277,36 @@ public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
                 topic.persist(false);
                 topic = null;
             } else {
-                // Update its record in memory and in the database.
-                if (topic.update(sub) && topic.mListener != null) {
-                    // Notify topic to update self.
-                    topic.mListener.onMetaDesc(topic.mDesc);
+                // Update its record in memory. It's saved to the database with the batch.
+                if (topic.update(sub, false)) {
+                    topics.add(topic);
+                    if (topic.mListener != null) {
+                        // Notify topic to update self.
+                        topic.mListener.onMetaDesc(topic.mDesc);
+                    }
                 }
             }
         } else if (sub.deleted == null) {
-            // This is a new topic. Register it and write to DB.
+            // This is a new topic. Register it and write to DB with the batch.
             topic = mTinode.newTopic(sub);
-            topic.persist(true);
+            topics.add(topic);
         } else {
             Log.i(TAG, "Request to delete an unknown topic: " + sub.topic);
         }
 
         // Use p2p topic to update user's record.
-        if (topic != null && topic.getTopicType() == TopicType.P2P && mStore != null) {
+        if (topic != null && topic.getTopicType() == TopicType.P2P && mAsyncStore != null) {
             // Use P2P description to generate and update user
             User user = mTinode.getUser(topic.getName());
             boolean changed;
             if (user == null) {
-                user = mTinode.addUser(topic.getName(), topic.mDesc);
+                user = mTinode.cacheUser(topic.getName(), topic.mDesc);
                 changed = true;
             } else {
                 changed = user.merge(topic.mDesc);
             }
             if (changed) {
-                mStore.userUpdate(user);
+                users.add(user);
             }
         }
 
@@ -358,8 +374,8 @@ public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
                 Collections.sort(mCreds);
             }
 
-            if (mStore != null) {
-                mStore.topicUpdate(this);
+            if (mAsyncStore != null) {
+                mAsyncStore.topicUpdate(this);
             }
         }
     }
@@ -383,8 +399,8 @@ public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
         }
         Collections.sort(mCreds);
 
-        if (mStore != null) {
-            mStore.topicUpdate(this);
+        if (mAsyncStore != null) {
+            mAsyncStore.topicUpdate(this);
         }
 
         if (mListener != null && mListener instanceof MeListener) {
@@ -431,8 +447,8 @@ public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
                         break;
 
                     case ACS: // access mode changed
-                        if (topic.updateAccessMode(pres.dacs) && mStore != null) {
-                            mStore.topicUpdate(topic);
+                        if (topic.updateAccessMode(pres.dacs) && mAsyncStore != null) {
+                            mAsyncStore.topicUpdate(topic);
                         }
                         break;
 
@@ -515,8 +531,8 @@ public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
     private void assignRead(Topic topic, int seq) {
         if (topic.getRead() < seq) {
             topic.setRead(seq);
-            if (mStore != null) {
-                mStore.setRead(topic, seq);
+            if (mAsyncStore != null) {
+                mAsyncStore.setRead(topic, seq);
             }
             assignRecv(topic, topic.getRead());
         }
@@ -525,8 +541,8 @@ public class MeTopic<DP> extends Topic<DP,PrivateType,DP,PrivateType> {
     private void assignRecv(Topic topic, int seq) {
         if (topic.getRecv() < seq) {
             topic.setRecv(seq);
-            if (mStore != null) {
-                mStore.setRecv(topic, seq);
+            if (mAsyncStore != null) {
+                mAsyncStore.setRecv(topic, seq);
             }
         }
     }
@@ -0,0 +1,1138 @@
+package co.tinode.tinodesdk;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import co.tinode.tinodesdk.model.Acs;
+import co.tinode.tinodesdk.model.Credential;
+import co.tinode.tinodesdk.model.Defacs;
+import co.tinode.tinodesdk.model.Drafty;
+import co.tinode.tinodesdk.model.MsgRange;
+import co.tinode.tinodesdk.model.MsgServerData;
+import co.tinode.tinodesdk.model.Subscription;
+import co.tinode.tinodesdk.model.TrustedType;
+
+/**
+ * Implementation of {@link Storage} which keeps everything in memory. Used in tests, benchmarks and
+ * by headless clients which do not need persistence between restarts.
+ * <p>
+ * Messages of each topic are kept in a map sorted by seq, together with the deletion ranges. Unsent
+ * messages are assigned temporary seq values starting at {@link #UNSENT_ID_START}. The semantics of
+ * deletion ranges and missing ranges follow the SQLite storage of the Android app.
+ * <p>
+ * All methods are synchronized.
+ */
+// Raw Topic, User and Subscription types are required by the signatures of Storage.
+@SuppressWarnings("rawtypes")
+public class MemoryStorage implements Storage {
+    // Status of messages, subscriptions and topics. Same values as used by the Android storage.
+    public static final int STATUS_UNDEFINED = 0;
+    public static final int STATUS_DRAFT = 10;
+    public static final int STATUS_QUEUED = 20;
+    public static final int STATUS_SENDING = 30;
+    public static final int STATUS_FAILED = 40;
+    public static final int STATUS_SYNCED = 50;
+    public static final int STATUS_DELETED_HARD = 60;
+    public static final int STATUS_DELETED_SOFT = 70;
+    public static final int STATUS_DELETED_SYNCED = 80;
+
+    // Temporary seq values of unsent messages start here.
+    public static final int UNSENT_ID_START = 2_000_000_000;
+
+    // Length of message previews.
+    private static final int MESSAGE_PREVIEW_LENGTH = 80;
+
+    private String mMyUid = null;
+    private String[] mCredRequired = null;
+    private String mDeviceToken = null;
+    private long mTimeAdjustment = 0;
+
+    // Source of IDs for topics, subscriptions, users and messages.
+    private long mNextId = 1;
+
+    private final Map<String, StoredTopic> mTopics = new HashMap<>();
+    private final Map<Long, StoredTopic> mTopicsById = new HashMap<>();
+    private final Map<String, StoredUser> mUsers = new HashMap<>();
+    // All messages by ID.
+    private final Map<Long, StoredMessage> mMessages = new HashMap<>();
+
+    public MemoryStorage() {
+    }
+
+    @Override
+    public synchronized String getMyUid() {
+        return mMyUid;
+    }
+
+    @Override
+    public synchronized void setMyUid(String uid) {
+        setMyUid(uid, null);
+    }
+
+    @Override
+    public synchronized void setMyUid(String uid, String[] credRequired) {
+        if (uid != null && mMyUid != null && !uid.equals(mMyUid)) {
+            // Different account: start from scratch.
+            clear();
+        }
+        mMyUid = uid;
+        mCredRequired = credRequired != null && credRequired.length > 0 ? credRequired : null;
+    }
+
+    @Override
+    public synchronized void deleteAccount(String uid) {
+        if (uid != null && uid.equals(mMyUid)) {
+            clear();
+            mMyUid = null;
+            mCredRequired = null;
+        }
+    }
+
+    @Override
+    public synchronized String getDeviceToken() {
+        return mDeviceToken;
+    }
+
+    @Override
+    public synchronized void saveDeviceToken(String token) {
+        mDeviceToken = token;
+    }
+
+    @Override
+    public synchronized void logout() {
+        mMyUid = null;
+        mCredRequired = null;
+    }
+
+    @Override
+    public synchronized void setTimeAdjustment(long adjustment) {
+        mTimeAdjustment = adjustment;
+    }
+
+    @Override
+    public synchronized boolean isReady() {
+        return mMyUid != null && mCredRequired == null;
+    }
+
+    private void clear() {
+        mTopics.clear();
+        mTopicsById.clear();
+        mUsers.clear();
+        mMessages.clear();
+    }
+
+    // Topics.
+
+    @Override
+    public synchronized Topic[] topicGetAll(Tinode tinode) {
+        if (mTopics.isEmpty()) {
+            return null;
+        }
+        Topic[] list = new Topic[mTopics.size()];
+        int i = 0;
+        for (StoredTopic st : mTopics.values()) {
+            list[i++] = st.restore(tinode);
+        }
+        return list;
+    }
+
+    @Override
+    public synchronized Topic topicGet(Tinode tinode, String name) {
+        StoredTopic st = mTopics.get(name);
+        return st != null ? st.restore(tinode) : null;
+    }
+
+    @Override
+    public synchronized long topicAdd(Topic topic) {
+        StoredTopic st = (StoredTopic) topic.getLocal();
+        if (st != null) {
+            return st.id;
+        }
+        if (mTopics.containsKey(topic.getName())) {
+            return -1;
+        }
+
+        st = new StoredTopic(mNextId++, topic.getName());
+        st.status = topic.isNew() ? STATUS_QUEUED : STATUS_SYNCED;
+        st.lastUsed = topic.getTouched() != null ? topic.getTouched() : new Date(0);
+        st.save(topic);
+        mTopics.put(st.name, st);
+        mTopicsById.put(st.id, st);
+        topic.setLocal(st);
+        return st.id;
+    }
+
+    @Override
+    public synchronized boolean topicUpdate(Topic topic) {
+        StoredTopic st = stored(topic);
+        if (st == null) {
+            return false;
+        }
+        if (st.status == STATUS_QUEUED && !topic.isNew()) {
+            // Topic was created on the server and received a permanent name.
+            st.status = STATUS_SYNCED;
+            mTopics.remove(st.name);
+            st.name = topic.getName();
+            mTopics.put(st.name, st);
+        }
+        st.save(topic);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean topicDelete(Topic topic) {
+        StoredTopic st = stored(topic);
+        if (st == null) {
+            return false;
+        }
+        for (StoredMessage m : st.messages.values()) {
+            mMessages.remove(m.id);
+        }
+        mTopics.remove(st.name);
+        mTopicsById.remove(st.id);
+        topic.setLocal(null);
+        return true;
+    }
+
+    @Override
+    public synchronized int topicUpsertBatch(Collection<Topic> topics) {
+        int count = 0;
+        for (Topic topic : topics) {
+            if (stored(topic) == null) {
+                StoredTopic st = mTopics.get(topic.getName());
+                if (st != null) {
+                    // Topic is stored but the in-memory object is not linked to the record.
+                    topic.setLocal(st);
+                } else if (topicAdd(topic) > 0) {
+                    count++;
+                    continue;
+                }
+            }
+            if (topicUpdate(topic)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Returns record of the topic if it's still stored.
+    private StoredTopic stored(Topic<?, ?, ?, ?> topic) {
+        StoredTopic st = topic != null ? (StoredTopic) topic.getLocal() : null;
+        return st != null && mTopicsById.get(st.id) == st ? st : null;
+    }
+
+    // Subscriptions.
+
+    private long insertSub(Topic<?, ?, ?, ?> topic, Subscription<?, ?> sub, int status) {
+        StoredTopic st = stored(topic);
+        if (st == null || sub.user == null) {
+            return -1;
+        }
+        if (!mUsers.containsKey(sub.user)) {
+            addUser(sub.user, sub.updated, sub.pub);
+        }
+
+        StoredSubscription ss = new StoredSubscription(mNextId++, st.id, status);
+        ss.sub = copyOf(sub);
+        st.subs.put(sub.user, ss);
+        sub.setLocal(ss);
+        return ss.id;
+    }
+
+    @Override
+    public synchronized long subAdd(Topic topic, Subscription sub) {
+        return insertSub(topic, sub, STATUS_SYNCED);
+    }
+
+    @Override
+    public synchronized long subNew(Topic topic, Subscription sub) {
+        return insertSub(topic, sub, STATUS_QUEUED);
+    }
+
+    @Override
+    public synchronized boolean subUpdate(Topic topic, Subscription sub) {
+        StoredSubscription ss = storedSub(sub);
+        if (ss == null) {
+            return false;
+        }
+        if (ss.status == STATUS_QUEUED) {
+            ss.status = STATUS_SYNCED;
+        }
+        ss.sub = copyOf(sub);
+        StoredUser su = mUsers.get(sub.user);
+        if (su != null) {
+            su.merge(sub.updated, sub.pub);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean subDelete(Topic topic, Subscription sub) {
+        StoredSubscription ss = storedSub(sub);
+        if (ss == null) {
+            return false;
+        }
+        mTopicsById.get(ss.topicId).subs.remove(ss.sub.user);
+        return true;
+    }
+
+    @Override
+    public synchronized int subUpsertBatch(Topic topic, Collection<Subscription> subs) {
+        StoredTopic st = stored(topic);
+        if (st == null) {
+            return 0;
+        }
+        int count = 0;
+        for (Subscription sub : subs) {
+            if (sub.user == null) {
+                continue;
+            }
+            StoredSubscription ss = st.subs.get(sub.user);
+            if (sub.deleted != null) {
+                if (ss != null) {
+                    st.subs.remove(sub.user);
+                    count++;
+                }
+                continue;
+            }
+            if (ss == null) {
+                if (insertSub(topic, sub, STATUS_SYNCED) > 0) {
+                    count++;
+                }
+                continue;
+            }
+
+            // Counters could be already updated by a more recent notification.
+            int read = Math.max(ss.sub.read, sub.read);
+            int recv = Math.max(ss.sub.recv, sub.recv);
+            int clear = Math.max(ss.sub.clear, sub.clear);
+            ss.status = STATUS_SYNCED;
+            ss.sub = copyOf(sub);
+            ss.sub.read = read;
+            ss.sub.recv = recv;
+            ss.sub.clear = clear;
+            sub.setLocal(ss);
+            StoredUser su = mUsers.get(sub.user);
+            if (su != null) {
+                su.merge(sub.updated, sub.pub);
+            }
+            count++;
+        }
+        return count;
+    }
+
+    // Copy of the subscription to keep in storage.
+    @SuppressWarnings("unchecked")
+    private static Subscription<Object, Object> copyOf(Subscription<?, ?> sub) {
+        return new Subscription<>((Subscription<Object, Object>) sub);
+    }
+
+    // Returns record of the subscription if it's still stored.
+    private StoredSubscription storedSub(Subscription<?, ?> sub) {
+        StoredSubscription ss = sub != null ? (StoredSubscription) sub.getLocal() : null;
+        if (ss == null) {
+            return null;
+        }
+        StoredTopic st = mTopicsById.get(ss.topicId);
+        return st != null && st.subs.get(ss.sub.user) == ss ? ss : null;
+    }
+
+    @Override
+    public synchronized Collection<Subscription> getSubscriptions(Topic topic) {
+        StoredTopic st = stored(topic);
+        if (st == null) {
+            return null;
+        }
+        List<Subscription> result = new ArrayList<>(st.subs.size());
+        for (StoredSubscription ss : st.subs.values()) {
+            Subscription<Object, Object> sub = copyOf(ss.sub);
+            StoredUser su = mUsers.get(ss.sub.user);
+            if (su != null) {
+                // Public is stored with the user.
+                sub.pub = su.pub;
+            }
+            sub.setLocal(ss);
+            result.add(sub);
+        }
+        return result;
+    }
+
+    // Users.
+
+    private StoredUser addUser(String uid, Date updated, Object pub) {
+        StoredUser su = new StoredUser(mNextId++, uid);
+        su.updated = updated;
+        su.pub = pub;
+        mUsers.put(uid, su);
+        return su;
+    }
+
+    @Override
+    public synchronized User userGet(String uid) {
+        StoredUser su = mUsers.get(uid);
+        if (su == null) {
+            return null;
+        }
+        User<Object> user = new User<>(uid);
+        user.updated = su.updated;
+        user.pub = su.pub;
+        user.setLocal(su);
+        return user;
+    }
+
+    @Override
+    public synchronized long userAdd(User user) {
+        if (user.uid == null || mUsers.containsKey(user.uid)) {
+            return -1;
+        }
+        StoredUser su = addUser(user.uid, user.updated, user.pub);
+        user.setLocal(su);
+        return su.id;
+    }
+
+    @Override
+    public synchronized boolean userUpdate(User user) {
+        StoredUser su = user.uid != null ? mUsers.get(user.uid) : null;
+        if (su == null) {
+            return false;
+        }
+        su.merge(user.updated, user.pub);
+        return true;
+    }
+
+    @Override
+    public synchronized int userUpsertBatch(Collection<User> users) {
+        int count = 0;
+        for (User user : users) {
+            if (user.uid == null) {
+                continue;
+            }
+            StoredUser su = mUsers.get(user.uid);
+            if (su == null) {
+                su = addUser(user.uid, user.updated, user.pub);
+            } else {
+                su.merge(user.updated, user.pub);
+            }
+            user.setLocal(su);
+            count++;
+        }
+        return count;
+    }
+
+    // Messages.
+
+    @Override
+    public synchronized Message msgReceived(Topic topic, Subscription sub, MsgServerData msg) {
+        StoredTopic st = stored(topic);
+        if (st == null) {
+            return null;
+        }
+
+        if (!mUsers.containsKey(msg.from)) {
+            // Placeholder for an unknown sender.
+            if (sub != null) {
+                addUser(msg.from, sub.updated, sub.pub);
+            } else {
+                addUser(msg.from, msg.ts, null);
+            }
+        }
+
+        StoredMessage m = st.messages.get(msg.seq);
+        if (m == null) {
+            m = new StoredMessage(mNextId++, st, msg);
+            m.status = STATUS_SYNCED;
+            m.mine = msg.from != null && msg.from.equals(mMyUid);
+            st.messages.put(m.seq, m);
+            mMessages.put(m.id, m);
+        }
+        st.msgReceived(msg.ts, msg.seq);
+        return new StoredMessage(m, -1);
+    }
+
+    private Message insertMessage(Topic<?, ?, ?, ?> topic, Drafty data, Map<String, Object> head, int status) {
+        StoredTopic st = stored(topic);
+        if (st == null) {
+            return null;
+        }
+
+        MsgServerData msg = new MsgServerData();
+        msg.topic = st.name;
+        msg.from = mMyUid;
+        msg.ts = new Date(new Date().getTime() + mTimeAdjustment);
+        msg.seq = st.nextUnsentSeq++;
+        msg.head = head;
+        msg.content = data;
+
+        StoredMessage m = new StoredMessage(mNextId++, st, msg);
+        m.status = status;
+        m.mine = true;
+        st.messages.put(m.seq, m);
+        mMessages.put(m.id, m);
+        return new StoredMessage(m, -1);
+    }
+
+    @Override
+    public synchronized Message msgSend(Topic topic, Drafty data, Map<String, Object> head) {
+        return insertMessage(topic, data, head, STATUS_SENDING);
+    }
+
+    @Override
+    public synchronized Message msgDraft(Topic topic, Drafty data, Map<String, Object> head) {
+        return insertMessage(topic, data, head, STATUS_DRAFT);
+    }
+
+    private boolean updateStatusAndContent(long dbMessageId, int status, Drafty content) {
+        StoredMessage m = mMessages.get(dbMessageId);
+        if (m == null || (status == STATUS_UNDEFINED && content == null)) {
+            return false;
+        }
+        if (status != STATUS_UNDEFINED) {
+            m.status = status;
+        }
+        if (content != null) {
+            m.content = content;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean msgDraftUpdate(Topic topic, long dbMessageId, Drafty data) {
+        return updateStatusAndContent(dbMessageId, STATUS_UNDEFINED, data);
+    }
+
+    @Override
+    public synchronized boolean msgReady(Topic topic, long dbMessageId, Drafty data) {
+        return updateStatusAndContent(dbMessageId, STATUS_QUEUED, data);
+    }
+
+    @Override
+    public synchronized boolean msgSyncing(Topic topic, long dbMessageId, boolean sync) {
+        return updateStatusAndContent(dbMessageId, sync ? STATUS_SENDING : STATUS_QUEUED, null);
+    }
+
+    @Override
+    public synchronized boolean msgFailed(Topic topic, long dbMessageId) {
+        return updateStatusAndContent(dbMessageId, STATUS_FAILED, null);
+    }
+
+    @Override
+    public synchronized boolean msgPruneFailed(Topic topic) {
+        StoredTopic st = stored(topic);
+        if (st == null) {
+            return false;
+        }
+        boolean deleted = false;
+        Iterator<StoredMessage> iter = st.messages.values().iterator();
+        while (iter.hasNext()) {
+            StoredMessage m = iter.next();
+            if (m.status == STATUS_FAILED) {
+                iter.remove();
+                mMessages.remove(m.id);
+                deleted = true;
+            }
+        }
+        return deleted;
+    }
+
+    @Override
+    public synchronized boolean msgDiscard(Topic topic, long dbMessageId) {
+        StoredMessage m = mMessages.remove(dbMessageId);
+        if (m == null) {
+            return false;
+        }
+        m.owner.messages.remove(m.seq);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean msgDelivered(Topic topic, long dbMessageId, Date timestamp, int seq) {
+        StoredMessage m = mMessages.get(dbMessageId);
+        StoredTopic st = stored(topic);
+        if (m == null || st == null || m.owner != st) {
+            return false;
+        }
+        if (m.seq != seq && st.messages.containsKey(seq)) {
+            // Message with this seq is already received.
+            return false;
+        }
+        st.messages.remove(m.seq);
+        m.status = STATUS_SYNCED;
+        m.ts = timestamp;
+        m.seq = seq;
+        st.messages.put(seq, m);
+        st.msgReceived(timestamp, seq);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean msgMarkToDelete(Topic topic, int fromId, int toId, boolean markAsHard) {
+        StoredTopic st = stored(topic);
+        return st != null && deleteOrMarkDeleted(st, -1, fromId, toId, markAsHard);
+    }
+
+    @Override
+    public synchronized boolean msgMarkToDelete(Topic topic, MsgRange[] ranges, boolean markAsHard) {
+        StoredTopic st = stored(topic);
+        return st != null && deleteOrMarkDeleted(st, -1, ranges, markAsHard);
+    }
+
+    @Override
+    public synchronized boolean msgDelete(Topic topic, int delId, int fromId, int toId) {
+        StoredTopic st = stored(topic);
+        if (st == null) {
+            return false;
+        }
+        if (toId <= 0) {
+            toId = st.maxLocalSeq + 1;
+        }
+        st.msgDeleted(topic, delId, fromId, toId);
+        return deleteOrMarkDeleted(st, delId, fromId, toId, false);
+    }
+
+    @Override
+    public synchronized boolean msgDelete(Topic topic, int delId, MsgRange[] ranges) {
+        StoredTopic st = stored(topic);
+        if (st == null) {
+            return false;
+        }
+        ranges = MsgRange.collapse(ranges);
+        MsgRange span = MsgRange.enclosing(ranges);
+        st.msgDeleted(topic, delId, span.getLower(), span.getUpper());
+        return deleteOrMarkDeleted(st, delId, ranges, false);
+    }
+
+    private boolean deleteOrMarkDeleted(StoredTopic st, int delId, MsgRange[] ranges, boolean markAsHard) {
+        for (MsgRange r : ranges) {
+            if (!deleteOrMarkDeleted(st, delId, r.getLower(), r.getUpper(), markAsHard)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Delete messages in range [fromId, toId) and replace them with a deletion marker.
+     * 1. Delete all messages within the given range (sent, unsent, failed).
+     * 2. Delete all deletion ranges fully within this range: they are superseded.
+     * 3. Consume partially overlapping ranges of the same kind: server ranges with lower delId,
+     * or client ranges of the same hardness.
+     * 4. Insert a deletion marker for the expanded range.
+     */
+    private boolean deleteOrMarkDeleted(StoredTopic st, int delId, int fromId, int toId, boolean markAsHard) {
+        final int status;
+        if (delId > 0) {
+            status = STATUS_DELETED_SYNCED;
+        } else {
+            status = markAsHard ? STATUS_DELETED_HARD : STATUS_DELETED_SOFT;
+        }
+        final int low = Math.max(fromId, 0);
+
+        // Ranges which start below 'low' may overlap it too.
+        Iterator<StoredMessage> iter = st.messages.values().iterator();
+        int newLow = low > 0 ? low : 1;
+        int newHigh = toId;
+        List<StoredMessage> consumed = new ArrayList<>();
+        while (iter.hasNext()) {
+            StoredMessage m = iter.next();
+            if (m.seq > toId) {
+                break;
+            }
+            if (!m.isRange()) {
+                // 1. Messages in range.
+                if (m.seq >= low && m.seq < toId && m.status <= STATUS_SYNCED) {
+                    iter.remove();
+                    mMessages.remove(m.id);
+                }
+                continue;
+            }
+
+            if (m.seq >= low && m.high <= toId) {
+                // 2. Range fully within the new range.
+                iter.remove();
+                mMessages.remove(m.id);
+            } else if (m.status == status && (delId <= 0 || m.delId < delId) && (low <= 0 || m.high >= low)) {
+                // 3. Partially overlapping range of the same kind.
+                newLow = Math.min(newLow, m.seq);
+                newHigh = Math.max(newHigh, m.high);
+                consumed.add(m);
+            }
+        }
+        for (StoredMessage m : consumed) {
+            st.messages.remove(m.seq);
+            mMessages.remove(m.id);
+        }
+
+        if (st.messages.containsKey(newLow)) {
+            // Same as unique constraint violation: a different kind of range starts at the same seq.
+            return false;
+        }
+
+        // 4. Insert new range.
+        MsgServerData data = new MsgServerData();
+        data.topic = st.name;
+        data.seq = newLow;
+        StoredMessage range = new StoredMessage(mNextId++, st, data);
+        range.status = status;
+        range.delId = delId;
+        range.high = newHigh;
+        st.messages.put(range.seq, range);
+        mMessages.put(range.id, range);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean msgRecvByRemote(Subscription sub, int recv) {
+        StoredSubscription ss = storedSub(sub);
+        if (ss == null || ss.sub.recv >= recv) {
+            return false;
+        }
+        ss.sub.recv = recv;
+        return true;
+    }
+
+    @Override
+    public synchronized boolean msgReadByRemote(Subscription sub, int read) {
+        StoredSubscription ss = storedSub(sub);
+        if (ss == null || ss.sub.read >= read) {
+            return false;
+        }
+        ss.sub.read = read;
+        return true;
+    }
+
+    @Override
+    public synchronized int subReadRecvBatch(Collection<Subscription> subs) {
+        int count = 0;
+        for (Subscription sub : subs) {
+            boolean recv = msgRecvByRemote(sub, sub.recv);
+            boolean read = msgReadByRemote(sub, sub.read);
+            if (recv || read) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized MsgRange getCachedMessagesRange(Topic topic) {
+        StoredTopic st = (StoredTopic) topic.getLocal();
+        if (st != null) {
+            return new MsgRange(st.minLocalSeq, st.maxLocalSeq + 1);
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized MsgRange getNextMissingRange(Topic topic) {
+        StoredTopic st = stored(topic);
+        if (st == null) {
+            return null;
+        }
+
+        // Walk messages and ranges in ascending order and find the latest gap.
+        MsgRange gap = null;
+        int end = 1;
+        for (StoredMessage m : st.messages.headMap(UNSENT_ID_START, false).values()) {
+            if (m.seq > end) {
+                gap = new MsgRange(end, m.seq);
+            }
+            end = Math.max(end, m.isRange() ? m.high : m.seq + 1);
+        }
+        return gap;
+    }
+
+    @Override
+    public synchronized boolean setRead(Topic topic, int read) {
+        StoredTopic st = stored(topic);
+        if (st == null || st.read >= read) {
+            return false;
+        }
+        st.read = read;
+        return true;
+    }
+
+    @Override
+    public synchronized boolean setRecv(Topic topic, int recv) {
+        StoredTopic st = stored(topic);
+        if (st == null || st.recv >= recv) {
+            return false;
+        }
+        st.recv = recv;
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public synchronized <T extends Message> T getMessageById(long dbMessageId) {
+        StoredMessage m = mMessages.get(dbMessageId);
+        return m != null ? (T) new StoredMessage(m, -1) : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public synchronized <T extends Message> T getMessagePreviewById(long dbMessageId) {
+        StoredMessage m = mMessages.get(dbMessageId);
+        return m != null ? (T) new StoredMessage(m, MESSAGE_PREVIEW_LENGTH) : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public synchronized <T extends Iterator<Message> & Closeable> T getLatestMessagePreviews() {
+        List<Message> list = new ArrayList<>();
+        for (StoredTopic st : mTopics.values()) {
+            for (StoredMessage m : st.messages.descendingMap().values()) {
+                if (!m.isRange()) {
+                    list.add(new StoredMessage(m, MESSAGE_PREVIEW_LENGTH));
+                    break;
+                }
+            }
+        }
+        return (T) new MessageList(list);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public synchronized <T extends Iterator<Message> & Closeable> T getQueuedMessages(Topic topic) {
+        StoredTopic st = stored(topic);
+        if (st == null) {
+            return null;
+        }
+        List<StoredMessage> queued = new ArrayList<>();
+        for (StoredMessage m : st.messages.values()) {
+            if (m.status == STATUS_QUEUED) {
+                queued.add(m);
+            }
+        }
+        Collections.sort(queued, (a, b) -> a.ts.compareTo(b.ts));
+        List<Message> list = new ArrayList<>(queued.size());
+        for (StoredMessage m : queued) {
+            list.add(new StoredMessage(m, -1));
+        }
+        return (T) new MessageList(list);
+    }
+
+    @Override
+    public synchronized MsgRange[] getQueuedMessageDeletes(Topic topic, boolean hard) {
+        StoredTopic st = stored(topic);
+        if (st == null) {
+            return null;
+        }
+        final int status = hard ? STATUS_DELETED_HARD : STATUS_DELETED_SOFT;
+        List<MsgRange> ranges = new ArrayList<>();
+        for (StoredMessage m : st.messages.values()) {
+            if (m.status == status) {
+                ranges.add(new MsgRange(m.seq, m.high));
+            }
+        }
+        return ranges.isEmpty() ? null : ranges.toArray(new MsgRange[0]);
+    }
+
+    /**
+     * Stored copy of topic description and local state of the topic.
+     */
+    private static class StoredTopic implements LocalData.Payload {
+        final long id;
+        String name;
+        int status;
+        Date lastUsed;
+        // Seq values of the earliest and the latest cached messages.
+        int minLocalSeq = 0;
+        int maxLocalSeq = 0;
+        int nextUnsentSeq = UNSENT_ID_START;
+
+        Date updated;
+        int read;
+        int recv;
+        int seq;
+        int clear;
+        int maxDel;
+        String[] tags;
+        Date lastSeen;
+        String lastSeenUA;
+        Object pub;
+        TrustedType trusted;
+        Object priv;
+        Acs accessMode;
+        Defacs defacs;
+        Credential[] creds;
+        boolean channelAccess;
+
+        // Messages and deletion ranges by seq.
+        final TreeMap<Integer, StoredMessage> messages = new TreeMap<>();
+        // Subscriptions by user ID.
+        final Map<String, StoredSubscription> subs = new HashMap<>();
+
+        StoredTopic(long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        void save(Topic<?, ?, ?, ?> topic) {
+            updated = topic.getUpdated();
+            read = topic.getRead();
+            recv = topic.getRecv();
+            seq = topic.getSeq();
+            clear = topic.getClear();
+            maxDel = topic.getMaxDel();
+            tags = topic.getTags();
+            lastSeen = topic.getLastSeen();
+            lastSeenUA = topic.getLastSeenUA();
+            pub = topic.getPub();
+            trusted = topic.getTrusted();
+            priv = topic.getPriv();
+            accessMode = topic.getAccessMode() != null ? new Acs(topic.getAccessMode()) : null;
+            defacs = topic.getDefacs();
+            if (topic instanceof MeTopic) {
+                creds = ((MeTopic) topic).getCreds();
+            }
+            if (topic instanceof ComTopic) {
+                channelAccess = ((ComTopic) topic).hasChannelAccess();
+            }
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Topic restore(Tinode tinode) {
+            Topic topic = Tinode.newTopic(tinode, name, null);
+            topic.setUpdated(updated);
+            topic.setTouched(lastUsed);
+            topic.setRead(read);
+            topic.setRecv(recv);
+            topic.setSeq(seq);
+            topic.setClear(clear);
+            topic.setMaxDel(maxDel);
+            topic.setTags(tags);
+            if (lastSeen != null) {
+                topic.setLastSeen(lastSeen, lastSeenUA);
+            }
+            if (topic instanceof MeTopic) {
+                ((MeTopic) topic).setCreds(creds);
+            }
+            if (topic instanceof ComTopic) {
+                ((ComTopic) topic).setHasChannelAccess(channelAccess);
+            }
+            topic.setPub(pub);
+            topic.setTrusted(trusted);
+            topic.setPriv(priv);
+            topic.setAccessMode(accessMode != null ? new Acs(accessMode) : new Acs());
+            topic.setDefacs(defacs);
+            topic.setLocal(this);
+            return topic;
+        }
+
+        // Update cached range and counters after a message was received or delivered.
+        void msgReceived(Date timestamp, int seq) {
+            if (seq > maxLocalSeq) {
+                maxLocalSeq = seq;
+                recv = Math.max(recv, seq);
+            }
+            if (seq > 0 && (minLocalSeq == 0 || seq < minLocalSeq)) {
+                minLocalSeq = seq;
+            }
+            if (seq > this.seq) {
+                this.seq = seq;
+            }
+            if (timestamp != null && (lastUsed == null || timestamp.after(lastUsed))) {
+                lastUsed = timestamp;
+            }
+        }
+
+        // Expand cached range after messages were deleted: deleted messages are known and need not be fetched.
+        void msgDeleted(Topic<?, ?, ?, ?> topic, int delId, int lowId, int hiId) {
+            if (delId > maxDel) {
+                maxDel = delId;
+            }
+            if (lowId <= 0) {
+                lowId = 1;
+            }
+            if (hiId > 1) {
+                // Upper bound is exclusive. Convert to inclusive.
+                hiId--;
+            } else {
+                hiId = topic.getSeq();
+            }
+
+            // Expand the available range only when there is an overlap.
+            if (lowId < minLocalSeq && hiId >= minLocalSeq) {
+                minLocalSeq = lowId;
+            } else {
+                lowId = -1;
+            }
+            if (hiId > maxLocalSeq && lowId <= maxLocalSeq) {
+                maxLocalSeq = hiId;
+            }
+        }
+    }
+
+    private static class StoredSubscription implements LocalData.Payload {
+        final long id;
+        final long topicId;
+        int status;
+        // Copy of the subscription.
+        Subscription<Object, Object> sub;
+
+        StoredSubscription(long id, long topicId, int status) {
+            this.id = id;
+            this.topicId = topicId;
+            this.status = status;
+        }
+    }
+
+    private static class StoredUser implements LocalData.Payload {
+        final long id;
+        final String uid;
+        Date updated;
+        Object pub;
+
+        StoredUser(long id, String uid) {
+            this.id = id;
+            this.uid = uid;
+        }
+
+        void merge(Date updated, Object pub) {
+            if (updated != null) {
+                this.updated = updated;
+            }
+            if (pub != null) {
+                this.pub = pub;
+            }
+        }
+    }
+
+    /**
+     * Stored message or a deletion range. Callers always receive copies.
+     */
+    private static class StoredMessage extends MsgServerData implements Message {
+        final long id;
+        final StoredTopic owner;
+        int status;
+        int delId;
+        // Upper bound of a deletion range, exclusive; 0 if this is a message.
+        int high;
+        // Message was sent by the current user.
+        boolean mine;
+
+        StoredMessage(long id, StoredTopic owner, MsgServerData m) {
+            this.id = id;
+            this.owner = owner;
+            topic = m.topic;
+            head = m.head;
+            from = m.from;
+            ts = m.ts;
+            seq = m.seq;
+            content = m.content;
+        }
+
+        // Copy of a stored message, optionally with content shortened to previewLength.
+        StoredMessage(StoredMessage that, int previewLength) {
+            this(that.id, that.owner, that);
+            topic = owner.name;
+            status = that.status;
+            delId = that.delId;
+            high = that.high;
+            mine = that.mine;
+            if (previewLength > 0 && content != null) {
+                content = content.preview(previewLength);
+            }
+        }
+
+        boolean isRange() {
+            return high > 0;
+        }
+
+        @Override
+        public String getTopic() {
+            return topic;
+        }
+
+        @Override
+        public Map<String, Object> getHead() {
+            return head;
+        }
+
+        @Override
+        public Drafty getContent() {
+            return content;
+        }
+
+        @Override
+        public void setContent(Drafty content) {
+            this.content = content;
+        }
+
+        @Override
+        public long getDbId() {
+            return id;
+        }
+
+        @Override
+        public int getSeqId() {
+            return seq;
+        }
+
+        @Override
+        public int getStatus() {
+            return status;
+        }
+
+        @Override
+        public boolean isMine() {
+            return mine;
+        }
+
+        @Override
+        public boolean isPending() {
+            return status == STATUS_DRAFT || status == STATUS_QUEUED || status == STATUS_SENDING;
+        }
+
+        @Override
+        public boolean isReady() {
+            return status == STATUS_QUEUED;
+        }
+
+        @Override
+        public boolean isDeleted() {
+            return status == STATUS_DELETED_SOFT || status == STATUS_DELETED_HARD;
+        }
+
+        @Override
+        public boolean isDeleted(boolean hard) {
+            return hard ? status == STATUS_DELETED_HARD : status == STATUS_DELETED_SOFT;
+        }
+
+        @Override
+        public boolean isSynced() {
+            return status == STATUS_SYNCED;
+        }
+    }
+
+    private static class MessageList implements Iterator<Message>, Closeable {
+        private final Iterator<Message> mIter;
+
+        MessageList(List<Message> list) {
+            mIter = list.iterator();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mIter.hasNext();
+        }
+
+        @Override
+        public Message next() {
+            return mIter.next();
+        }
+    }
+}
@@ -47,6 +47,14 @@ public interface Storage {
     /** Delete topic */
     @SuppressWarnings("UnusedReturnValue")
     boolean topicDelete(Topic topic);
+    /**
+     * Insert new and update existing topics in one transaction, e.g. a page of {meta sub} of 'me'.
+     * A topic which is already stored but not yet linked to its record is updated, not inserted.
+     *
+     * @return number of saved topics.
+     */
+    @SuppressWarnings("UnusedReturnValue")
+    int topicUpsertBatch(Collection<Topic> topics);
 
     /** Add subscription in a generic topic. The subscription is received from the server. */
     @SuppressWarnings("UnusedReturnValue")
@@ -60,6 +68,15 @@ public interface Storage {
     /** Delete existing subscription */
     @SuppressWarnings("UnusedReturnValue")
     boolean subDelete(Topic topic, Subscription sub);
+    /**
+     * Save a page of subscriptions received from the server in one transaction. Subscriptions with
+     * 'deleted' set are removed, others are merged with the stored ones or inserted. Read and recv
+     * counters are never decreased.
+     *
+     * @return number of saved subscriptions.
+     */
+    @SuppressWarnings("UnusedReturnValue")
+    int subUpsertBatch(Topic topic, Collection<Subscription> subs);
 
     /** Get a list o topic subscriptions from DB. */
     Collection<Subscription> getSubscriptions(Topic topic);
@@ -72,6 +89,9 @@ public interface Storage {
     /** Update existing user */
     @SuppressWarnings("UnusedReturnValue")
     boolean userUpdate(User user);
+    /** Insert new and update existing users in one transaction. */
+    @SuppressWarnings("UnusedReturnValue")
+    int userUpsertBatch(Collection<User> users);
 
     /**
      * Message received from the server.
@@ -186,6 +206,13 @@ public interface Storage {
     /** Set read value for a given subscriber */
     @SuppressWarnings("UnusedReturnValue")
     boolean msgReadByRemote(Subscription sub, int read);
+    /**
+     * Save read and recv values of several subscriptions at once. Stored values are never decreased.
+     *
+     * @return number of updated subscriptions.
+     */
+    @SuppressWarnings("UnusedReturnValue")
+    int subReadRecvBatch(Collection<Subscription> subs);
 
     /** Get seq IDs of the stored messages as a MsgRange, inclusive-exclusive [low, hi) */
     MsgRange getCachedMessagesRange(Topic topic);
@@ -0,0 +1,518 @@
+package co.tinode.tinodesdk;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import co.tinode.tinodesdk.model.Drafty;
+
+/**
+ * Compact versioned binary format for persisting message content and headers.
+ * <p>
+ * Layout: [version:1][type:1][payload]. Type is one of TYPE_* constants, optionally OR-ed with
+ * FLAG_DEFLATED if the payload is compressed. In the compressed case the payload starts with
+ * the varint length of the uncompressed data.
+ * <p>
+ * Drafty is encoded field by field, maps, lists and primitive values are encoded with a one byte
+ * tag followed by value. Objects of other classes are encoded as canonical class name and JSON.
+ */
+public class StorageCodec {
+    // Current version of the format.
+    public static final int VERSION = 1;
+
+    // Payloads longer than this are compressed if compression makes them smaller.
+    private static final int COMPRESSION_THRESHOLD = 256;
+    // Maximum size of uncompressed payload, a sanity check against corrupt data.
+    private static final int MAX_INFLATED_SIZE = 1 << 25;
+    // Deflate cannot compress data by more than this ratio.
+    private static final int MAX_DEFLATE_RATIO = 1032;
+
+    // Top-level types.
+    private static final int TYPE_DRAFTY = 1;
+    private static final int TYPE_MAP = 2;
+    private static final int TYPE_OBJECT = 3;
+    private static final int FLAG_DEFLATED = 0x80;
+
+    // Value tags.
+    private static final int TAG_NULL = 0;
+    private static final int TAG_FALSE = 1;
+    private static final int TAG_TRUE = 2;
+    private static final int TAG_INT = 3;
+    private static final int TAG_DOUBLE = 4;
+    private static final int TAG_STRING = 5;
+    private static final int TAG_BYTES = 6;
+    private static final int TAG_LIST = 7;
+    private static final int TAG_MAP = 8;
+    private static final int TAG_OBJECT = 9;
+
+    /**
+     * Check if the bytes look like output of {@link #encode(Object)}.
+     */
+    public static boolean isEncoded(byte[] data) {
+        return data != null && data.length >= 2 && data[0] == VERSION;
+    }
+
+    /**
+     * Encode Drafty, Map or a JSON-serializable object.
+     *
+     * @param obj object to encode.
+     * @return encoded object or null if obj is null.
+     * @throws IllegalArgumentException if object cannot be encoded.
+     */
+    public static byte[] encode(Object obj) {
+        if (obj == null) {
+            return null;
+        }
+
+        Writer w = new Writer();
+        int type;
+        if (obj instanceof Drafty) {
+            type = TYPE_DRAFTY;
+            writeDrafty(w, (Drafty) obj);
+        } else if (obj instanceof Map) {
+            type = TYPE_MAP;
+            writeMap(w, (Map<?, ?>) obj);
+        } else {
+            type = TYPE_OBJECT;
+            writeObject(w, obj);
+        }
+
+        byte[] payload = w.toByteArray();
+        if (payload.length > COMPRESSION_THRESHOLD) {
+            byte[] deflated = deflate(payload);
+            if (deflated != null) {
+                type |= FLAG_DEFLATED;
+                payload = deflated;
+            }
+        }
+
+        byte[] result = new byte[payload.length + 2];
+        result[0] = VERSION;
+        result[1] = (byte) type;
+        System.arraycopy(payload, 0, result, 2, payload.length);
+        return result;
+    }
+
+    /**
+     * Decode object encoded by {@link #encode(Object)}.
+     *
+     * @param data encoded object.
+     * @return decoded object or null if data is null.
+     * @throws IllegalArgumentException if data is malformed or of unknown version.
+     */
+    public static <T> T decode(byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        if (!isEncoded(data)) {
+            throw new IllegalArgumentException("Unknown format version");
+        }
+
+        int type = data[1] & 0xFF;
+        Reader r;
+        if ((type & FLAG_DEFLATED) != 0) {
+            r = new Reader(inflate(data, 2), 0);
+            type &= ~FLAG_DEFLATED;
+        } else {
+            r = new Reader(data, 2);
+        }
+
+        try {
+            Object result;
+            switch (type) {
+                case TYPE_DRAFTY:
+                    result = readDrafty(r);
+                    break;
+                case TYPE_MAP:
+                    result = readMap(r);
+                    break;
+                case TYPE_OBJECT:
+                    result = readObject(r);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown type " + type);
+            }
+            // The caller knows the type of the stored object, as with BaseDb.deserialize().
+            @SuppressWarnings("unchecked")
+            T value = (T) result;
+            return value;
+        } catch (IndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("Truncated data", ex);
+        }
+    }
+
+    private static void writeDrafty(Writer w, Drafty d) {
+        w.writeString(d.txt);
+        if (d.fmt == null) {
+            w.writeVarint(0);
+        } else {
+            w.writeVarint(d.fmt.length + 1);
+            for (Drafty.Style st : d.fmt) {
+                // 'at' is -1 for attachments.
+                w.writeSignedVarint(st.at);
+                w.writeSignedVarint(st.len);
+                w.writeString(st.tp);
+                w.writeVarint(st.key == null ? 0 : st.key + 1);
+            }
+        }
+        if (d.ent == null) {
+            w.writeVarint(0);
+        } else {
+            w.writeVarint(d.ent.length + 1);
+            for (Drafty.Entity ent : d.ent) {
+                w.writeString(ent.tp);
+                writeValue(w, ent.data);
+            }
+        }
+    }
+
+    private static Drafty readDrafty(Reader r) {
+        Drafty d = new Drafty();
+        d.txt = r.readString();
+        int count = r.readCount(1);
+        if (count > 0) {
+            d.fmt = new Drafty.Style[count - 1];
+            for (int i = 0; i < d.fmt.length; i++) {
+                Drafty.Style st = new Drafty.Style();
+                st.at = r.readSignedVarint();
+                st.len = r.readSignedVarint();
+                st.tp = r.readString();
+                int key = r.readVarint();
+                st.key = key == 0 ? null : key - 1;
+                d.fmt[i] = st;
+            }
+        }
+        count = r.readCount(1);
+        if (count > 0) {
+            d.ent = new Drafty.Entity[count - 1];
+            for (int i = 0; i < d.ent.length; i++) {
+                String tp = r.readString();
+                d.ent[i] = new Drafty.Entity(tp, readMapOrNull(r));
+            }
+        }
+        return d;
+    }
+
+    private static void writeMap(Writer w, Map<?, ?> map) {
+        w.writeVarint(map.size());
+        for (Map.Entry<?, ?> e : map.entrySet()) {
+            w.writeString(String.valueOf(e.getKey()));
+            writeValue(w, e.getValue());
+        }
+    }
+
+    private static Map<String, Object> readMap(Reader r) {
+        int size = r.readCount(0);
+        Map<String, Object> map = new LinkedHashMap<>(size * 4 / 3 + 1);
+        for (int i = 0; i < size; i++) {
+            String key = r.readString();
+            map.put(key, readValue(r));
+        }
+        return map;
+    }
+
+    // Read value written by writeValue() which must be a map or null.
+    private static Map<String, Object> readMapOrNull(Reader r) {
+        int tag = r.readByte();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_MAP:
+                return readMap(r);
+            default:
+                throw new IllegalArgumentException("Expected map, found tag " + tag);
+        }
+    }
+
+    private static void writeObject(Writer w, Object obj) {
+        try {
+            w.writeString(obj.getClass().getCanonicalName());
+            w.writeString(Tinode.jsonSerialize(obj));
+        } catch (JsonProcessingException ex) {
+            throw new IllegalArgumentException("Failed to serialize " + obj.getClass().getName(), ex);
+        }
+    }
+
+    private static Object readObject(Reader r) {
+        String className = r.readString();
+        String json = r.readString();
+        return Tinode.jsonDeserialize(json, className);
+    }
+
+    private static void writeValue(Writer w, Object val) {
+        if (val == null) {
+            w.writeByte(TAG_NULL);
+        } else if (val instanceof Boolean) {
+            w.writeByte((Boolean) val ? TAG_TRUE : TAG_FALSE);
+        } else if (val instanceof Integer || val instanceof Long ||
+                val instanceof Short || val instanceof Byte) {
+            w.writeByte(TAG_INT);
+            w.writeSignedVarint(((Number) val).longValue());
+        } else if (val instanceof Double || val instanceof Float) {
+            w.writeByte(TAG_DOUBLE);
+            w.writeLong(Double.doubleToLongBits(((Number) val).doubleValue()));
+        } else if (val instanceof String) {
+            w.writeByte(TAG_STRING);
+            w.writeString((String) val);
+        } else if (val instanceof byte[]) {
+            w.writeByte(TAG_BYTES);
+            w.writeBlob((byte[]) val);
+        } else if (val instanceof Collection) {
+            w.writeByte(TAG_LIST);
+            Collection<?> list = (Collection<?>) val;
+            w.writeVarint(list.size());
+            for (Object item : list) {
+                writeValue(w, item);
+            }
+        } else if (val instanceof Object[]) {
+            w.writeByte(TAG_LIST);
+            Object[] list = (Object[]) val;
+            w.writeVarint(list.length);
+            for (Object item : list) {
+                writeValue(w, item);
+            }
+        } else if (val instanceof Map) {
+            w.writeByte(TAG_MAP);
+            writeMap(w, (Map<?, ?>) val);
+        } else {
+            w.writeByte(TAG_OBJECT);
+            writeObject(w, val);
+        }
+    }
+
+    private static Object readValue(Reader r) {
+        int tag = r.readByte();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_INT: {
+                // Same as JSON parser: Integer if the value fits, Long otherwise.
+                long val = r.readSignedVarlong();
+                if (val >= Integer.MIN_VALUE && val <= Integer.MAX_VALUE) {
+                    return (int) val;
+                }
+                return val;
+            }
+            case TAG_DOUBLE:
+                return Double.longBitsToDouble(r.readLong());
+            case TAG_STRING:
+                return r.readString();
+            case TAG_BYTES:
+                return r.readBlob();
+            case TAG_LIST: {
+                int size = r.readCount(0);
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(r));
+                }
+                return list;
+            }
+            case TAG_MAP:
+                return readMap(r);
+            case TAG_OBJECT:
+                return readObject(r);
+            default:
+                throw new IllegalArgumentException("Unknown value tag " + tag);
+        }
+    }
+
+    // Compress data. Returns null if compression does not save space.
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            Writer w = new Writer();
+            w.writeVarint(data.length);
+            byte[] buffer = new byte[data.length];
+            int length = 0;
+            while (!deflater.finished() && length < buffer.length) {
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            if (!deflater.finished() || w.size() + length >= data.length) {
+                return null;
+            }
+            w.write(buffer, 0, length);
+            return w.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data, int offset) {
+        Reader r = new Reader(data, offset);
+        int length = r.readVarint();
+        int available = data.length - r.pos;
+        if (length > MAX_INFLATED_SIZE || (long) length > (long) available * MAX_DEFLATE_RATIO) {
+            throw new IllegalArgumentException("Invalid uncompressed length " + length);
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, r.pos, available);
+            byte[] result = new byte[length];
+            int count = 0;
+            while (count < length && !inflater.finished()) {
+                int n = inflater.inflate(result, count, length - count);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                count += n;
+            }
+            if (count != length) {
+                throw new IllegalArgumentException("Truncated compressed data");
+            }
+            return result;
+        } catch (DataFormatException ex) {
+            throw new IllegalArgumentException("Malformed compressed data", ex);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static class Writer extends ByteArrayOutputStream {
+        Writer() {
+            super(128);
+        }
+
+        void writeByte(int b) {
+            write(b);
+        }
+
+        void writeVarint(long val) {
+            while ((val & ~0x7FL) != 0) {
+                write((int) ((val & 0x7F) | 0x80));
+                val >>>= 7;
+            }
+            write((int) val);
+        }
+
+        void writeSignedVarint(long val) {
+            // Zig-zag encoding: small negative values take few bytes.
+            writeVarint((val << 1) ^ (val >> 63));
+        }
+
+        void writeLong(long val) {
+            for (int i = 0; i < 8; i++) {
+                write((int) (val >>> (i * 8)));
+            }
+        }
+
+        void writeBlob(byte[] val) {
+            writeVarint(val.length);
+            write(val, 0, val.length);
+        }
+
+        // Strings are nullable: length is incremented by one, 0 means null.
+        void writeString(String val) {
+            if (val == null) {
+                writeVarint(0);
+                return;
+            }
+            byte[] bytes = val.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length + 1);
+            write(bytes, 0, bytes.length);
+        }
+    }
+
+    private static class Reader {
+        private final byte[] buf;
+        private int pos;
+
+        Reader(byte[] buf, int offset) {
+            this.buf = buf;
+            this.pos = offset;
+        }
+
+        int readByte() {
+            if (pos >= buf.length) {
+                throw new IndexOutOfBoundsException();
+            }
+            return buf[pos++] & 0xFF;
+        }
+
+        long readVarlong() {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        int readVarint() {
+            long val = readVarlong();
+            if (val < 0 || val > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Varint out of range");
+            }
+            return (int) val;
+        }
+
+        long readSignedVarlong() {
+            long val = readVarlong();
+            return (val >>> 1) ^ -(val & 1);
+        }
+
+        // Read number of elements of a list, map or array. Each element takes at least one byte,
+        // so a count larger than the remaining data means the data is corrupt.
+        int readCount(int bias) {
+            int count = readVarint();
+            if (count - bias > buf.length - pos) {
+                throw new IllegalArgumentException("Invalid element count " + count);
+            }
+            return count;
+        }
+
+        int readSignedVarint() {
+            return (int) readSignedVarlong();
+        }
+
+        long readLong() {
+            long val = 0;
+            for (int i = 0; i < 8; i++) {
+                val |= (long) readByte() << (i * 8);
+            }
+            return val;
+        }
+
+        byte[] readBlob() {
+            int length = readVarint();
+            if (length > buf.length - pos) {
+                throw new IndexOutOfBoundsException();
+            }
+            byte[] result = new byte[length];
+            System.arraycopy(buf, pos, result, 0, length);
+            pos += length;
+            return result;
+        }
+
+        String readString() {
+            int length = readVarint();
+            if (length == 0) {
+                return null;
+            }
+            length--;
+            if (length > buf.length - pos) {
+                throw new IndexOutOfBoundsException();
+            }
+            String result = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return result;
+        }
+    }
+}
@@ -87,6 +87,8 @@ public class Tinode {
     public static final String MIN_TAG_LENGTH = "minTagLength";
     public static final String MAX_TAG_COUNT = "maxTagCount";
     public static final String MAX_FILE_UPLOAD_SIZE = "maxFileUploadSize";
+    // Name of the server-provided flag: the server accepts resumable uploads, see LargeFileHelper.uploadResumable.
+    public static final String RESUMABLE_UPLOADS = "resumableUploads";
     // Value interpreted as 'content deleted'.
     public static final String NULL_VALUE = "\u2421";
     // Notifications {note}.
@@ -109,6 +111,8 @@ public class Tinode {
     private static final ObjectMapper sJsonMapper;
     protected static final TypeFactory sTypeFactory;
     protected static final SimpleDateFormat sDateFormat;
+    // Cache of types constructed from canonical class names: parsing the name is expensive.
+    private static final ConcurrentMap<String, JavaType> sCanonicalTypes = new ConcurrentHashMap<>();
 
     static {
         sJsonMapper = new ObjectMapper();
@@ -132,6 +136,8 @@ public class Tinode {
     private final Object mConnLock = new Object();
     private final HashMap<Topic.TopicType, JavaType> mTypeOfMetaPacket;
     private final Storage mStore;
+    // Asynchronous access to mStore for use on network and UI threads.
+    private final AsyncStorage mAsyncStore;
     private final String mApiKey;
     private final String mAppName;
     private final ListenerNotifier mNotifier;
@@ -176,6 +182,11 @@ public class Tinode {
 
     private Map<String, Long> mServerLimits = null;
 
+    // The server accepts resumable uploads.
+    private volatile boolean mResumableUploads = false;
+    // Storage of resumable upload sessions.
+    private LargeFileHelper.SessionStore mUploadSessions = new LargeFileHelper.MemorySessionStore();
+
     /**
      * Initialize Tinode package
      *
@@ -218,6 +229,7 @@ public class Tinode {
         mUsers = new ConcurrentHashMap<>();
 
         mStore = store;
+        mAsyncStore = store != null ? new AsyncStorage(store) : null;
         if (mStore != null) {
             mMyUid = mStore.getMyUid();
             mDeviceToken = mStore.getDeviceToken();
@@ -283,7 +295,7 @@ public class Tinode {
      */
     public static <T> T jsonDeserialize(String input, String canonicalName) {
         try {
-            return sJsonMapper.readValue(input, sTypeFactory.constructFromCanonical(canonicalName));
+            return sJsonMapper.readValue(input, typeFromCanonical(canonicalName));
         } catch (Error | Exception e) {
             Log.w(TAG, "Failed to deserialize saved '" + input +
                     "' into '" + canonicalName + "'", e);
@@ -301,12 +313,29 @@ public class Tinode {
     public static <T> T[] jsonDeserializeArray(String input, String canonicalName) {
         try {
             return sJsonMapper.readValue(input, sTypeFactory.constructArrayType(
-                    sTypeFactory.constructFromCanonical(canonicalName)));
+                    typeFromCanonical(canonicalName)));
         } catch (IllegalArgumentException | IOException e) {
             return null;
         }
     }
 
+    /**
+     * Get type from canonical class name, like "java.util.HashMap<java.lang.String,java.lang.Object>".
+     * Parsed types are cached.
+     *
+     * @param canonicalName canonical name of the class.
+     * @return type which corresponds to the name.
+     * @throws IllegalArgumentException if the name cannot be parsed.
+     */
+    public static JavaType typeFromCanonical(String canonicalName) {
+        JavaType type = sCanonicalTypes.get(canonicalName);
+        if (type == null) {
+            type = sTypeFactory.constructFromCanonical(canonicalName);
+            sCanonicalTypes.put(canonicalName, type);
+        }
+        return type;
+    }
+
     /**
      * Get minimum delay between two subsequent key press notifications.
      */
@@ -371,18 +400,33 @@ public class Tinode {
         mOsVersion = os;
     }
 
-    private <ML extends Iterator<Storage.Message> & Closeable> void loadTopics() {
+    /**
+     * Load topics from storage if they are not loaded yet and the storage is ready. Topics which are already
+     * in memory are kept.
+     */
+    public synchronized <ML extends Iterator<Storage.Message> & Closeable> void loadTopics() {
         if (mStore != null && mStore.isReady() && !mTopicsLoaded) {
+            // Load last message for each topic in parallel with the topics.
+            PromisedReply<ML> previews = mAsyncStore.read(store -> store.getLatestMessagePreviews());
+
             Topic[] topics = mStore.topicGetAll(this);
             if (topics != null) {
                 for (Topic tt : topics) {
+                    if (mTopics.containsKey(tt.getName())) {
+                        continue;
+                    }
                     tt.setStorage(mStore);
                     mTopics.put(tt.getName(), new Pair<>(tt, null));
                     setTopicsUpdated(tt.getUpdated());
                 }
             }
-            // Load last message for each topic.
-            ML latest = mStore.getLatestMessagePreviews();
+
+            ML latest = null;
+            try {
+                latest = previews.getResult();
+            } catch (Exception ex) {
+                Log.w(TAG, "Failed to load message previews", ex);
+            }
             if (latest != null) {
                 while (latest.hasNext()) {
                     Storage.Message msg = latest.next();
@@ -548,6 +592,7 @@ public class Tinode {
 
         mServerBuild = null;
         mServerVersion = null;
+        mResumableUploads = false;
 
         // Reject all pending promises.
         ServerResponseException ex = new ServerResponseException(503, "disconnected");
@@ -560,6 +605,11 @@ public class Tinode {
 
         mFutures.clear();
 
+        // Save coalesced read/recv notifications now: the app may be stopped soon after it's disconnected.
+        if (mAsyncStore != null) {
+            mAsyncStore.flushReceipts();
+        }
+
         // Mark all topics as un-attached.
         for (Pair<Topic, ?> pair : mTopics.values()) {
             pair.first.topicLeft(false, 503, "disconnected");
@@ -917,6 +967,7 @@ public class Tinode {
 
     /**
      * Get {@link LargeFileHelper} object initialized for use with file uploading.
+     * Resumable uploads are enabled only if the server has advertised support for them in response to {hi}.
      *
      * @return LargeFileHelper object.
      */
@@ -926,7 +977,25 @@ public class Tinode {
             url = new URL(getBaseUrl(), "./file/u/");
         } catch (MalformedURLException ignored) {
         }
-        return new LargeFileHelper(url, getApiKey(), getAuthToken(), makeUserAgent());
+        return new LargeFileHelper(url, getApiKey(), getAuthToken(), makeUserAgent(),
+                mResumableUploads ? mUploadSessions : null);
+    }
+
+    /**
+     * Check if the server accepts resumable uploads, see {@link LargeFileHelper#uploadResumable}.
+     */
+    public boolean isResumableUploadSupported() {
+        return mResumableUploads;
+    }
+
+    /**
+     * Set storage for sessions of resumable uploads, see {@link LargeFileHelper#uploadResumable}.
+     * By default sessions are kept in memory and lost when the process exits.
+     *
+     * @param store session storage; null disables resumable uploads.
+     */
+    public void setUploadSessionStore(LargeFileHelper.SessionStore store) {
+        mUploadSessions = store;
     }
 
     /**
@@ -1003,6 +1072,7 @@ public class Tinode {
                         if (pkt.ctrl.params != null) {
                             mServerVersion = (String) pkt.ctrl.params.get("ver");
                             mServerBuild = (String) pkt.ctrl.params.get("build");
+                            mResumableUploads = Boolean.TRUE.equals(pkt.ctrl.params.get(RESUMABLE_UPLOADS));
                             mServerLimits = new HashMap<>();
                             for (String key : new String[]{MAX_MESSAGE_SIZE, MAX_SUBSCRIBER_COUNT,
                                     MAX_TAG_COUNT, MAX_FILE_UPLOAD_SIZE}) {
@@ -1323,7 +1393,14 @@ public class Tinode {
                 mMyUid = null;
                 mServerLimits = null;
 
-                if (mStore != null) {
+                if (mAsyncStore != null) {
+                    // Log out of storage after the pending writes of this user are completed.
+                    mAsyncStore.flushReceipts();
+                    mAsyncStore.write(store -> {
+                        store.logout();
+                        return null;
+                    });
+                } else if (mStore != null) {
                     mStore.logout();
                 }
             }
@@ -1796,6 +1873,15 @@ public class Tinode {
         mTopics.remove(topicName);
     }
 
+    /**
+     * Get asynchronous access to persistent storage.
+     *
+     * @return {@link AsyncStorage} or {@code null} if there is no persistent storage.
+     */
+    public AsyncStorage getAsyncStore() {
+        return mAsyncStore;
+    }
+
     /**
      * Get the latest cached message in the given topic.
      * @param topicName name of the topic to get message for.
@@ -1858,6 +1944,31 @@ public class Tinode {
         return user;
     }
 
+    /**
+     * Look up user in a local cache without blocking: first in memory, then in persistent storage.
+     *
+     * @param uid ID of the user to find.
+     * @return promise resolved with {@link User} or {@code null} if no such user is found in local cache.
+     */
+    @SuppressWarnings("unchecked")
+    public <SP> PromisedReply<User<SP>> getUserAsync(final String uid) {
+        User<SP> user = mUsers.get(uid);
+        if (user != null || mAsyncStore == null) {
+            return new PromisedReply<>(user);
+        }
+        return mAsyncStore.read(store -> {
+            User<SP> found = store.userGet(uid);
+            if (found != null) {
+                User<SP> prev = mUsers.putIfAbsent(uid, found);
+                if (prev != null) {
+                    // Added to memory cache while reading from storage.
+                    found = prev;
+                }
+            }
+            return found;
+        });
+    }
+
     /**
      * Create blank user in cache: in memory and in persistent storage.
      *
@@ -1867,16 +1978,31 @@ public class Tinode {
      */
     @SuppressWarnings("unchecked")
     User addUser(String uid, Description desc) {
-        User user = new User(uid, desc);
-        mUsers.put(uid, user);
-        if (mStore != null) {
-            mStore.userAdd(user);
+        User user = cacheUser(uid, desc);
+        if (mAsyncStore != null) {
+            mAsyncStore.userAdd(user);
         }
         return user;
     }
 
+    // Add user to in-memory cache without saving it to storage.
     @SuppressWarnings("unchecked")
+    User cacheUser(String uid, Description desc) {
+        User user = new User(uid, desc);
+        mUsers.put(uid, user);
+        return user;
+    }
+
     void updateUser(Subscription sub) {
+        User user = cacheUser(sub);
+        if (mAsyncStore != null) {
+            mAsyncStore.userUpdate(user);
+        }
+    }
+
+    // Add or update in-memory user without saving it to storage.
+    @SuppressWarnings("unchecked")
+    User cacheUser(Subscription sub) {
         User user = mUsers.get(sub.user);
         if (user == null) {
             user = new User(sub);
@@ -1884,9 +2010,7 @@ public class Tinode {
         } else {
             user.merge(sub);
         }
-        if (mStore != null) {
-            mStore.userUpdate(user);
-        }
+        return user;
     }
 
     @SuppressWarnings("unchecked")
@@ -1898,8 +2022,8 @@ public class Tinode {
         } else {
             user.merge(desc);
         }
-        if (mStore != null) {
-            mStore.userUpdate(user);
+        if (mAsyncStore != null) {
+            mAsyncStore.userUpdate(user);
         }
     }
 
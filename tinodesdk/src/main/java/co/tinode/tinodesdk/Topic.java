@@ -9,10 +9,12 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import co.tinode.tinodesdk.model.AccessChange;
@@ -74,7 +76,11 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
      * The mStore is set by Tinode when the topic calls {@link Tinode#startTrackingTopic(Topic)}
      */
     Storage mStore = null;
+    // Background access to mStore. Set together with mStore.
+    AsyncStorage mAsyncStore = null;
     private Payload mLocal = null;
+    // Decoder of the fields which are loaded from storage on first access.
+    private volatile Hydrator mHydrator = null;
 
     Topic(Tinode tinode, String name) {
         mTinode = tinode;
@@ -243,11 +249,22 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
      * @param sub updated topic parameters
      */
     protected boolean update(Subscription<SP, SR> sub) {
+        return update(sub, true);
+    }
+
+    /**
+     * Update topic parameters from a Subscription object.
+     *
+     * @param sub     updated topic parameters
+     * @param persist save changes to storage; false if the caller saves the topic as a part of a batch.
+     */
+    protected boolean update(Subscription<SP, SR> sub, boolean persist) {
+        hydrate();
         boolean changed = mDesc.merge(sub);
 
-        if (changed) {
-            if (mStore != null) {
-                mStore.topicUpdate(this);
+        if (changed && persist) {
+            if (mAsyncStore != null) {
+                mAsyncStore.topicUpdate(this);
             }
             if (isP2PType()) {
                 mTinode.updateUser(getName(), mDesc);
@@ -266,9 +283,10 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
      * @param desc updated topic parameters
      */
     protected void update(Description<DP, DR> desc) {
+        hydrate();
         if (mDesc.merge(desc)) {
-            if (mStore != null) {
-                mStore.topicUpdate(this);
+            if (mAsyncStore != null) {
+                mAsyncStore.topicUpdate(this);
             }
             if (isP2PType()) {
                 mTinode.updateUser(getName(), mDesc);
@@ -284,6 +302,7 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
      */
     @SuppressWarnings("unchecked")
     protected void update(Map<String, Object> params, MetaSetSub sSub) {
+        hydrate();
         String user = sSub.user;
 
         Map<String, String> acsMap = params != null ? (Map<String, String>) params.get("acs") : null;
@@ -311,8 +330,8 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
             }
 
             if (changed) {
-                if (mStore != null) {
-                    mStore.topicUpdate(this);
+                if (mAsyncStore != null) {
+                    mAsyncStore.topicUpdate(this);
                 }
                 if (isP2PType()) {
                     mTinode.updateUser(getName(), mDesc);
@@ -328,13 +347,13 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
             sub.user = user;
             sub.acs = acs;
             addSubToCache(sub);
-            if (mStore != null) {
-                mStore.subNew(this, sub);
+            if (mAsyncStore != null) {
+                mAsyncStore.subNew(this, sub);
             }
         } else {
             sub.acs.merge(acs);
-            if (mStore != null) {
-                mStore.subUpdate(this, sub);
+            if (mAsyncStore != null) {
+                mAsyncStore.subUpdate(this, sub);
             }
         }
     }
@@ -346,9 +365,10 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
      * @param desc updated topic parameters
      */
     protected void update(MetaSetDesc<DP, DR> desc) {
+        hydrate();
         if (mDesc.merge(desc)) {
-            if (mStore != null) {
-                mStore.topicUpdate(this);
+            if (mAsyncStore != null) {
+                mAsyncStore.topicUpdate(this);
             }
             if (isP2PType()) {
                 mTinode.updateUser(getName(), mDesc);
@@ -395,9 +415,35 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
      * @param tags updated topic  tags
      */
     protected void update(String[] tags) {
+        hydrate();
         this.mTags = tags;
-        if (mStore != null) {
-            mStore.topicUpdate(this);
+        if (mAsyncStore != null) {
+            mAsyncStore.topicUpdate(this);
+        }
+    }
+
+    /**
+     * Defer decoding of some fields until they are accessed. Used by storage to load topics quickly.
+     *
+     * @param hydrator decoder to call on the first access to public, private, trusted, tags or defacs.
+     */
+    public void setHydrator(Hydrator hydrator) {
+        mHydrator = hydrator;
+    }
+
+    /**
+     * Decode deferred fields, if any. Must be called before the fields are read or modified.
+     */
+    protected void hydrate() {
+        if (mHydrator != null) {
+            synchronized (this) {
+                Hydrator hydrator = mHydrator;
+                if (hydrator != null) {
+                    // Clear first: the hydrator uses setters which call hydrate().
+                    mHydrator = null;
+                    hydrator.hydrate(this);
+                }
+            }
         }
     }
 
@@ -409,6 +455,7 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
      */
     protected void setStorage(Storage store) {
         mStore = store;
+        mAsyncStore = store != null ? mTinode.getAsyncStore() : null;
     }
 
     public Date getCreated() {
@@ -544,34 +591,42 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
     }
 
     public String[] getTags() {
+        hydrate();
         return mTags;
     }
 
     public void setTags(String[] tags) {
+        hydrate();
         mTags = tags;
     }
 
     public DP getPub() {
+        hydrate();
         return mDesc.pub;
     }
 
     public void setPub(DP pub) {
+        hydrate();
         mDesc.pub = pub;
     }
 
     public TrustedType getTrusted() {
+        hydrate();
         return mDesc.trusted;
     }
 
     public void setTrusted(TrustedType trusted) {
+        hydrate();
         mDesc.trusted = trusted;
     }
 
     public DR getPriv() {
+        hydrate();
         return mDesc.priv;
     }
 
     public void setPriv(DR priv) {
+        hydrate();
         mDesc.priv = priv;
     }
 
@@ -607,6 +662,7 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
     }
 
     public boolean updateAccessMode(AccessChange ac) {
+        hydrate();
         if (mDesc.acs == null) {
             mDesc.acs = new Acs();
         }
@@ -706,31 +762,38 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
     }
 
     public Defacs getDefacs() {
+        hydrate();
         return mDesc.defacs;
     }
 
     public void setDefacs(Defacs da) {
+        hydrate();
         mDesc.defacs = da;
     }
 
     public void setDefacs(String auth, String anon) {
+        hydrate();
         mDesc.defacs.setAuth(auth);
         mDesc.defacs.setAnon(anon);
     }
 
     public AcsHelper getAuthAcs() {
+        hydrate();
         return mDesc.defacs == null ? null : mDesc.defacs.auth;
     }
 
     public String getAuthAcsStr() {
+        hydrate();
         return mDesc.defacs != null && mDesc.defacs.auth != null ? mDesc.defacs.auth.toString() : "";
     }
 
     public AcsHelper getAnonAcs() {
+        hydrate();
         return mDesc.defacs == null ? null : mDesc.defacs.anon;
     }
 
     public String getAnonAcsStr() {
+        hydrate();
         return mDesc.defacs != null && mDesc.defacs.anon != null ? mDesc.defacs.anon.toString() : "";
     }
 
@@ -782,6 +845,7 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
     }
 
     protected boolean isTrusted(final String key) {
+        hydrate();
         if (mDesc.trusted != null) {
             return mDesc.trusted.getBooleanValue(key);
         }
@@ -878,6 +942,7 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
                         if (!mAttached) {
                             mAttached = true;
                             if (msg.ctrl.params != null) {
+                                hydrate();
                                 mDesc.acs = new Acs((Map<String, String>) msg.ctrl.params.get("acs"));
                                 if (isNew()) {
                                     setUpdated(msg.ctrl.ts);
@@ -885,8 +950,8 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
                                     mTinode.changeTopicName(Topic.this, topicName);
                                 }
 
-                                if (mStore != null) {
-                                    mStore.topicUpdate(Topic.this);
+                                if (mAsyncStore != null) {
+                                    mAsyncStore.topicUpdate(Topic.this);
                                 }
                                 if (isP2PType()) {
                                     mTinode.updateUser(getName(), mDesc);
@@ -975,12 +1040,18 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
 
                 // FIXME: this causes READ notification not to be sent.
                 setRead(seq);
-                if (mStore != null) {
-                    mStore.setRead(this, seq);
-
-                    // Update cached message.
-                    Storage.Message msg = mStore.getMessagePreviewById(id);
-                    mTinode.setLastMessage(getName(), msg);
+                if (mAsyncStore != null) {
+                    mAsyncStore.setRead(this, seq);
+
+                    // Update cached message. Read it after the pending writes.
+                    mAsyncStore.<Storage.Message>write(store -> store.getMessagePreviewById(id)).thenApply(
+                            new PromisedReply.SuccessListener<Storage.Message>() {
+                                @Override
+                                public PromisedReply<Storage.Message> onSuccess(Storage.Message msg) {
+                                    mTinode.setLastMessage(getName(), msg);
+                                    return null;
+                                }
+                            });
                 }
             }
         }
@@ -1300,12 +1371,26 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
             sub.acs = new Acs();
             sub.acs.setGiven(mode);
 
-            if (mStore != null) {
-                mStore.subNew(this, sub);
+            if (mAsyncStore != null) {
+                mAsyncStore.subNew(this, sub);
             }
 
-            User<SP> user = mTinode.getUser(uid);
-            sub.pub = user != null ? user.pub : null;
+            // Invite is called from the UI thread: look up the user without waiting for storage,
+            // and notify the listener again if the user is found later.
+            final PromisedReply<User<SP>> user = mTinode.getUserAsync(uid);
+            final boolean cached = user.isDone();
+            user.thenApply(new PromisedReply.SuccessListener<User<SP>>() {
+                @Override
+                public PromisedReply<User<SP>> onSuccess(User<SP> result) {
+                    if (result != null) {
+                        sub.pub = result.pub;
+                        if (!cached && mListener != null) {
+                            mListener.onMetaSub(sub);
+                        }
+                    }
+                    return null;
+                }
+            });
 
             addSubToCache(sub);
         }
@@ -1324,8 +1409,8 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
                 new PromisedReply.SuccessListener<ServerMessage>() {
                     @Override
                     public PromisedReply<ServerMessage> onSuccess(ServerMessage result) {
-                        if (mStore != null) {
-                            mStore.subUpdate(Topic.this, sub);
+                        if (mAsyncStore != null) {
+                            mAsyncStore.subUpdate(Topic.this, sub);
                         }
                         if (mListener != null) {
                             mListener.onMetaSub(sub);
@@ -1356,8 +1441,8 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
 
         if (isNew()) {
             // This topic is not yet synced.
-            if (mStore != null) {
-                mStore.subDelete(this, sub);
+            if (mAsyncStore != null) {
+                mAsyncStore.subDelete(this, sub);
             }
 
             if (mListener != null) {
@@ -1370,8 +1455,8 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
         return mTinode.delSubscription(getName(), uid).thenApply(new PromisedReply.SuccessListener<ServerMessage>() {
             @Override
             public PromisedReply<ServerMessage> onSuccess(ServerMessage result) {
-                if (mStore != null) {
-                    mStore.subDelete(Topic.this, sub);
+                if (mAsyncStore != null) {
+                    mAsyncStore.subDelete(Topic.this, sub);
                 }
 
                 removeSubFromCache(sub);
@@ -1399,8 +1484,8 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
                     int delId = result.ctrl.getIntParam("del", 0);
                     setClear(delId);
                     setMaxDel(delId);
-                    if (mStore != null && delId > 0) {
-                        mStore.msgDelete(Topic.this, delId, fromId, toId);
+                    if (mAsyncStore != null && delId > 0) {
+                        mAsyncStore.msgDelete(Topic.this, delId, fromId, toId);
                     }
                     return null;
                 }
@@ -1432,8 +1517,8 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
                     int delId = result.ctrl.getIntParam("del", 0);
                     setClear(delId);
                     setMaxDel(delId);
-                    if (mStore != null && delId > 0) {
-                        mStore.msgDelete(Topic.this, delId, ranges);
+                    if (mAsyncStore != null && delId > 0) {
+                        mAsyncStore.msgDelete(Topic.this, delId, ranges);
                     }
                     return null;
                 }
@@ -1532,8 +1617,8 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
 
     public int noteRead(boolean fromMe, int seq) {
         int result = noteReadRecv(NoteType.READ, fromMe, seq);
-        if (mStore != null && result > 0) {
-            mStore.setRead(this, result);
+        if (mAsyncStore != null && result > 0) {
+            mAsyncStore.setRead(this, result);
         }
         return result;
     }
@@ -1548,8 +1633,8 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
 
     protected int noteRecv(boolean fromMe) {
         int result = noteReadRecv(NoteType.RECV, fromMe, -1);
-        if (mStore != null && result > 0) {
-            mStore.setRecv(this, result);
+        if (mAsyncStore != null && result > 0) {
+            mAsyncStore.setRecv(this, result);
         }
         return result;
     }
@@ -1764,6 +1849,10 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
         if (mAttached) {
             mAttached = false;
 
+            if (mAsyncStore != null) {
+                mAsyncStore.flushReceipts();
+            }
+
             // Don't change topic online status here. Change it in the 'me' topic
 
             if (mListener != null) {
@@ -1807,14 +1896,26 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
     }
 
     protected void processSub(Subscription<SP, SR> newsub) {
+        processSub(newsub, true);
+    }
+
+    /**
+     * Apply subscription update received from the server.
+     *
+     * @param newsub  subscription update.
+     * @param persist save subscription to storage; false if the caller saves it as a part of a batch.
+     * @return subscription to save: the cached one or newsub if it was deleted.
+     */
+    protected Subscription<SP, SR> processSub(Subscription<SP, SR> newsub, boolean persist) {
         // In case of a generic (non-'me') topic, meta.sub contains topic subscribers.
         // I.e. sub.user is set, but sub.topic is equal to current topic.
 
+        final AsyncStorage store = persist ? mAsyncStore : null;
         Subscription<SP, SR> sub;
 
         if (newsub.deleted != null) {
-            if (mStore != null) {
-                mStore.subDelete(this, newsub);
+            if (store != null) {
+                store.subDelete(this, newsub);
             }
             removeSubFromCache(newsub);
 
@@ -1823,24 +1924,29 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
             sub = getSubscription(newsub.user);
             if (sub != null) {
                 sub.merge(newsub);
-                if (mStore != null) {
-                    mStore.subUpdate(this, sub);
+                if (store != null) {
+                    store.subUpdate(this, sub);
                 }
             } else {
                 sub = newsub;
                 addSubToCache(sub);
-                if (mStore != null) {
-                    mStore.subAdd(this, sub);
+                if (store != null) {
+                    store.subAdd(this, sub);
                 }
             }
 
-            mTinode.updateUser(sub);
+            if (persist) {
+                mTinode.updateUser(sub);
+            } else {
+                // User's public is saved together with the subscription.
+                mTinode.cacheUser(sub);
+            }
 
             // If this is a change to user's own permissions, update topic too.
             if (mTinode.isMe(sub.user) && sub.acs != null) {
                 setAccessMode(sub.acs);
-                if (mStore != null) {
-                    mStore.topicUpdate(this);
+                if (mAsyncStore != null) {
+                    mAsyncStore.topicUpdate(this);
                 }
 
                 // Notify listener that topic has updated.
@@ -1853,11 +1959,17 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
         if (mListener != null) {
             mListener.onMetaSub(sub);
         }
+        return sub;
     }
 
     protected void routeMetaSub(MsgServerMeta<DP, DR, SP, SR> meta) {
+        List<Subscription> batch = new ArrayList<>(meta.sub.length);
         for (Subscription<SP, SR> newsub : meta.sub) {
-            processSub(newsub);
+            batch.add(processSub(newsub, false));
+        }
+        // The whole page is saved in one transaction.
+        if (mAsyncStore != null) {
+            mAsyncStore.subUpsertBatch(this, batch);
         }
 
         if (mListener != null) {
@@ -1866,12 +1978,19 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
     }
 
     protected void routeMetaDel(int clear, MsgRange[] delseq) {
-        if (mStore != null) {
-            mStore.msgDelete(this, clear, delseq);
-        }
         setMaxDel(clear);
 
-        if (mListener != null) {
+        if (mAsyncStore != null) {
+            // Notify listener after the messages are deleted from storage.
+            mAsyncStore.msgDelete(this, clear, delseq).thenFinally(new PromisedReply.FinalListener() {
+                @Override
+                public void onFinally() {
+                    if (mListener != null) {
+                        mListener.onData(null);
+                    }
+                }
+            });
+        } else if (mListener != null) {
             mListener.onData(null);
         }
     }
@@ -1884,19 +2003,38 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
         }
     }
 
-    protected void routeData(MsgServerData data) {
-        if (mStore != null) {
-            Storage.Message msg = mStore.msgReceived(this, getSubscription(data.from), data);
-            if (msg != null) {
-                mTinode.setLastMessage(getName(), msg);
-                noteRecv(mTinode.isMe(data.from));
-            }
+    protected void routeData(final MsgServerData data) {
+        setSeq(data.seq);
+        setTouched(data.ts);
+
+        if (mAsyncStore != null) {
+            // Save the message in background, then notify listeners so they can read it from storage.
+            mAsyncStore.msgReceived(this, getSubscription(data.from), data).thenApply(
+                    new PromisedReply.SuccessListener<Storage.Message>() {
+                        @Override
+                        public PromisedReply<Storage.Message> onSuccess(Storage.Message msg) {
+                            if (msg != null) {
+                                mTinode.setLastMessage(getName(), msg);
+                                noteRecv(mTinode.isMe(data.from));
+                            }
+                            dataReceived(data);
+                            return null;
+                        }
+                    },
+                    new PromisedReply.FailureListener<Storage.Message>() {
+                        @Override
+                        public <E extends Exception> PromisedReply<Storage.Message> onFailure(E err) {
+                            dataReceived(data);
+                            return null;
+                        }
+                    });
         } else {
             noteRecv(mTinode.isMe(data.from));
+            dataReceived(data);
         }
-        setSeq(data.seq);
-        setTouched(data.ts);
+    }
 
+    private void dataReceived(MsgServerData data) {
         if (mListener != null) {
             mListener.onData(data);
         }
@@ -1908,15 +2046,36 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
         }
     }
 
-    protected void allMessagesReceived(Integer count) {
-        if (mListener != null) {
-            mListener.onAllMessagesReceived(count);
-        }
+    protected void allMessagesReceived(final Integer count) {
+        // Notify after the messages received before this {ctrl} are saved and reported by onData.
+        afterPendingWrites(new PromisedReply.FinalListener() {
+            @Override
+            public void onFinally() {
+                if (mListener != null) {
+                    mListener.onAllMessagesReceived(count);
+                }
+            }
+        });
     }
 
     protected void allSubsReceived() {
-        if (mListener != null) {
-            mListener.onSubsUpdated();
+        afterPendingWrites(new PromisedReply.FinalListener() {
+            @Override
+            public void onFinally() {
+                if (mListener != null) {
+                    mListener.onSubsUpdated();
+                }
+            }
+        });
+    }
+
+    // Call the listener after all storage writes submitted so far are completed, so listener callbacks
+    // are called in the order of the messages which caused them.
+    private void afterPendingWrites(PromisedReply.FinalListener listener) {
+        if (mAsyncStore != null) {
+            mAsyncStore.flush().thenFinally(listener);
+        } else {
+            listener.onFinally();
         }
     }
     protected void routePres(MsgServerPres pres) {
@@ -1999,20 +2158,17 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
         switch (what) {
             case Tinode.NOTE_RECV:
                 sub.recv = seq;
-                if (mStore != null) {
-                    mStore.msgRecvByRemote(sub, seq);
+                if (mAsyncStore != null) {
+                    mAsyncStore.readRecvByRemote(sub);
                 }
                 break;
             case Tinode.NOTE_READ:
                 sub.read = seq;
                 if (sub.recv < sub.read) {
                     sub.recv = sub.read;
-                    if (mStore != null) {
-                        mStore.msgRecvByRemote(sub, seq);
-                    }
                 }
-                if (mStore != null) {
-                    mStore.msgReadByRemote(sub, seq);
+                if (mAsyncStore != null) {
+                    mAsyncStore.readRecvByRemote(sub);
                 }
                 break;
             default:
@@ -2074,6 +2230,13 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
 
     protected enum NoteType {READ, RECV}
 
+    /**
+     * Decoder of topic fields deferred by storage, see {@link #setHydrator(Hydrator)}.
+     */
+    public interface Hydrator {
+        void hydrate(Topic topic);
+    }
+
     @SuppressWarnings("EmptyMethod")
     public static class Listener<DP, DR, SP, SR> {
 
@@ -2084,7 +2247,8 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
         }
 
         /**
-         * Process {data} message.
+         * Process {data} message. If the topic is persisted, called on the storage thread after the message
+         * is saved, otherwise on the network thread. Also called with null after messages are deleted.
          *
          * @param data data packet
          */
@@ -2092,7 +2256,8 @@ public class Topic<DP, DR, SP, SR> implements LocalData, Comparable<Topic> {
         }
 
         /**
-         * All requested data messages received.
+         * All requested data messages received. If the topic is persisted, called on the storage thread
+         * after {@link #onData(MsgServerData)} is called for all these messages.
          */
         public void onAllMessagesReceived(Integer count) {
         }
@@ -0,0 +1,328 @@
+package co.tinode.tinodesdk;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs out of band uploads and downloads on a bounded pool of threads.
+ * <p>
+ * Transfers wait in a queue ordered by priority, then by submission order, so images visible on screen can
+ * be fetched before the rest. Each transfer can be canceled separately through its {@link Transfer} handle.
+ * Connections are reused between transfers to the same server by HTTP keep-alive, so many small transfers
+ * do not create a thread and a TLS handshake each.
+ */
+public class TransferManager {
+    /**
+     * Order in which queued transfers are started.
+     */
+    public enum Priority {
+        // The user is waiting for it, e.g. the image is visible on screen.
+        HIGH,
+        NORMAL,
+        // Prefetching or other background work.
+        LOW
+    }
+
+    /**
+     * Work performed by a transfer.
+     *
+     * @param <T> type of the result.
+     */
+    public interface Job<T> {
+        /**
+         * Perform the transfer. Called on a transfer thread.
+         *
+         * @param helper   helper to use for the transfer.
+         * @param progress progress listener to pass to the helper; never null. It also stops the transfer
+         *                 when it is canceled by throwing {@link CancellationException}.
+         * @return result of the transfer.
+         */
+        T run(LargeFileHelper helper, LargeFileHelper.FileHelperProgress progress) throws Exception;
+    }
+
+    // Default number of parallel transfers.
+    private static final int DEFAULT_MAX_PARALLEL = 3;
+    // Idle transfer threads are stopped after this time, seconds.
+    private static final int KEEP_ALIVE_SEC = 30;
+    // Minimum interval between calls to a progress listener, milliseconds.
+    static final long PROGRESS_INTERVAL = 100;
+
+    private static TransferManager sDefault = null;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicLong mSequence = new AtomicLong();
+
+    // Metrics.
+    private final AtomicInteger mActive = new AtomicInteger();
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    private final AtomicLong mCanceled = new AtomicLong();
+    private final AtomicLong mBytes = new AtomicLong();
+    // Total time spent by transfers running and waiting in the queue, nanoseconds.
+    private final AtomicLong mRunNanos = new AtomicLong();
+    private final AtomicLong mWaitNanos = new AtomicLong();
+
+    /**
+     * Create transfer manager.
+     *
+     * @param maxParallel maximum number of transfers running at the same time.
+     */
+    public TransferManager(int maxParallel) {
+        final AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(r, "tinode-transfer-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        mExecutor = new ThreadPoolExecutor(maxParallel, maxParallel, KEEP_ALIVE_SEC, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<>(), factory);
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Get transfer manager shared by the app.
+     */
+    public static synchronized TransferManager getDefault() {
+        if (sDefault == null) {
+            sDefault = new TransferManager(DEFAULT_MAX_PARALLEL);
+        }
+        return sDefault;
+    }
+
+    /**
+     * Queue a transfer.
+     *
+     * @param helper   helper to perform the transfer with, e.g. from {@link Tinode#getFileUploader()}.
+     * @param priority priority of the transfer.
+     * @param job      the transfer itself.
+     * @param progress optional progress listener, called at most every {@link #PROGRESS_INTERVAL} ms
+     *                 and when the transfer is complete.
+     * @return handle of the transfer.
+     */
+    public <T> Transfer<T> submit(@NotNull LargeFileHelper helper, @NotNull Priority priority, @NotNull Job<T> job,
+                                  @Nullable LargeFileHelper.FileHelperProgress progress) {
+        Transfer<T> transfer = new Transfer<>(helper, priority, job, progress);
+        mExecutor.execute(transfer);
+        return transfer;
+    }
+
+    /**
+     * Number of transfers waiting to start.
+     */
+    public int getQueueLength() {
+        return mExecutor.getQueue().size();
+    }
+
+    /**
+     * Number of transfers running now.
+     */
+    public int getActiveCount() {
+        return mActive.get();
+    }
+
+    public long getCompletedCount() {
+        return mCompleted.get();
+    }
+
+    public long getFailedCount() {
+        return mFailed.get();
+    }
+
+    public long getCanceledCount() {
+        return mCanceled.get();
+    }
+
+    /**
+     * Number of bytes sent and received by all finished transfers.
+     */
+    public long getBytesTransferred() {
+        return mBytes.get();
+    }
+
+    /**
+     * Average throughput of a single transfer, bytes per second.
+     */
+    public long getAverageThroughput() {
+        long nanos = mRunNanos.get();
+        return nanos > 0 ? mBytes.get() * 1_000_000_000L / nanos : 0;
+    }
+
+    /**
+     * Average time a transfer waited in the queue before starting, milliseconds.
+     */
+    public long getAverageWaitTime() {
+        long started = mCompleted.get() + mFailed.get() + mCanceled.get() + mActive.get();
+        return started > 0 ? mWaitNanos.get() / started / 1_000_000L : 0;
+    }
+
+    /**
+     * Handle of a queued or running transfer.
+     *
+     * @param <T> type of the result.
+     */
+    public class Transfer<T> implements Runnable, Comparable<Transfer<?>> {
+        private final LargeFileHelper mHelper;
+        private final Job<T> mJob;
+        private final ThrottledProgress mProgress;
+        private final PromisedReply<T> mResult = new PromisedReply<>();
+        private final long mSeq;
+        private final long mQueuedAt;
+        private volatile Priority mPriority;
+        private volatile boolean mCanceled = false;
+
+        Transfer(LargeFileHelper helper, Priority priority, Job<T> job, LargeFileHelper.FileHelperProgress progress) {
+            mHelper = helper;
+            mPriority = priority;
+            mJob = job;
+            mProgress = new ThrottledProgress(this, progress);
+            mSeq = mSequence.incrementAndGet();
+            mQueuedAt = System.nanoTime();
+        }
+
+        /**
+         * Result of the transfer. Rejected with {@link CancellationException} if the transfer is canceled.
+         */
+        public PromisedReply<T> getResult() {
+            return mResult;
+        }
+
+        public Priority getPriority() {
+            return mPriority;
+        }
+
+        /**
+         * Change priority of the transfer, e.g. when the image scrolls into view. Has no effect if the
+         * transfer has already started.
+         */
+        public void setPriority(Priority priority) {
+            if (priority == mPriority) {
+                return;
+            }
+            // The queue is not reordered when an item changes: take the transfer out and put it back.
+            if (mExecutor.remove(this)) {
+                mPriority = priority;
+                mExecutor.execute(this);
+            }
+        }
+
+        /**
+         * Cancel the transfer: remove it from the queue or stop it if it's already running. Other transfers
+         * are not affected even if they use the same helper.
+         */
+        public void cancel() {
+            mCanceled = true;
+            if (mExecutor.remove(this)) {
+                TransferManager.this.mCanceled.incrementAndGet();
+                reject(new CancellationException("Cancelled"));
+            }
+        }
+
+        public boolean isCanceled() {
+            return mCanceled;
+        }
+
+        @Override
+        public void run() {
+            if (mCanceled) {
+                TransferManager.this.mCanceled.incrementAndGet();
+                reject(new CancellationException("Cancelled"));
+                return;
+            }
+
+            final long start = System.nanoTime();
+            mWaitNanos.addAndGet(start - mQueuedAt);
+            mActive.incrementAndGet();
+            T value = null;
+            Exception error = null;
+            try {
+                value = mJob.run(mHelper, mProgress);
+                // The helper may be shared with other transfers: only this transfer's own flag counts.
+                if (mCanceled) {
+                    throw new CancellationException("Cancelled");
+                }
+            } catch (Exception ex) {
+                error = ex;
+            } finally {
+                mBytes.addAndGet(mProgress.getBytes());
+                mRunNanos.addAndGet(System.nanoTime() - start);
+                mActive.decrementAndGet();
+            }
+
+            if (error == null) {
+                mCompleted.incrementAndGet();
+                try {
+                    mResult.resolve(value);
+                } catch (Exception ignored) {
+                }
+            } else {
+                if (error instanceof CancellationException) {
+                    TransferManager.this.mCanceled.incrementAndGet();
+                } else {
+                    mFailed.incrementAndGet();
+                }
+                reject(error);
+            }
+        }
+
+        private void reject(Exception ex) {
+            try {
+                mResult.reject(ex);
+            } catch (Exception ignored) {
+            }
+        }
+
+        @Override
+        public int compareTo(Transfer<?> that) {
+            int result = mPriority.compareTo(that.mPriority);
+            return result != 0 ? result : Long.compare(mSeq, that.mSeq);
+        }
+    }
+
+    // Progress listener which passes through updates no more often than PROGRESS_INTERVAL
+    // and the final update. It's called by the helper after every block of data, so it also
+    // stops the transfer when the transfer is canceled. The helper counts bytes of the transfer
+    // here: one helper may run several transfers at once.
+    static class ThrottledProgress implements LargeFileHelper.FileHelperProgress {
+        private final Transfer<?> mTransfer;
+        private final LargeFileHelper.FileHelperProgress mListener;
+        private final AtomicLong mBytes = new AtomicLong();
+        private long mLastReported = 0;
+
+        ThrottledProgress(@Nullable Transfer<?> transfer, @Nullable LargeFileHelper.FileHelperProgress listener) {
+            mTransfer = transfer;
+            mListener = listener;
+        }
+
+        @Override
+        public synchronized void onProgress(long sent, long size) {
+            if (mTransfer != null && mTransfer.mCanceled) {
+                throw new CancellationException("Cancelled");
+            }
+            if (mListener == null) {
+                return;
+            }
+            long now = System.nanoTime() / 1_000_000L;
+            if ((size > 0 && sent >= size) || now - mLastReported >= PROGRESS_INTERVAL) {
+                mLastReported = now;
+                mListener.onProgress(sent, size);
+            }
+        }
+
+        void addBytes(long count) {
+            mBytes.addAndGet(count);
+        }
+
+        // Bytes sent or received by the transfer, including data sent more than once because of retries.
+        long getBytes() {
+            return mBytes.get();
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package co.tinode.tinodesdk;
+
+import static org.junit.Assert.*;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import co.tinode.tinodesdk.model.ServerMessage;
+
+public class LargeFileHelperTest {
+    private static final String SESSION_PATH = "/v0/file/u/session";
+    private static final byte[] OK_RESPONSE =
+            "{\"ctrl\":{\"code\":200,\"text\":\"ok\",\"params\":{\"url\":\"/v0/file/s/abc.bin\"}}}"
+                    .getBytes(StandardCharsets.UTF_8);
+
+    private HttpServer mServer;
+    private URL mUploadUrl;
+
+    // Server state.
+    private boolean mResumable;
+    private ByteArrayOutputStream mReceived;
+    private byte[] mOneShot;
+    // Chunks (by index) to fail and how many times each.
+    private final Set<Integer> mFailChunks = new HashSet<>();
+    private int mFailCount;
+    private int mFailed;
+
+    // Download server state.
+    private String mDownloadUrl;
+    private File mTmpDir;
+    private volatile byte[] mFile;
+    private volatile String mETag = "\"v1\"";
+    private volatile boolean mRanges = true;
+    // Simulated network: delay before each response and throughput of one connection.
+    private volatile int mLatencyMs = 0;
+    private volatile int mBytesPerSecond = 0;
+    // Range requests are dropped at this offset, mDropCount times.
+    private volatile long mDropAt = -1;
+    private final AtomicInteger mDropCount = new AtomicInteger();
+    private final AtomicLong mServed = new AtomicLong();
+    // Range requests being served now and the maximum seen.
+    private final AtomicInteger mActiveRanges = new AtomicInteger();
+    private final AtomicInteger mMaxActiveRanges = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/v0/file/u/", this::handle);
+        mServer.createContext("/v0/file/s/", this::handleDownload);
+        // Parallel downloads need more than one server thread.
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.start();
+        mUploadUrl = new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/v0/file/u/");
+        mDownloadUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/v0/file/s/abc.bin";
+        mResumable = true;
+        mReceived = new ByteArrayOutputStream();
+        mTmpDir = Files.createTempDirectory("lfh").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        File[] files = mTmpDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mTmpDir.delete();
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        byte[] body = readAll(ex.getRequestBody());
+        String path = ex.getRequestURI().getPath();
+        if ("POST".equals(ex.getRequestMethod()) && !path.equals(SESSION_PATH)) {
+            if ("resumable".equals(ex.getRequestHeaders().getFirst("X-Tinode-Upload"))) {
+                if (!mResumable) {
+                    respond(ex, 404, null);
+                    return;
+                }
+                mReceived = new ByteArrayOutputStream();
+                ex.getResponseHeaders().add("Location", SESSION_PATH);
+                respond(ex, 201, null);
+            } else {
+                mOneShot = body;
+                respond(ex, 200, OK_RESPONSE);
+            }
+            return;
+        }
+
+        if (!"PUT".equals(ex.getRequestMethod()) || !path.equals(SESSION_PATH)) {
+            respond(ex, 404, null);
+            return;
+        }
+
+        String[] range = ex.getRequestHeaders().getFirst("Content-Range").substring(6).split("/");
+        long total = Long.parseLong(range[1]);
+        if (!range[0].equals("*")) {
+            long start = Long.parseLong(range[0].split("-")[0]);
+            int index = (int) (start / LargeFileHelper.CHUNK_SIZE);
+            if (mFailChunks.contains(index) && mFailed < mFailCount) {
+                // Data received but the connection drops before the response.
+                mFailed++;
+                ex.close();
+                return;
+            }
+            String sum = ex.getRequestHeaders().getFirst("X-Tinode-Checksum");
+            if (start != mReceived.size() ||
+                    !("sha-256=" + LargeFileHelper.checksum(body, body.length)).equals(sum)) {
+                respond(ex, 422, null);
+                return;
+            }
+            mReceived.write(body);
+        }
+
+        if (mReceived.size() == total) {
+            respond(ex, 200, OK_RESPONSE);
+        } else {
+            if (mReceived.size() > 0) {
+                ex.getResponseHeaders().add("Range", "bytes=0-" + (mReceived.size() - 1));
+            }
+            respond(ex, 308, null);
+        }
+    }
+
+    private void handleDownload(HttpExchange ex) throws IOException {
+        readAll(ex.getRequestBody());
+        sleep(mLatencyMs);
+
+        final byte[] file = mFile;
+        long start = 0, end = file.length;
+        int code = 200;
+        String range = ex.getRequestHeaders().getFirst("Range");
+        String ifRange = ex.getRequestHeaders().getFirst("If-Range");
+        if (mRanges && range != null && (ifRange == null || ifRange.equals(mETag))) {
+            String[] parts = range.substring(6).split("-");
+            start = Long.parseLong(parts[0]);
+            end = Math.min(Long.parseLong(parts[1]) + 1, file.length);
+            if (start >= file.length) {
+                ex.getResponseHeaders().add("Content-Range", "bytes */" + file.length);
+                respond(ex, 416, null);
+                return;
+            }
+            code = 206;
+            ex.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + file.length);
+        }
+        ex.getResponseHeaders().add("ETag", mETag);
+        ex.sendResponseHeaders(code, end - start);
+
+        long stop = end;
+        if (code == 206 && start <= mDropAt && mDropAt < end && mDropCount.getAndDecrement() > 0) {
+            // Connection drops in the middle of the range.
+            stop = mDropAt;
+        }
+        OutputStream out = ex.getResponseBody();
+        final int piece = 16384;
+        if (code == 206) {
+            mMaxActiveRanges.accumulateAndGet(mActiveRanges.incrementAndGet(), Math::max);
+        }
+        try {
+            for (long pos = start; pos < stop; pos += piece) {
+                int len = (int) Math.min(piece, stop - pos);
+                out.write(file, (int) pos, len);
+                mServed.addAndGet(len);
+                if (mBytesPerSecond > 0) {
+                    sleep(1000L * len / mBytesPerSecond);
+                }
+            }
+        } finally {
+            if (code == 206) {
+                mActiveRanges.decrementAndGet();
+            }
+        }
+        if (stop < end) {
+            out.flush();
+            ex.close();
+            return;
+        }
+        out.close();
+        ex.close();
+    }
+
+    private static void sleep(long ms) {
+        if (ms <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private static void respond(HttpExchange ex, int code, byte[] body) throws IOException {
+        ex.sendResponseHeaders(code, body == null ? -1 : body.length);
+        if (body != null) {
+            OutputStream out = ex.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+        ex.close();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int len;
+        while ((len = in.read(buffer)) > 0) {
+            out.write(buffer, 0, len);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] data(int size, int seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private LargeFileHelper helper(LargeFileHelper.SessionStore store) {
+        return new LargeFileHelper(mUploadUrl, "key", "token", "test", store);
+    }
+
+    @Test
+    public void testUpload() throws Exception {
+        final byte[] data = data(LargeFileHelper.CHUNK_SIZE * 5 + 123, 1);
+        LargeFileHelper lfh = helper(new LargeFileHelper.MemorySessionStore());
+
+        ServerMessage msg = lfh.uploadResumable(() -> new ByteArrayInputStream(data), "t1",
+                "file.bin", "application/octet-stream", data.length, null);
+
+        assertEquals(200, msg.ctrl.code);
+        assertEquals("/v0/file/s/abc.bin", msg.ctrl.getStringParam("url", null));
+        assertArrayEquals(data, mReceived.toByteArray());
+        assertEquals(data.length, lfh.getBytesTransferred());
+    }
+
+    @Test
+    public void testRetryDroppedChunk() throws Exception {
+        final byte[] data = data(LargeFileHelper.CHUNK_SIZE * 5 + 123, 2);
+        mFailChunks.add(2);
+        mFailCount = 1;
+        LargeFileHelper lfh = helper(new LargeFileHelper.MemorySessionStore());
+
+        ServerMessage msg = lfh.uploadResumable(() -> new ByteArrayInputStream(data), "t2",
+                "file.bin", "application/octet-stream", data.length, null);
+
+        assertEquals(200, msg.ctrl.code);
+        assertArrayEquals(data, mReceived.toByteArray());
+        long resent = lfh.getBytesTransferred() - data.length;
+        // Only the dropped chunk is sent again.
+        assertEquals(LargeFileHelper.CHUNK_SIZE, resent);
+    }
+
+    @Test
+    public void testResumeAfterRestart() throws Exception {
+        final byte[] data = data(LargeFileHelper.CHUNK_SIZE * 20, 3);
+        // The connection keeps dropping at 95%: the upload fails and is restarted later.
+        mFailChunks.add(19);
+        mFailCount = 100;
+        LargeFileHelper.SessionStore store = new LargeFileHelper.MemorySessionStore();
+
+        LargeFileHelper first = helper(store);
+        try {
+            first.uploadResumable(() -> new ByteArrayInputStream(data), "t3",
+                    "file.bin", "application/octet-stream", data.length, null);
+            fail("Upload must fail");
+        } catch (IOException ignored) {
+        }
+        assertNotNull(store.load("t3"));
+        assertEquals(LargeFileHelper.CHUNK_SIZE * 19, mReceived.size());
+
+        // New helper as if the process was restarted.
+        mFailCount = 0;
+        LargeFileHelper second = helper(store);
+        ServerMessage msg = second.uploadResumable(() -> new ByteArrayInputStream(data), "t3",
+                "file.bin", "application/octet-stream", data.length, null);
+
+        assertEquals(200, msg.ctrl.code);
+        assertArrayEquals(data, mReceived.toByteArray());
+        assertNull(store.load("t3"));
+        // After the restart only the last chunk is sent, not the whole file.
+        assertEquals(LargeFileHelper.CHUNK_SIZE, second.getBytesTransferred());
+    }
+
+    @Test
+    public void testRestartChangedData() throws Exception {
+        final byte[] data = data(LargeFileHelper.CHUNK_SIZE * 4, 4);
+        final byte[] changed = Arrays.copyOf(data, data.length);
+        changed[10] ^= 1;
+        mFailChunks.add(3);
+        mFailCount = 100;
+        LargeFileHelper.SessionStore store = new LargeFileHelper.MemorySessionStore();
+
+        try {
+            helper(store).uploadResumable(() -> new ByteArrayInputStream(data), "t4",
+                    "file.bin", "application/octet-stream", data.length, null);
+            fail("Upload must fail");
+        } catch (IOException ignored) {
+        }
+
+        mFailCount = 0;
+        ServerMessage msg = helper(store).uploadResumable(() -> new ByteArrayInputStream(changed), "t4",
+                "file.bin", "application/octet-stream", changed.length, null);
+
+        assertEquals(200, msg.ctrl.code);
+        assertArrayEquals(changed, mReceived.toByteArray());
+    }
+
+    @Test
+    public void testFallbackToOneShot() throws Exception {
+        final byte[] data = data(LargeFileHelper.CHUNK_SIZE * 2, 5);
+        mResumable = false;
+
+        ServerMessage msg = helper(new LargeFileHelper.MemorySessionStore()).uploadResumable(
+                () -> new ByteArrayInputStream(data), "t5",
+                "file.bin", "application/octet-stream", data.length, null);
+
+        assertEquals(200, msg.ctrl.code);
+        assertNotNull(mOneShot);
+        assertTrue(new String(mOneShot, StandardCharsets.ISO_8859_1).contains("filename=\"file.bin\""));
+        assertEquals(0, mReceived.size());
+    }
+
+    @Test
+    public void testParallelDownload() throws Exception {
+        mFile = data(LargeFileHelper.MIN_SEGMENT_SIZE * 4 + 777, 6);
+        File dst = new File(mTmpDir, "file.bin");
+        LargeFileHelper lfh = helper(null);
+
+        long size = lfh.downloadToFile(mDownloadUrl, dst, null);
+
+        assertEquals(mFile.length, size);
+        assertArrayEquals(mFile, Files.readAllBytes(dst.toPath()));
+        assertFalse(new File(dst.getPath() + ".part").exists());
+        assertFalse(new File(dst.getPath() + ".part.state").exists());
+    }
+
+    @Test
+    public void testDownloadWithoutRanges() throws Exception {
+        mFile = data(LargeFileHelper.MIN_SEGMENT_SIZE * 2, 7);
+        mRanges = false;
+        File dst = new File(mTmpDir, "file.bin");
+
+        long size = helper(null).downloadToFile(mDownloadUrl, dst, null);
+
+        assertEquals(mFile.length, size);
+        assertArrayEquals(mFile, Files.readAllBytes(dst.toPath()));
+        assertEquals(mFile.length, mServed.get());
+    }
+
+    @Test
+    public void testResumeDownload() throws Exception {
+        mFile = data(LargeFileHelper.MIN_SEGMENT_SIZE * 4, 8);
+        File dst = new File(mTmpDir, "file.bin");
+        // The last segment keeps failing halfway through.
+        mDropAt = LargeFileHelper.MIN_SEGMENT_SIZE * 3 + LargeFileHelper.MIN_SEGMENT_SIZE / 2;
+        mDropCount.set(100);
+
+        try {
+            helper(null).downloadToFile(mDownloadUrl, dst, null);
+            fail("Download must fail");
+        } catch (IOException ignored) {
+        }
+        assertFalse(dst.exists());
+        assertTrue(new File(dst.getPath() + ".part.state").exists());
+
+        // Download again as if the app was restarted.
+        mDropCount.set(0);
+        long served = mServed.get();
+        long size = helper(null).downloadToFile(mDownloadUrl, dst, null);
+
+        assertEquals(mFile.length, size);
+        assertArrayEquals(mFile, Files.readAllBytes(dst.toPath()));
+        long resumed = mServed.get() - served;
+        // The rest of the failed segment and one byte of the request which checks the file.
+        assertEquals(LargeFileHelper.MIN_SEGMENT_SIZE / 2 + 1, resumed);
+    }
+
+    @Test
+    public void testRestartChangedFile() throws Exception {
+        mFile = data(LargeFileHelper.MIN_SEGMENT_SIZE * 4, 9);
+        File dst = new File(mTmpDir, "file.bin");
+        mDropAt = LargeFileHelper.MIN_SEGMENT_SIZE * 3 + LargeFileHelper.MIN_SEGMENT_SIZE / 2;
+        mDropCount.set(100);
+        try {
+            helper(null).downloadToFile(mDownloadUrl, dst, null);
+            fail("Download must fail");
+        } catch (IOException ignored) {
+        }
+
+        // The file is replaced on the server.
+        mDropCount.set(0);
+        mFile = data(LargeFileHelper.MIN_SEGMENT_SIZE * 4, 10);
+        mETag = "\"v2\"";
+        helper(null).downloadToFile(mDownloadUrl, dst, null);
+
+        assertArrayEquals(mFile, Files.readAllBytes(dst.toPath()));
+    }
+
+    @Test
+    public void testDownloadSegmentsInParallel() throws Exception {
+        mFile = data(LargeFileHelper.MIN_SEGMENT_SIZE * 4, 11);
+        // Slow enough for the segments to overlap.
+        mLatencyMs = 50;
+        mBytesPerSecond = 8 << 20;
+        File dst = new File(mTmpDir, "file.bin");
+
+        helper(null).downloadToFile(mDownloadUrl, dst, null);
+
+        assertArrayEquals(mFile, Files.readAllBytes(dst.toPath()));
+        assertEquals(LargeFileHelper.MAX_SEGMENTS, mMaxActiveRanges.get());
+    }
+}
@@ -0,0 +1,56 @@
+package co.tinode.tinodesdk;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.Random;
+
+import co.tinode.tinodesdk.model.Drafty;
+import co.tinode.tinodesdk.model.MsgServerData;
+import co.tinode.tinodesdk.model.TheCard;
+
+public class LoadTopicsTest {
+    private static final int[] TOPIC_COUNTS = {100, 1000, 5000};
+
+    private static TheCard samplePub(int i) {
+        byte[] avatar = new byte[1024];
+        new Random(i).nextBytes(avatar);
+        return new TheCard("Contact " + i, avatar, "image/jpeg");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static MemoryStorage populate(int count) {
+        MemoryStorage store = new MemoryStorage();
+        store.setMyUid("usrMe");
+        for (int i = 0; i < count; i++) {
+            Topic topic = Tinode.newTopic(null, "grp" + i, null);
+            topic.setPub(samplePub(i));
+            topic.setTouched(new Date(1000L * i));
+            store.topicAdd(topic);
+
+            MsgServerData msg = new MsgServerData();
+            msg.topic = topic.getName();
+            msg.from = "usrOther";
+            msg.seq = 1;
+            msg.ts = new Date(1000L * i);
+            msg.content = Drafty.parse("hello *" + i + "*");
+            store.msgReceived(topic, null, msg);
+        }
+        return store;
+    }
+
+    @Test
+    public void testLoadTopics() {
+        for (int count : TOPIC_COUNTS) {
+            MemoryStorage store = populate(count);
+
+            Tinode tinode = new Tinode("test", "key", store, null);
+
+            assertEquals(count, tinode.getTopics().size());
+            assertNotNull(tinode.getLastMessage("grp0"));
+            assertNotNull(tinode.getLastMessage("grp" + (count - 1)));
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package co.tinode.tinodesdk;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import co.tinode.tinodesdk.model.Drafty;
+import co.tinode.tinodesdk.model.MsgRange;
+import co.tinode.tinodesdk.model.MsgServerData;
+import co.tinode.tinodesdk.model.Subscription;
+
+public class MemoryStorageTest {
+    private static final String MY_UID = "usrAlice";
+    private static final String OTHER_UID = "usrBob";
+    private static final String TOPIC = "grpTest";
+
+    private MemoryStorage mStore;
+    private Tinode mTinode;
+    private Topic mTopic;
+
+    @Before
+    public void setUp() {
+        mStore = new MemoryStorage();
+        mStore.setMyUid(MY_UID);
+        mTinode = new Tinode("test", "key", mStore, null);
+        mTopic = Tinode.newTopic(mTinode, TOPIC, null);
+        assertTrue(mStore.topicAdd(mTopic) > 0);
+    }
+
+    private Storage.Message receive(int seq, String from) {
+        MsgServerData msg = new MsgServerData();
+        msg.topic = TOPIC;
+        msg.from = from;
+        msg.seq = seq;
+        msg.ts = new Date(1000L * seq);
+        msg.content = Drafty.parse("message " + seq);
+        return mStore.msgReceived(mTopic, null, msg);
+    }
+
+    private static List<Storage.Message> drain(Iterator<Storage.Message> iter) {
+        List<Storage.Message> list = new ArrayList<>();
+        while (iter.hasNext()) {
+            list.add(iter.next());
+        }
+        return list;
+    }
+
+    @Test
+    public void testAccount() {
+        assertTrue(mStore.isReady());
+        mStore.setMyUid(MY_UID, new String[]{"email"});
+        assertFalse(mStore.isReady());
+        mStore.setMyUid(MY_UID);
+        assertNotNull(mStore.topicGet(null, TOPIC));
+
+        // Different account: data is discarded.
+        mStore.setMyUid(OTHER_UID);
+        assertNull(mStore.topicGet(null, TOPIC));
+        assertNull(mStore.topicGetAll(null));
+    }
+
+    @Test
+    public void testReceived() {
+        for (int seq = 1; seq <= 10; seq++) {
+            receive(seq, seq % 2 == 0 ? MY_UID : OTHER_UID);
+        }
+        Storage.Message msg = receive(5, OTHER_UID);
+        assertEquals(5, msg.getSeqId());
+        assertTrue(msg.isSynced());
+        assertFalse(msg.isMine());
+
+        MsgRange cached = mStore.getCachedMessagesRange(mTopic);
+        assertEquals(1, cached.getLower());
+        assertEquals(11, cached.getUpper());
+        assertNull(mStore.getNextMissingRange(mTopic));
+
+        Storage.Message byId = mStore.getMessageById(msg.getDbId());
+        assertEquals(msg.getContent(), byId.getContent());
+
+        Topic restored = mStore.topicGet(null, TOPIC);
+        assertEquals(10, restored.getSeq());
+        assertEquals(10, restored.getRecv());
+
+        List<Storage.Message> previews = drain(mStore.getLatestMessagePreviews());
+        assertEquals(1, previews.size());
+        assertEquals(10, previews.get(0).getSeqId());
+        assertTrue(previews.get(0).isMine());
+    }
+
+    @Test
+    public void testMissingRange() {
+        receive(1, OTHER_UID);
+        receive(2, OTHER_UID);
+        receive(6, OTHER_UID);
+        receive(10, OTHER_UID);
+
+        MsgRange gap = mStore.getNextMissingRange(mTopic);
+        assertEquals(7, gap.getLower());
+        assertEquals(10, gap.getUpper());
+
+        // Range deleted on the server fills the gap.
+        assertTrue(mStore.msgDelete(mTopic, 1, 7, 10));
+        gap = mStore.getNextMissingRange(mTopic);
+        assertEquals(3, gap.getLower());
+        assertEquals(6, gap.getUpper());
+
+        assertTrue(mStore.msgDelete(mTopic, 2, 3, 6));
+        assertNull(mStore.getNextMissingRange(mTopic));
+    }
+
+    @Test
+    public void testDelete() {
+        for (int seq = 1; seq <= 10; seq++) {
+            receive(seq, OTHER_UID);
+        }
+
+        assertTrue(mStore.msgMarkToDelete(mTopic, 3, 5, true));
+        assertTrue(mStore.msgMarkToDelete(mTopic, 5, 7, true));
+        assertTrue(mStore.msgMarkToDelete(mTopic, 8, 9, false));
+
+        // Adjacent hard ranges are merged.
+        MsgRange[] hard = mStore.getQueuedMessageDeletes(mTopic, true);
+        assertEquals(1, hard.length);
+        assertEquals(3, hard[0].getLower());
+        assertEquals(7, hard[0].getUpper());
+
+        MsgRange[] soft = mStore.getQueuedMessageDeletes(mTopic, false);
+        assertEquals(1, soft.length);
+        assertEquals(8, soft[0].getLower());
+
+        // Server-confirmed delete supersedes the pending ranges.
+        assertTrue(mStore.msgDelete(mTopic, 1, new MsgRange[]{new MsgRange(2, 10)}));
+        assertNull(mStore.getQueuedMessageDeletes(mTopic, true));
+        assertNull(mStore.getQueuedMessageDeletes(mTopic, false));
+        assertNull(mStore.getNextMissingRange(mTopic));
+        assertEquals(1, mStore.topicGet(null, TOPIC).getMaxDel());
+    }
+
+    @Test
+    public void testQueued() {
+        receive(1, OTHER_UID);
+
+        Storage.Message draft = mStore.msgDraft(mTopic, Drafty.parse("draft"), null);
+        Storage.Message sent = mStore.msgSend(mTopic, Drafty.parse("sent"), null);
+        assertEquals(MemoryStorage.UNSENT_ID_START, draft.getSeqId());
+        assertEquals(MemoryStorage.UNSENT_ID_START + 1, sent.getSeqId());
+        assertTrue(draft.isPending());
+        assertTrue(draft.isMine());
+
+        // Unsent messages are not gaps.
+        assertNull(mStore.getNextMissingRange(mTopic));
+
+        assertTrue(mStore.msgSyncing(mTopic, sent.getDbId(), false));
+        assertTrue(mStore.msgReady(mTopic, draft.getDbId(), Drafty.parse("ready")));
+        List<Storage.Message> queued = drain(mStore.getQueuedMessages(mTopic));
+        assertEquals(2, queued.size());
+
+        assertTrue(mStore.msgDelivered(mTopic, sent.getDbId(), new Date(), 2));
+        // Seq already taken.
+        assertFalse(mStore.msgDelivered(mTopic, draft.getDbId(), new Date(), 2));
+        queued = drain(mStore.getQueuedMessages(mTopic));
+        assertEquals(1, queued.size());
+        assertEquals(Drafty.parse("ready"), queued.get(0).getContent());
+        assertEquals(3, mStore.getCachedMessagesRange(mTopic).getUpper());
+
+        assertTrue(mStore.msgFailed(mTopic, draft.getDbId()));
+        assertTrue(mStore.msgPruneFailed(mTopic));
+        assertNull(mStore.getMessageById(draft.getDbId()));
+    }
+
+    private static Subscription sub(String user, int read, int recv) {
+        Subscription sub = new Subscription();
+        sub.user = user;
+        sub.read = read;
+        sub.recv = recv;
+        return sub;
+    }
+
+    @Test
+    public void testSubUpsertBatch() {
+        assertEquals(2, mStore.subUpsertBatch(mTopic, Arrays.asList(sub(MY_UID, 5, 6), sub(OTHER_UID, 3, 3))));
+        assertNotNull(mStore.userGet(OTHER_UID));
+
+        // Stale counters do not overwrite newer ones.
+        assertEquals(1, mStore.subUpsertBatch(mTopic, Collections.singletonList(sub(MY_UID, 2, 7))));
+        for (Subscription s : mStore.getSubscriptions(mTopic)) {
+            if (MY_UID.equals(s.user)) {
+                assertEquals(5, s.read);
+                assertEquals(7, s.recv);
+            }
+        }
+
+        Subscription deleted = sub(OTHER_UID, 0, 0);
+        deleted.deleted = new Date();
+        assertEquals(1, mStore.subUpsertBatch(mTopic, Collections.singletonList(deleted)));
+        assertEquals(1, mStore.getSubscriptions(mTopic).size());
+    }
+
+    @Test
+    public void testSubReadRecvBatch() {
+        Subscription bob = sub(OTHER_UID, 1, 1);
+        mStore.subAdd(mTopic, bob);
+
+        bob.read = 4;
+        bob.recv = 6;
+        assertEquals(1, mStore.subReadRecvBatch(Collections.singletonList(bob)));
+        // Nothing changed.
+        assertEquals(0, mStore.subReadRecvBatch(Collections.singletonList(bob)));
+
+        Subscription stored = mStore.getSubscriptions(mTopic).iterator().next();
+        assertEquals(4, stored.read);
+        assertEquals(6, stored.recv);
+    }
+
+    @Test
+    public void testTopicUpsertBatch() {
+        Topic fresh = Tinode.newTopic(null, "grpFresh", null);
+        // Same topic as mTopic, but not linked to the stored record.
+        Topic unlinked = Tinode.newTopic(null, TOPIC, null);
+        unlinked.setSeq(42);
+
+        Collection<Topic> batch = Arrays.asList(fresh, unlinked);
+        assertEquals(2, mStore.topicUpsertBatch(batch));
+        assertNotNull(fresh.getLocal());
+        assertSame(mTopic.getLocal(), unlinked.getLocal());
+        assertEquals(2, mStore.topicGetAll(null).length);
+        assertEquals(42, mStore.topicGet(null, TOPIC).getSeq());
+    }
+}
@@ -0,0 +1,137 @@
+package co.tinode.tinodesdk;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import co.tinode.tinodesdk.model.Drafty;
+
+public class StorageCodecTest {
+    private static Drafty sampleText() {
+        return Drafty.parse("this is *bold*, `code` and _italic_, ~strike~ with https://www.example.com/ and @mention");
+    }
+
+    private static Drafty sampleImage() {
+        byte[] bits = new byte[2048];
+        new Random(42).nextBytes(bits);
+        // Mostly repeated bytes, like a real image preview.
+        Arrays.fill(bits, 512, 2048, (byte) 7);
+        return new Drafty("caption").insertImage(0, "image/jpeg", bits, 640, 480, "image.jpg");
+    }
+
+    private static Map<String, Object> sampleHead() {
+        Map<String, Object> head = new HashMap<>();
+        head.put("mime", Drafty.MIME_TYPE);
+        head.put("reply", "12345");
+        head.put("forwarded", "grpAbCdEf:678");
+        head.put("webrtc", "started");
+        head.put("webrtc-duration", 125000);
+        return head;
+    }
+
+    @Test
+    public void testDrafty() {
+        Drafty expected = sampleText();
+        Drafty actual = StorageCodec.decode(StorageCodec.encode(expected));
+        assertEquals("Text", expected, actual);
+
+        expected = Drafty.fromPlainText("plain");
+        actual = StorageCodec.decode(StorageCodec.encode(expected));
+        assertEquals("Plain", expected, actual);
+        assertNull(actual.fmt);
+        assertNull(actual.ent);
+
+        // Attachment with at=-1 and binary data.
+        expected = new Drafty().attachFile("text/plain", new byte[]{1, 2, 3}, "file.txt");
+        actual = StorageCodec.decode(StorageCodec.encode(expected));
+        assertEquals("Attachment", expected.txt, actual.txt);
+        assertArrayEquals("Attachment fmt", expected.fmt, actual.fmt);
+        assertEquals("Attachment size", 3, actual.ent[0].data.get("size"));
+        assertArrayEquals("Attachment bits", new byte[]{1, 2, 3}, (byte[]) actual.ent[0].data.get("val"));
+    }
+
+    @Test
+    public void testMap() {
+        Map<String, Object> expected = sampleHead();
+        List<Object> list = new ArrayList<>();
+        list.add("a");
+        list.add(1.5);
+        list.add(null);
+        list.add(true);
+        expected.put("list", list);
+        expected.put("long", 12345678901L);
+        expected.put("negative", -1);
+        Map<String, Object> actual = StorageCodec.decode(StorageCodec.encode(expected));
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testCompression() {
+        Drafty expected = sampleImage();
+        byte[] encoded = StorageCodec.encode(expected);
+        assertTrue("Not compressed", encoded.length < 2048);
+        Drafty actual = StorageCodec.decode(encoded);
+        assertEquals(expected.txt, actual.txt);
+        assertArrayEquals(expected.fmt, actual.fmt);
+        assertArrayEquals((byte[]) expected.ent[0].data.get("val"), (byte[]) actual.ent[0].data.get("val"));
+    }
+
+    @Test
+    public void testMalformed() {
+        assertNull(StorageCodec.decode(null));
+        assertFalse(StorageCodec.isEncoded("co.tinode.tinodesdk.model.Drafty;{}".getBytes()));
+        byte[] encoded = StorageCodec.encode(sampleText());
+        try {
+            StorageCodec.decode(Arrays.copyOf(encoded, encoded.length / 2));
+            fail("Truncated data decoded");
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    @Test
+    public void testCorruptSizes() {
+        // Map which claims to have Integer.MAX_VALUE entries.
+        byte[][] corrupt = new byte[][]{
+                {StorageCodec.VERSION, 2, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07},
+                // Deflated payload which claims to inflate to 2GB.
+                {StorageCodec.VERSION, (byte) 0x82, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07, 0x01},
+                // Drafty with a huge number of styles.
+                {StorageCodec.VERSION, 1, 0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x7F},
+                // List value with a huge number of items.
+                {StorageCodec.VERSION, 2, 1, 2, 'k', 7, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x7F},
+        };
+        for (byte[] data : corrupt) {
+            try {
+                StorageCodec.decode(data);
+                fail("Corrupt data decoded: " + Arrays.toString(data));
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Binary format is smaller on disk than the legacy "ClassName;json" text format and decodes to the same value.
+     */
+    @Test
+    public void testSmallerThanLegacy() throws Exception {
+        Object[] samples = new Object[]{sampleText(), sampleImage(), sampleHead()};
+        for (Object sample : samples) {
+            String legacy = sample.getClass().getCanonicalName() + ";" + Tinode.jsonSerialize(sample);
+            byte[] binary = StorageCodec.encode(sample);
+
+            String[] parts = legacy.split(";", 2);
+            Object fromLegacy = Tinode.jsonDeserialize(parts[1], parts[0]);
+            Object fromBinary = StorageCodec.decode(binary);
+            assertNotNull(fromBinary);
+            assertEquals(Tinode.jsonSerialize(fromLegacy), Tinode.jsonSerialize(fromBinary));
+            assertTrue("Binary format is larger", binary.length < legacy.getBytes().length);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package co.tinode.tinodesdk;
+
+import static org.junit.Assert.*;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import co.tinode.tinodesdk.model.ServerMessage;
+
+public class TransferManagerTest {
+    private static final byte[] OK_RESPONSE =
+            "{\"ctrl\":{\"code\":200,\"text\":\"ok\",\"params\":{\"url\":\"/v0/file/s/abc.jpg\"}}}"
+                    .getBytes(StandardCharsets.UTF_8);
+
+    private HttpServer mServer;
+    private URL mUploadUrl;
+
+    // Client connections seen by the server, by remote address.
+    private final Set<String> mConnections = Collections.synchronizedSet(new HashSet<>());
+    private final AtomicInteger mRunning = new AtomicInteger();
+    private final AtomicInteger mMaxRunning = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/v0/file/u/", this::handleUpload);
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.start();
+        mUploadUrl = new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/v0/file/u/");
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    private void handleUpload(HttpExchange ex) throws IOException {
+        mConnections.add(ex.getRemoteAddress().toString());
+        int running = mRunning.incrementAndGet();
+        mMaxRunning.accumulateAndGet(running, Math::max);
+        try {
+            InputStream in = ex.getRequestBody();
+            byte[] buffer = new byte[8192];
+            //noinspection StatementWithEmptyBody
+            while (in.read(buffer) > 0) {
+            }
+            // Simulated server latency.
+            Thread.sleep(10);
+            ex.sendResponseHeaders(200, OK_RESPONSE.length);
+            OutputStream out = ex.getResponseBody();
+            out.write(OK_RESPONSE);
+            out.close();
+        } catch (InterruptedException ignored) {
+        } finally {
+            mRunning.decrementAndGet();
+            ex.close();
+        }
+    }
+
+    private LargeFileHelper helper() {
+        return new LargeFileHelper(mUploadUrl, "key", "token", "test");
+    }
+
+    private static int transferThreads() {
+        int count = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().startsWith("tinode-transfer-")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testPriorityOrder() throws Exception {
+        TransferManager tm = new TransferManager(1);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final List<String> order = Collections.synchronizedList(new ArrayList<>());
+        LargeFileHelper lfh = helper();
+
+        tm.submit(lfh, TransferManager.Priority.NORMAL, (h, p) -> blocker.await(5, TimeUnit.SECONDS), null);
+        List<TransferManager.Transfer<Boolean>> transfers = new ArrayList<>();
+        transfers.add(tm.submit(lfh, TransferManager.Priority.LOW, (h, p) -> order.add("low"), null));
+        transfers.add(tm.submit(lfh, TransferManager.Priority.NORMAL, (h, p) -> order.add("normal"), null));
+        transfers.add(tm.submit(lfh, TransferManager.Priority.HIGH, (h, p) -> order.add("high1"), null));
+        TransferManager.Transfer<Boolean> visible =
+                tm.submit(lfh, TransferManager.Priority.LOW, (h, p) -> order.add("high2"), null);
+        transfers.add(visible);
+        // The image scrolled into view.
+        visible.setPriority(TransferManager.Priority.HIGH);
+        assertEquals(4, tm.getQueueLength());
+
+        blocker.countDown();
+        for (TransferManager.Transfer<Boolean> t : transfers) {
+            assertTrue(t.getResult().getResult());
+        }
+        assertEquals(Arrays.asList("high1", "high2", "normal", "low"), order);
+        assertEquals(5, tm.getCompletedCount());
+    }
+
+    @Test
+    public void testCancelQueued() throws Exception {
+        TransferManager tm = new TransferManager(1);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final AtomicInteger ran = new AtomicInteger();
+        LargeFileHelper lfh = helper();
+
+        tm.submit(lfh, TransferManager.Priority.NORMAL, (h, p) -> blocker.await(5, TimeUnit.SECONDS), null);
+        TransferManager.Transfer<Integer> t =
+                tm.submit(lfh, TransferManager.Priority.NORMAL, (h, p) -> ran.incrementAndGet(), null);
+        t.cancel();
+        blocker.countDown();
+
+        try {
+            t.getResult().getResult();
+            fail("Transfer must be canceled");
+        } catch (CancellationException ignored) {
+        }
+        assertEquals(0, ran.get());
+        assertEquals(1, tm.getCanceledCount());
+        assertEquals(0, tm.getQueueLength());
+    }
+
+    @Test
+    public void testCancelRunning() throws Exception {
+        TransferManager tm = new TransferManager(2);
+        final CountDownLatch started = new CountDownLatch(1);
+        // Both transfers share the helper: canceling one must not stop the other.
+        LargeFileHelper lfh = helper();
+
+        TransferManager.Transfer<Long> endless = tm.submit(lfh, TransferManager.Priority.NORMAL, (h, p) -> {
+            started.countDown();
+            for (long i = 0; ; i++) {
+                p.onProgress(i, Long.MAX_VALUE);
+                Thread.sleep(1);
+            }
+        }, null);
+        TransferManager.Transfer<Long> other = tm.submit(lfh, TransferManager.Priority.NORMAL, (h, p) -> {
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            for (long i = 0; i < 200; i++) {
+                p.onProgress(i, 200);
+                Thread.sleep(1);
+            }
+            return 200L;
+        }, null);
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        endless.cancel();
+
+        try {
+            endless.getResult().getResult();
+            fail("Transfer must be canceled");
+        } catch (CancellationException ignored) {
+        }
+        assertEquals(Long.valueOf(200), other.getResult().getResult());
+        assertEquals(1, tm.getCanceledCount());
+        assertEquals(1, tm.getCompletedCount());
+    }
+
+    @Test
+    public void testSharedHelperBytes() throws Exception {
+        TransferManager tm = new TransferManager(2);
+        final byte[] photo = new byte[200 * 1024];
+        new Random(2).nextBytes(photo);
+        // Both uploads run at the same time on one helper: each must count only its own bytes.
+        LargeFileHelper lfh = helper();
+
+        List<TransferManager.Transfer<ServerMessage>> transfers = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            final String name = "photo" + i + ".jpg";
+            transfers.add(tm.submit(lfh, TransferManager.Priority.NORMAL,
+                    (h, p) -> h.upload(new ByteArrayInputStream(photo), name, "image/jpeg", photo.length, p),
+                    null));
+        }
+        for (TransferManager.Transfer<ServerMessage> t : transfers) {
+            assertEquals(200, t.getResult().getResult().ctrl.code);
+        }
+
+        assertEquals(2, tm.getCompletedCount());
+        assertEquals(2L * photo.length, tm.getBytesTransferred());
+        assertEquals(2L * photo.length, lfh.getBytesTransferred());
+    }
+
+    @Test
+    public void testThrottledProgress() throws Exception {
+        TransferManager tm = new TransferManager(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicLong last = new AtomicLong();
+        final int updates = 100000;
+
+        tm.submit(helper(), TransferManager.Priority.NORMAL, (h, p) -> {
+            for (int i = 1; i <= updates; i++) {
+                p.onProgress(i, updates);
+            }
+            return null;
+        }, (sent, size) -> {
+            calls.incrementAndGet();
+            last.set(sent);
+        }).getResult().getResult();
+
+        assertEquals(updates, last.get());
+        assertTrue("Too many progress updates: " + calls.get(), calls.get() < updates / 100);
+    }
+
+    @Test
+    public void testManyUploads() throws Exception {
+        final int count = 30;
+        final int parallel = 3;
+        final byte[] photo = new byte[200 * 1024];
+        new Random(1).nextBytes(photo);
+        // Idle threads of other managers may still be alive.
+        final int otherThreads = transferThreads();
+        TransferManager tm = new TransferManager(parallel);
+
+        List<TransferManager.Transfer<ServerMessage>> transfers = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final String name = "photo" + i + ".jpg";
+            transfers.add(tm.submit(helper(), TransferManager.Priority.NORMAL,
+                    (h, p) -> h.upload(new ByteArrayInputStream(photo), name, "image/jpeg", photo.length, p),
+                    null));
+        }
+        int threads = transferThreads() - otherThreads;
+        for (TransferManager.Transfer<ServerMessage> t : transfers) {
+            assertEquals(200, t.getResult().getResult().ctrl.code);
+        }
+        assertTrue("Threads: " + threads, threads <= parallel);
+        assertTrue("Parallel uploads: " + mMaxRunning.get(), mMaxRunning.get() <= parallel);
+        assertTrue("Connections: " + mConnections.size(), mConnections.size() <= parallel);
+        assertEquals(count, tm.getCompletedCount());
+        assertEquals((long) count * photo.length, tm.getBytesTransferred());
+        assertEquals(0, tm.getQueueLength());
+        // Transfers beyond the first batch had to wait for a free thread.
+        assertTrue(tm.getAverageWaitTime() > 0);
+        assertTrue(tm.getAverageThroughput() > 0);
+    }
+}